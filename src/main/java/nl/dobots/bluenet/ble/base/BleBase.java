@@ -4,8 +4,6 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.SystemClock;
 
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.nio.BufferUnderflowException;
@@ -13,17 +11,22 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 import nl.dobots.bluenet.ble.base.callbacks.IByteArrayCallback;
 import nl.dobots.bluenet.ble.base.callbacks.IConfigurationCallback;
+import nl.dobots.bluenet.ble.base.callbacks.IConfigurationsCallback;
 import nl.dobots.bluenet.ble.base.structs.SetupEncryptionKey;
 import nl.dobots.bluenet.ble.core.callbacks.IDataCallback;
+import nl.dobots.bluenet.ble.core.callbacks.IGattDiscoveryCallback;
 import nl.dobots.bluenet.ble.base.callbacks.IDiscoveryCallback;
 import nl.dobots.bluenet.ble.base.callbacks.IIntegerCallback;
+import nl.dobots.bluenet.ble.base.callbacks.IMessageCallback;
 import nl.dobots.bluenet.ble.base.callbacks.IPowerSamplesCallback;
-import nl.dobots.bluenet.ble.core.callbacks.IScanCallback;
+import nl.dobots.bluenet.ble.core.callbacks.IScanRecordBatchCallback;
 import nl.dobots.bluenet.ble.base.callbacks.IStateCallback;
 import nl.dobots.bluenet.ble.core.callbacks.IStatusCallback;
 import nl.dobots.bluenet.ble.core.callbacks.INotificationCallback;
@@ -40,17 +43,31 @@ import nl.dobots.bluenet.ble.base.structs.TrackedDeviceMsg;
 import nl.dobots.bluenet.ble.cfg.BleTypes;
 import nl.dobots.bluenet.ble.cfg.BleErrors;
 import nl.dobots.bluenet.ble.cfg.BluenetConfig;
+import nl.dobots.bluenet.ble.cfg.BluenetHandles;
 import nl.dobots.bluenet.ble.core.BleCore;
+import nl.dobots.bluenet.ble.core.BleScanRecord;
+import nl.dobots.bluenet.ble.core.GattDiscovery;
+import nl.dobots.bluenet.ble.core.GattHandle;
+import nl.dobots.bluenet.ble.core.GattOperationQueue;
 import nl.dobots.bluenet.ble.core.BleCoreTypes;
 import nl.dobots.bluenet.ble.base.callbacks.IBooleanCallback;
 import nl.dobots.bluenet.ble.extended.callbacks.IBleDeviceCallback;
 import nl.dobots.bluenet.ble.extended.structs.BleDevice;
+import nl.dobots.bluenet.utils.BleLog;
 import nl.dobots.bluenet.utils.BleUtils;
 
 public class BleBase extends BleCore {
 
 	private static final String TAG = BleBase.class.getCanonicalName();
 
+	private static final UUID DFU_SERVICE_UUID = UUID.fromString(BluenetConfig.DFU_SERVICE_UUID);
+
+	// default timeout of a configuration session (in ms), per configuration
+	public static final int CONFIGURATION_SESSION_TIMEOUT_PER_ITEM = 3000;
+
+	// time (in ms) the device gets to store a written configuration in persistent memory
+	private static final int CONFIGURATION_WRITE_DELAY = 1000;
+
 	// handler used for delayed execution, e.g. a to get the configuration we need to write first
 	// to the select configuration characteristic, then wait for a moment for the device to process
 	// the request before reading from the get configuration characteristic
@@ -59,34 +76,69 @@ public class BleBase extends BleCore {
 
 	private boolean _encryptionEnabled = true;
 	private EncryptionKeys _encryptionKeys = null;
-	private EncryptionSessionData _encryptionSessionData = null;
-	private boolean _setupMode = false;
+	// session data per device address, as multiple devices can be connected at the same time
+	private ConcurrentHashMap<String, EncryptionSessionData> _encryptionSessionData = new ConcurrentHashMap<>();
+	// setup mode, setup control handle and setup key per device address, set on discovery
+	private ConcurrentHashMap<String, SetupState> _setupStates = new ConcurrentHashMap<>();
+	// setup key set by the app, used for devices in setup mode of which no session key was read
 	private byte[] _setupEncryptionKey = null;
-	private String _setupControlCharUuid = null;
 
 	private IWriteCallback _onWriteCallback = null;
 
-	/** Hashmap of all subscribers, based on characeristic UUID */
-	private HashMap<UUID, ArrayList<IDataCallback>> _subscribers = new HashMap<>();
+	// Discovered services per device, used to detect changed services and outdated android caches
+	private GattDiscoveryCache _discoveryCache = new GattDiscoveryCache();
 
-	/**
-	 * "global" subscribe callback will be given to all subscribe calls of the BleCore. The
-	 * gatt notifications (or errors) will then be delegated based on the characteristic uuid to all
-	 * subscribers of that uuid
-	 */
-	private INotificationCallback _notificationCallback = new INotificationCallback() {
+	// Cache of the last parsed service data of each device
+	private ServiceDataCache _serviceDataCache = new ServiceDataCache();
+
+	/** Shares the notifications of each characteristic between all its subscribers */
+	private NotificationHub _notificationHub;
+
+	// Decoders of multipart notifications, with and without decryption
+	// Reassembles the multipart notifications of all devices
+	private MultipartReassembler _multipartReassembler = new MultipartReassembler(
+			BluenetConfig.BLE_MAX_MULTIPART_NOTIFICATION_LENGTH, MultipartReassembler.DEFAULT_POOL_SIZE);
+
+	private NotificationHub.DecoderFactory _multipartDecoder = new MultipartDecoderFactory(true);
+	private NotificationHub.DecoderFactory _multipartPlainDecoder = new MultipartDecoderFactory(false);
+
+	private NotificationHub.Parser<StateMsg> _stateParser = new NotificationHub.Parser<StateMsg>() {
 		@Override
-		public void onData(UUID uuidService, UUID uuidCharacteristic, JSONObject data) {
-			for (IDataCallback callback : getSubscribers(uuidCharacteristic)) {
-				callback.onData(data);
+		public StateMsg parse(byte[] bytes) {
+			getLogger().LOGd(TAG, "%s", bytes);
+			StateMsg state = new StateMsg();
+			if (!state.fromArray(bytes)) {
+				getLogger().LOGw(TAG, "failed parsing state notification: %s", bytes);
+				return null;
 			}
+			getLogger().LOGd(TAG, "received state notification: %s", state);
+			return state;
 		}
+	};
 
+	private NotificationHub.Parser<PowerSamples> _powerSamplesParser = new NotificationHub.Parser<PowerSamples>() {
 		@Override
-		public void onError(UUID uuidService, UUID uuidCharacteristic, int error) {
-			for (IDataCallback callback : getSubscribers(uuidCharacteristic)) {
-				callback.onError(error);
+		public PowerSamples parse(byte[] bytes) {
+			try {
+				return new PowerSamples(bytes);
+			} catch (BufferUnderflowException e) {
+				getLogger().LOGw(TAG, "failed parsing power samples: %s", bytes);
+				return null;
+			}
+		}
+	};
+
+	private NotificationHub.Parser<ConfigurationMsg> _configurationParser = new NotificationHub.Parser<ConfigurationMsg>() {
+		@Override
+		public ConfigurationMsg parse(byte[] bytes) {
+			getLogger().LOGv(TAG, "%s", bytes);
+			ConfigurationMsg configuration = new ConfigurationMsg();
+			if (!configuration.fromArray(bytes)) {
+				getLogger().LOGw(TAG, "failed to parse configuration: %s", bytes);
+				return null;
 			}
+			getLogger().LOGd(TAG, "read configuration: %s", configuration);
+			return configuration;
 		}
 	};
 
@@ -95,6 +147,42 @@ public class BleBase extends BleCore {
 		HandlerThread handlerThread = new HandlerThread("BleBaseHandler");
 		handlerThread.start();
 		_handler = new Handler(handlerThread.getLooper());
+
+		_notificationHub = new NotificationHub(new NotificationHub.GattSubscriber() {
+			@Override
+			public void subscribe(String address, GattHandle handle, IStatusCallback callback, INotificationCallback notificationCallback) {
+				BleBase.super.subscribe(address, handle, callback, notificationCallback);
+			}
+
+			@Override
+			public void unsubscribe(String address, GattHandle handle, IStatusCallback callback) {
+				BleBase.super.unsubscribe(address, handle, callback);
+			}
+		}, new GattOperationQueue.Scheduler() {
+			@Override
+			public void postDelayed(Runnable runnable, long delayMs) {
+				_handler.postDelayed(runnable, delayMs);
+			}
+
+			@Override
+			public void removeCallbacks(Runnable runnable) {
+				_handler.removeCallbacks(runnable);
+			}
+		});
+	}
+
+	/**
+	 * @return the hub that shares the notifications of each characteristic between all its subscribers
+	 */
+	public NotificationHub getNotificationHub() {
+		return _notificationHub;
+	}
+
+	/**
+	 * @return the reassembler of multipart notifications, for its settings and stats
+	 */
+	public MultipartReassembler getMultipartReassembler() {
+		return _multipartReassembler;
 	}
 
 	public void setOnWriteCallback(IWriteCallback onWriteCallback) {
@@ -114,7 +202,7 @@ public class BleBase extends BleCore {
 	};
 
 	public boolean enableEncryption(boolean enable) {
-		getLogger().LOGi(TAG, "enableEncryption: " + enable);
+		getLogger().LOGi(TAG, "enableEncryption: %s", enable);
 		_encryptionEnabled = enable;
 		return true;
 	}
@@ -124,8 +212,9 @@ public class BleBase extends BleCore {
 	}
 
 	public void setEncryptionKeys(EncryptionKeys encryptionKeys) {
-		getLogger().LOGi(TAG, "setEncryptionKeys: " + encryptionKeys.toString());
+		getLogger().LOGi(TAG, "setEncryptionKeys: %s", encryptionKeys);
 		_encryptionKeys = encryptionKeys;
+		BleBaseEncryption.clearCipherContexts();
 	}
 
 	public EncryptionKeys getEncryptionsKeys() {
@@ -133,15 +222,17 @@ public class BleBase extends BleCore {
 	}
 
 	public void setSetupEncryptionKey(byte[] key) {
-		getLogger().LOGi(TAG, "setSetupEncryptionKey to " + BleUtils.bytesToString(key));
+		getLogger().LOGi(TAG, "setSetupEncryptionKey to %s", BleLog.bytes(key));
 		_setupEncryptionKey = key;
+		BleBaseEncryption.clearCipherContexts();
 	}
 
 	public void setSetupEncryptionKey(String key) {
-		getLogger().LOGi(TAG, "setSetupEncryptionKey to " + key);
+		getLogger().LOGi(TAG, "setSetupEncryptionKey to %s", key);
 		try {
 			if (key != null) {
 				_setupEncryptionKey = BleUtils.hexStringToBytes(key);
+				BleBaseEncryption.clearCipherContexts();
 			}
 		} catch (java.lang.NumberFormatException e) {
 			e.printStackTrace();
@@ -151,59 +242,153 @@ public class BleBase extends BleCore {
 	public void clearSetupEncryptionKey() {
 		getLogger().LOGi(TAG, "clearSetupEncryptionKey");
 		_setupEncryptionKey = null;
+		BleBaseEncryption.clearCipherContexts();
+	}
+
+	public void setEncryptionSessionData(String address, EncryptionSessionData sessionData) {
+		_encryptionSessionData.put(address, sessionData);
 	}
 
+	/**
+	 * Set the session data of all currently connected devices.
+	 * @deprecated session data is kept per device, use {@link #setEncryptionSessionData(String, EncryptionSessionData)}
+	 */
+	@Deprecated
 	public void setEncryptionSessionData(EncryptionSessionData sessionData) {
-		_encryptionSessionData = sessionData;
+		for (String address : _encryptionSessionData.keySet()) {
+			_encryptionSessionData.put(address, sessionData);
+		}
+		for (String address : _setupStates.keySet()) {
+			_encryptionSessionData.put(address, sessionData);
+		}
+	}
+
+	/**
+	 * @return true if the device was in setup mode at the last service discovery
+	 */
+	public boolean isSetupMode(String address) {
+		SetupState state = _setupStates.get(address);
+		return state != null && state.setupMode;
+	}
+
+	/**
+	 * @return the setup control handle of the device, or null if not discovered
+	 */
+	private GattHandle getSetupControlHandle(String address) {
+		SetupState state = _setupStates.get(address);
+		return state != null ? state.controlHandle : null;
+	}
+
+	/**
+	 * Get the keys to encrypt with: the setup key when the device is in setup mode, the keys set by
+	 * the app otherwise.
+	 */
+	private EncryptionKeys getEncryptionKeys(String address) {
+		SetupState state = _setupStates.get(address);
+		if (state != null && state.setupMode) {
+			byte[] setupKey = state.sessionKey != null ? state.sessionKey : _setupEncryptionKey;
+			if (setupKey != null) {
+				// TODO: this is a hackish solution
+				getLogger().LOGi(TAG, "Use setup encryption key");
+				return new SetupEncryptionKey(setupKey);
+			}
+		}
+		return _encryptionKeys;
 	}
 
 	@Override
 	public void connectDevice(String address, int timeout, IStatusCallback callback) {
-		clearSetupEncryptionKey(); // Make sure we start clean
-		_subscribers.clear();
+		clearDeviceData(address); // Make sure we start clean
 		super.connectDevice(address, timeout, callback);
 	}
 
 	@Override
 	public void disconnectDevice(String address, IStatusCallback callback) {
-		_subscribers.clear();
+		clearDeviceData(address);
 		super.disconnectDevice(address, callback);
 	}
 
 	@Override
 	public void closeDevice(String address, boolean clearCache, IStatusCallback callback) {
-		_subscribers.clear();
+		clearDeviceData(address);
 		super.closeDevice(address, clearCache, callback);
 	}
 
+	/**
+	 * Clear the subscribers and session data of a device, other connected devices are not affected.
+	 */
+	private void clearDeviceData(String address) {
+		_notificationHub.clear(address);
+		_multipartReassembler.removeDevice(BleUtils.addressToLong(address));
+		_encryptionSessionData.remove(address);
+		_setupStates.remove(address);
+	}
+
 	@Override
 	public void write(String address, String serviceUuid, String characteristicUuid, byte[] value, IStatusCallback callback) {
 		write(address, serviceUuid, characteristicUuid, value, BleBaseEncryption.ACCESS_LEVEL_HIGHEST_AVAILABLE, callback);
 	}
 
+	@Override
+	public void write(String address, String serviceUuid, String characteristicUuid, byte[] value, IStatusCallback callback, int priority) {
+		write(address, serviceUuid, characteristicUuid, value, BleBaseEncryption.ACCESS_LEVEL_HIGHEST_AVAILABLE, callback, priority);
+	}
+
 	public void write(String address, String serviceUuid, String characteristicUuid, byte[] value, char accessLevel, IStatusCallback callback) {
+		write(address, serviceUuid, characteristicUuid, value, accessLevel, callback, GattOperationQueue.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Write to a characteristic, encrypted if encryption is enabled.
+	 * @param address the address of the device
+	 * @param serviceUuid UUID of the service containing the characteristic
+	 * @param characteristicUuid UUID of the characteristic
+	 * @param value the value to be written
+	 * @param accessLevel access level to use (see BleBaseEncryption)
+	 * @param callback callback to be informed about success or error
+	 * @param priority priority of the write, see {@link GattOperationQueue}
+	 */
+	public void write(String address, String serviceUuid, String characteristicUuid, byte[] value, char accessLevel, IStatusCallback callback, int priority) {
+		write(address, GattHandle.lookup(serviceUuid, characteristicUuid), value, accessLevel, callback, priority);
+	}
+
+	@Override
+	public void write(String address, GattHandle handle, byte[] value, IStatusCallback callback, int priority) {
+		write(address, handle, value, BleBaseEncryption.ACCESS_LEVEL_HIGHEST_AVAILABLE, callback, priority);
+	}
+
+	public void write(String address, GattHandle handle, byte[] value, char accessLevel, IStatusCallback callback) {
+		write(address, handle, value, accessLevel, callback, GattOperationQueue.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Write to a characteristic, encrypted if encryption is enabled.
+	 * @param address the address of the device
+	 * @param handle handle of the characteristic, see {@link BluenetHandles}
+	 * @param value the value to be written
+	 * @param accessLevel access level to use (see BleBaseEncryption)
+	 * @param callback callback to be informed about success or error
+	 * @param priority priority of the write, see {@link GattOperationQueue}
+	 */
+	public void write(String address, GattHandle handle, byte[] value, char accessLevel, IStatusCallback callback, int priority) {
 		if (_onWriteCallback != null) {
 			_onWriteCallback.onWrite();
 		}
 
 		if (!_encryptionEnabled || accessLevel == BleBaseEncryption.ACCESS_LEVEL_ENCRYPTION_DISABLED) {
-			super.write(address, serviceUuid, characteristicUuid, value, callback);
+			super.write(address, handle, value, callback, priority);
 			return;
 		}
 
-		EncryptionKeys encryptionKeys = _encryptionKeys;
-		if (_setupMode && _setupEncryptionKey != null) {
-			// TODO: this is a hackish solution
-			getLogger().LOGi(TAG, "Use setup encryption key");
-			encryptionKeys = new SetupEncryptionKey(_setupEncryptionKey);
-		}
+		EncryptionKeys encryptionKeys = getEncryptionKeys(address);
 		if (encryptionKeys == null) {
 			getLogger().LOGw(TAG, "no keys");
 			callback.onError(BleErrors.ERROR_NO_KEYS_SET);
 			return;
 		}
 
-		if (_encryptionSessionData == null) {
+		EncryptionSessionData sessionData = _encryptionSessionData.get(address);
+		if (sessionData == null) {
 			getLogger().LOGw(TAG, "no session data");
 			callback.onError(BleErrors.ERROR_ENCRYPTION);
 			return;
@@ -217,14 +402,14 @@ public class BleBase extends BleCore {
 			return;
 		}
 
-		byte[] encryptedBytes = BleBaseEncryption.encryptCtr(value, _encryptionSessionData.sessionNonce, _encryptionSessionData.validationKey, keyAccessLevelPair.key, keyAccessLevelPair.accessLevel);
+		byte[] encryptedBytes = BleBaseEncryption.encryptCtr(value, sessionData.sessionNonce, sessionData.validationKey, keyAccessLevelPair.key, keyAccessLevelPair.accessLevel);
 		if (encryptedBytes == null) {
 			getLogger().LOGw(TAG, "encryption failed");
 			callback.onError(BleErrors.ERROR_ENCRYPTION);
 			return;
 		}
 
-		super.write(address, serviceUuid, characteristicUuid, encryptedBytes, callback);
+		super.write(address, handle, encryptedBytes, callback, priority);
 	}
 
 	@Override
@@ -232,30 +417,65 @@ public class BleBase extends BleCore {
 		read(address, serviceUuid, characteristicUuid, true, callback);
 	}
 
+	@Override
+	public void read(String address, String serviceUuid, String characteristicUuid, IDataCallback callback, int priority) {
+		read(address, serviceUuid, characteristicUuid, true, callback, priority);
+	}
+
 	public void read(String address, String serviceUuid, String characteristicUuid, boolean useEncryption, final IDataCallback callback) {
+		read(address, serviceUuid, characteristicUuid, useEncryption, callback, GattOperationQueue.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Read a characteristic, decrypted if encryption is enabled and useEncryption is true.
+	 * @param address the address of the device
+	 * @param serviceUuid UUID of the service containing the characteristic
+	 * @param characteristicUuid UUID of the characteristic
+	 * @param useEncryption false to read without decryption
+	 * @param callback callback to be informed about the read value or error
+	 * @param priority priority of the read, see {@link GattOperationQueue}
+	 */
+	public void read(String address, String serviceUuid, String characteristicUuid, boolean useEncryption, IDataCallback callback, int priority) {
+		read(address, GattHandle.lookup(serviceUuid, characteristicUuid), useEncryption, callback, priority);
+	}
+
+	@Override
+	public void read(String address, GattHandle handle, IDataCallback callback, int priority) {
+		read(address, handle, true, callback, priority);
+	}
+
+	public void read(String address, GattHandle handle, boolean useEncryption, IDataCallback callback) {
+		read(address, handle, useEncryption, callback, GattOperationQueue.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Read a characteristic, decrypted if encryption is enabled and useEncryption is true.
+	 * @param address the address of the device
+	 * @param handle handle of the characteristic, see {@link BluenetHandles}
+	 * @param useEncryption false to read without decryption
+	 * @param callback callback to be informed about the read value or error
+	 * @param priority priority of the read, see {@link GattOperationQueue}
+	 */
+	public void read(final String address, GattHandle handle, boolean useEncryption, final IDataCallback callback, int priority) {
 		if (_encryptionEnabled && useEncryption) {
 			IDataCallback encryptedCallback = new IDataCallback() {
 				@Override
 				public void onData(JSONObject json) {
 					byte[] encryptedBytes = getValue(json);
 
-					EncryptionKeys encryptionKeys = _encryptionKeys;
-					if (_setupMode && _setupEncryptionKey != null) {
-						// TODO: this is a hackish solution
-						getLogger().LOGi(TAG, "Use setup encryption key");
-						encryptionKeys = new SetupEncryptionKey(_setupEncryptionKey);
-					}
+					EncryptionKeys encryptionKeys = getEncryptionKeys(address);
 					if (encryptionKeys == null) {
 						getLogger().LOGw(TAG, "no keys");
 						callback.onError(BleErrors.ERROR_ENCRYPTION);
 						return;
 					}
-					if (_encryptionSessionData == null) {
+					EncryptionSessionData sessionData = _encryptionSessionData.get(address);
+					if (sessionData == null) {
 						getLogger().LOGw(TAG, "no session data");
 						callback.onError(BleErrors.ERROR_ENCRYPTION);
 						return;
 					}
-					byte[] decryptedBytes = BleBaseEncryption.decryptCtr(encryptedBytes, _encryptionSessionData.sessionNonce, _encryptionSessionData.validationKey, encryptionKeys);
+					byte[] decryptedBytes = BleBaseEncryption.decryptCtr(encryptedBytes, sessionData.sessionNonce, sessionData.validationKey, encryptionKeys);
 					if (decryptedBytes == null) {
 						getLogger().LOGw(TAG, "encryption failed");
 						callback.onError(BleErrors.ERROR_ENCRYPTION);
@@ -269,9 +489,10 @@ public class BleBase extends BleCore {
 					callback.onError(error);
 				}
 			};
-			super.read(address, serviceUuid, characteristicUuid, encryptedCallback);
+			super.read(address, handle, encryptedCallback, priority);
+			return;
 		}
-		super.read(address, serviceUuid, characteristicUuid, callback);
+		super.read(address, handle, callback, priority);
 	}
 
 	/**
@@ -289,7 +510,7 @@ public class BleBase extends BleCore {
 	/**
 	 * Start an endless scan, without defining any UUIDs to filter for. the scan will continue
 	 * until stopEndlessScan is called. The function will parse the advertisement package
-	 * and include it into the json object received from the android os.
+	 * of the scan record received from the android os directly into a BleDevice object.
 	 *
 	 * Additionally, a list of UUIDs can be specified to filter. As a result, only devices with
 	 * the given UUIDs will be returned.
@@ -300,7 +521,7 @@ public class BleBase extends BleCore {
 	 */
 	public void startEndlessScan(String[] serviceUuids, final IBleDeviceCallback callback) {
 		// wrap the status callback to do some pre-processing of the scan result data
-		super.startEndlessScan(serviceUuids, new IScanCallback() {
+		super.startEndlessScan(serviceUuids, new IScanRecordBatchCallback() {
 			@Override
 			public void onSuccess() {
 				callback.onSuccess();
@@ -312,28 +533,45 @@ public class BleBase extends BleCore {
 			}
 
 			@Override
-			public void onData(final JSONObject json) {
-				byte[] advertisement = BleCore.getBytes(json, BleCoreTypes.PROPERTY_ADVERTISEMENT);
-
-//				getLogger().LOGw(TAG, "Advertisment bytes: " + BleUtils.bytesToString(advertisement));
-				parseAdvertisement(json, advertisement);
+			public void onScanRecord(BleScanRecord scanRecord) {
+				BleDevice device = createDevice(scanRecord, EncryptionKeys.getGuestKey(_encryptionKeys));
+				getLogger().LOGd(TAG, "Device: %s", device);
+				callback.onDeviceScanned(device);
+			}
 
-				BleDevice device;
-				try {
-					device = new BleDevice(json);
-				} catch (JSONException e) {
-					getLogger().LOGd(TAG, "Failed to parse json into device! Err: " + e.getMessage());
-					getLogger().LOGd(TAG, "json: " + json.toString());
-					return;
+			@Override
+			public void onScanRecords(BleScanRecord[] scanRecords) {
+				// Parse the whole batch first, with the same key, then report the devices.
+				byte[] guestKey = EncryptionKeys.getGuestKey(_encryptionKeys);
+				BleDevice[] devices = new BleDevice[scanRecords.length];
+				for (int i = 0; i < scanRecords.length; i++) {
+					devices[i] = createDevice(scanRecords[i], guestKey);
+				}
+				getLogger().LOGd(TAG, "Batch of %d devices", devices.length);
+				for (BleDevice device : devices) {
+					callback.onDeviceScanned(device);
 				}
-				getLogger().LOGd(TAG, "Device: " + device.toString());
-				callback.onDeviceScanned(device);
 			}
 		});
 	}
 
+	/**
+	 * Create a device from a scan record, and parse its advertisement.
+	 * @param scanRecord the scan record
+	 * @param guestKey key used to decrypt the service data
+	 * @return the device
+	 */
+	private BleDevice createDevice(BleScanRecord scanRecord, byte[] guestKey) {
+		BleDevice device = new BleDevice(scanRecord.getAddress(), scanRecord.getName(), scanRecord.getRssi(), scanRecord.getTimestamp());
+
+//		getLogger().LOGw(TAG, "Advertisment bytes: " + BleUtils.bytesToString(scanRecord.getScanRecord()));
+		parseAdvertisement(device, scanRecord.getScanRecord(), guestKey);
+		device.updateDeviceType();
+		return device;
+	}
+
 
-	private boolean parseAdvertisement(JSONObject json, byte[] advertisement) {
+	private boolean parseAdvertisement(BleDevice device, byte[] advertisement, byte[] guestKey) {
 		ByteBuffer bb = ByteBuffer.wrap(advertisement);
 		bb.order(ByteOrder.LITTLE_ENDIAN);
 
@@ -352,7 +590,7 @@ public class BleBase extends BleCore {
 				int type = BleUtils.toUint8(bb.get());
 				byte[] data = new byte[len - 1];
 				bb.get(data, 0, len - 1);
-				getLogger().LOGv(TAG, "len=" + len + " type=" + type);
+				getLogger().LOGv(TAG, "len=%d type=%d", len, type);
 				// See: https://www.bluetooth.com/specifications/assigned-numbers/generic-access-profile
 				switch (type) {
 					case 0xFF: {
@@ -360,7 +598,7 @@ public class BleBase extends BleCore {
 						// See: https://www.bluetooth.com/specifications/assigned-numbers/company-identifiers
 
 						// Try iBeacon
-						parseIBeaconData(json, data);
+						parseIBeaconData(device, data);
 						break;
 					}
 					case 0x16: {
@@ -369,16 +607,17 @@ public class BleBase extends BleCore {
 						// See: https://www.bluetooth.com/specifications/gatt/characteristics
 
 //						parseServiceData(json, data);
-						CrownstoneServiceData crownstoneServiceData = new CrownstoneServiceData();
-						if (crownstoneServiceData.parseBytes(data, _encryptionEnabled, EncryptionKeys.getGuestKey(_encryptionKeys))) {
-							BleCore.addProperty(json, BleTypes.PROPERTY_SERVICE_DATA, crownstoneServiceData);
-          				getLogger().LOGd(TAG, "serviceData: " + crownstoneServiceData.toString());
+						// Only parse when the service data changed since the last advertisement of this device.
+						CrownstoneServiceData crownstoneServiceData = _serviceDataCache.parse(device.getAddress(), data, _encryptionEnabled, guestKey);
+						if (crownstoneServiceData != null) {
+							device.setServiceData(crownstoneServiceData);
+							getLogger().LOGd(TAG, "serviceData: %s", crownstoneServiceData);
 						}
 						break;
 					}
 					case 0x06: {
 						// Incomplete list of 128-bit Service Class UUIDs
-						parseServiceClass(json, data);
+						parseServiceClass(device, data);
 						break;
 					}
 				}
@@ -387,7 +626,7 @@ public class BleBase extends BleCore {
 			return true;
 		}
 		catch (BufferUnderflowException e) {
-			getLogger().LOGe(TAG, "parseAdvertisement error: " + BleUtils.bytesToString(advertisement));
+			getLogger().LOGe(TAG, "parseAdvertisement error: %s", advertisement);
 //			e.printStackTrace();
 			return false;
 		}
@@ -395,11 +634,11 @@ public class BleBase extends BleCore {
 
 
 	/**
-	 * Helper function to parse iBeacon data from a byte array into a JSON object
-	 * @param scanResult the json object in which the data should be included
+	 * Helper function to parse iBeacon data from a byte array into the device
+	 * @param device the device in which the data should be included
 	 * @param manufacData the byte array containing the ibeacon data
 	 */
-	private void parseIBeaconData(JSONObject scanResult, byte[] manufacData) {
+	private void parseIBeaconData(BleDevice device, byte[] manufacData) {
 
 		ByteBuffer bb = ByteBuffer.wrap(manufacData);
 
@@ -424,15 +663,15 @@ public class BleBase extends BleCore {
 		int advertisementId = BleUtils.toUint16(bb.getShort()); // Actually 2 separate fields: type and length
 
 		if (advertisementId == BluenetConfig.IBEACON_ADVERTISEMENT_ID && bb.remaining() >= 16+2+2+1) {
-			BleCore.addProperty(scanResult, BleTypes.PROPERTY_IS_IBEACON, true);
-			BleCore.addProperty(scanResult, BleTypes.PROPERTY_PROXIMITY_UUID, new UUID(bb.getLong(), bb.getLong()));
-			BleCore.addProperty(scanResult, BleTypes.PROPERTY_MAJOR, BleUtils.toUint16(bb.getShort()));
-			BleCore.addProperty(scanResult, BleTypes.PROPERTY_MINOR, BleUtils.toUint16(bb.getShort()));
-			BleCore.addProperty(scanResult, BleTypes.PROPERTY_CALIBRATED_RSSI, bb.get());
+			UUID proximityUuid = new UUID(bb.getLong(), bb.getLong());
+			int major = BleUtils.toUint16(bb.getShort());
+			int minor = BleUtils.toUint16(bb.getShort());
+			int calibratedRssi = bb.get();
+			device.setIBeaconData(proximityUuid, major, minor, calibratedRssi);
 		}
 	}
 
-	private void parseServiceClass(JSONObject json, byte[] serviceUuidBytes) {
+	private void parseServiceClass(BleDevice device, byte[] serviceUuidBytes) {
 		// Parse "Incomplete List of 128-bit Service Class UUIDs"
 //		getLogger().LOGw(TAG, "128-bit service class uuid: " + BleUtils.bytesToString(serviceUuidBytes));
 		// 128-bit service class uuid: [35, 209, 188, 234, 95, 120, 35, 21, 222, 239, 18, 18, 48, 21, 0, 0]
@@ -445,12 +684,14 @@ public class BleBase extends BleCore {
 		long mostSigBits = bb.getLong();
 		UUID serviceUuid = new UUID(mostSigBits, leastSigBits);
 //		getLogger().LOGw(TAG, "UUID: " + serviceUuid.toString());
-		UUID dfuServiceUuid = UUID.fromString(BluenetConfig.DFU_SERVICE_UUID);
-//		getLogger().LOGw(TAG, "DFU UUID: " + dfuServiceUuid.toString());
-//		getLogger().LOGw(TAG, "match: " + dfuServiceUuid.equals(serviceUuid));
+//		getLogger().LOGw(TAG, "DFU UUID: " + DFU_SERVICE_UUID.toString());
+//		getLogger().LOGw(TAG, "match: " + DFU_SERVICE_UUID.equals(serviceUuid));
 
-		if (dfuServiceUuid.equals(serviceUuid)) {
-			BleCore.addProperty(json, BleTypes.PROPERTY_IS_DFU_MODE, true);
+		if (DFU_SERVICE_UUID.equals(serviceUuid)) {
+			device.setDfuMode();
+			if (_discoveryCache.get(device.getAddress()) != null) {
+				_discoveryCache.invalidate(device.getAddress());
+			}
 		}
 	}
 
@@ -468,44 +709,57 @@ public class BleBase extends BleCore {
 	 *						 if false and cached discovery found, return the lib cache (not same as previously mentioned cache)
 	 * @param callback the callback used to report discovered services and characteristics
 	 */
-	public void discoverServices(String address, boolean forceDiscover, final IDiscoveryCallback callback) {
-		_setupMode = false;
-		_setupControlCharUuid = null;
+	public void discoverServices(final String address, boolean forceDiscover, final IDiscoveryCallback callback) {
+		_setupStates.remove(address);
+
+		_discoveryCache.load(getContext());
+		if (_discoveryCache.needsRefresh(address)) {
+			// The cached discovery was outdated, so the android cache probably is too
+			getLogger().LOGd(TAG, "refresh device cache of %s", address);
+			refreshDeviceCache(address, new IStatusCallback() {
+				@Override
+				public void onSuccess() {
+					discoverServicesTyped(address, true, callback);
+				}
 
+				@Override
+				public void onError(int error) {
+					getLogger().LOGw(TAG, "failed to refresh device cache: %d", error);
+					discoverServicesTyped(address, true, callback);
+				}
+			});
+			return;
+		}
+		discoverServicesTyped(address, forceDiscover, callback);
+	}
 
-		super.discoverServices(address, forceDiscover, new IDataCallback() {
+	private void discoverServicesTyped(final String address, boolean forceDiscover, final IDiscoveryCallback callback) {
+		super.discoverServices(address, forceDiscover, new IGattDiscoveryCallback() {
 			@Override
-			public void onData(JSONObject json) {
-				try {
-					JSONArray services = json.getJSONArray(BleCoreTypes.PROPERTY_SERVICES_LIST);
-					for (int i = 0; i < services.length(); i++) {
-						JSONObject service = services.getJSONObject(i);
-						String serviceUuid = service.getString(BleCoreTypes.PROPERTY_SERVICE_UUID);
-						JSONArray characteristics = service.getJSONArray(BleCoreTypes.PROPERTY_CHARACTERISTICS_LIST);
-						for (int j = 0; j < characteristics.length(); j++) {
-							JSONObject charac = characteristics.getJSONObject(j);
-							String characteristicUuid = charac.getString(BleCoreTypes.PROPERTY_CHARACTERISTIC_UUID);
-							if (characteristicUuid.equals(BluenetConfig.CHAR_SETUP_CONTROL_UUID)) {
-								_setupControlCharUuid = characteristicUuid;
-							}
-							else if (characteristicUuid.equals(BluenetConfig.CHAR_SETUP_CONTROL2_UUID)) {
-								_setupControlCharUuid = characteristicUuid;
-							}
-							getLogger().LOGd(TAG, "found service %s with characteristic %s", serviceUuid, characteristicUuid);
-							callback.onDiscovery(serviceUuid, characteristicUuid);
+			public void onDiscovery(GattDiscovery discovery) {
+				updateDiscoveryCache(discovery);
+				SetupState state = new SetupState();
+				for (GattDiscovery.Service service : discovery.getServices()) {
+					String serviceUuid = service.getUuid();
+					for (GattDiscovery.Characteristic characteristic : service.getCharacteristics()) {
+						String characteristicUuid = characteristic.getUuid();
+						if (characteristicUuid.equals(BluenetConfig.CHAR_SETUP_CONTROL_UUID)) {
+							state.controlHandle = BluenetHandles.SETUP_CONTROL;
 						}
-
-						if (serviceUuid.equals(BluenetConfig.SETUP_SERVICE_UUID)) {
-							getLogger().LOGd(TAG, "setupMode = true");
-							_setupMode = true;
+						else if (characteristicUuid.equals(BluenetConfig.CHAR_SETUP_CONTROL2_UUID)) {
+							state.controlHandle = BluenetHandles.SETUP_CONTROL2;
 						}
+						getLogger().LOGd(TAG, "found service %s with characteristic %s", serviceUuid, characteristicUuid);
+						callback.onDiscovery(serviceUuid, characteristicUuid);
+					}
+
+					if (serviceUuid.equals(BluenetConfig.SETUP_SERVICE_UUID)) {
+						getLogger().LOGd(TAG, "setupMode = true");
+						state.setupMode = true;
 					}
-					callback.onSuccess();
-				} catch (JSONException e) {
-					getLogger().LOGe(TAG, "failed to parse discovery json");
-					callback.onError(BleErrors.ERROR_JSON_PARSING);
-					e.printStackTrace();
 				}
+				_setupStates.put(address, state);
+				callback.onSuccess();
 			}
 
 			@Override
@@ -515,6 +769,55 @@ public class BleBase extends BleCore {
 		});
 	}
 
+	/**
+	 * Store a new discovery in the discovery cache. Devices in dfu mode are not cached, as their
+	 * services will change once they leave dfu mode.
+	 */
+	private void updateDiscoveryCache(GattDiscovery discovery) {
+		if (discovery.hasService(BluenetConfig.DFU_SERVICE_UUID)) {
+			_discoveryCache.invalidate(discovery.getAddress());
+			return;
+		}
+		GattDiscovery cached = _discoveryCache.get(discovery.getAddress());
+		if (cached != null && cached.hasSameServices(discovery)) {
+			// nothing changed, don't write the same entry to the preferences again
+			return;
+		}
+		if (cached != null) {
+			getLogger().LOGi(TAG, "services of %s changed", discovery.getAddress());
+		}
+		_discoveryCache.put(discovery);
+	}
+
+	/**
+	 * Get the cache of discovered services, which is persisted once the lib is initialized.
+	 */
+	public GattDiscoveryCache getDiscoveryCache() {
+		return _discoveryCache;
+	}
+
+	/**
+	 * Get the cache of parsed service data, for example to check the hit and miss counters.
+	 */
+	public ServiceDataCache getServiceDataCache() {
+		return _serviceDataCache;
+	}
+
+	/**
+	 * Invalidate the cached discovery of a device if the error shows that it's outdated, i.e. when
+	 * a service or characteristic was not found.
+	 * @param address the MAC address of the device
+	 * @param error the error of a read, write or execute, see BleErrors
+	 */
+	public void checkDiscoveryCache(String address, int error) {
+		switch (error) {
+			case BleErrors.ERROR_SERVICE_NOT_FOUND:
+			case BleErrors.ERROR_CHARACTERISTIC_NOT_FOUND:
+				_discoveryCache.invalidate(address);
+				break;
+		}
+	}
+
 	/**
 	 * Discover the available services and characteristics of the device. Parse the received
 	 * JSON object and call the callbacks onDiscovery function with service UUID and characteristic
@@ -532,20 +835,6 @@ public class BleBase extends BleCore {
 		discoverServices(address, false, callback);
 	}
 
-	/**
-	 * Helper function to return the list of subscribers for a given uuid.
-	 * @param uuid uuid for which the list should be returned
-	 * @return list of subscribers
-	 */
-	private ArrayList<IDataCallback> getSubscribers(UUID uuid) {
-		ArrayList<IDataCallback> callbacks = _subscribers.get(uuid);
-		if (callbacks == null) {
-			callbacks = new ArrayList<>();
-			_subscribers.put(uuid, callbacks);
-		}
-		return callbacks;
-	}
-
 	/**
 	 * Subscribe to a characteristic. This can be called several times for different callbacks. a
 	 * list of subscribers is kept with a subscriberId, so that different functions can subscribe
@@ -563,114 +852,131 @@ public class BleBase extends BleCore {
 	 */
 	public void subscribe(String address, String serviceUuid, String characteristicUuid,
 						  final IIntegerCallback callback, final IDataCallback notificationCallback) {
+		subscribe(address, GattHandle.lookup(serviceUuid, characteristicUuid), callback, notificationCallback);
+	}
 
-		UUID uuid = BleUtils.stringToUuid(characteristicUuid);
-		final ArrayList<IDataCallback> subscribers = getSubscribers(uuid);
+	/**
+	 * Subscribe to a characteristic, see {@link #subscribe(String, String, String, IIntegerCallback, IDataCallback)}
+	 *
+	 * @param address the address of the device
+	 * @param handle handle of the characteristic, see {@link BluenetHandles}
+	 * @param callback the callback which will be informed about success or failure.
+	 *                       in case of success, the onSuccess function will return the subscriber
+	 *                       id which is needed for unsubscribing afterwards
+	 * @param notificationCallback the callback which will be triggered every time a gatt notification arrives (not decrypted)
+	 */
+	public void subscribe(String address, GattHandle handle,
+						  final IIntegerCallback callback, final IDataCallback notificationCallback) {
+		_notificationHub.subscribe(address, handle, null, null,
+				NotificationHub.DIRECT_EXECUTOR, callback, new DataMessageCallback(notificationCallback));
+	}
 
-		if (subscribers.isEmpty()) {
-			// Not subscribed yet.
-			subscribers.add(notificationCallback);
+	/**
+	 * Hands the decoded json of the notification hub to a data callback.
+	 */
+	private static class DataMessageCallback implements IMessageCallback<JSONObject> {
+		private final IDataCallback _callback;
 
-			IStatusCallback subscribeCallback = new IStatusCallback() {
-				@Override
-				public void onSuccess() {
-					callback.onSuccess(subscribers.indexOf(notificationCallback));
-				}
+		DataMessageCallback(IDataCallback callback) {
+			_callback = callback;
+		}
 
-				@Override
-				public void onError(int error) {
-					subscribers.remove(notificationCallback);
-					callback.onError(error);
-				}
-			};
+		@Override
+		public void onMessage(JSONObject message) {
+			_callback.onData(message);
+		}
 
-			super.subscribe(address, serviceUuid, characteristicUuid, subscribeCallback, _notificationCallback);
+		@Override
+		public void onError(int error) {
+			_callback.onError(error);
 		}
-		else {
-			// Already subscribed, just add this callback to the list.
-			subscribers.add(notificationCallback);
-			callback.onSuccess(subscribers.indexOf(notificationCallback));
+	}
+
+	/**
+	 * Creates a multipart decoder for each stream of notifications.
+	 */
+	private class MultipartDecoderFactory implements NotificationHub.DecoderFactory {
+		private final boolean _decrypt;
+
+		MultipartDecoderFactory(boolean decrypt) {
+			_decrypt = decrypt;
+		}
+
+		@Override
+		public IDataCallback createDecoder(String address, GattHandle handle, IDataCallback output) {
+			return new MultiPartNotificationCallback(address, handle, output, _decrypt);
 		}
 	}
 
-	private class MultiPartNotificationCallback implements IDataCallback {
+	private class MultiPartNotificationCallback implements IDataCallback, MultipartReassembler.MessageHandler {
 
+		String _address;
 		IDataCallback _callback;
-		ByteBuffer _buffer = ByteBuffer.allocate(BluenetConfig.BLE_MAX_MULTIPART_NOTIFICATION_LENGTH);
-		int _messageNr = 0;
-		long _timeStart = 0;
+		// Key of this stream in the reassembler
+		long _streamKey;
+		// Scratch buffer to decrypt the combined message into, reused for every message
+		byte[] _decryptBuffer = null;
 		boolean _decrypt = true;
 
-		MultiPartNotificationCallback(IDataCallback callback, boolean decrypt) {
+		MultiPartNotificationCallback(String address, GattHandle handle, IDataCallback callback, boolean decrypt) {
+			_address = address;
 			_callback = callback;
 			_decrypt = decrypt;
+			// unregistered handles have no id, use a hash above the range of ids instead
+			int handleKey = handle.isRegistered() ? handle.getId() : 0x4000 | (handle.hashCode() & 0x3FFF);
+			_streamKey = MultipartReassembler.getStreamKey(BleUtils.addressToLong(address), (handleKey << 1) | (decrypt ? 1 : 0));
 		}
 
 		@Override
 		public void onData(JSONObject json) {
 			final byte[] notificationBytes = BleCore.getValue(json);
+			_multipartReassembler.onPart(_streamKey, notificationBytes, SystemClock.elapsedRealtime(), this);
+		}
 
-			// Check what message number this is.
-			int nr = BleUtils.toUint8(notificationBytes[0]);
-			if (nr == 0) {
-				_timeStart = SystemClock.elapsedRealtime();
-				if (_messageNr != 0) {
-					getLogger().LOGw(TAG, "notification reset!");
-					_buffer.clear();
-				}
-				else {
-					// this is the first
-				}
-			}
-			else if (_messageNr > nr) {
-				getLogger().LOGw(TAG, "Received notification part nr is smaller than stored!");
+		@Override
+		public void onDropped(int reason) {
+			getLogger().LOGw(TAG, "dropped multipart notification of %s, reason: %d", _address, reason);
+			if (reason == MultipartReassembler.DROPPED_MISSING_PART) {
 				_callback.onError(BleErrors.ERROR_MULTIPART_NOTIFICATION_COUNT);
-				return;
 			}
-			_messageNr = nr;
-
-			// Copy the data after the message number to buffer.
-			_buffer.put(notificationBytes, 1, notificationBytes.length - 1);
-
-			// If this is the last part, decrypt and call the callback.
-			if (_messageNr == 0xFF) {
-				getLogger().LOGd(TAG, "received last part");
-				getLogger().LOGv(TAG, "duration: %d", SystemClock.elapsedRealtime() - _timeStart);
-				JSONObject combinedJson = new JSONObject();
-
-				// Copy data from buffer to byte array.
-				byte[] result = new byte[_buffer.position()];
-				_buffer.rewind();
-				_buffer.get(result);
-
-				byte[] decryptedBytes;
-				if (_decrypt) {
-					EncryptionKeys encryptionKeys = _encryptionKeys;
-					if (_setupMode && _setupEncryptionKey != null) {
-						// TODO: this is a hackish solution
-						getLogger().LOGi(TAG, "Use setup encryption key");
-						encryptionKeys = new SetupEncryptionKey(_setupEncryptionKey);
-					}
+		}
 
-					decryptedBytes = BleBaseEncryption.decryptCtr(result, _encryptionSessionData.sessionNonce, _encryptionSessionData.validationKey, encryptionKeys);
-					if (decryptedBytes == null) {
-						getLogger().LOGw(TAG, "Unable to decrypt");
-						_messageNr = 0;
-						_buffer.clear();
-						_callback.onError(BleErrors.ERROR_ENCRYPTION);
-						return;
-					}
-					result = decryptedBytes;
-				}
+		@Override
+		public void onMessage(ByteBuffer message) {
+			getLogger().LOGd(TAG, "received last part");
+			JSONObject combinedJson = new JSONObject();
+
+			byte[] result;
+			if (_decrypt) {
+				EncryptionKeys encryptionKeys = getEncryptionKeys(_address);
 
-				BleCore.setValue(combinedJson, result);
-				_callback.onData(combinedJson);
-				_messageNr = 0;
-				_buffer.clear();
+				// Decrypt straight from the reassembled message into the scratch buffer, only the payload is copied.
+				if (_decryptBuffer == null) {
+					_decryptBuffer = new byte[BluenetConfig.BLE_MAX_MULTIPART_NOTIFICATION_LENGTH];
+				}
+				EncryptionSessionData sessionData = _encryptionSessionData.get(_address);
+				ByteBuffer payload = null;
+				if (sessionData != null) {
+					payload = BleBaseEncryption.decryptCtr(message.array(), message.arrayOffset(), message.limit(),
+							sessionData.sessionNonce, sessionData.validationKey, encryptionKeys,
+							_decryptBuffer, 0);
+				}
+				if (payload == null) {
+					getLogger().LOGw(TAG, "Unable to decrypt");
+					_callback.onError(BleErrors.ERROR_ENCRYPTION);
+					return;
+				}
+				result = new byte[payload.remaining()];
+				payload.get(result);
 			}
 			else {
-				getLogger().LOGd(TAG, "received part %d", _messageNr + 1);
+				// Copy data from the reassembled message, as its buffer is reused.
+				result = new byte[message.remaining()];
+				message.get(result);
 			}
+
+			BleCore.setValue(combinedJson, result);
+			_callback.onData(combinedJson);
 		}
 
 		@Override
@@ -701,10 +1007,24 @@ public class BleBase extends BleCore {
 
 	public void subscribeMultipart(String address, String serviceUuid, String characteristicUuid, boolean decrypt,
 						  final IIntegerCallback callback, final IDataCallback notificationCallback) {
+		subscribeMultipart(address, GattHandle.lookup(serviceUuid, characteristicUuid), decrypt, callback, notificationCallback);
+	}
 
-		// Subscribe with the multipart notification class wrapped around the given callback
-		final MultiPartNotificationCallback multiPartNotificationCallback = new MultiPartNotificationCallback(notificationCallback, decrypt);
-		subscribe(address, serviceUuid, characteristicUuid, callback, multiPartNotificationCallback);
+	public void subscribeMultipart(String address, GattHandle handle,
+	                               final IIntegerCallback callback, final IDataCallback notificationCallback) {
+		subscribeMultipart(address, handle, _encryptionEnabled, callback, notificationCallback);
+	}
+
+	public void subscribeMultipart(String address, GattHandle handle, boolean decrypt,
+						  final IIntegerCallback callback, final IDataCallback notificationCallback) {
+
+		// The multipart decoder is shared by all subscribers of the characteristic
+		_notificationHub.subscribe(address, handle, getMultipartDecoder(decrypt), null,
+				NotificationHub.DIRECT_EXECUTOR, callback, new DataMessageCallback(notificationCallback));
+	}
+
+	private NotificationHub.DecoderFactory getMultipartDecoder(boolean decrypt) {
+		return decrypt ? _multipartDecoder : _multipartPlainDecoder;
 	}
 
 	/**
@@ -719,52 +1039,36 @@ public class BleBase extends BleCore {
 	 */
 	public void unsubscribe(String address, String serviceUuid, String characteristicUuid,
 							int subscriberId, final IStatusCallback callback) {
+		unsubscribe(address, GattHandle.lookup(serviceUuid, characteristicUuid), subscriberId, callback);
+	}
 
-		UUID uuid = BleUtils.stringToUuid(characteristicUuid);
-		ArrayList<IDataCallback> subscribers = getSubscribers(uuid);
-
-		if (subscribers.remove(subscriberId) != null) {
-			// If no subscribers are left, then unsubscribe from this characteristic.
-			if (subscribers.isEmpty()) {
-				super.unsubscribe(address, serviceUuid, characteristicUuid, new IStatusCallback() {
-					@Override
-					public void onSuccess() {
-						callback.onSuccess();
-					}
-
-					@Override
-					public void onError(int error) {
-						// Failed to unsubscribe, now what? Is there any cleaning up to do?
-						callback.onError(error);
-					}
-				});
-			}
-			else {
-				callback.onSuccess();
-			}
-		}
-		else {
-			callback.onError(BleErrors.WRONG_CALLBACK);
-		}
+	/**
+	 * Unsubscribe from the characteristic, see {@link #unsubscribe(String, String, String, int, IStatusCallback)}
+	 *
+	 * @param address the address of the device
+	 * @param handle handle of the characteristic, see {@link BluenetHandles}
+	 * @param subscriberId id obtained from the subscribe call
+	 * @param callback the callback which will be informed about success or failure.
+	 */
+	public void unsubscribe(String address, GattHandle handle, int subscriberId, final IStatusCallback callback) {
+		_notificationHub.unsubscribe(address, handle, subscriberId, callback);
 	}
 
 	/**
 	 * Subscribe to a characteristic, get the notifications, then unsubscribe again (silently).
 	 * internal use only
 	 * @param address the address of the device
-	 * @param serviceUuid the uuid of the service containing the characteristic
-	 * @param characteristicUuid the uuid of the characteristic which should be subscribed to
+	 * @param handle handle of the characteristic which should be subscribed to
 	 * @param decrypt whether or not to decrypt the message.
 	 * @param callback the callback which will be triggered every time a gatt notification arrives
 	 */
-	private void subscribeMultipartSingleShot(final String address, final String serviceUuid,
-											  final String characteristicUuid,
+	private void subscribeMultipartSingleShot(final String address, final GattHandle handle,
 											  boolean decrypt,
 											  final IDataCallback callback) {
 
 		final int[] subscribeId = {0};
 
-		subscribeMultipart(address, serviceUuid, characteristicUuid, decrypt,
+		subscribeMultipart(address, handle, decrypt,
 				new IIntegerCallback() {
 					@Override
 					public void onSuccess(int result) {
@@ -782,7 +1086,7 @@ public class BleBase extends BleCore {
 						// need to wait until unsubscribe is completed before returning the data
 						// otherwise if a new read/write is started before the unsubscribe
 						// completed the command will get lost
-						unsubscribe(address, serviceUuid, characteristicUuid, subscribeId[0],
+						unsubscribe(address, handle, subscribeId[0],
 								new IStatusCallback() {
 									@Override
 									public void onSuccess() {
@@ -804,7 +1108,7 @@ public class BleBase extends BleCore {
 
 						// do the unsubscribe silently, i.e. not inform the callback about
 						// success or error
-						unsubscribe(address, serviceUuid, characteristicUuid, subscribeId[0],
+						unsubscribe(address, handle, subscribeId[0],
 								new IStatusCallback() {
 									@Override
 									public void onSuccess() {
@@ -820,12 +1124,12 @@ public class BleBase extends BleCore {
 				});
 	}
 
-	private void subscribeSingleShot(final String address, final String serviceUuid, final String characteristicUuid,
+	private void subscribeSingleShot(final String address, final GattHandle handle,
 									 final IDataCallback callback) {
 
 		final int[] subscribeId = {0};
 
-		subscribe(address, serviceUuid, characteristicUuid,
+		subscribe(address, handle,
 				new IIntegerCallback() {
 					@Override
 					public void onSuccess(int result) {
@@ -843,7 +1147,7 @@ public class BleBase extends BleCore {
 						// need to wait until unsubscribe is completed before returning the data
 						// otherwise if a new read/write is started before the unsubscribe
 						// completed the command will get lost
-						unsubscribe(address, serviceUuid, characteristicUuid, subscribeId[0],
+						unsubscribe(address, handle, subscribeId[0],
 								new IStatusCallback() {
 									@Override
 									public void onSuccess() {
@@ -865,7 +1169,7 @@ public class BleBase extends BleCore {
 
 						// do the unsubscribe silently, i.e. not inform the callback about
 						// success or error
-						unsubscribe(address, serviceUuid, characteristicUuid, subscribeId[0],
+						unsubscribe(address, handle, subscribeId[0],
 								new IStatusCallback() {
 									@Override
 									public void onSuccess() {
@@ -890,7 +1194,7 @@ public class BleBase extends BleCore {
 	 */
 	public void readTemperature(String address, final IIntegerCallback callback) {
 		getLogger().LOGd(TAG, "read Temperature at service %s and characteristic %s", BluenetConfig.GENERAL_SERVICE_UUID, BluenetConfig.CHAR_TEMPERATURE_UUID);
-		read(address, BluenetConfig.GENERAL_SERVICE_UUID, BluenetConfig.CHAR_TEMPERATURE_UUID, new IDataCallback() {
+		read(address, BluenetHandles.TEMPERATURE, new IDataCallback() {
 
 			@Override
 			public void onError(int error) {
@@ -915,7 +1219,7 @@ public class BleBase extends BleCore {
 	 */
 	public void writePWM(String address, int value, final IStatusCallback callback) {
 		getLogger().LOGd(TAG, "write %d at service %s and characteristic %s", value, BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_PWM_UUID);
-		write(address, BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_PWM_UUID, new byte[]{(byte) value},
+		write(address, BluenetHandles.PWM, new byte[]{(byte) value},
 				new IStatusCallback() {
 
 					@Override
@@ -941,7 +1245,7 @@ public class BleBase extends BleCore {
 	public void readPWM(String address, final IIntegerCallback callback) {
 
 		getLogger().LOGd(TAG, "read pwm at service %s and characteristic %s", BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_PWM_UUID);
-		read(address, BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_PWM_UUID, new IDataCallback() {
+		read(address, BluenetHandles.PWM, new IDataCallback() {
 
 			@Override
 			public void onError(int error) {
@@ -968,7 +1272,7 @@ public class BleBase extends BleCore {
 	public void writeRelay(String address, boolean relayOn, final IStatusCallback callback) {
 		int value = relayOn ? BluenetConfig.RELAY_ON : BluenetConfig.RELAY_OFF;
 		getLogger().LOGd(TAG, "write %d at service %s and characteristic %s", value, BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_RELAY_UUID);
-		write(address, BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_RELAY_UUID, new byte[]{(byte) value},
+		write(address, BluenetHandles.RELAY, new byte[]{(byte) value},
 				new IStatusCallback() {
 
 					@Override
@@ -994,7 +1298,7 @@ public class BleBase extends BleCore {
 	public void readRelay(String address, final IBooleanCallback callback) {
 
 		getLogger().LOGd(TAG, "read Relay at service %s and characteristic %s", BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_RELAY_UUID);
-		read(address, BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_RELAY_UUID, new IDataCallback() {
+		read(address, BluenetHandles.RELAY, new IDataCallback() {
 
 			@Override
 			public void onError(int error) {
@@ -1022,7 +1326,7 @@ public class BleBase extends BleCore {
 	public void scanDevices(String address, boolean scan, final IStatusCallback callback) {
 		int value = scan ? 1 : 0;
 		getLogger().LOGd(TAG, "writeScanDevices: write %d at service %s and characteristic %s", value, BluenetConfig.INDOOR_LOCALIZATION_SERVICE_UUID, BluenetConfig.CHAR_SCAN_CONTROL_UUID);
-		write(address, BluenetConfig.INDOOR_LOCALIZATION_SERVICE_UUID, BluenetConfig.CHAR_SCAN_CONTROL_UUID, new byte[]{(byte) value},
+		write(address, BluenetHandles.SCAN_CONTROL, new byte[]{(byte) value},
 				new IStatusCallback() {
 
 					@Override
@@ -1046,8 +1350,8 @@ public class BleBase extends BleCore {
 	 * @param callback the callback which will get the list on success, or an error otherwise
 	 */
 	public void listScannedDevices(String address, final IByteArrayCallback callback) {
-		getLogger().LOGd(TAG, "read device list at service %s and characteristic %s", BluenetConfig.CHAR_SCANNED_DEVICES_UUID, BluenetConfig.INDOOR_LOCALIZATION_SERVICE_UUID);
-		read(address, BluenetConfig.CHAR_SCANNED_DEVICES_UUID, BluenetConfig.INDOOR_LOCALIZATION_SERVICE_UUID, new IDataCallback() {
+		getLogger().LOGd(TAG, "read device list at service %s and characteristic %s", BluenetConfig.INDOOR_LOCALIZATION_SERVICE_UUID, BluenetConfig.CHAR_SCANNED_DEVICES_UUID);
+		read(address, BluenetHandles.SCANNED_DEVICES, new IDataCallback() {
 			@Override
 			public void onError(int error) {
 				getLogger().LOGe(TAG, "Failed to read device list characteristic");
@@ -1057,7 +1361,7 @@ public class BleBase extends BleCore {
 			@Override
 			public void onData(JSONObject json) {
 				byte[] bytes = BleCore.getValue(json);
-				getLogger().LOGd(TAG, "device list: %s", BleUtils.bytesToString(bytes));
+				getLogger().LOGd(TAG, "device list: %s", bytes);
 				callback.onSuccess(bytes);
 				// todo: add function to extended, with nice classes and list of objects, etc.
 			}
@@ -1073,7 +1377,7 @@ public class BleBase extends BleCore {
 	 */
 	public void readPowerConsumption(String address, final IIntegerCallback callback) {
 		getLogger().LOGd(TAG, "read current consumption at service %s and characteristic %s", BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_POWER_CONSUMPTION_UUID);
-		read(address, BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_POWER_CONSUMPTION_UUID, new IDataCallback() {
+		read(address, BluenetHandles.POWER_CONSUMPTION, new IDataCallback() {
 			@Override
 			public void onError(int error) {
 				getLogger().LOGe(TAG, "Failed to read current consumption characteristic");
@@ -1100,7 +1404,7 @@ public class BleBase extends BleCore {
 	public void readPowerSamples(final String address, final IPowerSamplesCallback callback) {
 		getLogger().LOGd(TAG, "read power samples at service %s and characteristic %s", BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_POWER_SAMPLES_UUID);
 
-		subscribeMultipartSingleShot(address, BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_POWER_SAMPLES_UUID, false,
+		subscribeMultipartSingleShot(address, BluenetHandles.POWER_SAMPLES, false,
 				new IDataCallback() {
 					@Override
 					public void onData(JSONObject json) {
@@ -1121,20 +1425,28 @@ public class BleBase extends BleCore {
 	}
 
 	public void subscribePowerSamples(final String address, final IIntegerCallback statusCallback, final IPowerSamplesCallback callback) {
+		subscribePowerSamples(address, NotificationHub.DIRECT_EXECUTOR, statusCallback, callback);
+	}
+
+	/**
+	 * Subscribe to the power samples, the samples are parsed once for all subscribers.
+	 *
+	 * @param address the address of the device
+	 * @param executor executor on which the callback is called
+	 * @param statusCallback the callback which will be informed about success or failure.
+	 *                       in case of success, the onSuccess function will return the subscriber
+	 *                       id which is needed for unsubscribing afterwards
+	 * @param callback the callback which will be triggered with the power samples
+	 */
+	public void subscribePowerSamples(final String address, Executor executor, final IIntegerCallback statusCallback, final IPowerSamplesCallback callback) {
 		getLogger().LOGd(TAG, "subscribe to power samples at service %s and characteristic %s", BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_POWER_SAMPLES_UUID);
 
-		subscribeMultipart(address, BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_POWER_SAMPLES_UUID, false,
-				statusCallback,
-				new IDataCallback() {
+		_notificationHub.subscribe(address, BluenetHandles.POWER_SAMPLES, getMultipartDecoder(false), _powerSamplesParser,
+				executor, statusCallback,
+				new IMessageCallback<PowerSamples>() {
 					@Override
-					public void onData(JSONObject json) {
-						final byte[] notificationBytes = BleCore.getValue(json);
-						try {
-							PowerSamples powerSamples = new PowerSamples(notificationBytes);
-							callback.onData(powerSamples);
-						} catch (BufferUnderflowException e) {
-							callback.onError(BleErrors.ERROR_CHARACTERISTIC_READ_FAILED);
-						}
+					public void onMessage(PowerSamples message) {
+						callback.onData(message);
 					}
 
 					@Override
@@ -1145,8 +1457,7 @@ public class BleBase extends BleCore {
 	}
 
 	public void unsubscribePowerSamples(final String address, int subscriberId, final IStatusCallback statusCallback) {
-		unsubscribe(address, BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_POWER_SAMPLES_UUID,
-				subscriberId, statusCallback);
+		unsubscribe(address, BluenetHandles.POWER_SAMPLES, subscriberId, statusCallback);
 	}
 
 	/**
@@ -1157,7 +1468,7 @@ public class BleBase extends BleCore {
 	 * @param callback callback function to be called with the read configuration object
 	 */
 	public void getConfiguration(final String address, final int configurationType, final IConfigurationCallback callback) {
-		getLogger().LOGd(TAG, "getConfiguration " + address + " type: " + configurationType);
+		getLogger().LOGd(TAG, "getConfiguration %s type: %s", address, configurationType);
 		final int[] subscriberId = new int[1];
 
 		final Runnable timeoutRunnable = new Runnable() {
@@ -1243,42 +1554,57 @@ public class BleBase extends BleCore {
 	}
 
 	public void unsubscribeConfiguration(String address, int subscriberId, IStatusCallback callback) {
-		if (_setupMode) {
-			unsubscribe(address, BluenetConfig.SETUP_SERVICE_UUID, BluenetConfig.CHAR_SETUP_CONFIG_READ_UUID,
+		if (isSetupMode(address)) {
+			unsubscribe(address, BluenetHandles.SETUP_CONFIG_READ,
 					subscriberId, callback);
 		} else {
-			unsubscribe(address, BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_CONFIG_READ_UUID,
+			unsubscribe(address, BluenetHandles.CONFIG_READ,
 					subscriberId, callback);
 		}
 	}
 
 	public void subscribeConfiguration(String address, final IIntegerCallback statusCallback, final IConfigurationCallback callback) {
-		if (_setupMode) {
-			subscribeConfiguration(address, BluenetConfig.SETUP_SERVICE_UUID,
-					BluenetConfig.CHAR_SETUP_CONFIG_READ_UUID, statusCallback, callback);
+		subscribeConfiguration(address, NotificationHub.DIRECT_EXECUTOR, statusCallback, callback);
+	}
+
+	/**
+	 * Subscribe to the configuration read characteristic, the configurations are parsed once for
+	 * all subscribers.
+	 *
+	 * @param address the address of the device
+	 * @param executor executor on which the callback is called
+	 * @param statusCallback the callback which will be informed about success or failure.
+	 *                       in case of success, the onSuccess function will return the subscriber
+	 *                       id which is needed for unsubscribing afterwards
+	 * @param callback the callback which will be triggered every time a gatt notification arrives
+	 */
+	public void subscribeConfiguration(String address, Executor executor, final IIntegerCallback statusCallback, final IConfigurationCallback callback) {
+		if (isSetupMode(address)) {
+			subscribeConfiguration(address, BluenetHandles.SETUP_CONFIG_READ, executor, statusCallback, callback);
 		} else {
-			subscribeConfiguration(address, BluenetConfig.CROWNSTONE_SERVICE_UUID,
-					BluenetConfig.CHAR_CONFIG_READ_UUID, statusCallback, callback);
+			subscribeConfiguration(address, BluenetHandles.CONFIG_READ, executor, statusCallback, callback);
 		}
 	}
 
 	/**
-	 * Subscribe to the StateRead characteristic to receive gatt notifications. the statusCallback's
+	 * Subscribe to a configuration read characteristic to receive gatt notifications. the statusCallback's
 	 * onSuccess function will be triggered on success with the subscriber id. this id is needed
 	 * for unsubscribing afterwards.
 	 *
 	 * @param address the address of the device
+	 * @param handle the configuration read characteristic
+	 * @param executor executor on which the callback is called
 	 * @param statusCallback the callback which will be informed about success or failure.
 	 *                       in case of success, the onSuccess function will return the subscriber
 	 *                       id which is needed for unsubscribing afterwards
 	 * @param callback the callback which will be triggered every time a gatt notification arrives
 	 */
-	private void subscribeConfiguration(String address, String serviceUuid, String characteristicUuid,
+	private void subscribeConfiguration(String address, GattHandle handle, Executor executor,
 										final IIntegerCallback statusCallback, final IConfigurationCallback callback) {
 
-		subscribeMultipart(address, serviceUuid, characteristicUuid,
-				statusCallback,
-				new IDataCallback() {
+		_notificationHub.subscribe(address, handle, getMultipartDecoder(_encryptionEnabled), _configurationParser,
+				executor, statusCallback,
+				new IMessageCallback<ConfigurationMsg>() {
 
 					@Override
 					public void onError(int error) {
@@ -1286,21 +1612,8 @@ public class BleBase extends BleCore {
 					}
 
 					@Override
-					public void onData(JSONObject json) {
-						final byte[] decryptedBytes = BleCore.getValue(json);
-
-						getLogger().LOGv(TAG, BleUtils.bytesToString(decryptedBytes));
-
-//						ConfigurationMsg configuration = new ConfigurationMsg(decryptedBytes);
-						ConfigurationMsg configuration = new ConfigurationMsg();
-						if (!configuration.fromArray(decryptedBytes)) {
-							getLogger().LOGw(TAG, "failed to parse configuration: " + BleUtils.bytesToString(decryptedBytes));
-							callback.onError(BleErrors.ERROR_MSG_PARSING);
-						}
-						else {
-							getLogger().LOGd(TAG, "read configuration: %s", configuration.toString());
-							callback.onSuccess(configuration);
-						}
+					public void onMessage(ConfigurationMsg message) {
+						callback.onSuccess(message);
 					}
 				}
 		);
@@ -1316,11 +1629,11 @@ public class BleBase extends BleCore {
 	 * @param callback callback function to be called on success or error
 	 */
 	private void writeConfiguration(final String address, final ConfigurationMsg configuration,
-									final boolean verify, String serviceUuid, String characteristicUuid,
+									final boolean verify, GattHandle handle,
 									final IStatusCallback callback) {
 		byte[] bytes = configuration.toArray();
-		getLogger().LOGd(TAG, "configuration: write %s at service %s and characteristic %s", BleUtils.bytesToString(bytes), serviceUuid, characteristicUuid);
-		write(address, serviceUuid, characteristicUuid, bytes,
+		getLogger().LOGd(TAG, "configuration: write %s at %s", BleLog.bytes(bytes), handle);
+		write(address, handle, bytes,
 				new IStatusCallback() {
 
 					@Override
@@ -1341,7 +1654,7 @@ public class BleBase extends BleCore {
 											if (Arrays.equals(readConfig.getPayload(), configuration.getPayload())) {
 												callback.onSuccess();
 											} else {
-												getLogger().LOGe(TAG, "write: %s, read: %s", BleUtils.bytesToString(configuration.getPayload()), BleUtils.bytesToString(readConfig.getPayload()));
+												getLogger().LOGe(TAG, "write: %s, read: %s", BleLog.bytes(configuration.getPayload()), BleLog.bytes(readConfig.getPayload()));
 												callback.onError(BleErrors.ERROR_VALIDATION_FAILED);
 											}
 										}
@@ -1355,7 +1668,7 @@ public class BleBase extends BleCore {
 									callback.onSuccess();
 								}
 							}
-						}, 1000);
+						}, CONFIGURATION_WRITE_DELAY);
 					}
 
 					@Override
@@ -1380,12 +1693,423 @@ public class BleBase extends BleCore {
 	 */
 	public void writeConfiguration(String address, ConfigurationMsg configuration,
 								   boolean verify, final IStatusCallback callback) {
-		if (_setupMode) {
-			writeConfiguration(address, configuration, verify, BluenetConfig.SETUP_SERVICE_UUID,
-					BluenetConfig.CHAR_SETUP_CONFIG_CONTROL_UUID, callback);
+		if (isSetupMode(address)) {
+			writeConfiguration(address, configuration, verify, BluenetHandles.SETUP_CONFIG_CONTROL, callback);
 		} else {
-			writeConfiguration(address, configuration, verify, BluenetConfig.CROWNSTONE_SERVICE_UUID,
-					BluenetConfig.CHAR_CONFIG_CONTROL_UUID, callback);
+			writeConfiguration(address, configuration, verify, BluenetHandles.CONFIG_CONTROL, callback);
+		}
+	}
+
+	/**
+	 * Write the configuration to the configuration control characteristic, without delay or
+	 * verification.
+	 * Note: this function selects the appropriate characteristic/service automatically depending
+	 * on whether the Crownstone is in Setup or Normal operation mode
+	 */
+	private void writeConfigurationValue(String address, ConfigurationMsg configuration, final IStatusCallback callback) {
+		byte[] bytes = configuration.toArray();
+		GattHandle handle = isSetupMode(address) ? BluenetHandles.SETUP_CONFIG_CONTROL : BluenetHandles.CONFIG_CONTROL;
+		getLogger().LOGd(TAG, "configuration: write %s at %s", BleLog.bytes(bytes), handle);
+		write(address, handle, bytes, callback);
+	}
+
+	/**
+	 * Get multiple configurations in one session: subscribes once to the configuration read
+	 * characteristic, selects the configuration types one after the other, and unsubscribes
+	 * when all configurations are received. This is a lot faster than calling getConfiguration
+	 * for each configuration type.
+	 *
+	 * @param address the address of the device
+	 * @param configurationTypes the configuration types, see enum ConfigurationMsg Types in BluenetConfig.
+	 * @param timeout timeout of the whole session in ms, configurations that are not received
+	 *                before the timeout fail with ERROR_TIMEOUT
+	 * @param callback callback which gets the configurations and errors, in the order of the types
+	 */
+	public void getConfigurations(String address, int[] configurationTypes, int timeout,
+								  IConfigurationsCallback callback) {
+		getLogger().LOGd(TAG, "getConfigurations %s types: %s", address, Arrays.toString(configurationTypes));
+		new ConfigurationReadSession(address, configurationTypes, timeout, callback).start();
+	}
+
+	/**
+	 * Same as getConfigurations(address, configurationTypes, timeout, callback), with a timeout
+	 * of CONFIGURATION_SESSION_TIMEOUT_PER_ITEM per configuration type.
+	 */
+	public void getConfigurations(String address, int[] configurationTypes, IConfigurationsCallback callback) {
+		getConfigurations(address, configurationTypes,
+				configurationTypes.length * CONFIGURATION_SESSION_TIMEOUT_PER_ITEM, callback);
+	}
+
+	/**
+	 * Write multiple configurations in one session: the configurations are written one after the
+	 * other, after which the device gets some time to store them. If verify is set, all written
+	 * configurations are then read back in one read session (see getConfigurations), and
+	 * compared with the written values.
+	 *
+	 * @param address the address of the device
+	 * @param configurations the configurations to write
+	 * @param verify true to read back and verify the written configurations
+	 * @param timeout timeout of the whole session in ms, configurations that are not written
+	 *                (or verified) before the timeout fail with ERROR_TIMEOUT
+	 * @param callback callback which gets the written configurations and errors, in the order of
+	 *                 the configurations
+	 */
+	public void writeConfigurations(String address, List<ConfigurationMsg> configurations, boolean verify,
+									int timeout, IConfigurationsCallback callback) {
+		getLogger().LOGd(TAG, "writeConfigurations %s count: %d", address, configurations.size());
+		new ConfigurationWriteSession(address, configurations, verify, timeout, callback).start();
+	}
+
+	/**
+	 * Same as writeConfigurations(address, configurations, verify, timeout, callback), with a
+	 * timeout of CONFIGURATION_SESSION_TIMEOUT_PER_ITEM per configuration (twice that if verify
+	 * is set), plus the time the device gets to store the configurations.
+	 */
+	public void writeConfigurations(String address, List<ConfigurationMsg> configurations, boolean verify,
+									IConfigurationsCallback callback) {
+		int timeout = configurations.size() * CONFIGURATION_SESSION_TIMEOUT_PER_ITEM * (verify ? 2 : 1);
+		writeConfigurations(address, configurations, verify, timeout + CONFIGURATION_WRITE_DELAY, callback);
+	}
+
+	/**
+	 * Reads multiple configurations with a single subscription, see getConfigurations
+	 */
+	private class ConfigurationReadSession {
+
+		private final String _address;
+		private final int[] _types;
+		private final int _timeout;
+		private final IConfigurationsCallback _callback;
+		private final ConfigurationMsg[] _configurations;
+		private final int[] _errors;
+
+		// index of the configuration type that is currently selected
+		private int _index = 0;
+		private int _subscriberId = -1;
+		private boolean _finished = false;
+
+		private final Runnable _timeoutRunnable = new Runnable() {
+			@Override
+			public void run() {
+				getLogger().LOGd(TAG, "configuration read session timed out");
+				finish(BleErrors.ERROR_TIMEOUT);
+			}
+		};
+
+		ConfigurationReadSession(String address, int[] types, int timeout, IConfigurationsCallback callback) {
+			_address = address;
+			_types = types;
+			_timeout = timeout;
+			_callback = callback;
+			_configurations = new ConfigurationMsg[types.length];
+			_errors = new int[types.length];
+		}
+
+		void start() {
+			if (_types.length == 0) {
+				_callback.onResult(_configurations, _errors);
+				return;
+			}
+			_handler.postDelayed(_timeoutRunnable, _timeout);
+			subscribeConfiguration(_address,
+					new IIntegerCallback() {
+						@Override
+						public void onSuccess(int result) {
+							boolean finished;
+							synchronized (ConfigurationReadSession.this) {
+								_subscriberId = result;
+								finished = _finished;
+							}
+							if (finished) {
+								// timed out while subscribing
+								unsubscribeConfiguration(_address, result, _silentStatusCallback);
+								return;
+							}
+							selectNext();
+						}
+
+						@Override
+						public void onError(int error) {
+							synchronized (ConfigurationReadSession.this) {
+								if (_finished) {
+									return;
+								}
+								_finished = true;
+							}
+							_handler.removeCallbacks(_timeoutRunnable);
+							_callback.onError(error);
+						}
+					},
+					new IConfigurationCallback() {
+						@Override
+						public void onSuccess(ConfigurationMsg configuration) {
+							int index;
+							synchronized (ConfigurationReadSession.this) {
+								if (_finished || _index == _types.length || configuration.getType() != _types[_index]) {
+									// late notification of a previous selection
+									return;
+								}
+								index = _index;
+							}
+							itemDone(index, configuration, 0);
+						}
+
+						@Override
+						public void onError(int error) {
+							int index;
+							synchronized (ConfigurationReadSession.this) {
+								index = _index;
+							}
+							itemDone(index, null, error);
+						}
+					}
+			);
+		}
+
+		private void selectNext() {
+			final int index;
+			synchronized (this) {
+				if (_finished) {
+					return;
+				}
+				index = _index;
+			}
+			selectConfiguration(_address, _types[index], new IStatusCallback() {
+				@Override
+				public void onSuccess() {
+					// wait for the configuration to come in on notification
+				}
+
+				@Override
+				public void onError(int error) {
+					itemDone(index, null, error);
+				}
+			});
+		}
+
+		private void itemDone(int index, ConfigurationMsg configuration, int error) {
+			boolean last;
+			synchronized (this) {
+				if (_finished || index != _index) {
+					return;
+				}
+				_configurations[index] = configuration;
+				_errors[index] = error;
+				_index++;
+				last = _index == _types.length;
+			}
+			if (last) {
+				finish(0);
+			} else {
+				selectNext();
+			}
+		}
+
+		/**
+		 * Finish the session, unsubscribe and return the results.
+		 * @param error error for the configurations that are not received yet
+		 */
+		private void finish(int error) {
+			int subscriberId;
+			synchronized (this) {
+				if (_finished) {
+					return;
+				}
+				_finished = true;
+				for (int i = _index; i < _types.length; i++) {
+					_errors[i] = error;
+				}
+				subscriberId = _subscriberId;
+			}
+			_handler.removeCallbacks(_timeoutRunnable);
+			if (subscriberId < 0) {
+				// not subscribed yet, will unsubscribe once subscribed
+				_callback.onResult(_configurations, _errors);
+				return;
+			}
+			// need to wait until unsubscribe is completed before returning the data, see getConfiguration
+			unsubscribeConfiguration(_address, subscriberId, new IStatusCallback() {
+				@Override
+				public void onSuccess() {
+					_callback.onResult(_configurations, _errors);
+				}
+
+				@Override
+				public void onError(int error) {
+					getLogger().LOGw(TAG, "failed to unsubscribe configuration: %d", error);
+					_callback.onResult(_configurations, _errors);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes multiple configurations, and verifies them in a single read session, see
+	 * writeConfigurations
+	 */
+	private class ConfigurationWriteSession {
+
+		private final String _address;
+		private final ConfigurationMsg[] _configurations;
+		private final boolean _verify;
+		private final long _deadline;
+		private final IConfigurationsCallback _callback;
+		private final int[] _errors;
+
+		// index of the configuration that is currently written
+		private int _index = 0;
+		private boolean _finished = false;
+
+		private final Runnable _timeoutRunnable = new Runnable() {
+			@Override
+			public void run() {
+				getLogger().LOGd(TAG, "configuration write session timed out");
+				finish(BleErrors.ERROR_TIMEOUT);
+			}
+		};
+
+		ConfigurationWriteSession(String address, List<ConfigurationMsg> configurations, boolean verify,
+								  int timeout, IConfigurationsCallback callback) {
+			_address = address;
+			_configurations = configurations.toArray(new ConfigurationMsg[configurations.size()]);
+			_verify = verify;
+			_deadline = SystemClock.elapsedRealtime() + timeout;
+			_callback = callback;
+			_errors = new int[_configurations.length];
+		}
+
+		void start() {
+			if (_configurations.length == 0) {
+				_callback.onResult(_configurations, _errors);
+				return;
+			}
+			_handler.postDelayed(_timeoutRunnable, _deadline - SystemClock.elapsedRealtime());
+			writeNext();
+		}
+
+		private void writeNext() {
+			final int index;
+			synchronized (this) {
+				if (_finished) {
+					return;
+				}
+				index = _index;
+			}
+			writeConfigurationValue(_address, _configurations[index], new IStatusCallback() {
+				@Override
+				public void onSuccess() {
+					itemDone(index, 0);
+				}
+
+				@Override
+				public void onError(int error) {
+					getLogger().LOGe(TAG, "Failed to write configuration %d", _configurations[index].getType());
+					itemDone(index, error);
+				}
+			});
+		}
+
+		private void itemDone(int index, int error) {
+			boolean last;
+			synchronized (this) {
+				if (_finished || index != _index) {
+					return;
+				}
+				_errors[index] = error;
+				_index++;
+				last = _index == _configurations.length;
+			}
+			if (!last) {
+				writeNext();
+				return;
+			}
+			// give the crownstone some time to store the new config values in persistent memory
+			_handler.postDelayed(new Runnable() {
+				@Override
+				public void run() {
+					if (_verify) {
+						verify();
+					} else {
+						finish(0);
+					}
+				}
+			}, CONFIGURATION_WRITE_DELAY);
+		}
+
+		private void verify() {
+			final ArrayList<Integer> indices = new ArrayList<>();
+			synchronized (this) {
+				if (_finished) {
+					return;
+				}
+				for (int i = 0; i < _configurations.length; i++) {
+					if (_errors[i] == 0) {
+						indices.add(i);
+					}
+				}
+			}
+			if (indices.isEmpty()) {
+				finish(0);
+				return;
+			}
+			int[] types = new int[indices.size()];
+			for (int i = 0; i < types.length; i++) {
+				types[i] = _configurations[indices.get(i)].getType();
+			}
+			// the read session has its own timeout, with the time that is left
+			_handler.removeCallbacks(_timeoutRunnable);
+			int timeout = (int)Math.max(0, _deadline - SystemClock.elapsedRealtime());
+			getConfigurations(_address, types, timeout, new IConfigurationsCallback() {
+				@Override
+				public void onResult(ConfigurationMsg[] configurations, int[] errors) {
+					synchronized (ConfigurationWriteSession.this) {
+						for (int i = 0; i < configurations.length; i++) {
+							int index = indices.get(i);
+							if (errors[i] != 0) {
+								_errors[index] = errors[i];
+							} else if (!Arrays.equals(configurations[i].getPayload(), _configurations[index].getPayload())) {
+								getLogger().LOGe(TAG, "write: %s, read: %s", BleLog.bytes(_configurations[index].getPayload()), BleLog.bytes(configurations[i].getPayload()));
+								_errors[index] = BleErrors.ERROR_VALIDATION_FAILED;
+							}
+						}
+					}
+					finish(0);
+				}
+
+				@Override
+				public void onError(int error) {
+					synchronized (ConfigurationWriteSession.this) {
+						for (int i = 0; i < indices.size(); i++) {
+							_errors[indices.get(i)] = error;
+						}
+					}
+					finish(0);
+				}
+			});
+		}
+
+		/**
+		 * Finish the session and return the results.
+		 * @param error error for the configurations that are not written yet
+		 */
+		private void finish(int error) {
+			ConfigurationMsg[] written = new ConfigurationMsg[_configurations.length];
+			synchronized (this) {
+				if (_finished) {
+					return;
+				}
+				_finished = true;
+				for (int i = _index; i < _configurations.length; i++) {
+					_errors[i] = error;
+				}
+				for (int i = 0; i < _configurations.length; i++) {
+					if (_errors[i] == 0) {
+						written[i] = _configurations[i];
+					}
+				}
+			}
+			_handler.removeCallbacks(_timeoutRunnable);
+			_callback.onResult(written, _errors);
 		}
 	}
 
@@ -1397,12 +2121,12 @@ public class BleBase extends BleCore {
 	 * @param configurationType the configuration type, see enum ConfigurationMsg Types in BluenetConfig.
 	 * @param callback the callback which will be informed about success or failure
 	 */
-	private void selectConfiguration(String address, int configurationType, String serviceUuid,
-									 String characteristicUuid, final IStatusCallback callback) {
+	private void selectConfiguration(String address, int configurationType, GattHandle handle,
+									 final IStatusCallback callback) {
 		ConfigurationMsg configuration = new ConfigurationMsg(configurationType, BluenetConfig.READ_VALUE, 0, new byte[]{});
 		byte[] bytes = configuration.toArray();
-		getLogger().LOGd(TAG, "select configuration: write %d at service %s and characteristic %s", configurationType, serviceUuid, characteristicUuid);
-		write(address, serviceUuid, characteristicUuid, bytes,
+		getLogger().LOGd(TAG, "select configuration: write %d at %s", configurationType, handle);
+		write(address, handle, bytes,
 				new IStatusCallback() {
 
 					@Override
@@ -1430,12 +2154,10 @@ public class BleBase extends BleCore {
 	 * @param callback the callback which will be informed about success or failure
 	 */
 	private void selectConfiguration(String address, int configurationType, final IStatusCallback callback) {
-		if (_setupMode) {
-			selectConfiguration(address, configurationType, BluenetConfig.SETUP_SERVICE_UUID,
-					BluenetConfig.CHAR_SETUP_CONFIG_CONTROL_UUID, callback);
+		if (isSetupMode(address)) {
+			selectConfiguration(address, configurationType, BluenetHandles.SETUP_CONFIG_CONTROL, callback);
 		} else {
-			selectConfiguration(address, configurationType, BluenetConfig.CROWNSTONE_SERVICE_UUID,
-					BluenetConfig.CHAR_CONFIG_CONTROL_UUID, callback);
+			selectConfiguration(address, configurationType, BluenetHandles.CONFIG_CONTROL, callback);
 
 		}
 	}
@@ -1450,10 +2172,9 @@ public class BleBase extends BleCore {
 	 * @param address the address of the device
 	 * @param callback callback function to be called with the read configuration object
 	 */
-	private void readConfiguration(String address, String serviceUuid, String characteristicUuid,
-								   final IConfigurationCallback callback) {
-		getLogger().LOGd(TAG, "read configuration at service %s and characteristic %s", serviceUuid, characteristicUuid);
-		read(address, serviceUuid, characteristicUuid, new IDataCallback() {
+	private void readConfiguration(String address, GattHandle handle, final IConfigurationCallback callback) {
+		getLogger().LOGd(TAG, "read configuration at %s", handle);
+		read(address, handle, new IDataCallback() {
 			@Override
 			public void onError(int error) {
 				getLogger().LOGe(TAG, "Failed to read configuration characteristic");
@@ -1465,11 +2186,11 @@ public class BleBase extends BleCore {
 				byte[] bytes = BleCore.getValue(json);
 				ConfigurationMsg configuration = new ConfigurationMsg();
 				if (!configuration.fromArray(bytes)) {
-					getLogger().LOGw(TAG, "failed to parse configuration: " + BleUtils.bytesToString(bytes));
+					getLogger().LOGw(TAG, "failed to parse configuration: %s", bytes);
 					callback.onError(BleErrors.ERROR_MSG_PARSING);
 				}
 				else {
-					getLogger().LOGd(TAG, "read configuration: %s", configuration.toString());
+					getLogger().LOGd(TAG, "read configuration: %s", configuration);
 					callback.onSuccess(configuration);
 				}
 			}
@@ -1489,12 +2210,10 @@ public class BleBase extends BleCore {
 	 * @param callback callback function to be called with the read configuration object
 	 */
 	private void readConfiguration(String address, final IConfigurationCallback callback) {
-		if (_setupMode) {
-			readConfiguration(address, BluenetConfig.SETUP_SERVICE_UUID,
-					BluenetConfig.CHAR_SETUP_CONFIG_READ_UUID, callback);
+		if (isSetupMode(address)) {
+			readConfiguration(address, BluenetHandles.SETUP_CONFIG_READ, callback);
 		} else {
-			readConfiguration(address, BluenetConfig.CROWNSTONE_SERVICE_UUID,
-					BluenetConfig.CHAR_CONFIG_READ_UUID, callback);
+			readConfiguration(address, BluenetHandles.CONFIG_READ, callback);
 		}
 	}
 
@@ -1510,7 +2229,7 @@ public class BleBase extends BleCore {
 		StateMsg state = new StateMsg(stateType, BluenetConfig.NOTIFY_VALUE, 1, new byte[]{1});
 		byte[] bytes = state.toArray();
 		getLogger().LOGd(TAG, "notify state: write %d at service %s and characteristic %s", stateType, BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_STATE_CONTROL_UUID);
-		write(address, BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_STATE_CONTROL_UUID, bytes,
+		write(address, BluenetHandles.STATE_CONTROL, bytes,
 				new IStatusCallback() {
 
 					@Override
@@ -1543,10 +2262,25 @@ public class BleBase extends BleCore {
 	 * @param callback the callback which will be triggered every time a gatt notification arrives
 	 */
 	public void subscribeState(String address, final IIntegerCallback statusCallback, final IStateCallback callback) {
+		subscribeState(address, NotificationHub.DIRECT_EXECUTOR, statusCallback, callback);
+	}
 
-		subscribeMultipart(address, BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_STATE_READ_UUID,
-				statusCallback,
-				new IDataCallback() {
+	/**
+	 * Subscribe to the StateRead characteristic, the state notifications are parsed once for all
+	 * subscribers.
+	 *
+	 * @param address the address of the device
+	 * @param executor executor on which the callback is called
+	 * @param statusCallback the callback which will be informed about success or failure.
+	 *                       in case of success, the onSuccess function will return the subscriber
+	 *                       id which is needed for unsubscribing afterwards
+	 * @param callback the callback which will be triggered every time a gatt notification arrives
+	 */
+	public void subscribeState(String address, Executor executor, final IIntegerCallback statusCallback, final IStateCallback callback) {
+
+		_notificationHub.subscribe(address, BluenetHandles.STATE_READ, getMultipartDecoder(_encryptionEnabled), _stateParser,
+				executor, statusCallback,
+				new IMessageCallback<StateMsg>() {
 
 					@Override
 					public void onError(int error) {
@@ -1554,19 +2288,8 @@ public class BleBase extends BleCore {
 					}
 
 					@Override
-					public void onData(JSONObject json) {
-						final byte[] decryptedBytes = BleCore.getValue(json);
-
-						getLogger().LOGd(TAG, BleUtils.bytesToString(decryptedBytes));
-						StateMsg state = new StateMsg();
-						if (!state.fromArray(decryptedBytes)) {
-							getLogger().LOGw(TAG, "failed parsing state notification: ", BleUtils.bytesToString(decryptedBytes));
-							callback.onError(BleErrors.ERROR_MSG_PARSING);
-						}
-						else {
-							getLogger().LOGd(TAG, "received state notification: %s", state.toString());
-							callback.onSuccess(state);
-						}
+					public void onMessage(StateMsg message) {
+						callback.onSuccess(message);
 					}
 				}
 		);
@@ -1580,7 +2303,7 @@ public class BleBase extends BleCore {
 	 * @param subscriberId id obtained from the subscribeState call
 	 */
 	public void unsubscribeState(String address, int subscriberId) {
-		unsubscribe(address, BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_STATE_READ_UUID,
+		unsubscribe(address, BluenetHandles.STATE_READ,
 				subscriberId, new IStatusCallback() {
 					@Override
 					public void onSuccess() {
@@ -1603,7 +2326,7 @@ public class BleBase extends BleCore {
 	 * @param callback the callback which will be informed about success or failure.
 	 */
 	public void unsubscribeState(String address, int subscriberId, final IStatusCallback callback) {
-		unsubscribe(address, BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_STATE_READ_UUID,
+		unsubscribe(address, BluenetHandles.STATE_READ,
 				subscriberId, callback);
 	}
 
@@ -1780,7 +2503,7 @@ public class BleBase extends BleCore {
 		StateMsg state = new StateMsg(stateType, BluenetConfig.READ_VALUE, 0, new byte[]{});
 		byte[] bytes = state.toArray();
 		getLogger().LOGd(TAG, "select state: write %d at service %s and characteristic %s", stateType, BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_STATE_CONTROL_UUID);
-		write(address, BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_STATE_CONTROL_UUID, bytes,
+		write(address, BluenetHandles.STATE_CONTROL, bytes,
 				new IStatusCallback() {
 
 					@Override
@@ -1809,7 +2532,7 @@ public class BleBase extends BleCore {
 	 */
 	public void readState(String address, final IStateCallback callback) {
 		getLogger().LOGd(TAG, "read state at service %s and characteristic %s", BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_STATE_READ_UUID);
-		read(address, BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_STATE_READ_UUID, new IDataCallback() {
+		read(address, BluenetHandles.STATE_READ, new IDataCallback() {
 			@Override
 			public void onError(int error) {
 				getLogger().LOGe(TAG, "Failed to read state characteristic");
@@ -1821,7 +2544,7 @@ public class BleBase extends BleCore {
 				byte[] bytes = BleCore.getValue(json);
 				StateMsg state = new StateMsg();
 				if (!state.fromArray(bytes)) {
-					getLogger().LOGw(TAG, "failed parsing state notification: ", BleUtils.bytesToString(bytes));
+					getLogger().LOGw(TAG, "failed parsing state notification: %s", bytes);
 					callback.onError(BleErrors.ERROR_MSG_PARSING);
 				}
 				else {
@@ -1837,11 +2560,11 @@ public class BleBase extends BleCore {
 //		sendCommand(address, command, serviceUuid, characteristicUuid, BleBaseEncryption.ACCESS_LEVEL_HIGHEST_AVAILABLE, callback);
 //	}
 
-	private void sendCommand(String address, ControlMsg command, String serviceUuid, String characteristicUuid, char accessLevel,
+	private void sendCommand(String address, ControlMsg command, GattHandle handle, char accessLevel,
 							 final IStatusCallback callback) {
 		byte[] bytes = command.toArray();
-		getLogger().LOGd(TAG, "control command: write %s at service %s and characteristic %s", BleUtils.bytesToString(bytes), serviceUuid, characteristicUuid);
-		write(address, serviceUuid, characteristicUuid, bytes, accessLevel,
+		getLogger().LOGd(TAG, "control command: write %s at %s", BleLog.bytes(bytes), handle);
+		write(address, handle, bytes, accessLevel,
 				new IStatusCallback() {
 
 					@Override
@@ -1864,7 +2587,24 @@ public class BleBase extends BleCore {
 						getLogger().LOGe(TAG, "Failed to write to control characteristic");
 						callback.onError(error);
 					}
-				});
+				}, getCommandPriority(command));
+	}
+
+	/**
+	 * Commands that change the switch state are queued before other GATT operations, so that
+	 * they are not delayed by e.g. reading a schedule.
+	 * @param command the command
+	 * @return priority of the command, see {@link GattOperationQueue}
+	 */
+	private static int getCommandPriority(ControlMsg command) {
+		switch (command.getType()) {
+			case BluenetConfig.CMD_SWITCH:
+			case BluenetConfig.CMD_PWM:
+			case BluenetConfig.CMD_RELAY:
+				return GattOperationQueue.PRIORITY_HIGH;
+			default:
+				return GattOperationQueue.PRIORITY_NORMAL;
+		}
 	}
 
 	/**
@@ -1891,11 +2631,18 @@ public class BleBase extends BleCore {
 	 * @param callback callback function to be called on success or error
 	 */
 	public void sendCommand(String address, ControlMsg command, char accessLevel, final IStatusCallback callback) {
-		getLogger().LOGd(TAG, "setupMode = " + _setupMode);
-		if (_setupMode) {
-			sendCommand(address, command, BluenetConfig.SETUP_SERVICE_UUID, _setupControlCharUuid, accessLevel, callback);
+		boolean setupMode = isSetupMode(address);
+		getLogger().LOGd(TAG, "setupMode = %b", setupMode);
+		if (setupMode) {
+			GattHandle setupControlHandle = getSetupControlHandle(address);
+			if (setupControlHandle == null) {
+				getLogger().LOGe(TAG, "setup control characteristic not discovered");
+				callback.onError(BleErrors.ERROR_CHARACTERISTIC_NOT_FOUND);
+				return;
+			}
+			sendCommand(address, command, setupControlHandle, accessLevel, callback);
 		} else {
-			sendCommand(address, command, BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_CONTROL_UUID, accessLevel, callback);
+			sendCommand(address, command, BluenetHandles.CONTROL, accessLevel, callback);
 		}
 	}
 
@@ -1909,12 +2656,12 @@ public class BleBase extends BleCore {
 	public void writeMeshMessage(String address, MeshControlMsg message, final IStatusCallback callback) {
 		getLogger().LOGd(TAG, "mesh message: write %s at service %s and characteristic %s", message.toString(), BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_MESH_CONTROL_UUID);
 		byte[] msgBytArr = message.toArray();
-		if (msgBytArr.length > BluenetConfig.MESH_MAX_PAYLOAD_SIZE) {
-			getLogger().LOGe(TAG, "Message too large: " + BleUtils.bytesToString(msgBytArr));
+		if (message.getPayloadSize() > BluenetConfig.MESH_MAX_PAYLOAD_SIZE) {
+			getLogger().LOGe(TAG, "Message too large: %s", msgBytArr);
 			callback.onError(BleErrors.ERROR_WRONG_PAYLOAD_SIZE);
 			return;
 		}
-		write(address, BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_MESH_CONTROL_UUID, msgBytArr,
+		write(address, BluenetHandles.MESH_CONTROL, msgBytArr,
 				new IStatusCallback() {
 
 					@Override
@@ -1938,7 +2685,7 @@ public class BleBase extends BleCore {
 	 */
 	public void readTrackedDevices(String address, final IByteArrayCallback callback) {
 		getLogger().LOGd(TAG, "read tracked devices at service %s and characteristic %s", BluenetConfig.INDOOR_LOCALIZATION_SERVICE_UUID, BluenetConfig.CHAR_TRACKED_DEVICES_UUID);
-		read(address, BluenetConfig.INDOOR_LOCALIZATION_SERVICE_UUID, BluenetConfig.CHAR_TRACKED_DEVICES_UUID, new IDataCallback() {
+		read(address, BluenetHandles.TRACKED_DEVICES, new IDataCallback() {
 			@Override
 			public void onError(int error) {
 				getLogger().LOGe(TAG, "Failed to read tracked devices characteristic");
@@ -1948,7 +2695,7 @@ public class BleBase extends BleCore {
 			@Override
 			public void onData(JSONObject json) {
 				byte[] bytes = BleCore.getValue(json);
-				getLogger().LOGd(TAG, "tracked devices: %s", BleUtils.bytesToString(bytes));
+				getLogger().LOGd(TAG, "tracked devices: %s", bytes);
 				callback.onSuccess(bytes);
 				// todo: add function to extended, with nice classes and list of objects, etc.
 			}
@@ -1964,7 +2711,7 @@ public class BleBase extends BleCore {
 	 */
 	public void addTrackedDevice(String address, TrackedDeviceMsg device, final IStatusCallback callback) {
 		getLogger().LOGd(TAG, "add tracked device: write %s at service %s and characteristic %s", device.toString(), BluenetConfig.INDOOR_LOCALIZATION_SERVICE_UUID, BluenetConfig.CHAR_TRACK_CONTROL_UUID);
-		write(address, BluenetConfig.INDOOR_LOCALIZATION_SERVICE_UUID, BluenetConfig.CHAR_TRACK_CONTROL_UUID, device.toArray(),
+		write(address, BluenetHandles.TRACK_CONTROL, device.toArray(),
 				new IStatusCallback() {
 
 					@Override
@@ -1988,13 +2735,12 @@ public class BleBase extends BleCore {
 	 * @param callback the callback which will be informed about success or failure
 	 */
 	public void writeReset(String address, int value, final IStatusCallback callback) {
-		getLogger().LOGd(TAG, "writeReset: " + value + " setupMode=" + _setupMode);
-		if (_setupMode) {
-			writeReset(address, value, BluenetConfig.SETUP_SERVICE_UUID,
-					BluenetConfig.CHAR_SETUP_GOTO_DFU_UUID, callback);
+		boolean setupMode = isSetupMode(address);
+		getLogger().LOGd(TAG, "writeReset: %d setupMode=%b", value, setupMode);
+		if (setupMode) {
+			writeReset(address, value, BluenetHandles.SETUP_GOTO_DFU, callback);
 		} else {
-			writeReset(address, value, BluenetConfig.GENERAL_SERVICE_UUID,
-					BluenetConfig.CHAR_RESET_UUID, callback);
+			writeReset(address, value, BluenetHandles.RESET, callback);
 		}
 	}
 
@@ -2002,13 +2748,12 @@ public class BleBase extends BleCore {
 	 * Write the reset value to the reset characteristic
 	 * @param address the address of the device
 	 * @param value reset value, can be either RESET_DEFAULT or RESET_BOOTLOADER
-	 * @param serviceUuid service UUID to write to
-	 * @param characteristicUuid characteristic UUID to write to
+	 * @param handle handle of the characteristic to write to
 	 * @param callback the callback which will be informed about success or failure
 	 */
-	private void writeReset(String address, int value, String serviceUuid, String characteristicUuid, final IStatusCallback callback) {
-			getLogger().LOGd(TAG, "reset: write %d at service %s and characteristic %s", value, serviceUuid, characteristicUuid);
-			write(address, serviceUuid, characteristicUuid, new byte[]{(byte) value}, BleBaseEncryption.ACCESS_LEVEL_ENCRYPTION_DISABLED,
+	private void writeReset(String address, int value, GattHandle handle, final IStatusCallback callback) {
+			getLogger().LOGd(TAG, "reset: write %d at %s", value, handle);
+			write(address, handle, new byte[]{(byte) value}, BleBaseEncryption.ACCESS_LEVEL_ENCRYPTION_DISABLED,
 					new IStatusCallback() {
 
 						@Override
@@ -2181,11 +2926,12 @@ public class BleBase extends BleCore {
 
 	public void readSessionNonce(final String address, final IDataCallback callback) {
 		getLogger().LOGd(TAG, "readSessionNonce");
+		final boolean setupMode = isSetupMode(address);
 		IDataCallback sessionCallback = new IDataCallback() {
 			@Override
 			public void onData(final JSONObject json) {
 				byte[] data = getValue(json);
-				getLogger().LOGd(TAG, "get session nonce (setup=%b): %s", _setupMode, BleUtils.bytesToString(data));
+				getLogger().LOGd(TAG, "get session nonce (setup=%b): %s", setupMode, BleLog.bytes(data));
 
 				// On the sony phone the read was successful but with 0 bytes read, instead of a characteristic read fail.
 				if (data.length == 0) {
@@ -2193,8 +2939,9 @@ public class BleBase extends BleCore {
 					return;
 				}
 
-				if (_setupMode) {
-					_encryptionSessionData = BleBaseEncryption.getSessionData(data, false);
+				EncryptionSessionData sessionData;
+				if (setupMode) {
+					sessionData = BleBaseEncryption.getSessionData(data, false);
 				}
 				else {
 					if (_encryptionKeys == null) {
@@ -2203,25 +2950,30 @@ public class BleBase extends BleCore {
 						return;
 					}
 					byte[] decryptedData = BleBaseEncryption.decryptEcb(data, _encryptionKeys.getGuestKey());
-					_encryptionSessionData = BleBaseEncryption.getSessionData(decryptedData);
+					sessionData = BleBaseEncryption.getSessionData(decryptedData);
 				}
 
-				if (_encryptionSessionData == null) {
+				if (sessionData == null) {
 					getLogger().LOGe(TAG, "no session data!");
 					callback.onError(BleErrors.ERROR_ENCRYPTION);
 					return;
 				}
-				getLogger().LOGd(TAG, "sessionNonce:" + BleUtils.bytesToString(_encryptionSessionData.sessionNonce));
-				getLogger().LOGd(TAG, "validationKey:" + BleUtils.bytesToString(_encryptionSessionData.validationKey));
-				addBytes(json, "sessionNonce", _encryptionSessionData.sessionNonce);
-				addBytes(json, "validationKey", _encryptionSessionData.validationKey);
+				_encryptionSessionData.put(address, sessionData);
+				getLogger().LOGd(TAG, "sessionNonce:%s", sessionData.sessionNonce);
+				getLogger().LOGd(TAG, "validationKey:%s", sessionData.validationKey);
+				addBytes(json, "sessionNonce", sessionData.sessionNonce);
+				addBytes(json, "validationKey", sessionData.validationKey);
 
 				// In setup mode, also get the sesssion key
-				if (_setupMode) {
+				if (setupMode) {
 					readSessionKey(address, new IByteArrayCallback() {
 						@Override
 						public void onSuccess(byte[] result) {
-							setSetupEncryptionKey(result);
+							getLogger().LOGi(TAG, "set setup encryption key of %s", address);
+							SetupState state = _setupStates.get(address);
+							if (state != null) {
+								state.sessionKey = result;
+							}
 							callback.onData(json);
 						}
 
@@ -2242,24 +2994,24 @@ public class BleBase extends BleCore {
 				callback.onError(error);
 			}
 		};
-		if (_setupMode) {
-			read(address, BluenetConfig.SETUP_SERVICE_UUID, BluenetConfig.CHAR_SETUP_SESSION_NONCE_UUID, false, sessionCallback);
+		if (setupMode) {
+			read(address, BluenetHandles.SETUP_SESSION_NONCE, false, sessionCallback);
 		}
 		else {
-			read(address, BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_SESSION_NONCE_UUID, false, sessionCallback);
+			read(address, BluenetHandles.SESSION_NONCE, false, sessionCallback);
 		}
 
 	}
 	
 	public void readSessionKey(final String address, final IByteArrayCallback callback) {
-		if (_setupMode) {
+		if (isSetupMode(address)) {
 			getLogger().LOGd(TAG, "readSessionKey");
-			read(address, BluenetConfig.SETUP_SERVICE_UUID, BluenetConfig.CHAR_SESSION_KEY_UUID, false, new IDataCallback() {
+			read(address, BluenetHandles.SESSION_KEY, false, new IDataCallback() {
 
 				@Override
 				public void onData(JSONObject json) {
 					byte[] bytes = BleCore.getValue(json);
-					getLogger().LOGd(TAG, "session key: %s", BleUtils.bytesToString(bytes));
+					getLogger().LOGd(TAG, "session key: %s", bytes);
 					callback.onSuccess(bytes);
 				}
 
@@ -2278,7 +3030,7 @@ public class BleBase extends BleCore {
 
 	public void readFirmwareRevision(final String address, final IByteArrayCallback callback) {
 		getLogger().LOGd(TAG, "readFirmwareRevision");
-		read(address, BluenetConfig.DEVICE_INFO_SERVICE_UUID, BluenetConfig.CHAR_SOFTWARE_REVISION_UUID, false, new IDataCallback() {
+		read(address, BluenetHandles.SOFTWARE_REVISION, false, new IDataCallback() {
 			@Override
 			public void onData(JSONObject json) {
 				byte[] bytes = getValue(json);
@@ -2295,7 +3047,7 @@ public class BleBase extends BleCore {
 
 	public void readHardwareRevision(final String address, final IByteArrayCallback callback) {
 		getLogger().LOGd(TAG, "readHardwareRevision");
-		read(address, BluenetConfig.DEVICE_INFO_SERVICE_UUID, BluenetConfig.CHAR_HARDWARE_REVISION_UUID, false, new IDataCallback() {
+		read(address, BluenetHandles.HARDWARE_REVISION, false, new IDataCallback() {
 			@Override
 			public void onData(JSONObject json) {
 				byte[] bytes = getValue(json);
@@ -2312,7 +3064,7 @@ public class BleBase extends BleCore {
 
 	public void readBootloaderRevision(final String address, final IByteArrayCallback callback) {
 		getLogger().LOGd(TAG, "readBootloaderRevision");
-		read(address, BluenetConfig.DEVICE_INFO_SERVICE_UUID, BluenetConfig.CHAR_SOFTWARE_REVISION_UUID, false, new IDataCallback() {
+		read(address, BluenetHandles.SOFTWARE_REVISION, false, new IDataCallback() {
 			@Override
 			public void onData(JSONObject json) {
 				byte[] bytes = getValue(json);
@@ -2327,5 +3079,13 @@ public class BleBase extends BleCore {
 		});
 	}
 
-
+	/**
+	 * Setup state of a single device, replaced as a whole on every service discovery.
+	 */
+	private static class SetupState {
+		volatile boolean setupMode = false;
+		volatile GattHandle controlHandle = null;
+		// session key read from the device in setup mode
+		volatile byte[] sessionKey = null;
+	}
 }
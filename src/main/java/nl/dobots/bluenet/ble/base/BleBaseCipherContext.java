@@ -0,0 +1,62 @@
+package nl.dobots.bluenet.ble.base;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Holds the initialized AES ciphers for a single key, so that they don't have to be created
+ * for every encrypt or decrypt call. Used by BleBaseEncryption, see
+ * BleBaseEncryption.clearCipherContexts() to drop them when the keys change.
+ *
+ * A cipher can only be used by one thread at a time, so every call is synchronized.
+ */
+class BleBaseCipherContext {
+
+	private final byte[] _key;
+	private final SecretKeySpec _keySpec;
+
+	// ECB cipher is initialized once, doFinal resets it to the initialized state
+	private final Cipher _ecbDecryptCipher;
+	// CTR cipher needs to be initialized with a new iv for every call
+	private final Cipher _ctrCipher;
+
+	BleBaseCipherContext(byte[] key) throws GeneralSecurityException {
+		_key = Arrays.copyOf(key, key.length);
+		_keySpec = new SecretKeySpec(_key, "AES");
+		_ecbDecryptCipher = Cipher.getInstance("AES/ECB/NoPadding");
+		_ecbDecryptCipher.init(Cipher.DECRYPT_MODE, _keySpec);
+		_ctrCipher = Cipher.getInstance("AES/CTR/NoPadding");
+	}
+
+	/**
+	 * @return true if this context was created for the given key
+	 */
+	boolean hasKey(byte[] key) {
+		return Arrays.equals(_key, key);
+	}
+
+	synchronized void decryptEcb(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) throws GeneralSecurityException {
+		_ecbDecryptCipher.doFinal(input, inputOffset, inputLen, output, outputOffset);
+	}
+
+	/**
+	 * Encrypt or decrypt with AES CTR.
+	 *
+	 * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+	 * @param iv   the iv (nonce and counter) to use
+	 */
+	synchronized void cryptCtr(int mode, byte[] iv, byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) throws GeneralSecurityException {
+		_ctrCipher.init(mode, _keySpec, new IvParameterSpec(iv));
+		_ctrCipher.doFinal(input, inputOffset, inputLen, output, outputOffset);
+	}
+}
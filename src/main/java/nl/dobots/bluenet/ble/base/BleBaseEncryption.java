@@ -2,13 +2,13 @@ package nl.dobots.bluenet.ble.base;
 
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.Arrays;
 
 import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import nl.dobots.bluenet.ble.base.structs.EncryptionKeys;
 import nl.dobots.bluenet.ble.base.structs.EncryptionSessionData;
@@ -57,6 +57,16 @@ public class BleBaseEncryption {
 	private static final int PACKET_NONCE_LENGTH = 3;
 	private static final int ACCESS_LEVEL_LENGTH = 1;
 
+	// Max number of cipher contexts to keep, there is one per key (admin, member, guest, setup)
+	private static final int MAX_CIPHER_CONTEXTS = 8;
+
+	// Shared random generator to create the packet nonces, SecureRandom is thread safe
+	private static final SecureRandom _random = new SecureRandom();
+
+	// Cached cipher contexts, one for each key used. The array is replaced, not modified, so it
+	// can be read without locking.
+	private static volatile BleBaseCipherContext[] _cipherContexts = new BleBaseCipherContext[0];
+
 //	private Cipher _cipher = null;
 //	private boolean _cipherInitialized = false;
 
@@ -99,13 +109,12 @@ public class BleBaseEncryption {
 			getLogger().LOGw(TAG, "wrong key length");
 			return null;
 		}
-		getLogger().LOGv(TAG, "payloadData: " + BleUtils.bytesToString(payloadData));
+		getLogger().LOGv(TAG, "payloadData: %s", payloadData);
 
 		// Packet nonce is randomly generated.
-		SecureRandom random = new SecureRandom();
 		byte[] packetNonce = new byte[PACKET_NONCE_LENGTH];
-		random.nextBytes(packetNonce);
-		getLogger().LOGv(TAG, "packetNonce: " + BleUtils.bytesToString(packetNonce));
+		_random.nextBytes(packetNonce);
+		getLogger().LOGv(TAG, "packetNonce: %s", packetNonce);
 
 		// Create iv by concatting session nonce and packet nonce.
 		byte[] iv = new byte[AES_BLOCK_SIZE];
@@ -119,7 +128,7 @@ public class BleBaseEncryption {
 		//Arrays.fill(payload, (byte)0); // Already zeroes by default
 		System.arraycopy(validationKey, 0, payload, 0, VALIDATION_KEY_LENGTH);
 		System.arraycopy(payloadData, 0, payload, VALIDATION_KEY_LENGTH, payloadData.length);
-		getLogger().LOGv(TAG, "payload: " + BleUtils.bytesToString(payload));
+		getLogger().LOGv(TAG, "payload: %s", payload);
 
 		// Allocate output array
 		byte[] encryptedData = new byte[PACKET_NONCE_LENGTH + ACCESS_LEVEL_LENGTH + payloadLen + paddingLen];
@@ -128,12 +137,8 @@ public class BleBaseEncryption {
 
 		// Encrypt payload
 		try {
-			Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
-			getLogger().LOGv(TAG, "IV before: " + BleUtils.bytesToString(cipher.getIV()));
-			// doFinal(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
-			cipher.doFinal(payload, 0, payload.length, encryptedData, PACKET_NONCE_LENGTH+ACCESS_LEVEL_LENGTH);
-			getLogger().LOGv(TAG, "IV after: " + BleUtils.bytesToString(cipher.getIV()));
+			getLogger().LOGv(TAG, "IV: %s", iv);
+			getCipherContext(key).cryptCtr(Cipher.ENCRYPT_MODE, iv, payload, 0, payload.length, encryptedData, PACKET_NONCE_LENGTH+ACCESS_LEVEL_LENGTH);
 		} catch (GeneralSecurityException e) {
 			e.printStackTrace();
 			return null;
@@ -155,7 +160,7 @@ public class BleBaseEncryption {
 //			e.printStackTrace();
 //			return null;
 //		}
-		getLogger().LOGv(TAG, "encryptedData: " + BleUtils.bytesToString(encryptedData));
+		getLogger().LOGv(TAG, "encryptedData: %s", encryptedData);
 		return encryptedData;
 	}
 
@@ -164,6 +169,38 @@ public class BleBaseEncryption {
 			getLogger().LOGw(TAG, "wrong data length");
 			return null;
 		}
+		byte[] decryptedData = new byte[encryptedData.length - PACKET_NONCE_LENGTH - ACCESS_LEVEL_LENGTH];
+		ByteBuffer payload = decryptCtr(encryptedData, 0, encryptedData.length, sessionNonce, validationKey, keys, decryptedData, 0);
+		if (payload == null) {
+			return null;
+		}
+		byte[] payloadData = new byte[payload.remaining()];
+		payload.get(payloadData);
+		return payloadData;
+	}
+
+	/**
+	 * Decrypt AES CTR encrypted data into the given output array, without allocating a new array.
+	 *
+	 * @param encryptedData array with the encrypted data, starting with packet nonce and access level
+	 * @param inputOffset   offset of the encrypted data in the array
+	 * @param inputLength   length of the encrypted data
+	 * @param sessionNonce  the session nonce
+	 * @param validationKey the validation key
+	 * @param keys          the keys, the key is selected by the access level in the encrypted data
+	 * @param output        array to decrypt into, should have room for
+	 *                      inputLength - getCtrHeaderLength() bytes after outputOffset
+	 * @param outputOffset  offset in the output array
+	 * @return view on the output array with the payload (the decrypted data without validation
+	 *         key), or null on failure
+	 */
+	public static ByteBuffer decryptCtr(byte[] encryptedData, int inputOffset, int inputLength, byte[] sessionNonce, byte[] validationKey, EncryptionKeys keys,
+	                                    byte[] output, int outputOffset) {
+		if (encryptedData == null || inputOffset < 0 || inputLength < PACKET_NONCE_LENGTH + ACCESS_LEVEL_LENGTH + AES_BLOCK_SIZE
+				|| inputOffset + inputLength > encryptedData.length) {
+			getLogger().LOGw(TAG, "wrong data length");
+			return null;
+		}
 		if (sessionNonce == null || sessionNonce.length != SESSION_NONCE_LENGTH) {
 			getLogger().LOGw(TAG, "wrong session nonce length");
 			return null;
@@ -176,34 +213,35 @@ public class BleBaseEncryption {
 			getLogger().LOGw(TAG, "no keys supplied");
 			return null;
 		}
-		getLogger().LOGv(TAG, "encryptedData: " + BleUtils.bytesToString(encryptedData));
+		getLogger().LOGv(TAG, "encryptedData: %s", encryptedData);
 
-		byte[] decryptedData = new byte[encryptedData.length - PACKET_NONCE_LENGTH - ACCESS_LEVEL_LENGTH];
-		if (decryptedData.length % AES_BLOCK_SIZE != 0) {
+		int decryptedLength = inputLength - PACKET_NONCE_LENGTH - ACCESS_LEVEL_LENGTH;
+		if (decryptedLength % AES_BLOCK_SIZE != 0) {
 			getLogger().LOGv(TAG, "encrypted data length must be multiple of 16");
 			return null;
 		}
+		if (output == null || outputOffset < 0 || outputOffset + decryptedLength > output.length) {
+			getLogger().LOGw(TAG, "output too small");
+			return null;
+		}
 
-		char accessLevel = (char)BleUtils.toUint8(encryptedData[PACKET_NONCE_LENGTH]);
-		getLogger().LOGv(TAG, "accessLevel: " + (int)accessLevel);
+		char accessLevel = (char)BleUtils.toUint8(encryptedData[inputOffset + PACKET_NONCE_LENGTH]);
+		getLogger().LOGv(TAG, "accessLevel: %d", (int)accessLevel);
 		byte[] key = keys.getKey(accessLevel);
 		if (key == null || key.length != AES_BLOCK_SIZE) {
-			getLogger().LOGw(TAG, "wrong key length: " + key);
+			getLogger().LOGw(TAG, "wrong key length: %d", key == null ? -1 : key.length);
 			return null;
 		}
 
 		// Create iv by concatting session nonce and packet nonce
 		byte[] iv = new byte[AES_BLOCK_SIZE];
-		System.arraycopy(encryptedData, 0, iv, 0, PACKET_NONCE_LENGTH);
+		System.arraycopy(encryptedData, inputOffset, iv, 0, PACKET_NONCE_LENGTH);
 		System.arraycopy(sessionNonce, 0, iv, PACKET_NONCE_LENGTH, SESSION_NONCE_LENGTH);
 
 		// Decrypt encrypted payload
 		try {
-			Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-			cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
-			getLogger().LOGv(TAG, "IV: " + BleUtils.bytesToString(cipher.getIV()));
-			// doFinal(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
-			cipher.doFinal(encryptedData, PACKET_NONCE_LENGTH+ACCESS_LEVEL_LENGTH, decryptedData.length, decryptedData, 0);
+			getLogger().LOGv(TAG, "IV: %s", iv);
+			getCipherContext(key).cryptCtr(Cipher.DECRYPT_MODE, iv, encryptedData, inputOffset+PACKET_NONCE_LENGTH+ACCESS_LEVEL_LENGTH, decryptedLength, output, outputOffset);
 		} catch (GeneralSecurityException e) {
 			e.printStackTrace();
 			return null;
@@ -211,16 +249,23 @@ public class BleBaseEncryption {
 
 		// Check validation key
 		for (int i=0; i<VALIDATION_KEY_LENGTH; i++) {
-			if (decryptedData[i] != validationKey[i]) {
-				getLogger().LOGw(TAG, "validationkey: " + BleUtils.bytesToString(validationKey) + " decrypted: " + BleUtils.bytesToString(decryptedData));
+			if (output[outputOffset + i] != validationKey[i]) {
+				getLogger().LOGw(TAG, "validationkey: %s decrypted: %s", BleLog.bytes(validationKey), BleLog.bytes(output));
 				getLogger().LOGw(TAG, "incorrect validation key");
 				return null;
 			}
 		}
 
-		byte[] payloadData = new byte[decryptedData.length-VALIDATION_KEY_LENGTH];
-		System.arraycopy(decryptedData, VALIDATION_KEY_LENGTH, payloadData, 0, payloadData.length);
-		return payloadData;
+		ByteBuffer payload = ByteBuffer.wrap(output, outputOffset + VALIDATION_KEY_LENGTH, decryptedLength - VALIDATION_KEY_LENGTH);
+		payload.order(ByteOrder.LITTLE_ENDIAN);
+		return payload;
+	}
+
+	/**
+	 * @return number of bytes of encrypted data that precede the AES CTR encrypted part
+	 */
+	public static int getCtrHeaderLength() {
+		return PACKET_NONCE_LENGTH + ACCESS_LEVEL_LENGTH;
 	}
 
 	public static byte[] decryptEcb(byte[] payloadData, byte[] key) {
@@ -236,29 +281,107 @@ public class BleBaseEncryption {
 			return null;
 		}
 		int length = payloadData.length-inputOffset;
+		byte[] decryptedData = new byte[length];
+		if (decryptEcb(payloadData, inputOffset, length, key, decryptedData, 0) < 0) {
+			return null;
+		}
+		return decryptedData;
+	}
+
+	/**
+	 * Decrypt AES ECB encrypted data into the given output array, without allocating a new array.
+	 * If key is null, the data is copied without decrypting.
+	 *
+	 * @param payloadData  array with the encrypted data
+	 * @param inputOffset  offset of the encrypted data in the array
+	 * @param length       length of the encrypted data, should be a multiple of AES_BLOCK_SIZE
+	 * @param key          the key to decrypt with
+	 * @param output       array to decrypt into
+	 * @param outputOffset offset in the output array
+	 * @return number of bytes decrypted into output, or -1 on failure
+	 */
+	public static int decryptEcb(byte[] payloadData, int inputOffset, int length, byte[] key, byte[] output, int outputOffset) {
+		if (inputOffset < 0 || length < 0) {
+			return -1;
+		}
+		if (payloadData == null || length < AES_BLOCK_SIZE || inputOffset + length > payloadData.length) {
+			getLogger().LOGw(TAG, "payload data too short");
+			return -1;
+		}
 		if (length % AES_BLOCK_SIZE != 0) {
 			getLogger().LOGw(TAG, "wrong payload data length");
-			return null;
+			return -1;
+		}
+		if (output == null || outputOffset < 0 || outputOffset + length > output.length) {
+			getLogger().LOGw(TAG, "output too small");
+			return -1;
 		}
-		byte[] decryptedData = new byte[length];
 		if (key == null) {
 			// If there is no key set, then simply do not decrypt.
-			System.arraycopy(payloadData, inputOffset, decryptedData, 0, length);
-			return decryptedData;
+			System.arraycopy(payloadData, inputOffset, output, outputOffset, length);
+			return length;
 		}
 		if (key.length != AES_BLOCK_SIZE) {
-			getLogger().LOGw(TAG, "wrong key length: " + key.length);
-			return null;
+			getLogger().LOGw(TAG, "wrong key length: %d", key.length);
+			return -1;
 		}
 		try {
-			Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
-			cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"));
-			cipher.doFinal(payloadData, inputOffset, length, decryptedData, 0);
+			getCipherContext(key).decryptEcb(payloadData, inputOffset, length, output, outputOffset);
 		} catch (GeneralSecurityException e) {
 			e.printStackTrace();
-			return null;
+			return -1;
+		}
+		return length;
+	}
+
+	/**
+	 * Get the cipher context of the given key, creates a new one if there is none yet.
+	 *
+	 * @param key the AES key, should be AES_BLOCK_SIZE bytes
+	 * @return the cipher context for this key
+	 * @throws GeneralSecurityException when the cipher can't be created
+	 */
+	private static BleBaseCipherContext getCipherContext(byte[] key) throws GeneralSecurityException {
+		BleBaseCipherContext[] contexts = _cipherContexts;
+		for (BleBaseCipherContext context : contexts) {
+			if (context.hasKey(key)) {
+				return context;
+			}
+		}
+		synchronized (BleBaseEncryption.class) {
+			// Check again, another thread might have added it in the meantime.
+			contexts = _cipherContexts;
+			for (BleBaseCipherContext context : contexts) {
+				if (context.hasKey(key)) {
+					return context;
+				}
+			}
+			getLogger().LOGd(TAG, "create cipher context");
+			BleBaseCipherContext context = new BleBaseCipherContext(key);
+			BleBaseCipherContext[] newContexts;
+			if (contexts.length < MAX_CIPHER_CONTEXTS) {
+				newContexts = Arrays.copyOf(contexts, contexts.length + 1);
+			}
+			else {
+				// Too many keys, start over. Should only happen when keys change without
+				// clearCipherContexts() being called.
+				newContexts = new BleBaseCipherContext[1];
+			}
+			newContexts[newContexts.length - 1] = context;
+			_cipherContexts = newContexts;
+			return context;
+		}
+	}
+
+	/**
+	 * Remove all cached cipher contexts. Should be called when the keys change, so that ciphers
+	 * of old keys are not kept around.
+	 */
+	public static void clearCipherContexts() {
+		synchronized (BleBaseEncryption.class) {
+			getLogger().LOGd(TAG, "clear cipher contexts");
+			_cipherContexts = new BleBaseCipherContext[0];
 		}
-		return decryptedData;
 	}
 
 	public static EncryptionSessionData getSessionData(byte[] decryptedData) {
@@ -272,19 +395,19 @@ public class BleBaseEncryption {
 		// When the data was encrypted, the first 4 bytes should be CAFEBABE, to check if encryption succeeded.
 		if (wasEncrypted) {
 			if (decryptedData.length < VALIDATION_KEY_LENGTH + SESSION_NONCE_LENGTH) {
-				getLogger().LOGe(TAG, "invalid session data length: " + BleUtils.bytesToString(decryptedData));
+				getLogger().LOGe(TAG, "invalid session data length: %s", decryptedData);
 				return null;
 			}
 			// Bytes 0-3 (validation key) should be CAFEBABE
 			if (BleUtils.byteArrayToInt(decryptedData) != BluenetConfig.CAFEBABE) {
-				getLogger().LOGe(TAG, "validation failed: " + BleUtils.bytesToString(decryptedData));
+				getLogger().LOGe(TAG, "validation failed: %s", decryptedData);
 				return null;
 			}
 			return _getSessionData(decryptedData, VALIDATION_KEY_LENGTH);
 		}
 		else {
 			if (decryptedData.length < SESSION_NONCE_LENGTH) {
-				getLogger().LOGe(TAG, "invalid session data length: " + BleUtils.bytesToString(decryptedData));
+				getLogger().LOGe(TAG, "invalid session data length: %s", decryptedData);
 				return null;
 			}
 			return _getSessionData(decryptedData, 0);
@@ -309,7 +432,7 @@ public class BleBaseEncryption {
 	private static BleLog getLogger() {
 		BleLog logger = BleLog.getInstance();
 		// update the log level to the default of this class if it hasn't been set already
-		if (logger.getLogLevel(TAG) == null) {
+		if (!logger.hasLogLevel(TAG)) {
 			logger.setLogLevelPerTag(TAG, LOG_LEVEL);
 		}
 		return logger;
@@ -319,7 +319,7 @@ public class BleBaseState {
 	public void parseSchedule(StateMsg state, IByteArrayCallback callback) {
 		if (state.getType() == BluenetConfig.STATE_SCHEDULE) {
 			byte[] bytes = state.getPayload();
-			getLogger().LOGd(TAG, "schedule: " + BleUtils.bytesToString(bytes));
+			getLogger().LOGd(TAG, "schedule: %s", bytes);
 			callback.onSuccess(bytes);
 		}
 		else {
@@ -345,7 +345,7 @@ public class BleBaseState {
 	private BleLog getLogger() {
 		BleLog logger = _bleBase.getLogger();
 		// update the log level to the default of this class if it hasn't been set already
-		if (logger.getLogLevel(TAG) == null) {
+		if (!logger.hasLogLevel(TAG)) {
 			logger.setLogLevelPerTag(TAG, LOG_LEVEL);
 		}
 		return logger;
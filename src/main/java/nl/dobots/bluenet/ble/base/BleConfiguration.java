@@ -1,8 +1,10 @@
 package nl.dobots.bluenet.ble.base;
 
 import java.nio.charset.Charset;
+import java.util.List;
 
 import nl.dobots.bluenet.ble.base.callbacks.IConfigurationCallback;
+import nl.dobots.bluenet.ble.base.callbacks.IConfigurationsCallback;
 import nl.dobots.bluenet.ble.base.callbacks.IIntegerCallback;
 import nl.dobots.bluenet.ble.base.callbacks.ILongCallback;
 import nl.dobots.bluenet.ble.core.callbacks.IStatusCallback;
@@ -52,6 +54,29 @@ public class BleConfiguration {
 		_bleBase = bleBase;
 	}
 
+	/**
+	 * Get multiple configurations in one session, which is a lot faster than calling the get
+	 * functions one by one. The returned configurations are not parsed, use the getXXXValue()
+	 * functions of the ConfigurationMsg to get the values.
+	 * @param address the MAC address of the device
+	 * @param configurationTypes the configuration types, see BluenetConfig
+	 * @param callback the callback which will get the configurations and the errors per type
+	 */
+	public void getConfigurations(String address, int[] configurationTypes, final IConfigurationsCallback callback) {
+		_bleBase.getConfigurations(address, configurationTypes, callback);
+	}
+
+	/**
+	 * Write multiple configurations in one session, and verify them, which is a lot faster than
+	 * calling the set functions one by one.
+	 * @param address the MAC address of the device
+	 * @param configurations the configurations to write
+	 * @param callback the callback which will get the errors per configuration
+	 */
+	public void setConfigurations(String address, List<ConfigurationMsg> configurations, final IConfigurationsCallback callback) {
+		_bleBase.writeConfigurations(address, configurations, true, callback);
+	}
+
 	/**
 	 * Write the device name to the configuration
 	 * @param address the MAC address of the device
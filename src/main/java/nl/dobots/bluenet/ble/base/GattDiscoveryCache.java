@@ -0,0 +1,141 @@
+package nl.dobots.bluenet.ble.base;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nl.dobots.bluenet.ble.core.GattDiscovery;
+import nl.dobots.bluenet.utils.BleLog;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Cache of the discovered services of devices, by address. An entry is replaced when a discovery
+ * returns other services, e.g. after a firmware update, and invalidated when a service or
+ * characteristic was not found, or when the device is in dfu mode.
+ *
+ * Android has to discover the services of every new connection, so the cache doesn't skip the
+ * discovery. It's used to detect that the android gatt cache of a device is outdated.
+ *
+ * The cache is persisted in the shared preferences once load() was called, so that it survives
+ * restarts of the app.
+ *
+ * Invalidated entries are remembered until the next discovery of that device, so that the android
+ * gatt cache of that device can be refreshed as well, see needsRefresh().
+ */
+public class GattDiscoveryCache {
+
+	private static final String TAG = GattDiscoveryCache.class.getCanonicalName();
+
+	private static final String PREFERENCES_NAME = "bluenet_gatt_discovery_cache";
+
+	private ConcurrentHashMap<String, GattDiscovery> _discoveries = new ConcurrentHashMap<>();
+	private Set<String> _invalidated = Collections.synchronizedSet(new HashSet<String>());
+	private SharedPreferences _preferences = null;
+
+	/**
+	 * Load the persisted cache, and persist all changes from now on. Does nothing if already loaded.
+	 * @param context the context used to get the shared preferences
+	 */
+	public synchronized void load(Context context) {
+		if (_preferences != null || context == null) {
+			return;
+		}
+		_preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+		for (Map.Entry<String, ?> entry : _preferences.getAll().entrySet()) {
+			if (_discoveries.containsKey(entry.getKey()) || _invalidated.contains(entry.getKey())) {
+				continue;
+			}
+			try {
+				GattDiscovery discovery = GattDiscovery.fromJson(new JSONObject((String) entry.getValue()));
+				_discoveries.put(discovery.getAddress(), discovery);
+			} catch (JSONException | ClassCastException e) {
+				BleLog.getInstance().LOGw(TAG, "failed to parse cached discovery of %s", entry.getKey());
+			}
+		}
+		BleLog.getInstance().LOGd(TAG, "loaded %d discoveries", _discoveries.size());
+	}
+
+	public boolean isLoaded() {
+		return _preferences != null;
+	}
+
+	/**
+	 * Get the cached discovery of a device.
+	 * @param address the MAC address of the device
+	 * @return the discovery, or null if not cached
+	 */
+	public GattDiscovery get(String address) {
+		return _discoveries.get(address);
+	}
+
+	/**
+	 * Cache the discovery of a device, replacing the old entry.
+	 * @param discovery the discovery
+	 */
+	public void put(GattDiscovery discovery) {
+		_discoveries.put(discovery.getAddress(), discovery);
+		_invalidated.remove(discovery.getAddress());
+		persist(discovery);
+	}
+
+	/**
+	 * Remove the cached discovery of a device, because it's outdated, e.g. when a service or
+	 * characteristic was not found, or when the device is in dfu mode.
+	 * @param address the MAC address of the device
+	 */
+	public void invalidate(String address) {
+		BleLog.getInstance().LOGd(TAG, "invalidate %s", address);
+		_discoveries.remove(address);
+		_invalidated.add(address);
+		synchronized (this) {
+			if (_preferences != null) {
+				_preferences.edit().remove(address).apply();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the cached discovery of the device was invalidated since the last discovery,
+	 *         in which case the android gatt cache of the device is probably outdated too.
+	 */
+	public boolean needsRefresh(String address) {
+		return _invalidated.contains(address);
+	}
+
+	/**
+	 * Remove all cached discoveries.
+	 */
+	public void clear() {
+		_discoveries.clear();
+		_invalidated.clear();
+		synchronized (this) {
+			if (_preferences != null) {
+				_preferences.edit().clear().apply();
+			}
+		}
+	}
+
+	private synchronized void persist(GattDiscovery discovery) {
+		if (_preferences == null) {
+			return;
+		}
+		try {
+			_preferences.edit().putString(discovery.getAddress(), discovery.toJson().toString()).apply();
+		} catch (JSONException e) {
+			BleLog.getInstance().LOGe(TAG, "failed to store discovery of %s", discovery.getAddress());
+		}
+	}
+}
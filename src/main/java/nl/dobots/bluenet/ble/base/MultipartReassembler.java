@@ -0,0 +1,342 @@
+package nl.dobots.bluenet.ble.base;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+import nl.dobots.bluenet.utils.LongHashMap;
+import nl.dobots.bluenet.utils.LongHashSet;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Reassembles multipart notifications, for any number of streams at the same time.
+ *
+ * A multipart message is sent as notifications that start with the part number: 0 for the
+ * first part, counting up, and LAST_PART for the last part. The parts of a stream are
+ * collected in a buffer from a pool, so no buffer is allocated per message.
+ *
+ * A partial message is dropped when a part is missing, when the next message starts before it's
+ * complete, when it gets too large, or when no part has been received for the timeout.
+ * Stale partial messages of streams that stopped altogether are evicted as well. The remaining
+ * parts of a dropped message are ignored, up to the start of the next message.
+ *
+ * Times are in ms, from any monotonic clock. Thread safe.
+ */
+public class MultipartReassembler {
+
+	public static final int LAST_PART = 0xFF;
+
+	public static final long DEFAULT_TIMEOUT = 2000;
+	public static final int DEFAULT_POOL_SIZE = 4;
+
+	// Reasons for dropping a (partial) message
+	public static final int DROPPED_MISSING_PART = 1;
+	public static final int DROPPED_RESTARTED = 2;
+	public static final int DROPPED_TIMEOUT = 3;
+	public static final int DROPPED_TOO_LARGE = 4;
+	public static final int DROPPED_NO_START = 5;
+
+	public interface MessageHandler {
+		/**
+		 * Called when a message is complete.
+		 * @param message the message, from position 0 to the limit. The buffer is reused
+		 *                afterwards, so it should not be kept.
+		 */
+		void onMessage(ByteBuffer message);
+
+		/**
+		 * Called when a (partial) message of the stream is dropped. Called once per dropped
+		 * message, so a part can cause several calls, e.g. a timeout followed by a new message
+		 * that is too large.
+		 * @param reason reason of dropping, see DROPPED_*
+		 */
+		void onDropped(int reason);
+	}
+
+	private static class Partial {
+		final ByteBuffer buffer;
+		int nextPart = 1;
+		long startTime;
+		long lastPartTime;
+
+		Partial(ByteBuffer buffer, long now) {
+			this.buffer = buffer;
+			startTime = now;
+			lastPartTime = now;
+		}
+	}
+
+	private final int _maxMessageLength;
+	private final int _poolSize;
+	private final ArrayDeque<ByteBuffer> _pool = new ArrayDeque<>();
+	private final LongHashMap<Partial> _partials = new LongHashMap<>();
+	// Streams of which the remaining parts of a dropped message are ignored
+	private final LongHashSet _discarding = new LongHashSet();
+	private long _timeout = DEFAULT_TIMEOUT;
+	private long _lastEvictTime = 0;
+
+	// Stats
+	private long _numCompleted = 0;
+	private long _numDropped = 0;
+	private long _numTimedOut = 0;
+	private long _totalLatency = 0;
+	private long _maxLatency = 0;
+
+	/**
+	 * @param maxMessageLength max length of a message, without part numbers
+	 * @param poolSize max number of buffers to keep for reuse
+	 */
+	public MultipartReassembler(int maxMessageLength, int poolSize) {
+		_maxMessageLength = maxMessageLength;
+		_poolSize = poolSize;
+	}
+
+	/**
+	 * @param timeout time in ms after the last part, after which a partial message is dropped
+	 */
+	public synchronized void setTimeout(long timeout) {
+		_timeout = timeout;
+	}
+
+	public synchronized long getTimeout() {
+		return _timeout;
+	}
+
+	/**
+	 * Add a part of a multipart message.
+	 *
+	 * @param stream key of the stream the part belongs to, see getStreamKey()
+	 * @param notification the notification, starting with the part number
+	 * @param now current time
+	 * @param handler handler to call when the message is complete, or when a message is dropped
+	 */
+	public void onPart(long stream, byte[] notification, long now, MessageHandler handler) {
+		if (notification.length == 0) {
+			return;
+		}
+		Partial complete = null;
+		boolean timedOut = false;
+		int dropReason = 0;
+		synchronized (this) {
+			int part = notification[0] & 0xFF;
+			Partial partial = _partials.get(stream);
+			if (partial != null && now - partial.lastPartTime > _timeout) {
+				drop(stream, partial, true);
+				_numTimedOut++;
+				partial = null;
+				timedOut = true;
+			}
+			evictStale(now);
+			if (part == 0) {
+				_discarding.remove(stream);
+				if (partial != null) {
+					drop(stream, partial, false);
+					dropReason = DROPPED_RESTARTED;
+				}
+				partial = new Partial(getBuffer(), now);
+				_partials.put(stream, partial);
+			}
+			else if (partial == null) {
+				if (_discarding.contains(stream)) {
+					// Remaining part of a dropped message.
+					if (part == LAST_PART) {
+						_discarding.remove(stream);
+					}
+				}
+				else if (part == LAST_PART) {
+					// Message that fits in a single part.
+					partial = new Partial(getBuffer(), now);
+					_partials.put(stream, partial);
+				}
+				else {
+					// Start of the message was missed.
+					_discarding.add(stream);
+					_numDropped++;
+					dropReason = DROPPED_NO_START;
+				}
+			}
+			else if (part != LAST_PART && part != partial.nextPart) {
+				drop(stream, partial, true);
+				partial = null;
+				dropReason = DROPPED_MISSING_PART;
+			}
+
+			if (partial != null) {
+				if (partial.buffer.remaining() < notification.length - 1) {
+					drop(stream, partial, part != LAST_PART);
+					dropReason = DROPPED_TOO_LARGE;
+				}
+				else {
+					partial.buffer.put(notification, 1, notification.length - 1);
+					partial.nextPart = part + 1;
+					partial.lastPartTime = now;
+					if (part == LAST_PART) {
+						_partials.remove(stream);
+						long latency = now - partial.startTime;
+						_numCompleted++;
+						_totalLatency += latency;
+						_maxLatency = Math.max(_maxLatency, latency);
+						complete = partial;
+					}
+				}
+			}
+		}
+
+		if (timedOut) {
+			handler.onDropped(DROPPED_TIMEOUT);
+		}
+		if (dropReason != 0) {
+			handler.onDropped(dropReason);
+		}
+		if (complete != null) {
+			complete.buffer.flip();
+			try {
+				handler.onMessage(complete.buffer);
+			}
+			finally {
+				releaseBuffer(complete.buffer);
+			}
+		}
+	}
+
+	/**
+	 * Drop the partial messages of all streams of a device, for example when it disconnected.
+	 * @param address MAC address, packed in a long, see BleUtils.addressToLong()
+	 */
+	public synchronized void removeDevice(long address) {
+		for (long stream : _partials.keys()) {
+			if ((stream >>> 16) == address) {
+				drop(stream, _partials.get(stream), false);
+			}
+		}
+		for (long stream : _discarding.toArray()) {
+			if ((stream >>> 16) == address) {
+				_discarding.remove(stream);
+			}
+		}
+	}
+
+	/**
+	 * Drop all partial messages of which no part has been received for the timeout.
+	 * @param now current time
+	 */
+	public synchronized void evictStale(long now) {
+		if (now - _lastEvictTime < _timeout || _partials.isEmpty()) {
+			return;
+		}
+		_lastEvictTime = now;
+		for (long stream : _partials.keys()) {
+			Partial partial = _partials.get(stream);
+			if (now - partial.lastPartTime > _timeout) {
+				drop(stream, partial, true);
+				_numTimedOut++;
+			}
+		}
+	}
+
+	/**
+	 * @return number of partial messages
+	 */
+	public synchronized int getNumPartial() {
+		return _partials.size();
+	}
+
+	/**
+	 * @return number of completed messages
+	 */
+	public synchronized long getNumCompleted() {
+		return _numCompleted;
+	}
+
+	/**
+	 * @return number of dropped messages, including the ones that timed out
+	 */
+	public synchronized long getNumDropped() {
+		return _numDropped;
+	}
+
+	/**
+	 * @return number of messages that were dropped because they timed out
+	 */
+	public synchronized long getNumTimedOut() {
+		return _numTimedOut;
+	}
+
+	/**
+	 * @return ratio of dropped messages to the total number of messages, or 0 if there were none
+	 */
+	public synchronized double getLossRatio() {
+		long total = _numCompleted + _numDropped;
+		return total == 0 ? 0 : (double) _numDropped / total;
+	}
+
+	/**
+	 * @return average time in ms from the first to the last part of completed messages
+	 */
+	public synchronized double getAverageLatency() {
+		return _numCompleted == 0 ? 0 : (double) _totalLatency / _numCompleted;
+	}
+
+	/**
+	 * @return max time in ms from the first to the last part of completed messages
+	 */
+	public synchronized long getMaxLatency() {
+		return _maxLatency;
+	}
+
+	public synchronized void resetStats() {
+		_numCompleted = 0;
+		_numDropped = 0;
+		_numTimedOut = 0;
+		_totalLatency = 0;
+		_maxLatency = 0;
+	}
+
+	/**
+	 * Create the key of a stream.
+	 * @param address MAC address, packed in a long, see BleUtils.addressToLong()
+	 * @param streamId id of the stream on that device, less than 2^16
+	 * @return the key
+	 */
+	public static long getStreamKey(long address, int streamId) {
+		return (address << 16) | (streamId & 0xFFFF);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(Locale.US, "completed=%d dropped=%d timedOut=%d avgLatency=%.1f maxLatency=%d",
+				_numCompleted, _numDropped, _numTimedOut, getAverageLatency(), _maxLatency);
+	}
+
+	/**
+	 * @param discardRest whether to ignore the remaining parts of the message
+	 */
+	private void drop(long stream, Partial partial, boolean discardRest) {
+		_partials.remove(stream);
+		_numDropped++;
+		releaseBuffer(partial.buffer);
+		if (discardRest) {
+			_discarding.add(stream);
+		}
+	}
+
+	private synchronized ByteBuffer getBuffer() {
+		ByteBuffer buffer = _pool.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocate(_maxMessageLength);
+		}
+		return buffer;
+	}
+
+	private synchronized void releaseBuffer(ByteBuffer buffer) {
+		buffer.clear();
+		if (_pool.size() < _poolSize) {
+			_pool.push(buffer);
+		}
+	}
+}
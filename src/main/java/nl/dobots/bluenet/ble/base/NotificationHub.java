@@ -0,0 +1,556 @@
+package nl.dobots.bluenet.ble.base;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import nl.dobots.bluenet.ble.base.callbacks.IIntegerCallback;
+import nl.dobots.bluenet.ble.base.callbacks.IMessageCallback;
+import nl.dobots.bluenet.ble.cfg.BleErrors;
+import nl.dobots.bluenet.ble.core.BleCore;
+import nl.dobots.bluenet.ble.core.GattOperationQueue;
+import nl.dobots.bluenet.ble.core.GattHandle;
+import nl.dobots.bluenet.ble.core.callbacks.IDataCallback;
+import nl.dobots.bluenet.ble.core.callbacks.INotificationCallback;
+import nl.dobots.bluenet.ble.core.callbacks.IStatusCallback;
+import nl.dobots.bluenet.utils.BleLog;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Shares the notifications of a characteristic between all subscribers of it.
+ *
+ * There is one GATT subscription per device and characteristic, no matter how many subscribers
+ * there are. When the last subscriber unsubscribes, the GATT subscription is kept for the
+ * unsubscribe delay, so that a subscriber that subscribes again right away doesn't cost two
+ * descriptor writes.
+ *
+ * Each notification is decoded (multipart and decryption) once per decoder, and parsed once per
+ * parser, after which the message is handed to each subscriber on its own executor.
+ */
+public class NotificationHub {
+
+	// use BleLog.getInstance().setLogLevelPerTag(NotificationHub.class.getCanonicalName(), <NEW_LOG_LEVEL>)
+	// to change the log level
+	private static final int LOG_LEVEL = Log.WARN;
+
+	private static final String TAG = NotificationHub.class.getCanonicalName();
+
+	public static final long DEFAULT_UNSUBSCRIBE_DELAY = 2000;
+
+	/**
+	 * Executor that calls the subscriber on the thread of the notification.
+	 */
+	public static final Executor DIRECT_EXECUTOR = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	/**
+	 * Parses a notification into a message, a parser is used once per notification, no matter
+	 * how many subscribers use it.
+	 * @param <T> type of the message
+	 */
+	public interface Parser<T> {
+		/**
+		 * @param bytes the decoded notification
+		 * @return the message, or null if the bytes could not be parsed
+		 */
+		T parse(byte[] bytes);
+	}
+
+	/**
+	 * Creates the decoder of a stream of notifications, like the multipart decoder.
+	 */
+	public interface DecoderFactory {
+		/**
+		 * @param address the address of the device
+		 * @param handle the characteristic
+		 * @param output callback to be called with each decoded notification
+		 * @return the decoder, which is called with each notification
+		 */
+		IDataCallback createDecoder(String address, GattHandle handle, IDataCallback output);
+	}
+
+	/**
+	 * The GATT operations used by the hub.
+	 */
+	public interface GattSubscriber {
+		void subscribe(String address, GattHandle handle, IStatusCallback callback, INotificationCallback notificationCallback);
+		void unsubscribe(String address, GattHandle handle, IStatusCallback callback);
+	}
+
+	private static final int STATE_IDLE = 0;
+	private static final int STATE_SUBSCRIBING = 1;
+	private static final int STATE_SUBSCRIBED = 2;
+	private static final int STATE_UNSUBSCRIBING = 3;
+
+	private static class Subscriber {
+		final int id;
+		final DecoderFactory decoderFactory;
+		// Null to get the decoded json
+		final Parser<?> parser;
+		final IMessageCallback<Object> callback;
+		final Executor executor;
+		// Only used while waiting for the GATT subscription
+		IIntegerCallback statusCallback;
+
+		@SuppressWarnings("unchecked")
+		Subscriber(int id, DecoderFactory decoderFactory, Parser<?> parser, IMessageCallback<?> callback, Executor executor) {
+			this.id = id;
+			this.decoderFactory = decoderFactory;
+			this.parser = parser;
+			this.callback = (IMessageCallback<Object>) callback;
+			this.executor = executor;
+		}
+	}
+
+	/**
+	 * Notifications of a channel, decoded with the same decoder.
+	 */
+	private static class Stream implements IDataCallback {
+		final DecoderFactory decoderFactory;
+		final IDataCallback input;
+		final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+		Stream(String address, GattHandle handle, DecoderFactory decoderFactory) {
+			this.decoderFactory = decoderFactory;
+			input = decoderFactory == null ? this : decoderFactory.createDecoder(address, handle, this);
+		}
+
+		@Override
+		public void onData(JSONObject json) {
+			byte[] bytes = null;
+			// Parsed message per parser, so that each parser is only used once.
+			ArrayList<Parser<?>> parsers = null;
+			ArrayList<Object> messages = null;
+			for (Subscriber subscriber : subscribers) {
+				Object message;
+				if (subscriber.parser == null) {
+					message = json;
+				}
+				else {
+					int index = parsers == null ? -1 : parsers.indexOf(subscriber.parser);
+					if (index < 0) {
+						if (bytes == null) {
+							bytes = BleCore.getValue(json);
+						}
+						message = subscriber.parser.parse(bytes);
+						if (parsers == null) {
+							parsers = new ArrayList<>(1);
+							messages = new ArrayList<>(1);
+						}
+						parsers.add(subscriber.parser);
+						messages.add(message);
+					}
+					else {
+						message = messages.get(index);
+					}
+				}
+				deliver(subscriber, message);
+			}
+		}
+
+		@Override
+		public void onError(int error) {
+			for (Subscriber subscriber : subscribers) {
+				deliverError(subscriber, error);
+			}
+		}
+	}
+
+	/**
+	 * All subscribers of a characteristic of a device.
+	 */
+	private static class Channel implements INotificationCallback {
+		final String address;
+		final GattHandle handle;
+		int state = STATE_IDLE;
+		final CopyOnWriteArrayList<Stream> streams = new CopyOnWriteArrayList<>();
+		// Subscribers waiting for the GATT subscription
+		final ArrayList<Subscriber> pending = new ArrayList<>();
+		Runnable unsubscribeRunnable = null;
+		// Set when the device was cleared, results of GATT operations are ignored from then on
+		boolean cleared = false;
+
+		Channel(String address, GattHandle handle) {
+			this.address = address;
+			this.handle = handle;
+		}
+
+		boolean hasSubscribers() {
+			return !streams.isEmpty() || !pending.isEmpty();
+		}
+
+		void add(Subscriber subscriber) {
+			for (Stream stream : streams) {
+				if (stream.decoderFactory == subscriber.decoderFactory) {
+					stream.subscribers.add(subscriber);
+					return;
+				}
+			}
+			Stream stream = new Stream(address, handle, subscriber.decoderFactory);
+			stream.subscribers.add(subscriber);
+			streams.add(stream);
+		}
+
+		boolean remove(int id) {
+			for (Stream stream : streams) {
+				for (Subscriber subscriber : stream.subscribers) {
+					if (subscriber.id == id) {
+						stream.subscribers.remove(subscriber);
+						if (stream.subscribers.isEmpty()) {
+							streams.remove(stream);
+						}
+						return true;
+					}
+				}
+			}
+			for (int i = 0; i < pending.size(); i++) {
+				if (pending.get(i).id == id) {
+					pending.remove(i);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public void onData(UUID uuidService, UUID uuidCharacteristic, JSONObject data) {
+			for (Stream stream : streams) {
+				stream.input.onData(data);
+			}
+		}
+
+		@Override
+		public void onError(UUID uuidService, UUID uuidCharacteristic, int error) {
+			for (Stream stream : streams) {
+				stream.input.onError(error);
+			}
+		}
+	}
+
+	private final GattSubscriber _gatt;
+	private final GattOperationQueue.Scheduler _scheduler;
+	private final HashMap<String, HashMap<GattHandle, Channel>> _channels = new HashMap<>();
+	private int _nextSubscriberId = 0;
+	private long _unsubscribeDelay = DEFAULT_UNSUBSCRIBE_DELAY;
+
+	/**
+	 * @param gatt used to subscribe and unsubscribe
+	 * @param scheduler used for the delayed unsubscribe
+	 */
+	public NotificationHub(GattSubscriber gatt, GattOperationQueue.Scheduler scheduler) {
+		_gatt = gatt;
+		_scheduler = scheduler;
+	}
+
+	/**
+	 * @param delay time in ms to stay subscribed after the last subscriber unsubscribed, 0 to
+	 *              unsubscribe right away.
+	 */
+	public synchronized void setUnsubscribeDelay(long delay) {
+		_unsubscribeDelay = delay;
+	}
+
+	public synchronized long getUnsubscribeDelay() {
+		return _unsubscribeDelay;
+	}
+
+	/**
+	 * Subscribe to the notifications of a characteristic.
+	 *
+	 * @param address the address of the device
+	 * @param handle the characteristic
+	 * @param decoderFactory creates the decoder of the notifications, or null to not decode them
+	 * @param parser parses the decoded notification into a message, or null to get the json
+	 * @param executor executor on which the callback is called
+	 * @param statusCallback the callback which will be informed about success or failure.
+	 *                       in case of success, the onSuccess function will return the subscriber
+	 *                       id which is needed for unsubscribing afterwards
+	 * @param callback the callback which will be called with each message
+	 */
+	public <T> void subscribe(String address, GattHandle handle, DecoderFactory decoderFactory, Parser<T> parser,
+							  Executor executor, IIntegerCallback statusCallback, IMessageCallback<T> callback) {
+		Subscriber subscriber;
+		Channel channel;
+		boolean subscribed = false;
+		boolean startSubscribe = false;
+		synchronized (this) {
+			channel = getChannel(address, handle);
+			subscriber = new Subscriber(_nextSubscriberId++, decoderFactory, parser, callback, executor);
+			switch (channel.state) {
+				case STATE_SUBSCRIBED:
+					cancelUnsubscribe(channel);
+					channel.add(subscriber);
+					subscribed = true;
+					break;
+				case STATE_IDLE:
+					channel.state = STATE_SUBSCRIBING;
+					startSubscribe = true;
+					// fall through
+				default:
+					subscriber.statusCallback = statusCallback;
+					channel.pending.add(subscriber);
+					break;
+			}
+		}
+		if (subscribed) {
+			getLogger().LOGd(TAG, "already subscribed to %s on %s", handle, address);
+			statusCallback.onSuccess(subscriber.id);
+		}
+		if (startSubscribe) {
+			startSubscribe(channel);
+		}
+	}
+
+	/**
+	 * Unsubscribe from the notifications of a characteristic. The GATT subscription is only
+	 * removed after the unsubscribe delay, when there are no subscribers left.
+	 *
+	 * @param address the address of the device
+	 * @param handle the characteristic
+	 * @param subscriberId id obtained from the subscribe call
+	 * @param callback the callback which will be informed about success or failure.
+	 */
+	public void unsubscribe(String address, GattHandle handle, int subscriberId, IStatusCallback callback) {
+		boolean removed = false;
+		synchronized (this) {
+			HashMap<GattHandle, Channel> deviceChannels = _channels.get(address);
+			Channel channel = deviceChannels == null ? null : deviceChannels.get(handle);
+			if (channel != null && channel.remove(subscriberId)) {
+				removed = true;
+				if (!channel.hasSubscribers() && channel.state == STATE_SUBSCRIBED) {
+					scheduleUnsubscribe(channel);
+				}
+			}
+		}
+		if (removed) {
+			callback.onSuccess();
+		}
+		else {
+			callback.onError(BleErrors.WRONG_CALLBACK);
+		}
+	}
+
+	/**
+	 * Forget all subscriptions of a device, without unsubscribing, for when the device is
+	 * disconnected. The subscribers get ERROR_NOT_CONNECTED, subscribers that wait for the GATT
+	 * subscription get it as status instead.
+	 */
+	public void clear(String address) {
+		ArrayList<Subscriber> subscribers = new ArrayList<>();
+		ArrayList<Subscriber> pending = new ArrayList<>();
+		synchronized (this) {
+			HashMap<GattHandle, Channel> deviceChannels = _channels.remove(address);
+			if (deviceChannels == null) {
+				return;
+			}
+			for (Channel channel : deviceChannels.values()) {
+				cancelUnsubscribe(channel);
+				channel.cleared = true;
+				channel.state = STATE_IDLE;
+				for (Stream stream : channel.streams) {
+					subscribers.addAll(stream.subscribers);
+				}
+				channel.streams.clear();
+				pending.addAll(channel.pending);
+				channel.pending.clear();
+			}
+		}
+		for (Subscriber subscriber : subscribers) {
+			deliverError(subscriber, BleErrors.ERROR_NOT_CONNECTED);
+		}
+		for (Subscriber subscriber : pending) {
+			IIntegerCallback statusCallback = subscriber.statusCallback;
+			subscriber.statusCallback = null;
+			statusCallback.onError(BleErrors.ERROR_NOT_CONNECTED);
+		}
+	}
+
+	private Channel getChannel(String address, GattHandle handle) {
+		HashMap<GattHandle, Channel> deviceChannels = _channels.get(address);
+		if (deviceChannels == null) {
+			deviceChannels = new HashMap<>();
+			_channels.put(address, deviceChannels);
+		}
+		Channel channel = deviceChannels.get(handle);
+		if (channel == null) {
+			channel = new Channel(address, handle);
+			deviceChannels.put(handle, channel);
+		}
+		return channel;
+	}
+
+	private void removeChannel(Channel channel) {
+		HashMap<GattHandle, Channel> deviceChannels = _channels.get(channel.address);
+		if (deviceChannels != null && deviceChannels.get(channel.handle) == channel) {
+			deviceChannels.remove(channel.handle);
+			if (deviceChannels.isEmpty()) {
+				_channels.remove(channel.address);
+			}
+		}
+	}
+
+	private void startSubscribe(final Channel channel) {
+		getLogger().LOGd(TAG, "subscribe to %s on %s", channel.handle, channel.address);
+		_gatt.subscribe(channel.address, channel.handle, new IStatusCallback() {
+			@Override
+			public void onSuccess() {
+				onSubscribeDone(channel, 0);
+			}
+
+			@Override
+			public void onError(int error) {
+				getLogger().LOGe(TAG, "failed to subscribe to %s on %s: %d", channel.handle, channel.address, error);
+				onSubscribeDone(channel, error);
+			}
+		}, channel);
+	}
+
+	private void onSubscribeDone(Channel channel, int error) {
+		ArrayList<Subscriber> pending;
+		synchronized (this) {
+			if (channel.cleared) {
+				// The subscribers already got an error.
+				return;
+			}
+			pending = new ArrayList<>(channel.pending);
+			channel.pending.clear();
+			if (error == 0) {
+				channel.state = STATE_SUBSCRIBED;
+				for (Subscriber subscriber : pending) {
+					channel.add(subscriber);
+				}
+				if (!channel.hasSubscribers()) {
+					// All subscribers already unsubscribed again.
+					scheduleUnsubscribe(channel);
+				}
+			}
+			else {
+				channel.state = STATE_IDLE;
+				removeChannel(channel);
+			}
+		}
+		for (Subscriber subscriber : pending) {
+			IIntegerCallback statusCallback = subscriber.statusCallback;
+			subscriber.statusCallback = null;
+			if (error == 0) {
+				statusCallback.onSuccess(subscriber.id);
+			}
+			else {
+				statusCallback.onError(error);
+			}
+		}
+	}
+
+	private void scheduleUnsubscribe(final Channel channel) {
+		cancelUnsubscribe(channel);
+		channel.unsubscribeRunnable = new Runnable() {
+			@Override
+			public void run() {
+				startUnsubscribe(channel, this);
+			}
+		};
+		_scheduler.postDelayed(channel.unsubscribeRunnable, Math.max(0, _unsubscribeDelay));
+	}
+
+	private void cancelUnsubscribe(Channel channel) {
+		if (channel.unsubscribeRunnable != null) {
+			_scheduler.removeCallbacks(channel.unsubscribeRunnable);
+			channel.unsubscribeRunnable = null;
+		}
+	}
+
+	private void startUnsubscribe(final Channel channel, Runnable runnable) {
+		synchronized (this) {
+			if (channel.unsubscribeRunnable != runnable) {
+				// Canceled in the meantime.
+				return;
+			}
+			channel.unsubscribeRunnable = null;
+			if (channel.hasSubscribers() || channel.state != STATE_SUBSCRIBED) {
+				return;
+			}
+			channel.state = STATE_UNSUBSCRIBING;
+		}
+		getLogger().LOGd(TAG, "unsubscribe from %s on %s", channel.handle, channel.address);
+		_gatt.unsubscribe(channel.address, channel.handle, new IStatusCallback() {
+			@Override
+			public void onSuccess() {
+				onUnsubscribeDone(channel);
+			}
+
+			@Override
+			public void onError(int error) {
+				getLogger().LOGw(TAG, "failed to unsubscribe from %s on %s: %d", channel.handle, channel.address, error);
+				onUnsubscribeDone(channel);
+			}
+		});
+	}
+
+	private void onUnsubscribeDone(Channel channel) {
+		boolean startSubscribe = false;
+		synchronized (this) {
+			if (channel.cleared) {
+				return;
+			}
+			if (channel.pending.isEmpty()) {
+				channel.state = STATE_IDLE;
+				removeChannel(channel);
+			}
+			else {
+				// Subscribed again while unsubscribing.
+				channel.state = STATE_SUBSCRIBING;
+				startSubscribe = true;
+			}
+		}
+		if (startSubscribe) {
+			startSubscribe(channel);
+		}
+	}
+
+	private static void deliver(final Subscriber subscriber, final Object message) {
+		subscriber.executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (message == null) {
+					subscriber.callback.onError(BleErrors.ERROR_MSG_PARSING);
+				}
+				else {
+					subscriber.callback.onMessage(message);
+				}
+			}
+		});
+	}
+
+	private static void deliverError(final Subscriber subscriber, final int error) {
+		subscriber.executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				subscriber.callback.onError(error);
+			}
+		});
+	}
+
+	private static BleLog getLogger() {
+		BleLog logger = BleLog.getInstance();
+		// update the log level to the default of this class if it hasn't been set already
+		if (!logger.hasLogLevel(TAG)) {
+			logger.setLogLevelPerTag(TAG, LOG_LEVEL);
+		}
+		return logger;
+	}
+}
@@ -0,0 +1,161 @@
+package nl.dobots.bluenet.ble.base;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nl.dobots.bluenet.ble.base.structs.CrownstoneServiceData;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Cache of the last service data of each device, by address.
+ *
+ * Crownstones advertise the same service data many times until their state changes. When the
+ * service data bytes are the same as the last time, the parsed (and decrypted) service data of
+ * last time is returned, instead of parsing it again.
+ * Crownstones interleave their own state with the state of other Crownstones, so the last
+ * ENTRIES_PER_DEVICE service data of each device are kept.
+ *
+ * The cached service data is never handed out, each call gets its own copy, so old data can be
+ * merged into it (see CrownstoneServiceData.copyFromOld) without changing the cache.
+ */
+public class ServiceDataCache {
+
+	public static final int DEFAULT_MAX_SIZE = 256;
+	public static final int ENTRIES_PER_DEVICE = 2;
+
+	private static class Entry {
+		final byte[] bytes;
+		final boolean encrypted;
+		final byte[] key;
+		// Null when the service data could not be parsed
+		final CrownstoneServiceData serviceData;
+
+		Entry(byte[] bytes, boolean encrypted, byte[] key, CrownstoneServiceData serviceData) {
+			// Copy the arrays, the caller may reuse them
+			this.bytes = bytes.clone();
+			this.encrypted = encrypted;
+			this.key = key == null ? null : key.clone();
+			this.serviceData = serviceData;
+		}
+
+		boolean matches(byte[] bytes, boolean encrypted, byte[] key) {
+			return this.encrypted == encrypted && Arrays.equals(this.bytes, bytes) && Arrays.equals(this.key, key);
+		}
+	}
+
+	private static class DeviceEntries {
+		final Entry[] entries = new Entry[ENTRIES_PER_DEVICE];
+		// Index of the entry to replace next
+		int next = 0;
+	}
+
+	private int _maxSize;
+	private final LinkedHashMap<String, DeviceEntries> _devices;
+
+	private long _hits = 0;
+	private long _misses = 0;
+
+	public ServiceDataCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxSize max number of devices to cache, the least recently seen device is removed
+	 *                when there are more.
+	 */
+	public ServiceDataCache(int maxSize) {
+		_maxSize = maxSize;
+		_devices = new LinkedHashMap<String, DeviceEntries>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, DeviceEntries> eldest) {
+				return size() > _maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Get the parsed service data, from cache if the bytes are the same as one of the last times.
+	 *
+	 * @param address the MAC address of the device
+	 * @param bytes the service data bytes
+	 * @param encrypted whether the service data is encrypted
+	 * @param key the key to decrypt the service data
+	 * @return a copy of the parsed service data, or null if it could not be parsed
+	 */
+	public synchronized CrownstoneServiceData parse(String address, byte[] bytes, boolean encrypted, byte[] key) {
+		DeviceEntries device = _devices.get(address);
+		if (device == null) {
+			device = new DeviceEntries();
+			_devices.put(address, device);
+		}
+		for (Entry entry : device.entries) {
+			if (entry != null && entry.matches(bytes, encrypted, key)) {
+				_hits++;
+				return entry.serviceData != null ? new CrownstoneServiceData(entry.serviceData) : null;
+			}
+		}
+		_misses++;
+		CrownstoneServiceData serviceData = new CrownstoneServiceData();
+		if (!serviceData.parseBytes(bytes, encrypted, key)) {
+			serviceData = null;
+		}
+		device.entries[device.next] = new Entry(bytes, encrypted, key, serviceData);
+		device.next = (device.next + 1) % ENTRIES_PER_DEVICE;
+		return serviceData != null ? new CrownstoneServiceData(serviceData) : null;
+	}
+
+	/**
+	 * @return number of times the service data was found in the cache
+	 */
+	public synchronized long getHits() {
+		return _hits;
+	}
+
+	/**
+	 * @return number of times the service data had to be parsed
+	 */
+	public synchronized long getMisses() {
+		return _misses;
+	}
+
+	/**
+	 * @return ratio of hits to the total number of lookups, or 0 if there were no lookups
+	 */
+	public synchronized double getHitRatio() {
+		long total = _hits + _misses;
+		return total == 0 ? 0 : (double) _hits / total;
+	}
+
+	public synchronized void resetStats() {
+		_hits = 0;
+		_misses = 0;
+	}
+
+	/**
+	 * @return number of devices in the cache
+	 */
+	public synchronized int size() {
+		return _devices.size();
+	}
+
+	/**
+	 * Remove the cached service data of a device.
+	 * @param address the MAC address of the device
+	 */
+	public synchronized void remove(String address) {
+		_devices.remove(address);
+	}
+
+	/**
+	 * Remove all cached service data, the stats are kept.
+	 */
+	public synchronized void clear() {
+		_devices.clear();
+	}
+}
@@ -0,0 +1,28 @@
+package nl.dobots.bluenet.ble.base.callbacks;
+
+import nl.dobots.bluenet.ble.base.structs.ConfigurationMsg;
+import nl.dobots.bluenet.ble.core.callbacks.IBaseCallback;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Returns the results of a configuration session, see BleBase.getConfigurations and
+ * BleBase.writeConfigurations.
+ *
+ * onError is only called when the session itself failed, e.g. because subscribing failed.
+ */
+public interface IConfigurationsCallback extends IBaseCallback {
+
+	/**
+	 * Called once all items of the session are done, or the session timed out.
+	 * @param configurations for each item: the read configuration, or null if the item failed.
+	 *                       For writes, the written configuration, or null if the item failed.
+	 * @param errors for each item: 0 on success, else the error, see BleErrors
+	 */
+	void onResult(ConfigurationMsg[] configurations, int[] errors);
+
+}
@@ -0,0 +1,23 @@
+package nl.dobots.bluenet.ble.base.callbacks;
+
+import nl.dobots.bluenet.ble.core.callbacks.IBaseCallback;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Callback for notifications that are parsed into a message, see NotificationHub.
+ *
+ * @param <T> type of the message
+ */
+public interface IMessageCallback<T> extends IBaseCallback {
+
+	/**
+	 * @param message the parsed message, shared with the other subscribers, so it should not be modified
+	 */
+	void onMessage(T message);
+
+}
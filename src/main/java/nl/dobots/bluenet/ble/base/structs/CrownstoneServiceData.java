@@ -32,7 +32,16 @@ import nl.dobots.bluenet.utils.BleUtils;
  *
  * @author Dominik Egger
  */
-public class CrownstoneServiceData extends JSONObject {
+/**
+ * Parsed service data of a crownstone advertisement.
+ *
+ * The data is kept in plain fields, with a bitmask to keep track of which fields are set, so
+ * that parsing an advertisement doesn't need to create a JSON object.
+ *
+ * This class used to extend JSONObject, it no longer does. Code that read the service data as
+ * JSON object should use toJson(), which gives a JSON object with the same keys as before.
+ */
+public class CrownstoneServiceData {
 
 	public static final int TYPE_UNKNOWN =   0;
 	public static final int TYPE_V1 =        1;
@@ -51,27 +60,198 @@ public class CrownstoneServiceData extends JSONObject {
 
 	private static final String TAG = CrownstoneServiceData.class.getCanonicalName();
 
+	// Bits of the fields bitmask, one for each field. The same bit is used in the booleans
+	// bitmask to hold the value of a boolean field.
+	private static final long FIELD_DEVICE_TYPE =                1L << 0;
+	private static final long FIELD_TYPE =                       1L << 1;
+	private static final long FIELD_OP_CODE =                    1L << 2;
+	private static final long FIELD_SERVICE_UUID =               1L << 3;
+	private static final long FIELD_CROWNSTONE_ID =              1L << 4;
+	private static final long FIELD_CROWNSTONE_EXTERNAL_ID =     1L << 5;
+	private static final long FIELD_EXTERNAL_RSSI =              1L << 6;
+	private static final long FIELD_SWITCH_STATE =               1L << 7;
+	private static final long FIELD_RELAY_STATE =                1L << 8;
+	private static final long FIELD_PWM =                        1L << 9;
+	private static final long FIELD_RECONSTRUCTED_TIMESTAMP =    1L << 10;
+	private static final long FIELD_FLAG_NEW_DATA =              1L << 11;
+	private static final long FIELD_FLAG_EXTERNAL_DATA =         1L << 12;
+	private static final long FIELD_FLAG_ERROR =                 1L << 13;
+	private static final long FIELD_FLAG_SETUP =                 1L << 14;
+	private static final long FIELD_FLAG_DIMMING_AVAILABLE =     1L << 15;
+	private static final long FIELD_FLAG_DIMMING_ALLOWED =       1L << 16;
+	private static final long FIELD_FLAG_SWITCH_LOCKED =         1L << 17;
+	private static final long FIELD_FLAG_TIME_SET =              1L << 18;
+	private static final long FIELD_FLAG_SWITCHCRAFT_ENABLED =   1L << 19;
+	private static final long FIELD_ERROR_BITMASK =              1L << 20;
+	private static final long FIELD_ERROR_OVER_CURRENT =         1L << 21;
+	private static final long FIELD_ERROR_OVER_CURRENT_DIMMER =  1L << 22;
+	private static final long FIELD_ERROR_CHIP_TEMPERATURE =     1L << 23;
+	private static final long FIELD_ERROR_DIMMER_TEMPERATURE =   1L << 24;
+	private static final long FIELD_ERROR_DIMMER_FAILURE_ON =    1L << 25;
+	private static final long FIELD_ERROR_DIMMER_FAILURE_OFF =   1L << 26;
+	private static final long FIELD_ERROR_TIMESTAMP =            1L << 27;
+	private static final long FIELD_TEMPERATURE =                1L << 28;
+	private static final long FIELD_POWER_FACTOR =               1L << 29;
+	private static final long FIELD_POWER_USAGE_REAL =           1L << 30;
+	private static final long FIELD_POWER_USAGE_APPARENT =       1L << 31;
+	private static final long FIELD_ACCUMULATED_ENERGY =         1L << 32;
+	private static final long FIELD_PARTIAL_TIMESTAMP =          1L << 33;
+	private static final long FIELD_CHANGING_BYTES =             1L << 34;
+	private static final long FIELD_VALIDATION =                 1L << 35;
+
+	// JSON keys of the fields, these are the same keys as used before the fields were stored
+	// in plain fields.
+	private static final String KEY_DEVICE_TYPE =                "deviceType";
+	private static final String KEY_TYPE =                       "serviceDataType";
+	private static final String KEY_OP_CODE =                    "opCode";
+	private static final String KEY_SERVICE_UUID =               "serviceUuid";
+	private static final String KEY_CROWNSTONE_ID =              "crownstoneId";
+	private static final String KEY_CROWNSTONE_EXTERNAL_ID =     "crownstoneExternalId";
+	private static final String KEY_EXTERNAL_RSSI =              "externalRssi";
+	private static final String KEY_SWITCH_STATE =               "switchState";
+	private static final String KEY_RELAY_STATE =                "relayState";
+	private static final String KEY_PWM =                        "pwm";
+	private static final String KEY_RECONSTRUCTED_TIMESTAMP =    "reconstructedTimestamp";
+	private static final String KEY_FLAG_NEW_DATA =              "flagNewData";
+	private static final String KEY_FLAG_EXTERNAL_DATA =         "flagExternalData";
+	private static final String KEY_FLAG_ERROR =                 "flagError";
+	private static final String KEY_FLAG_SETUP =                 "flagSetup";
+	private static final String KEY_FLAG_DIMMING_AVAILABLE =     "flagDimmingAvailable";
+	private static final String KEY_FLAG_DIMMING_ALLOWED =       "flagDimmingAllowed";
+	private static final String KEY_FLAG_SWITCH_LOCKED =         "flagSwitchLocked";
+	private static final String KEY_FLAG_TIME_SET =              "flagTimeSet";
+	private static final String KEY_FLAG_SWITCHCRAFT_ENABLED =   "switchcraftEnabled";
+	private static final String KEY_ERROR_BITMASK_STRING =       "errorBitMaskString";
+	private static final String KEY_ERROR_OVER_CURRENT =         "errorOverCurrent";
+	private static final String KEY_ERROR_OVER_CURRENT_DIMMER =  "errorOverCurrentDimmer";
+	private static final String KEY_ERROR_CHIP_TEMPERATURE =     "errorChipTemperature";
+	private static final String KEY_ERROR_DIMMER_TEMPERATURE =   "errorDimmerTemperature";
+	private static final String KEY_ERROR_DIMMER_FAILURE_ON =    "errorDimmerFailureOn";
+	private static final String KEY_ERROR_DIMMER_FAILURE_OFF =   "errorDimmerFailureOff";
+	private static final String KEY_ERROR_TIMESTAMP =            "errorTimestamp";
+	private static final String KEY_TEMPERATURE =                "temperature";
+	private static final String KEY_POWER_FACTOR =               "powerFactor";
+	private static final String KEY_POWER_USAGE_REAL =           "powerUsageReal";
+	private static final String KEY_POWER_USAGE_APPARENT =       "powerUsageApparent";
+	private static final String KEY_ACCUMULATED_ENERGY =         "accumulatedEnergy";
+	private static final String KEY_PARTIAL_TIMESTAMP =          "partialTimestamp";
+	private static final String KEY_CHANGING_BYTES =             "changingBytes";
+	private static final String KEY_VALIDATION =                 "validation";
+
+	// Boolean fields, the order determines the order in the JSON object.
+	private static final long[] BOOLEAN_FIELDS = {
+			FIELD_RELAY_STATE, FIELD_FLAG_NEW_DATA, FIELD_FLAG_EXTERNAL_DATA, FIELD_FLAG_ERROR,
+			FIELD_FLAG_SETUP, FIELD_FLAG_DIMMING_AVAILABLE, FIELD_FLAG_DIMMING_ALLOWED,
+			FIELD_FLAG_SWITCH_LOCKED, FIELD_FLAG_TIME_SET, FIELD_FLAG_SWITCHCRAFT_ENABLED,
+			FIELD_ERROR_OVER_CURRENT, FIELD_ERROR_OVER_CURRENT_DIMMER, FIELD_ERROR_CHIP_TEMPERATURE,
+			FIELD_ERROR_DIMMER_TEMPERATURE, FIELD_ERROR_DIMMER_FAILURE_ON,
+			FIELD_ERROR_DIMMER_FAILURE_OFF, FIELD_VALIDATION
+	};
+	private static final String[] BOOLEAN_KEYS = {
+			KEY_RELAY_STATE, KEY_FLAG_NEW_DATA, KEY_FLAG_EXTERNAL_DATA, KEY_FLAG_ERROR,
+			KEY_FLAG_SETUP, KEY_FLAG_DIMMING_AVAILABLE, KEY_FLAG_DIMMING_ALLOWED,
+			KEY_FLAG_SWITCH_LOCKED, KEY_FLAG_TIME_SET, KEY_FLAG_SWITCHCRAFT_ENABLED,
+			KEY_ERROR_OVER_CURRENT, KEY_ERROR_OVER_CURRENT_DIMMER, KEY_ERROR_CHIP_TEMPERATURE,
+			KEY_ERROR_DIMMER_TEMPERATURE, KEY_ERROR_DIMMER_FAILURE_ON,
+			KEY_ERROR_DIMMER_FAILURE_OFF, KEY_VALIDATION
+	};
+
+	private static final PartialTime _partialTime = new PartialTime();
+
+	// Size of the scratch buffer to decrypt into, service data fits in one AES block
+	private static final int DECRYPT_BUFFER_SIZE = BleBaseEncryption.AES_BLOCK_SIZE;
+
+	// Scratch buffer to decrypt into, one per thread, so that parsing doesn't allocate.
+	private static final ThreadLocal<ByteBuffer> _decryptBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			ByteBuffer bb = ByteBuffer.allocate(DECRYPT_BUFFER_SIZE);
+			bb.order(ByteOrder.LITTLE_ENDIAN);
+			return bb;
+		}
+	};
+
+	// Bitmask of the fields that are set
+	private long _fields = 0;
+	// Bitmask with the values of the boolean fields
+	private long _booleans = 0;
+
+	private int _deviceType;
+	private int _type;
+	private int _opCode;
+	private int _serviceUuid;
+	private int _crownstoneId;
+	private int _crownstoneExternalId;
+	private int _externalRssi;
+	private int _switchState;
+	private int _pwm;
+	private long _reconstructedTimestamp;
+	private long _errorBitmask;
+	private long _errorTimestamp;
+	private byte _temperature;
+	private double _powerFactor;
+	private double _powerUsageReal;
+	private double _powerUsageApparent;
+	private double _accumulatedEnergy;
+	private int _partialTimestamp;
+	// Changing bytes, little endian, max 3 bytes. The number of bytes is kept in the top byte.
+	private int _changingBytes;
+
+	// Created by toString() when asked for, cleared when a field changes
+	private String _jsonString = null;
+	private String _changingBytesString = null;
+
 	public CrownstoneServiceData() {
-		super();
+	}
+
+	/**
+	 * Create a copy of other service data, e.g. to merge old data into without changing the original.
+	 * @param other the service data to copy
+	 */
+	public CrownstoneServiceData(CrownstoneServiceData other) {
+		_fields = other._fields;
+		_booleans = other._booleans;
+		_deviceType = other._deviceType;
+		_type = other._type;
+		_opCode = other._opCode;
+		_serviceUuid = other._serviceUuid;
+		_crownstoneId = other._crownstoneId;
+		_crownstoneExternalId = other._crownstoneExternalId;
+		_externalRssi = other._externalRssi;
+		_switchState = other._switchState;
+		_pwm = other._pwm;
+		_reconstructedTimestamp = other._reconstructedTimestamp;
+		_errorBitmask = other._errorBitmask;
+		_errorTimestamp = other._errorTimestamp;
+		_temperature = other._temperature;
+		_powerFactor = other._powerFactor;
+		_powerUsageReal = other._powerUsageReal;
+		_powerUsageApparent = other._powerUsageApparent;
+		_accumulatedEnergy = other._accumulatedEnergy;
+		_partialTimestamp = other._partialTimestamp;
+		_changingBytes = other._changingBytes;
+		_jsonString = other._jsonString;
+		_changingBytesString = other._changingBytesString;
 	}
 
 	public CrownstoneServiceData(String json) throws JSONException {
-		super(json);
+		this(new JSONObject(json));
 	}
 
 	public CrownstoneServiceData(JSONObject obj) throws JSONException {
-		this(obj.toString());
+		fromJson(obj);
 	}
 
 	public boolean parseBytes(byte[] bytes, boolean encrypted, byte[] key) {
 		// Includes the service UUID (first 2 bytes)
-		getLogger().LOGv(TAG, "serviceData: " + BleUtils.bytesToString(bytes));
+		getLogger().LOGv(TAG, "serviceData: %s", bytes);
 		if (bytes.length < 3) {
 			return false;
 		}
 		ByteBuffer bb = ByteBuffer.wrap(bytes);
 		bb.order(ByteOrder.LITTLE_ENDIAN);
 
+		clear();
 		try {
 			setServiceUuid(BleUtils.toUint16(bb.getShort()));
 
@@ -124,13 +304,11 @@ public class CrownstoneServiceData extends JSONObject {
 		}
 		if (encrypted) {
 			// Decrypt
-			byte[] decryptedBytes = BleBaseEncryption.decryptEcb(bytes, offset, key);
-			if (decryptedBytes == null) {
+			ByteBuffer decryptedBB = decrypt(bytes, offset, key);
+			if (decryptedBB == null) {
 				return false;
 			}
 			// Parse again after decrypting data
-			ByteBuffer decryptedBB = ByteBuffer.wrap(decryptedBytes);
-			decryptedBB.order(ByteOrder.LITTLE_ENDIAN);
 			if (!parseDecryptedDataV1(decryptedBB)) {
 				return false;
 			}
@@ -150,9 +328,7 @@ public class CrownstoneServiceData extends JSONObject {
 		setPowerUsageReal(bb.getInt() / 1000.0);
 //		setPowerUsageApparent(getPowerUsageReal()); // Assume power factor of 1.0
 		setAccumulatedEnergy(bb.getInt());
-		byte[] randomBytes = new byte[3];
-		bb.get(randomBytes);
-		setChangingBytes(randomBytes);
+		setChangingBytes(bb, 3);
 
 		if (getFlagExternalData()) {
 			setCrownstoneId(-1);
@@ -176,17 +352,16 @@ public class CrownstoneServiceData extends JSONObject {
 		// First decrypt if encryption is enabled.
 		ByteBuffer bb;
 		if (encrypted) {
-			byte[] decryptedBytes = BleBaseEncryption.decryptEcb(bytes, offset, key);
-			if (decryptedBytes == null) {
+			bb = decrypt(bytes, offset, key);
+			if (bb == null) {
 				return false;
 			}
-			bb = ByteBuffer.wrap(decryptedBytes);
-//			getLogger().LOGv(TAG, "decrypted: " + BleUtils.bytesToString(decryptedBytes));
+//			getLogger().LOGv(TAG, "decrypted: " + BleUtils.bytesToString(bb.array()));
 		}
 		else {
 			bb = ByteBuffer.wrap(bytes, offset, bytes.length-offset);
+			bb.order(ByteOrder.LITTLE_ENDIAN);
 		}
-		bb.order(ByteOrder.LITTLE_ENDIAN);
 
 		// Parse the (decrypted) data.
 		int type = BleUtils.toUint8(bb.get());
@@ -237,9 +412,7 @@ public class CrownstoneServiceData extends JSONObject {
 				setPowerUsageReal(powerUsageReal);
 				setPowerUsageApparent(powerRealToApparent(powerUsageReal, powerFactor));
 				parseErrorBitmask(BleUtils.toUint32(bb.getInt()));
-				byte[] counter = new byte[1];
-				bb.get(counter);
-				setChangingBytes(counter);
+				setChangingBytes(bb, 1);
 				bb.getInt(); // reserved
 				return true;
 			}
@@ -261,17 +434,16 @@ public class CrownstoneServiceData extends JSONObject {
 		// First decrypt if encryption is enabled.
 		ByteBuffer bb;
 		if (encrypted) {
-			byte[] decryptedBytes = BleBaseEncryption.decryptEcb(bytes, offset, key);
-			if (decryptedBytes == null) {
+			bb = decrypt(bytes, offset, key);
+			if (bb == null) {
 				return false;
 			}
-			bb = ByteBuffer.wrap(decryptedBytes);
-//			getLogger().LOGv(TAG, "decrypted: " + BleUtils.bytesToString(decryptedBytes));
+//			getLogger().LOGv(TAG, "decrypted: " + BleUtils.bytesToString(bb.array()));
 		}
 		else {
 			bb = ByteBuffer.wrap(bytes, offset, bytes.length-offset);
+			bb.order(ByteOrder.LITTLE_ENDIAN);
 		}
-		bb.order(ByteOrder.LITTLE_ENDIAN);
 
 		// Parse the (decrypted) data.
 		int type = BleUtils.toUint8(bb.get());
@@ -324,9 +496,7 @@ public class CrownstoneServiceData extends JSONObject {
 				setPowerUsageReal(powerUsageReal);
 				setPowerUsageApparent(powerRealToApparent(powerUsageReal, powerFactor));
 				parseErrorBitmask(BleUtils.toUint32(bb.getInt()));
-				byte[] counter = new byte[1];
-				bb.get(counter);
-				setChangingBytes(counter);
+				setChangingBytes(bb, 1);
 				// TODO: 4 more bytes left.
 				return true;
 			}
@@ -335,6 +505,29 @@ public class CrownstoneServiceData extends JSONObject {
 		}
 	}
 
+	/**
+	 * Decrypt the service data into the scratch buffer of this thread.
+	 *
+	 * @return the scratch buffer with the decrypted data, or null on failure. Only valid until
+	 *         the next call on the same thread.
+	 */
+	private static ByteBuffer decrypt(byte[] bytes, int offset, byte[] key) {
+		int length = bytes.length - offset;
+		ByteBuffer bb = _decryptBuffer.get();
+		if (bb.capacity() < length) {
+			bb = ByteBuffer.allocate(length);
+			bb.order(ByteOrder.LITTLE_ENDIAN);
+			_decryptBuffer.set(bb);
+		}
+		int decryptedLength = BleBaseEncryption.decryptEcb(bytes, offset, length, key, bb.array(), 0);
+		if (decryptedLength < 0) {
+			return null;
+		}
+		bb.clear();
+		bb.limit(decryptedLength);
+		return bb;
+	}
+
 	private boolean parseStatePacket(ByteBuffer bb, boolean external, boolean withRssi) {
 		if (external) {
 			setFlagExternalData(true);
@@ -373,7 +566,7 @@ public class CrownstoneServiceData extends JSONObject {
 		}
 		else {
 			setValidation(false);
-			getLogger().LOGv(TAG, "validation mismatch: " + validation);
+			getLogger().LOGv(TAG, "validation mismatch: %d", validation);
 		}
 
 		reconstructTimestamp();
@@ -412,7 +605,7 @@ public class CrownstoneServiceData extends JSONObject {
 			}
 			else {
 				setValidation(false);
-				getLogger().LOGv(TAG, "validation mismatch: " + validation);
+				getLogger().LOGv(TAG, "validation mismatch: %d", validation);
 			}
 		}
 		else {
@@ -440,20 +633,17 @@ public class CrownstoneServiceData extends JSONObject {
 		setErrorDimmerTemperature((bitmask & (1L << BluenetConfig.STATE_ERROR_POS_TEMP_DIMMER)) != 0);
 		setErrorDimmerFailureOn(  (bitmask & (1L << BluenetConfig.STATE_ERROR_POS_DIMMER_ON_FAILURE)) != 0);
 		setErrorDimmerFailureOff( (bitmask & (1L << BluenetConfig.STATE_ERROR_POS_DIMMER_OFF_FAILURE)) != 0);
-		setErrorBitMaskString(Long.toBinaryString(bitmask));
+		setErrorBitmask(bitmask);
 	}
 
 	private void parsePartialTimestamp(ByteBuffer bb) {
-		byte[] partialTimestamp = new byte[2];
-		bb.get(partialTimestamp);
-		setPartialTimestamp(BleUtils.toUint16(BleUtils.byteArrayToShort(partialTimestamp)));
-		setChangingBytes(partialTimestamp);
+		setPartialTimestamp(BleUtils.toUint16(bb.getShort(bb.position())));
+		setChangingBytes(bb, 2);
 	}
 
 	private void reconstructTimestamp() {
 		if (getFlagTimeSet()) {
-			PartialTime partialTime = new PartialTime();
-			long timestamp = partialTime.reconstructTimestamp(getPartialTimestamp());
+			long timestamp = _partialTime.reconstructTimestamp(getPartialTimestamp());
 			setReconstructedTimestamp(timestamp);
 		}
 	}
@@ -486,7 +676,9 @@ public class CrownstoneServiceData extends JSONObject {
 			case 0:
 				return false;
 			case 1: {
-				getLogger().LOGv(TAG, "setupbit=" + getFlagSetup() + " id=" + getCrownstoneId() + " switch=" + getSwitchState() + " power=" + getPowerUsageReal() + " energy=" + getAccumulatedEnergy());
+				if (getLogger().isLoggable(TAG, Log.VERBOSE)) {
+					getLogger().LOGv(TAG, "setupbit=" + getFlagSetup() + " id=" + getCrownstoneId() + " switch=" + getSwitchState() + " power=" + getPowerUsageReal() + " energy=" + getAccumulatedEnergy());
+				}
 				return (getFlagSetup() && getCrownstoneId() == 0 && getSwitchState() == 0 && getPowerUsageReal() == 0 && getAccumulatedEnergy() == 0);
 			}
 			default:
@@ -504,7 +696,7 @@ public class CrownstoneServiceData extends JSONObject {
 	 * @param old previous service data.
 	 */
 	public void copyFromOld(CrownstoneServiceData old) {
-		if (old == null) {
+		if (old == null || old == this) {
 			return;
 		}
 		if (getFlagExternalData() || old.getFlagExternalData()) {
@@ -512,8 +704,8 @@ public class CrownstoneServiceData extends JSONObject {
 		}
 		int type = getType();
 		int oldType = old.getType();
-		getLogger().LOGv(TAG, "current:" + this.toString());
-		getLogger().LOGv(TAG, "old:" + old.toString());
+		getLogger().LOGv(TAG, "current:%s", this);
+		getLogger().LOGv(TAG, "old:%s", old);
 		if (type == TYPE_STATE && getFlagError()) {
 			setErrorOverCurrent(old.getErrorOverCurrent());
 			setErrorOverCurrentDimmer(old.getErrorOverCurrentDimmer());
@@ -541,552 +733,374 @@ public class CrownstoneServiceData extends JSONObject {
 	 * @return true when service data object is empty.
 	 */
 	public boolean isEmpty() {
-		return length() == 0;
+		return _fields == 0;
 	}
 
+	/** Clear all fields. */
+	private void clear() {
+		_fields = 0;
+		_booleans = 0;
+		_jsonString = null;
+		_changingBytesString = null;
+	}
+
+	/**
+	 * Get the service data as JSON object, with the same keys as before the service data was
+	 * stored in plain fields. A new object is created on each call, so it can be modified.
+	 *
+	 * @return the service data as JSON object
+	 */
+	public JSONObject toJson() {
+		JSONObject json = new JSONObject();
+		try {
+			if (has(FIELD_SERVICE_UUID))            json.put(KEY_SERVICE_UUID, _serviceUuid);
+			if (has(FIELD_OP_CODE))                 json.put(KEY_OP_CODE, _opCode);
+			if (has(FIELD_TYPE))                    json.put(KEY_TYPE, _type);
+			if (has(FIELD_DEVICE_TYPE))             json.put(KEY_DEVICE_TYPE, _deviceType);
+			if (has(FIELD_CROWNSTONE_ID))           json.put(KEY_CROWNSTONE_ID, _crownstoneId);
+			if (has(FIELD_CROWNSTONE_EXTERNAL_ID))  json.put(KEY_CROWNSTONE_EXTERNAL_ID, _crownstoneExternalId);
+			if (has(FIELD_EXTERNAL_RSSI))           json.put(KEY_EXTERNAL_RSSI, _externalRssi);
+			if (has(FIELD_SWITCH_STATE))            json.put(KEY_SWITCH_STATE, _switchState);
+			if (has(FIELD_PWM))                     json.put(KEY_PWM, _pwm);
+			if (has(FIELD_RECONSTRUCTED_TIMESTAMP)) json.put(KEY_RECONSTRUCTED_TIMESTAMP, _reconstructedTimestamp);
+			if (has(FIELD_ERROR_BITMASK))           json.put(KEY_ERROR_BITMASK_STRING, getErrorBitMaskString());
+			if (has(FIELD_ERROR_TIMESTAMP))         json.put(KEY_ERROR_TIMESTAMP, _errorTimestamp);
+			if (has(FIELD_TEMPERATURE))             json.put(KEY_TEMPERATURE, _temperature);
+			if (has(FIELD_POWER_FACTOR))            json.put(KEY_POWER_FACTOR, _powerFactor);
+			if (has(FIELD_POWER_USAGE_REAL))        json.put(KEY_POWER_USAGE_REAL, _powerUsageReal);
+			if (has(FIELD_POWER_USAGE_APPARENT))    json.put(KEY_POWER_USAGE_APPARENT, _powerUsageApparent);
+			if (has(FIELD_ACCUMULATED_ENERGY))      json.put(KEY_ACCUMULATED_ENERGY, _accumulatedEnergy);
+			if (has(FIELD_PARTIAL_TIMESTAMP))       json.put(KEY_PARTIAL_TIMESTAMP, _partialTimestamp);
+			if (has(FIELD_CHANGING_BYTES))          json.put(KEY_CHANGING_BYTES, getChangingBytes());
+			for (int i = 0; i < BOOLEAN_FIELDS.length; i++) {
+				if (has(BOOLEAN_FIELDS[i])) {
+					json.put(BOOLEAN_KEYS[i], getBoolean(BOOLEAN_FIELDS[i]));
+				}
+			}
+		} catch (JSONException e) {
+			getLogger().LOGe(TAG, "failed to create json");
+			e.printStackTrace();
+		}
+		return json;
+	}
+
+	/**
+	 * Set the fields from a JSON object, as created by toJson().
+	 *
+	 * @param json the JSON object to read the fields from
+	 * @throws JSONException if a field has a wrong type
+	 */
+	private void fromJson(JSONObject json) throws JSONException {
+		clear();
+		if (json.has(KEY_SERVICE_UUID))            setServiceUuid(json.getInt(KEY_SERVICE_UUID));
+		if (json.has(KEY_OP_CODE))                 setOpCode(json.getInt(KEY_OP_CODE));
+		if (json.has(KEY_TYPE))                    setType(json.getInt(KEY_TYPE));
+		if (json.has(KEY_DEVICE_TYPE))             setDeviceType(json.getInt(KEY_DEVICE_TYPE));
+		if (json.has(KEY_CROWNSTONE_ID))           setCrownstoneId(json.getInt(KEY_CROWNSTONE_ID));
+		if (json.has(KEY_CROWNSTONE_EXTERNAL_ID))  setCrownstoneExternalId(json.getInt(KEY_CROWNSTONE_EXTERNAL_ID));
+		if (json.has(KEY_EXTERNAL_RSSI))           setExternalRssi(json.getInt(KEY_EXTERNAL_RSSI));
+		if (json.has(KEY_SWITCH_STATE))            setSwitchState(json.getInt(KEY_SWITCH_STATE));
+		if (json.has(KEY_PWM))                     setPwm(json.getInt(KEY_PWM));
+		if (json.has(KEY_RECONSTRUCTED_TIMESTAMP)) setReconstructedTimestamp(json.getLong(KEY_RECONSTRUCTED_TIMESTAMP));
+		if (json.has(KEY_ERROR_BITMASK_STRING))    setErrorBitmask(Long.parseLong(json.getString(KEY_ERROR_BITMASK_STRING), 2));
+		if (json.has(KEY_ERROR_TIMESTAMP))         setErrorTimestamp(json.getLong(KEY_ERROR_TIMESTAMP));
+		if (json.has(KEY_TEMPERATURE))             setTemperature((byte)json.getInt(KEY_TEMPERATURE));
+		if (json.has(KEY_POWER_FACTOR))            setPowerFactor(json.getDouble(KEY_POWER_FACTOR));
+		if (json.has(KEY_POWER_USAGE_REAL))        setPowerUsageReal(json.getDouble(KEY_POWER_USAGE_REAL));
+		if (json.has(KEY_POWER_USAGE_APPARENT))    setPowerUsageApparent(json.getDouble(KEY_POWER_USAGE_APPARENT));
+		if (json.has(KEY_ACCUMULATED_ENERGY))      setAccumulatedEnergy(json.getDouble(KEY_ACCUMULATED_ENERGY));
+		if (json.has(KEY_PARTIAL_TIMESTAMP))       setPartialTimestamp(json.getInt(KEY_PARTIAL_TIMESTAMP));
+		if (json.has(KEY_CHANGING_BYTES))          setChangingBytes(json.getString(KEY_CHANGING_BYTES));
+		for (int i = 0; i < BOOLEAN_FIELDS.length; i++) {
+			if (json.has(BOOLEAN_KEYS[i])) {
+				setBoolean(BOOLEAN_FIELDS[i], json.getBoolean(BOOLEAN_KEYS[i]));
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		if (_jsonString == null) {
+			_jsonString = toJson().toString();
+		}
+		return _jsonString;
+	}
 
 	//%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%\\
 	//%%%%%%%%%%                    Getters and setters of fields                       %%%%%%%%%%\\
 	//%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%\\
 
-	public int getDeviceType() {
-		try {
-			return getInt("deviceType");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no type found");
-			return 0;
+	private boolean has(long field) {
+		return (_fields & field) != 0;
+	}
+
+	private void set(long field) {
+		_fields |= field;
+		_jsonString = null;
+	}
+
+	private boolean getBoolean(long field) {
+		return (_booleans & field) != 0;
+	}
+
+	private void setBoolean(long field, boolean val) {
+		if (val) {
+			_booleans |= field;
+		}
+		else {
+			_booleans &= ~field;
 		}
+		set(field);
+	}
+
+	public int getDeviceType() {
+		return has(FIELD_DEVICE_TYPE) ? _deviceType : 0;
 	}
 
 	private void setDeviceType(int type) {
-		try {
-			put("deviceType", type);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add type");
-			e.printStackTrace();
-		}
+		_deviceType = type;
+		set(FIELD_DEVICE_TYPE);
 	}
 
 	public int getType() {
-		try {
-			return getInt("serviceDataType");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no type found");
-			return 0;
-		}
+		return has(FIELD_TYPE) ? _type : 0;
 	}
 
 	private void setType(int type) {
-		try {
-			put("serviceDataType", type);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add type");
-			e.printStackTrace();
-		}
+		_type = type;
+		set(FIELD_TYPE);
 	}
 
 	public int getOpCode() {
-		try {
-			return getInt("opCode");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no opCode found");
-			return 0;
-		}
+		return has(FIELD_OP_CODE) ? _opCode : 0;
 	}
 
 	private void setOpCode(int opCode) {
-		try {
-			put("opCode", opCode);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add opCode");
-			e.printStackTrace();
-		}
+		_opCode = opCode;
+		set(FIELD_OP_CODE);
 	}
 
 	public int getServiceUuid() {
-		try {
-			return getInt("serviceUuid");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no service uuid found");
-			return 0;
-		}
+		return has(FIELD_SERVICE_UUID) ? _serviceUuid : 0;
 	}
 
 	private void setServiceUuid(int serviceUuid) {
-		try {
-			put("serviceUuid", serviceUuid);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add service uuid");
-			e.printStackTrace();
-		}
+		_serviceUuid = serviceUuid;
+		set(FIELD_SERVICE_UUID);
 	}
 
 	public int getCrownstoneId() {
-		try {
-			return getInt("crownstoneId");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no crownstone id found");
-			return 0;
-		}
+		return has(FIELD_CROWNSTONE_ID) ? _crownstoneId : 0;
 	}
 
 	private void setCrownstoneId(int crownstoneId) {
-		try {
-			put("crownstoneId", crownstoneId);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add crownstone id");
-			e.printStackTrace();
-		}
+		_crownstoneId = crownstoneId;
+		set(FIELD_CROWNSTONE_ID);
 	}
 
 	public int getCrownstoneExternalId() {
-		try {
-			return getInt("crownstoneExternalId");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no ext crownstone id found");
-			return 0;
-		}
+		return has(FIELD_CROWNSTONE_EXTERNAL_ID) ? _crownstoneExternalId : 0;
 	}
 
 	private void setCrownstoneExternalId(int crownstoneStateId) {
-		try {
-			put("crownstoneExternalId", crownstoneStateId);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add ext crownstone id");
-			e.printStackTrace();
-		}
+		_crownstoneExternalId = crownstoneStateId;
+		set(FIELD_CROWNSTONE_EXTERNAL_ID);
 	}
 
 	public int getExternalRssi() {
-		try {
-			return getInt("externalRssi");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no ext rssi found");
-			return 0;
-		}
+		return has(FIELD_EXTERNAL_RSSI) ? _externalRssi : 0;
 	}
 
 	private void setExternalRssi(int rssi) {
-		try {
-			put("externalRssi", rssi);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add ext rssi");
-			e.printStackTrace();
-		}
+		_externalRssi = rssi;
+		set(FIELD_EXTERNAL_RSSI);
 	}
 
 	public boolean hasSwitchState() {
-		return has("switchState");
+		return has(FIELD_SWITCH_STATE);
 	}
 
 	public int getSwitchState() {
-		try {
-			return getInt("switchState");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no switch state found");
-			return 0;
-		}
+		return has(FIELD_SWITCH_STATE) ? _switchState : 0;
 	}
 
 	private void setSwitchState(int switchState) {
 		setRelayState(BleUtils.isBitSet(switchState, 7));
 		setPwm(switchState & ~(1 << 7));
-		try {
-			put("switchState", switchState);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add switch state");
-			e.printStackTrace();
-		}
+		_switchState = switchState;
+		set(FIELD_SWITCH_STATE);
 	}
 
 	public boolean getRelayState() {
-		try {
-			return getBoolean("relayState");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no relay state found");
-			return false;
-		}
+		return getBoolean(FIELD_RELAY_STATE);
 	}
 
 	private void setRelayState(boolean relayState) {
-		try {
-			put("relayState", relayState);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add relay state");
-			e.printStackTrace();
-		}
+		setBoolean(FIELD_RELAY_STATE, relayState);
 	}
 
 	public int getPwm() {
-		try {
-			return getInt("pwm");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no pwm found");
-			return 0;
-		}
+		return has(FIELD_PWM) ? _pwm : 0;
 	}
 
 	private void setPwm(int pwm) {
-		try {
-			put("pwm", pwm);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add pwm");
-			e.printStackTrace();
-		}
+		_pwm = pwm;
+		set(FIELD_PWM);
 	}
 
-
-
 	public long getReconstructedTimestamp() {
-		try {
-			return getLong("reconstructedTimestamp");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no reconstructed timestamp found");
-			return -1;
-		}
+		return has(FIELD_RECONSTRUCTED_TIMESTAMP) ? _reconstructedTimestamp : -1;
 	}
 
 	private void setReconstructedTimestamp(long timestamp) {
-		try {
-			put("reconstructedTimestamp", timestamp);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add reconstructed timestamp");
-			e.printStackTrace();
-		}
+		_reconstructedTimestamp = timestamp;
+		set(FIELD_RECONSTRUCTED_TIMESTAMP);
 	}
 
-
-
-
-
 	@Deprecated
 	public boolean getFlagNewData() {
-		final String entry = "flagNewData";
-		try {
-			return getBoolean(entry);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "not found " + entry);
-			return false;
-		}
+		return getBoolean(FIELD_FLAG_NEW_DATA);
 	}
+
 	@Deprecated
 	private void setFlagNewData(boolean val) {
-		final String entry = "flagNewData";
-		try {
-			put(entry, val);
-		} catch (JSONException e) {
-			getLogger().LOGe(TAG, "failed to add " + entry);
-			e.printStackTrace();
-		}
+		setBoolean(FIELD_FLAG_NEW_DATA, val);
 	}
 
-
 	public boolean getFlagExternalData() {
-		final String entry = "flagExternalData";
-		try {
-			return getBoolean(entry);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "not found " + entry);
-			return false;
-		}
+		return getBoolean(FIELD_FLAG_EXTERNAL_DATA);
 	}
+
 	private void setFlagExternalData(boolean val) {
-		final String entry = "flagExternalData";
-		try {
-			put(entry, val);
-		} catch (JSONException e) {
-			getLogger().LOGe(TAG, "failed to add " + entry);
-			e.printStackTrace();
-		}
+		setBoolean(FIELD_FLAG_EXTERNAL_DATA, val);
 	}
 
 	public boolean getFlagError() {
-		final String entry = "flagError";
-		try {
-			return getBoolean(entry);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "not found " + entry);
-			return false;
-		}
+		return getBoolean(FIELD_FLAG_ERROR);
 	}
+
 	private void setFlagError(boolean val) {
-		final String entry = "flagError";
-		try {
-			put(entry, val);
-		} catch (JSONException e) {
-			getLogger().LOGe(TAG, "failed to add " + entry);
-			e.printStackTrace();
-		}
+		setBoolean(FIELD_FLAG_ERROR, val);
 	}
 
 	public boolean getFlagSetup() {
-		final String entry = "flagSetup";
-		try {
-			return getBoolean(entry);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "not found " + entry);
-			return false;
-		}
+		return getBoolean(FIELD_FLAG_SETUP);
 	}
+
 	private void setFlagSetup(boolean val) {
-		final String entry = "flagSetup";
-		try {
-			put(entry, val);
-		} catch (JSONException e) {
-			getLogger().LOGe(TAG, "failed to add " + entry);
-			e.printStackTrace();
-		}
+		setBoolean(FIELD_FLAG_SETUP, val);
 	}
 
 	public boolean getFlagDimmingAvailable() {
-		final String entry = "flagDimmingAvailable";
-		try {
-			return getBoolean(entry);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "not found " + entry);
-			return false;
-		}
+		return getBoolean(FIELD_FLAG_DIMMING_AVAILABLE);
 	}
+
 	private void setFlagDimmingAvailable(boolean val) {
-		final String entry = "flagDimmingAvailable";
-		try {
-			put(entry, val);
-		} catch (JSONException e) {
-			getLogger().LOGe(TAG, "failed to add " + entry);
-			e.printStackTrace();
-		}
+		setBoolean(FIELD_FLAG_DIMMING_AVAILABLE, val);
 	}
 
 	public boolean getFlagDimmingAllowed() {
-		final String entry = "flagDimmingAllowed";
-		try {
-			return getBoolean(entry);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "not found " + entry);
-			return false;
-		}
+		return getBoolean(FIELD_FLAG_DIMMING_ALLOWED);
 	}
+
 	private void setFlagDimmingAllowed(boolean val) {
-		final String entry = "flagDimmingAllowed";
-		try {
-			put(entry, val);
-		} catch (JSONException e) {
-			getLogger().LOGe(TAG, "failed to add " + entry);
-			e.printStackTrace();
-		}
+		setBoolean(FIELD_FLAG_DIMMING_ALLOWED, val);
 	}
 
 	public boolean getFlagSwitchLocked() {
-		final String entry = "flagSwitchLocked";
-		try {
-			return getBoolean(entry);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "not found " + entry);
-			return false;
-		}
+		return getBoolean(FIELD_FLAG_SWITCH_LOCKED);
 	}
+
 	private void setFlagSwitchLocked(boolean val) {
-		final String entry = "flagSwitchLocked";
-		try {
-			put(entry, val);
-		} catch (JSONException e) {
-			getLogger().LOGe(TAG, "failed to add " + entry);
-			e.printStackTrace();
-		}
+		setBoolean(FIELD_FLAG_SWITCH_LOCKED, val);
 	}
 
 	public boolean getFlagTimeSet() {
-		final String entry = "flagTimeSet";
-		try {
-			return getBoolean(entry);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "not found " + entry);
-			return false;
-		}
+		return getBoolean(FIELD_FLAG_TIME_SET);
 	}
+
 	private void setFlagTimeSet(boolean val) {
-		final String entry = "flagTimeSet";
-		try {
-			put(entry, val);
-		} catch (JSONException e) {
-			getLogger().LOGe(TAG, "failed to add " + entry);
-			e.printStackTrace();
-		}
+		setBoolean(FIELD_FLAG_TIME_SET, val);
 	}
 
 	public boolean getFlagSwitchcraftEnabled() {
-		final String entry = "switchcraftEnabled";
-		try {
-			return getBoolean(entry);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "not found " + entry);
-			return false;
-		}
+		return getBoolean(FIELD_FLAG_SWITCHCRAFT_ENABLED);
 	}
+
 	private void setFlagSwitchcraftEnabled(boolean val) {
-		final String entry = "switchcraftEnabled";
-		try {
-			put(entry, val);
-		} catch (JSONException e) {
-			getLogger().LOGe(TAG, "failed to add " + entry);
-			e.printStackTrace();
-		}
+		setBoolean(FIELD_FLAG_SWITCHCRAFT_ENABLED, val);
 	}
 
 	public String getErrorBitMaskString() {
-		final String entry = "errorBitMaskString";
-		try {
-			return getString(entry);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no error bitmask string found");
-			return "";
-		}
+		return has(FIELD_ERROR_BITMASK) ? Long.toBinaryString(_errorBitmask) : "";
 	}
-	private void setErrorBitMaskString(String val) {
-		final String entry = "errorBitMaskString";
-		try {
-			put(entry, val);
-		} catch (JSONException e) {
-			getLogger().LOGe(TAG, "failed to add " + entry);
-			e.printStackTrace();
-		}
+
+	public long getErrorBitmask() {
+		return has(FIELD_ERROR_BITMASK) ? _errorBitmask : 0;
+	}
+
+	private void setErrorBitmask(long val) {
+		_errorBitmask = val;
+		set(FIELD_ERROR_BITMASK);
 	}
 
 	public boolean getErrorOverCurrent() {
-		final String entry = "errorOverCurrent";
-		try {
-			return getBoolean(entry);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "not found " + entry);
-			return false;
-		}
+		return getBoolean(FIELD_ERROR_OVER_CURRENT);
 	}
+
 	private void setErrorOverCurrent(boolean val) {
-		final String entry = "errorOverCurrent";
-		try {
-			put(entry, val);
-		} catch (JSONException e) {
-			getLogger().LOGe(TAG, "failed to add " + entry);
-			e.printStackTrace();
-		}
+		setBoolean(FIELD_ERROR_OVER_CURRENT, val);
 	}
 
 	public boolean getErrorOverCurrentDimmer() {
-		final String entry = "errorOverCurrentDimmer";
-		try {
-			return getBoolean(entry);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "not found " + entry);
-			return false;
-		}
+		return getBoolean(FIELD_ERROR_OVER_CURRENT_DIMMER);
 	}
+
 	private void setErrorOverCurrentDimmer(boolean val) {
-		final String entry = "errorOverCurrentDimmer";
-		try {
-			put(entry, val);
-		} catch (JSONException e) {
-			getLogger().LOGe(TAG, "failed to add " + entry);
-			e.printStackTrace();
-		}
+		setBoolean(FIELD_ERROR_OVER_CURRENT_DIMMER, val);
 	}
 
 	public boolean getErrorChipTemperature() {
-		final String entry = "errorChipTemperature";
-		try {
-			return getBoolean(entry);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "not found " + entry);
-			return false;
-		}
+		return getBoolean(FIELD_ERROR_CHIP_TEMPERATURE);
 	}
+
 	private void setErrorChipTemperature(boolean val) {
-		final String entry = "errorChipTemperature";
-		try {
-			put(entry, val);
-		} catch (JSONException e) {
-			getLogger().LOGe(TAG, "failed to add " + entry);
-			e.printStackTrace();
-		}
+		setBoolean(FIELD_ERROR_CHIP_TEMPERATURE, val);
 	}
 
 	public boolean getErrorDimmerTemperature() {
-		final String entry = "errorDimmerTemperature";
-		try {
-			return getBoolean(entry);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "not found " + entry);
-			return false;
-		}
+		return getBoolean(FIELD_ERROR_DIMMER_TEMPERATURE);
 	}
+
 	private void setErrorDimmerTemperature(boolean val) {
-		final String entry = "errorDimmerTemperature";
-		try {
-			put(entry, val);
-		} catch (JSONException e) {
-			getLogger().LOGe(TAG, "failed to add " + entry);
-			e.printStackTrace();
-		}
+		setBoolean(FIELD_ERROR_DIMMER_TEMPERATURE, val);
 	}
 
 	public boolean getErrorDimmerFailureOn() {
-		final String entry = "errorDimmerFailureOn";
-		try {
-			return getBoolean(entry);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "not found " + entry);
-			return false;
-		}
+		return getBoolean(FIELD_ERROR_DIMMER_FAILURE_ON);
 	}
+
 	private void setErrorDimmerFailureOn(boolean val) {
-		final String entry = "errorDimmerFailureOn";
-		try {
-			put(entry, val);
-		} catch (JSONException e) {
-			getLogger().LOGe(TAG, "failed to add " + entry);
-			e.printStackTrace();
-		}
+		setBoolean(FIELD_ERROR_DIMMER_FAILURE_ON, val);
 	}
 
 	public boolean getErrorDimmerFailureOff() {
-		final String entry = "errorDimmerFailureOff";
-		try {
-			return getBoolean(entry);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "not found " + entry);
-			return false;
-		}
+		return getBoolean(FIELD_ERROR_DIMMER_FAILURE_OFF);
 	}
+
 	private void setErrorDimmerFailureOff(boolean val) {
-		final String entry = "errorDimmerFailureOff";
-		try {
-			put(entry, val);
-		} catch (JSONException e) {
-			getLogger().LOGe(TAG, "failed to add " + entry);
-			e.printStackTrace();
-		}
+		setBoolean(FIELD_ERROR_DIMMER_FAILURE_OFF, val);
 	}
 
 	private long getErrorTimestamp() {
-		final String entry = "errorTimestamp";
-		try {
-			return getLong(entry);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "not found " + entry);
-			return 0;
-		}
+		return has(FIELD_ERROR_TIMESTAMP) ? _errorTimestamp : 0;
 	}
+
 	private void setErrorTimestamp(long val) {
-		final String entry = "errorTimestamp";
-		try {
-			put(entry, val);
-		} catch (JSONException e) {
-			getLogger().LOGe(TAG, "failed to add " + entry);
-			e.printStackTrace();
-		}
+		_errorTimestamp = val;
+		set(FIELD_ERROR_TIMESTAMP);
 	}
 
-
-
 //	public boolean isNewData() { return isNewData(getEventBitmask()); }
 //	public static boolean isNewData(byte eventBitmask) {
 //		return ((eventBitmask & (1L << 0)) != 0);
@@ -1115,46 +1129,28 @@ public class CrownstoneServiceData extends JSONObject {
 //	}
 
 	public byte getTemperature() {
-		try {
-			return (byte)getInt("temperature");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no temperature found");
-			return 0;
-		}
+		return has(FIELD_TEMPERATURE) ? _temperature : 0;
 	}
 
 	private void setTemperature(byte temperature) {
-		try {
-			put("temperature", temperature);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add temperature");
-			e.printStackTrace();
-		}
+		_temperature = temperature;
+		set(FIELD_TEMPERATURE);
 	}
 
 	public boolean hasPowerFactor() {
-		return has("powerFactor");
+		return has(FIELD_POWER_FACTOR);
 	}
 
 	public double getPowerFactor() {
-		try {
-			return getDouble("powerFactor");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no power factor found");
-			return 1.0;
-		}
+		return has(FIELD_POWER_FACTOR) ? _powerFactor : 1.0;
 	}
 
 	private void setPowerFactor(double powerFactor) {
 		if (powerFactor == 0.0) {
 			powerFactor = 1.0;
 		}
-		try {
-			put("powerFactor", powerFactor);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add power factor");
-			e.printStackTrace();
-		}
+		_powerFactor = powerFactor;
+		set(FIELD_POWER_FACTOR);
 	}
 
 //	public boolean hasPowerUsage() {
@@ -1162,130 +1158,107 @@ public class CrownstoneServiceData extends JSONObject {
 //	}
 
 	public double getPowerUsageReal() {
-		try {
-			return getDouble("powerUsageReal");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no real power usage found");
-			return 0;
-		}
+		return has(FIELD_POWER_USAGE_REAL) ? _powerUsageReal : 0;
 	}
 
 	private void setPowerUsageReal(double powerUsage) {
-		try {
-			put("powerUsageReal", powerUsage);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add real power usage");
-			e.printStackTrace();
-		}
+		_powerUsageReal = powerUsage;
+		set(FIELD_POWER_USAGE_REAL);
 	}
 
 	public double getPowerUsageApparent() {
-		try {
-			return getDouble("powerUsageApparent");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no apparent power usage found");
-			return 0;
-		}
+		return has(FIELD_POWER_USAGE_APPARENT) ? _powerUsageApparent : 0;
 	}
 
 	private void setPowerUsageApparent(double powerUsage) {
-		try {
-			put("powerUsageApparent", powerUsage);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add apparent power usage");
-			e.printStackTrace();
-		}
+		_powerUsageApparent = powerUsage;
+		set(FIELD_POWER_USAGE_APPARENT);
 	}
 
 	public boolean hasAccumulatedEnergy() {
-		return has("accumulatedEnergy");
+		return has(FIELD_ACCUMULATED_ENERGY);
 	}
 
 	public double getAccumulatedEnergy() {
-		try {
-			return getDouble("accumulatedEnergy");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no accumulated energy found");
-			return 0;
-		}
+		return has(FIELD_ACCUMULATED_ENERGY) ? _accumulatedEnergy : 0;
 	}
 
 	private void setAccumulatedEnergy(double accumulatedEnergy) {
-		try {
-			put("accumulatedEnergy", accumulatedEnergy);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add accumulated energy");
-			e.printStackTrace();
-		}
+		_accumulatedEnergy = accumulatedEnergy;
+		set(FIELD_ACCUMULATED_ENERGY);
 	}
 
 	public int getPartialTimestamp() {
-		try {
-			return getInt("partialTimestamp");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no partial timestamp found");
-			return 0;
-		}
+		return has(FIELD_PARTIAL_TIMESTAMP) ? _partialTimestamp : 0;
 	}
 
 	private void setPartialTimestamp(int partialTimestamp) {
-		try {
-			put("partialTimestamp", partialTimestamp);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add partial timestamp");
-			e.printStackTrace();
-		}
+		_partialTimestamp = partialTimestamp;
+		set(FIELD_PARTIAL_TIMESTAMP);
 	}
 
+	/**
+	 * @return the changing bytes as base64 encoded string, or null if not set
+	 */
 	public String getChangingBytes() {
-		try {
-			return getString("changingBytes");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no changing bytes found");
+		if (!has(FIELD_CHANGING_BYTES)) {
 			return null;
 		}
+		if (_changingBytesString == null) {
+			int len = _changingBytes >>> 24;
+			byte[] bytes = new byte[len];
+			for (int i = 0; i < len; i++) {
+				bytes[i] = (byte)(_changingBytes >> (8 * i));
+			}
+			_changingBytesString = BleUtils.bytesToEncodedString(bytes);
+		}
+		return _changingBytesString;
 	}
-	private void setChangingBytes(byte[] bytes) {
-		try {
-			put("changingBytes", BleUtils.bytesToEncodedString(bytes));
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add changing bytes");
-			e.printStackTrace();
+
+	/**
+	 * Get the changing bytes as number, to compare them without creating a string.
+	 *
+	 * @return the changing bytes (little endian) with the number of bytes in the top byte,
+	 *         or -1 if not set
+	 */
+	public int getChangingBytesValue() {
+		return has(FIELD_CHANGING_BYTES) ? _changingBytes : -1;
+	}
+
+	/**
+	 * Read the changing bytes from the buffer.
+	 *
+	 * @param bb  the buffer to read from
+	 * @param len the number of bytes to read, max 3
+	 */
+	private void setChangingBytes(ByteBuffer bb, int len) {
+		int value = 0;
+		for (int i = 0; i < len; i++) {
+			value |= BleUtils.toUint8(bb.get()) << (8 * i);
 		}
+		_changingBytes = value | (len << 24);
+		_changingBytesString = null;
+		set(FIELD_CHANGING_BYTES);
 	}
+
 	private void setChangingBytes(String encodedString) {
-		try {
-			put("changingBytes", encodedString);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add changing bytes");
-			e.printStackTrace();
-		}
+		byte[] bytes = BleUtils.encodedStringToBytes(encodedString);
+		setChangingBytes(ByteBuffer.wrap(bytes), Math.min(bytes.length, 3));
+		_changingBytesString = encodedString;
 	}
 
 	public boolean getValidation() {
-		try {
-			return getBoolean("validation");
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "no validation found");
-			return false;
-		}
+		return getBoolean(FIELD_VALIDATION);
 	}
 
 	private void setValidation(boolean validation) {
-		try {
-			put("validation", validation);
-		} catch (JSONException e) {
-			getLogger().LOGv(TAG, "failed to add validation");
-			e.printStackTrace();
-		}
+		setBoolean(FIELD_VALIDATION, validation);
 	}
 
-
-
 	private BleLog getLogger() {
 		BleLog logger = BleLog.getInstance();
 		// update the log level to the default of this class if it hasn't been set already
-		if (logger.getLogLevel(TAG) == null) {
+		if (!logger.hasLogLevel(TAG)) {
 			logger.setLogLevelPerTag(TAG, LOG_LEVEL);
 		}
 		return logger;
@@ -125,7 +125,7 @@ public class StreamMsg {
 	public boolean fromArray(byte[] bytes) {
 		ByteBuffer bb = ByteBuffer.wrap(bytes);
 		bb.order(ByteOrder.LITTLE_ENDIAN);
-		getLogger().LOGv("streammsg", BleUtils.bytesToString(bytes));
+		getLogger().LOGv("streammsg", "%s", bytes);
 		if (bytes.length < STREAM_MSG_HEADER_SIZE) {
 			return false;
 		}
@@ -267,7 +267,7 @@ public class StreamMsg {
 	private BleLog getLogger() {
 		BleLog logger = BleLog.getInstance();
 		// update the log level to the default of this class if it hasn't been set already
-		if (logger.getLogLevel(TAG) == null) {
+		if (!logger.hasLogLevel(TAG)) {
 			logger.setLogLevelPerTag(TAG, LOG_LEVEL);
 		}
 		return logger;
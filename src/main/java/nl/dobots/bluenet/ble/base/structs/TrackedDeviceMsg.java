@@ -65,6 +65,17 @@ public class TrackedDeviceMsg {
 		this.address = BleUtils.addressToBytes(address);
 	}
 
+	/**
+	 * Create a new tracked device
+	 * @param address MAC address of the tracked device, packed in a long, see
+	 *                BleUtils.addressToLong()
+	 * @param rssi rssi value to be used as trigger threshold
+	 */
+	public TrackedDeviceMsg(long address, int rssi) {
+		this.rssi = rssi;
+		this.address = BleUtils.longToAddressBytes(address);
+	}
+
 	/**
 	 * Convert the object to a byte array in order to write it to the characteristic
 	 * @return byte array representation of the object
@@ -98,6 +109,14 @@ public class TrackedDeviceMsg {
 		return address;
 	}
 
+	/**
+	 * Get the MAC address of the tracked device, packed in a long
+	 * @return MAC address, see BleUtils.addressToLong(), or -1 if invalid
+	 */
+	public long getPackedAddress() {
+		return BleUtils.addressBytesToLong(address);
+	}
+
 	/**
 	 * Set the MAC address of the tracked device
 	 * @param address new MAC address
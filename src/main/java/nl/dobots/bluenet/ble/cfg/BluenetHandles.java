@@ -0,0 +1,64 @@
+package nl.dobots.bluenet.ble.cfg;
+
+import nl.dobots.bluenet.ble.core.GattHandle;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Handles of the characteristics in BluenetConfig, to be used instead of the service and
+ * characteristic UUID strings, see GattHandle.
+ */
+public class BluenetHandles {
+
+	// Crownstone service
+	public static final GattHandle CONTROL =                GattHandle.get(BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_CONTROL_UUID);
+	public static final GattHandle MESH_CONTROL =           GattHandle.get(BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_MESH_CONTROL_UUID);
+	public static final GattHandle CONFIG_CONTROL =         GattHandle.get(BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_CONFIG_CONTROL_UUID);
+	public static final GattHandle CONFIG_READ =            GattHandle.get(BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_CONFIG_READ_UUID);
+	public static final GattHandle STATE_CONTROL =          GattHandle.get(BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_STATE_CONTROL_UUID);
+	public static final GattHandle STATE_READ =             GattHandle.get(BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_STATE_READ_UUID);
+	public static final GattHandle SESSION_NONCE =          GattHandle.get(BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_SESSION_NONCE_UUID);
+	public static final GattHandle RECOVERY =               GattHandle.get(BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_RECOVERY_UUID);
+
+	// Setup service
+	public static final GattHandle SETUP_CONTROL =          GattHandle.get(BluenetConfig.SETUP_SERVICE_UUID, BluenetConfig.CHAR_SETUP_CONTROL_UUID);
+	public static final GattHandle SETUP_CONTROL2 =         GattHandle.get(BluenetConfig.SETUP_SERVICE_UUID, BluenetConfig.CHAR_SETUP_CONTROL2_UUID);
+	public static final GattHandle MAC_ADDRESS =            GattHandle.get(BluenetConfig.SETUP_SERVICE_UUID, BluenetConfig.CHAR_MAC_ADDRESS_UUID);
+	public static final GattHandle SESSION_KEY =            GattHandle.get(BluenetConfig.SETUP_SERVICE_UUID, BluenetConfig.CHAR_SESSION_KEY_UUID);
+	public static final GattHandle SETUP_CONFIG_CONTROL =   GattHandle.get(BluenetConfig.SETUP_SERVICE_UUID, BluenetConfig.CHAR_SETUP_CONFIG_CONTROL_UUID);
+	public static final GattHandle SETUP_CONFIG_READ =      GattHandle.get(BluenetConfig.SETUP_SERVICE_UUID, BluenetConfig.CHAR_SETUP_CONFIG_READ_UUID);
+	public static final GattHandle SETUP_GOTO_DFU =         GattHandle.get(BluenetConfig.SETUP_SERVICE_UUID, BluenetConfig.CHAR_SETUP_GOTO_DFU_UUID);
+	public static final GattHandle SETUP_SESSION_NONCE =    GattHandle.get(BluenetConfig.SETUP_SERVICE_UUID, BluenetConfig.CHAR_SETUP_SESSION_NONCE_UUID);
+
+	// General service
+	public static final GattHandle TEMPERATURE =            GattHandle.get(BluenetConfig.GENERAL_SERVICE_UUID, BluenetConfig.CHAR_TEMPERATURE_UUID);
+	public static final GattHandle RESET =                  GattHandle.get(BluenetConfig.GENERAL_SERVICE_UUID, BluenetConfig.CHAR_RESET_UUID);
+
+	// Power service
+	public static final GattHandle PWM =                    GattHandle.get(BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_PWM_UUID);
+	public static final GattHandle RELAY =                  GattHandle.get(BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_RELAY_UUID);
+	public static final GattHandle POWER_SAMPLES =          GattHandle.get(BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_POWER_SAMPLES_UUID);
+	public static final GattHandle POWER_CONSUMPTION =      GattHandle.get(BluenetConfig.POWER_SERVICE_UUID, BluenetConfig.CHAR_POWER_CONSUMPTION_UUID);
+
+	// Indoor localization service
+	public static final GattHandle TRACK_CONTROL =          GattHandle.get(BluenetConfig.INDOOR_LOCALIZATION_SERVICE_UUID, BluenetConfig.CHAR_TRACK_CONTROL_UUID);
+	public static final GattHandle TRACKED_DEVICES =        GattHandle.get(BluenetConfig.INDOOR_LOCALIZATION_SERVICE_UUID, BluenetConfig.CHAR_TRACKED_DEVICES_UUID);
+	public static final GattHandle SCAN_CONTROL =           GattHandle.get(BluenetConfig.INDOOR_LOCALIZATION_SERVICE_UUID, BluenetConfig.CHAR_SCAN_CONTROL_UUID);
+	public static final GattHandle SCANNED_DEVICES =        GattHandle.get(BluenetConfig.INDOOR_LOCALIZATION_SERVICE_UUID, BluenetConfig.CHAR_SCANNED_DEVICES_UUID);
+	public static final GattHandle RSSI =                   GattHandle.get(BluenetConfig.INDOOR_LOCALIZATION_SERVICE_UUID, BluenetConfig.CHAR_RSSI_UUID);
+
+	// Schedule service
+	public static final GattHandle CURRENT_TIME =           GattHandle.get(BluenetConfig.SCHEDULE_SERVICE_UUID, BluenetConfig.CHAR_CURRENT_TIME_UUID);
+
+	// DFU service
+	public static final GattHandle DFU_CONTROL =            GattHandle.get(BluenetConfig.DFU_SERVICE_UUID, BluenetConfig.DFU_CONTROL_UUID);
+
+	// Device information service
+	public static final GattHandle HARDWARE_REVISION =      GattHandle.get(BluenetConfig.DEVICE_INFO_SERVICE_UUID, BluenetConfig.CHAR_HARDWARE_REVISION_UUID);
+	public static final GattHandle SOFTWARE_REVISION =      GattHandle.get(BluenetConfig.DEVICE_INFO_SERVICE_UUID, BluenetConfig.CHAR_SOFTWARE_REVISION_UUID);
+
+}
@@ -28,6 +28,7 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
@@ -42,12 +43,16 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import nl.dobots.bluenet.ble.core.callbacks.IBaseCallback;
 import nl.dobots.bluenet.ble.base.callbacks.IByteArrayCallback;
 import nl.dobots.bluenet.ble.cfg.BleErrors;
 import nl.dobots.bluenet.ble.core.callbacks.IDataCallback;
+import nl.dobots.bluenet.ble.core.callbacks.IGattDiscoveryCallback;
 import nl.dobots.bluenet.ble.core.callbacks.IScanCallback;
+import nl.dobots.bluenet.ble.core.callbacks.IScanRecordBatchCallback;
+import nl.dobots.bluenet.ble.core.callbacks.IScanRecordCallback;
 import nl.dobots.bluenet.ble.core.callbacks.IStatusCallback;
 import nl.dobots.bluenet.ble.core.callbacks.INotificationCallback;
 import nl.dobots.bluenet.ble.core.callbacks.StatusSingleCallback;
@@ -82,6 +87,9 @@ public class BleCore extends Logging {
 	// Timeout for a location permission request. If timeout expires, en error is created.
 	private static final int LOCATION_PERMISSION_TIMEOUT = 5000;
 
+	// Max time to wait for the flushed batch scan results when stopping a scan, see stopEndlessScan()
+	private static final int SCAN_FLUSH_TIMEOUT = 1000;
+
 	// The permission request code for requesting location (required for ble scanning).
 	private static final int REQ_CODE_PERMISSIONS_LOCATION = 101;
 
@@ -91,6 +99,9 @@ public class BleCore extends Logging {
 	// The request code to enable location services.
 	private static final int REQ_CODE_ENABLE_LOCATION_SERVICES = 103;
 
+	// Scan record of a scan result without scan record
+	private static final byte[] EMPTY_SCAN_RECORD = new byte[0];
+
 
 
 	// Bluetooth adapter used for ble calls
@@ -111,6 +122,12 @@ public class BleCore extends Logging {
 	// Default scan mode is low latency.
 	private int _scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
 
+	// Scan profile with the report delay and filters, null to scan without them.
+	private BleScanProfile _scanProfile = null;
+
+	// Filter on the raw advertisements, null to pass on all advertisements.
+	private volatile IScanRecordFilter _scanRecordFilter = null;
+
 	// The callback used by the API >= 21 to report scanned devices
 	private ScanCallback _coreScanCallback;
 
@@ -172,11 +189,22 @@ public class BleCore extends Logging {
 		private ConnectionState _connectionState = ConnectionState.DISCONNECTED;
 		// keep track of discovery state
 		private DiscoveryState _discoveryState = DiscoveryState.UNDISCOVERED;
+		// result of the last discovery, null if not discovered
+		private GattDiscovery _discovery;
+		// characteristics by GattHandle id, resolved once after discovery, null if not found
+		private BluetoothGattCharacteristic[] _characteristics = new BluetoothGattCharacteristic[0];
 
         // keeps track of the list of callbacks which are listening to notifications, 1 callback per
         // characteristic
         private HashMap<UUID, INotificationCallback> _notificationCallbacks = new HashMap<>();
 
+		// Queue of GATT operations (read, write, subscribe, unsubscribe), so that they are
+		// executed one at a time instead of failing with ERROR_BUSY
+		private GattOperationQueue _operationQueue = new GattOperationQueue(this, _operationScheduler);
+
+		// The queued operation that is being executed, its callback is the callback of the connection
+		private GattOperation _operation;
+
 		/**
 		 * Return the BluetoothGatt object used by this connection to talk to the device
 		 * @return BluetoothGatt object
@@ -207,6 +235,9 @@ public class BleCore extends Logging {
 		 */
 		public void setConnectionState(ConnectionState connectionState) {
 			_connectionState = connectionState;
+			if (connectionState == ConnectionState.DISCONNECTED) {
+				clearOperations(BleErrors.ERROR_NOT_CONNECTED);
+			}
 		}
 
 		/**
@@ -223,6 +254,56 @@ public class BleCore extends Logging {
 		 */
 		public void setDiscoveryState(DiscoveryState discoveryState) {
 			_discoveryState = discoveryState;
+			if (discoveryState != DiscoveryState.DISCOVERED) {
+				_discovery = null;
+				synchronized (this) {
+					_characteristics = new BluetoothGattCharacteristic[0];
+				}
+			}
+		}
+
+		/**
+		 * Look up the characteristics of all handles, should be called after discovery.
+		 * @param gatt the gatt of this connection
+		 */
+		public synchronized void resolveCharacteristics(BluetoothGatt gatt) {
+			List<GattHandle> handles = GattHandle.getAll();
+			BluetoothGattCharacteristic[] characteristics = new BluetoothGattCharacteristic[handles.size()];
+			for (GattHandle handle : handles) {
+				if (handle.getId() < characteristics.length) {
+					characteristics[handle.getId()] = findCharacteristic(gatt, handle);
+				}
+			}
+			_characteristics = characteristics;
+		}
+
+		/**
+		 * Get the characteristic of a handle from the table.
+		 * @param gatt the gatt of this connection
+		 * @param handle the handle
+		 * @return the characteristic, or null if not found
+		 */
+		public synchronized BluetoothGattCharacteristic getCharacteristic(BluetoothGatt gatt, GattHandle handle) {
+			if (_discoveryState != DiscoveryState.DISCOVERED || !handle.isRegistered()) {
+				return findCharacteristic(gatt, handle);
+			}
+			if (handle.getId() >= _characteristics.length) {
+				// handle was created after the discovery
+				resolveCharacteristics(gatt);
+			}
+			return _characteristics[handle.getId()];
+		}
+
+		/**
+		 * Get the result of the last discovery
+		 * @return the discovery, or null if not discovered
+		 */
+		public GattDiscovery getDiscovery() {
+			return _discovery;
+		}
+
+		public void setDiscovery(GattDiscovery discovery) {
+			_discovery = discovery;
 		}
 
 		public HashMap<UUID, INotificationCallback> getNotificationCallbacks() {
@@ -244,6 +325,71 @@ public class BleCore extends Logging {
 			return _callback != null;
 		}
 
+		/**
+		 * Add an operation to the queue, it will be executed once all operations before it are done.
+		 * @param operation the operation
+		 */
+		public synchronized void addOperation(GattOperation operation) {
+			_operationQueue.add(operation);
+		}
+
+		/**
+		 * Called by the queue when the operation is executed, sets the callback of the operation.
+		 * @param operation the operation to be executed
+		 * @return false if busy with another action
+		 */
+		public synchronized boolean setOperation(GattOperation operation) {
+			if (!setCallback(operation.getCallback(), operation.getActionType())) {
+				return false;
+			}
+			_operation = operation;
+			return true;
+		}
+
+		/**
+		 * Reject the operation, if it's the one being executed.
+		 * @return false if the operation is not the one being executed
+		 */
+		public synchronized boolean rejectOperation(GattOperation operation, int error) {
+			if (operation != _operation) {
+				return false;
+			}
+			return reject(error);
+		}
+
+		/**
+		 * Remove all queued operations, they fail with given error. Does not affect the
+		 * operation that is being executed.
+		 * @param error the error to report
+		 */
+		public synchronized void clearOperations(int error) {
+			_operationQueue.clear(error);
+		}
+
+		/**
+		 * Cancel the operation that is being executed, and all queued operations.
+		 */
+		public synchronized void cancelOperations() {
+			_operationQueue.clear(BleErrors.ERROR_CANCELLED);
+			if (_operation != null) {
+				_operationQueue.cancel(_operation);
+			}
+		}
+
+		/**
+		 * Check if a GATT result for the given characteristic belongs to the operation being
+		 * executed. Results of operations that timed out or were cancelled can arrive late,
+		 * they should not resolve the next operation.
+		 * @param characteristicUuid the characteristic of the result
+		 * @return false if the result is for another characteristic than the one of the operation
+		 */
+		public synchronized boolean isExpectedCharacteristic(UUID characteristicUuid) {
+			if (_operation == null || _operation.getCharacteristicUuid() == null) {
+				return true;
+			}
+			return _operation.getCharacteristicUuid().equals(characteristicUuid);
+		}
+
 		public synchronized ActionType getActionType() {
 			return _actionType;
 		}
@@ -254,10 +400,11 @@ public class BleCore extends Logging {
 			}
 
 			IBaseCallback callback = _callback;
-			cleanup();
+			GattOperation operation = cleanup();
 
 			callback.onError(error);
 
+			_operationQueue.done(operation);
 			return true;
 		}
 
@@ -266,16 +413,18 @@ public class BleCore extends Logging {
 				return false;
 			}
 
+			GattOperation operation;
 			if (_callback instanceof IStatusCallback) {
 				IStatusCallback callback = (IStatusCallback)_callback;
-				cleanup();
+				operation = cleanup();
 				callback.onSuccess();
 			}
 			else {
 				IBaseCallback callback = _callback;
-				cleanup();
+				operation = cleanup();
 				callback.onError(BleErrors.ERROR_WRONG_PAYLOAD_TYPE);
 			}
+			_operationQueue.done(operation);
 			return true;
 		}
 
@@ -284,16 +433,18 @@ public class BleCore extends Logging {
 				return false;
 			}
 
+			GattOperation operation;
 			if (_callback instanceof IByteArrayCallback) {
 				IByteArrayCallback callback = (IByteArrayCallback)_callback;
-				cleanup();
+				operation = cleanup();
 				callback.onSuccess(data);
 			}
 			else {
 				IBaseCallback callback = _callback;
-				cleanup();
+				operation = cleanup();
 				callback.onError(BleErrors.ERROR_WRONG_PAYLOAD_TYPE);
 			}
+			_operationQueue.done(operation);
 			return true;
 		}
 
@@ -302,19 +453,49 @@ public class BleCore extends Logging {
                 return false;
             }
 
+            GattOperation operation;
             if (_callback instanceof IDataCallback) {
                 IDataCallback callback = (IDataCallback)_callback;
-                cleanup();
+                operation = cleanup();
                 callback.onData(data);
             }
             else {
                 IBaseCallback callback = _callback;
-                cleanup();
+                operation = cleanup();
                 callback.onError(BleErrors.ERROR_WRONG_PAYLOAD_TYPE);
             }
+            _operationQueue.done(operation);
             return true;
         }
 
+		/**
+		 * Resolve a discovery, as typed object or as json, depending on the callback.
+		 */
+		public synchronized boolean resolve(GattDiscovery discovery) {
+			if (!preResolve()) {
+				return false;
+			}
+
+			GattOperation operation;
+			if (_callback instanceof IGattDiscoveryCallback) {
+				IGattDiscoveryCallback callback = (IGattDiscoveryCallback)_callback;
+				operation = cleanup();
+				callback.onDiscovery(discovery);
+			}
+			else if (_callback instanceof IDataCallback) {
+				IDataCallback callback = (IDataCallback)_callback;
+				operation = cleanup();
+				callback.onData(getDiscoveryJson(_gatt, discovery));
+			}
+			else {
+				IBaseCallback callback = _callback;
+				operation = cleanup();
+				callback.onError(BleErrors.ERROR_WRONG_PAYLOAD_TYPE);
+			}
+			_operationQueue.done(operation);
+			return true;
+		}
+
 		private boolean preResolve() {
 			if (_callback == null) {
 				getLogger().LOGw(TAG, "Not busy!");
@@ -323,10 +504,17 @@ public class BleCore extends Logging {
 			return true;
 		}
 
-		private void cleanup() {
+		/**
+		 * Clean up the callback and action.
+		 * @return the queued operation that was being executed, or null
+		 */
+		private GattOperation cleanup() {
 			// Clean up
 			_callback = null;
 			_actionType = ActionType.NONE;
+			GattOperation operation = _operation;
+			_operation = null;
+			return operation;
 		}
 
 		public synchronized boolean cancel() {
@@ -334,6 +522,92 @@ public class BleCore extends Logging {
 		}
 	}
 
+	/**
+	 * A GATT operation of a connection, executed by the operation queue of the connection.
+	 */
+	private abstract class GattOperation extends GattOperationQueue.Operation {
+		private final Connection _connection;
+		private final ActionType _actionType;
+		private final IBaseCallback _callback;
+		// The characteristic of the operation, set once it has been found
+		private UUID _characteristicUuid;
+
+		GattOperation(Connection connection, ActionType actionType, IBaseCallback callback, int priority) {
+			super(priority, _operationTimeout);
+			_connection = connection;
+			_actionType = actionType;
+			_callback = callback;
+		}
+
+		public ActionType getActionType() {
+			return _actionType;
+		}
+
+		public IBaseCallback getCallback() {
+			return _callback;
+		}
+
+		public UUID getCharacteristicUuid() {
+			return _characteristicUuid;
+		}
+
+		public void setCharacteristicUuid(UUID characteristicUuid) {
+			_characteristicUuid = characteristicUuid;
+		}
+
+		@Override
+		protected int execute() {
+			if (!_connection.setOperation(this)) {
+				getLogger().LOGw(TAG, "busy");
+				return BleErrors.ERROR_BUSY;
+			}
+			if (_connection.getConnectionState() != ConnectionState.CONNECTED) {
+				getLogger().LOGe(TAG, "not connected");
+				return BleErrors.ERROR_NOT_CONNECTED;
+			}
+			BluetoothGatt gatt = _connection.getGatt();
+			if (gatt == null) {
+				getLogger().LOGe(TAG, "Huh? gatt == null");
+				// TODO: remove connection from _connections?
+				return BleErrors.ERROR_DEVICE_NOT_FOUND;
+			}
+			return start(gatt);
+		}
+
+		/**
+		 * Start the GATT operation, the connection is connected.
+		 * @param gatt the gatt of the connection
+		 * @return 0 if started, the result will resolve the connection, else an error from BleErrors
+		 */
+		protected abstract int start(BluetoothGatt gatt);
+
+		@Override
+		protected void onError(int error) {
+			// If the operation is being executed, the callback is the callback of the connection
+			if (!_connection.rejectOperation(this, error)) {
+				_callback.onError(error);
+			}
+		}
+	}
+
+	// Default timeout of GATT operations in ms
+	private static final int DEFAULT_OPERATION_TIMEOUT = 10000;
+
+	private int _operationTimeout = DEFAULT_OPERATION_TIMEOUT;
+
+	// Used by the operation queues to schedule timeouts
+	private GattOperationQueue.Scheduler _operationScheduler = new GattOperationQueue.Scheduler() {
+		@Override
+		public void postDelayed(Runnable runnable, long delayMs) {
+			_timeoutHandler.postDelayed(runnable, delayMs);
+		}
+
+		@Override
+		public void removeCallbacks(Runnable runnable) {
+			_timeoutHandler.removeCallbacks(runnable);
+		}
+	};
+
 	// A list of connections for different devices.
     // A connection is only removed from the list when the device is closed.
 	private HashMap<String, Connection> _connections = new HashMap<>();
@@ -343,7 +617,18 @@ public class BleCore extends Logging {
 
 	// callbacks used to notify events
 	// scan callback is informed about scan errors and scanned devices
-	private IScanCallback _scanCallback = null;
+	private IScanRecordCallback _scanCallback = null;
+	// scan callback of a scan that is being stopped, it still gets the flushed batch results
+	private IScanRecordCallback _flushScanCallback = null;
+	// callback of stopEndlessScan, informed once the flushed results are delivered
+	private IStatusCallback _flushStopCallback = null;
+	// stops the scan if the flushed batch results don't arrive
+	private Runnable _scanFlushTimeout = new Runnable() {
+		@Override
+		public void run() {
+			finishScanFlush();
+		}
+	};
 
 	// Callback for bluetooth init.
 	private StatusSingleCallback _initializeBluetoothCallback = new StatusSingleCallback();
@@ -384,8 +669,8 @@ public class BleCore extends Logging {
 
 	// timeout handler to check for function timeouts, e.g. bluetooth enable, connect, reconnect, etc.
 	private Handler _timeoutHandler;
-	// the runnable to check if a connect/reconnect times out
-	private Runnable _connectTimeout;
+	// the runnables to check if a connect/reconnect times out, per device address
+	private ConcurrentHashMap<String, Runnable> _connectTimeouts = new ConcurrentHashMap<>();
 
 	/**
 	 * Default constructor
@@ -427,6 +712,8 @@ public class BleCore extends Logging {
 
 		_eventCallback = null;
 		_scanCallback = null;
+		_flushScanCallback = null;
+		_flushStopCallback = null;
 //		_characteristicsReadCallback = null;
 //		_characteristicsWriteCallback = null;
 //		_subscribeCallback = null;
@@ -573,9 +860,7 @@ public class BleCore extends Logging {
 							@Override
 							public void onSuccess() {
 								_leScanner = _bluetoothAdapter.getBluetoothLeScanner();
-								_scanSettings = new ScanSettings.Builder()
-										.setScanMode(_scanMode)
-										.build();
+								_scanSettings = createScanSettings();
 								_scanFilters = new ArrayList<>();
 
 								getLogger().LOGi(TAG, "Scanner initialized");
@@ -641,6 +926,15 @@ public class BleCore extends Logging {
 		}
 	}
 
+	/**
+	 * Get the application context, set on init.
+	 *
+	 * @return the context, or null if not initialized
+	 */
+	public Context getContext() {
+		return _context;
+	}
+
 	/**
 	 * Check if cached activity is valid.
 	 *
@@ -670,7 +964,7 @@ public class BleCore extends Logging {
 		if (_bluetoothAdapter != null && _bluetoothAdapter.isEnabled() && _bluetoothAdapter.getState() == BluetoothAdapter.STATE_ON) {
 			return true;
 		}
-		getLogger().LOGd(TAG, "bluetooth enabled=" + _bluetoothAdapter.isEnabled() + " state=" + _bluetoothAdapter.getState() + " STATE_ON=" + BluetoothAdapter.STATE_ON);
+		getLogger().LOGd(TAG, "bluetooth enabled=%s state=%d STATE_ON=%d", _bluetoothAdapter.isEnabled(), _bluetoothAdapter.getState(), BluetoothAdapter.STATE_ON);
 		return false;
 	}
 
@@ -917,7 +1211,7 @@ public class BleCore extends Logging {
 	public boolean handleActivityResult(int requestCode, int resultCode, Intent data) {
 		switch (requestCode) {
 			case REQ_CODE_ENABLE_BLUETOOOTH: {
-				getLogger().LOGd(TAG, "bluetooth enable result: " + resultCode);
+				getLogger().LOGd(TAG, "bluetooth enable result: %d", resultCode);
 				if (resultCode == Activity.RESULT_CANCELED) {
 					getLogger().LOGi(TAG, "bluetooth not enabled");
 					// Cancel the bluetooth enable request timeout, if any.
@@ -927,7 +1221,7 @@ public class BleCore extends Logging {
 				return true;
 			}
 			case REQ_CODE_ENABLE_LOCATION_SERVICES: {
-				getLogger().LOGd(TAG, "location services enable result: " + resultCode);
+				getLogger().LOGd(TAG, "location services enable result: %d", resultCode);
 				if (resultCode == Activity.RESULT_CANCELED) {
 					getLogger().LOGi(TAG, "location services not enabled");
 					// Cancel the location services enable request timeout, if any.
@@ -1003,6 +1297,9 @@ public class BleCore extends Logging {
 						sendEvent(BleCoreTypes.EVT_BLUETOOTH_OFF);
 
 						// TODO: this has to happen after event has been sent?
+						for (Connection connection : _connections.values()) {
+							connection.clearOperations(BleErrors.ERROR_NOT_READY);
+						}
 						_connections = new HashMap<>();
 						_scanning = false;
 
@@ -1326,12 +1623,12 @@ public class BleCore extends Logging {
 	 * @param timeout timeout in seconds
 	 */
 	private void setConnectTimeout(final String address, int timeout) {
-		// TODO: with this implementation, you can't set timeouts for multiple addresses at the same time.
-		_timeoutHandler.removeCallbacks(_connectTimeout);
-		_connectTimeout = new Runnable() {
+		clearConnectTimeout(address);
+		Runnable connectTimeout = new Runnable() {
 
 			@Override
 			public void run() {
+				_connectTimeouts.remove(address, this);
 				getLogger().LOGe(TAG, "timeout connecting to %s, ABORT!", address);
 				Connection connection = _connections.get(address);
 				if (connection == null) {
@@ -1355,15 +1652,19 @@ public class BleCore extends Logging {
 			}
 		};
 
-		_timeoutHandler.postDelayed(_connectTimeout, timeout);
+		_connectTimeouts.put(address, connectTimeout);
+		_timeoutHandler.postDelayed(connectTimeout, timeout);
 	}
 
 	/**
-	 * Clear the connect timeout (if connection was successful)
+	 * Clear the connect timeout of a device (if connection was successful)
 	 */
-	private void clearConnectTimeout() {
+	private void clearConnectTimeout(String address) {
 		getLogger().LOGd(TAG, "clear connect timeout");
-		_timeoutHandler.removeCallbacks(_connectTimeout);
+		Runnable connectTimeout = _connectTimeouts.remove(address);
+		if (connectTimeout != null) {
+			_timeoutHandler.removeCallbacks(connectTimeout);
+		}
 	}
 
 	/**
@@ -1377,7 +1678,7 @@ public class BleCore extends Logging {
 	 *                     onData: status is "connected" when successful.
 	 *                     onError: only errors that concern the connection state.
 	 */
-	public void connectDevice(String address, int timeout, final IStatusCallback callback) {
+	public void connectDevice(final String address, int timeout, final IStatusCallback callback) {
 		getLogger().LOGd(TAG, "Connecting to %s with %d ms timeout", address, timeout);
 
 		if (!isBluetoothReady()) {
@@ -1392,13 +1693,13 @@ public class BleCore extends Logging {
 		IStatusCallback connectCallback = new IStatusCallback() {
 			@Override
 			public void onSuccess() {
-				clearConnectTimeout();
+				clearConnectTimeout(address);
 				callback.onSuccess();
 			}
 
 			@Override
 			public void onError(int error) {
-				clearConnectTimeout();
+				clearConnectTimeout(address);
 				callback.onError(error);
 			}
 		};
@@ -1442,7 +1743,7 @@ public class BleCore extends Logging {
 				break;
 			}
 			default:
-				getLogger().LOGe(TAG, "Huh? Wrong state: " + connection.getConnectionState().name());
+				getLogger().LOGe(TAG, "Huh? Wrong state: %s", connection.getConnectionState().name());
 				connection.reject(BleErrors.ERROR_WRONG_STATE);
 		}
 
@@ -1462,7 +1763,7 @@ public class BleCore extends Logging {
 	 * @param callback the callback to be informed about success or failure
 	 */
 	public void disconnectDevice(String address, IStatusCallback callback) {
-		getLogger().LOGd(TAG, "disconnectDevice " + address);
+		getLogger().LOGd(TAG, "disconnectDevice %s", address);
 
 		if (!isBluetoothReady()) {
 			getLogger().LOGw(TAG, "not ready");
@@ -1489,7 +1790,7 @@ public class BleCore extends Logging {
 				return;
 			case DISCONNECTING:
 			case CONNECTING:
-				getLogger().LOGe(TAG, "Huh? Wrong state: " + connection.getConnectionState().name());
+				getLogger().LOGe(TAG, "Huh? Wrong state: %s", connection.getConnectionState().name());
 				connection.reject(BleErrors.ERROR_WRONG_STATE);
 				return;
 		}
@@ -1523,7 +1824,7 @@ public class BleCore extends Logging {
 	 * @param callback callback to be informed about success or failure
 	 */
 	public void closeDevice(String address, boolean clearCache, IStatusCallback callback) {
-		getLogger().LOGd(TAG, "closeDevice " + address);
+		getLogger().LOGd(TAG, "closeDevice %s", address);
 
 		if (!isBluetoothReady()) {
 			getLogger().LOGw(TAG, "not initialized");
@@ -1577,7 +1878,7 @@ public class BleCore extends Logging {
 	 * @param callback callback to be informed about success or failure
 	 */
 	public void disconnectAndCloseDevice(final String address, final boolean clearCache, final IStatusCallback callback) {
-		getLogger().LOGd(TAG, "disconnectAndCloseDevice " + address);
+		getLogger().LOGd(TAG, "disconnectAndCloseDevice %s", address);
 		disconnectDevice(address, new IStatusCallback() {
 			@Override
 			public void onSuccess() {
@@ -1620,6 +1921,23 @@ public class BleCore extends Logging {
 	 * @param callback callback to be invoked about discovered services and characteristics, or error
 	 */
 	public void discoverServices(String address, boolean forceDiscover, IDataCallback callback) {
+		discoverServices(address, forceDiscover, (IBaseCallback)callback);
+	}
+
+	/**
+	 * Start discovering services of the connected device, and return the result as typed object,
+	 * which avoids creating and parsing the discovery json.
+	 *
+	 * @param address the MAC address of the device for which the services should be discovered
+	 * @param forceDiscover, set to true to force a new discovery,
+	 *						 if false and cached discovery found, return the lib cache
+	 * @param callback callback to be invoked with the discovery, or error
+	 */
+	public void discoverServices(String address, boolean forceDiscover, IGattDiscoveryCallback callback) {
+		discoverServices(address, forceDiscover, (IBaseCallback)callback);
+	}
+
+	private void discoverServices(String address, boolean forceDiscover, IBaseCallback callback) {
 		getLogger().LOGd(TAG, "Discover services");
 
 		if (!isBluetoothReady()) {
@@ -1647,8 +1965,6 @@ public class BleCore extends Logging {
 			return;
 		}
 
-		JSONObject json;
-
 		BluetoothGatt gatt = connection.getGatt();
 		if (gatt == null) {
 			getLogger().LOGe(TAG, "Huh? gatt == null");
@@ -1664,8 +1980,13 @@ public class BleCore extends Logging {
 			case DISCOVERED:
 				if (!forceDiscover) {
 					getLogger().LOGd(TAG, "use cached discovery");
-					json = getDiscovery(gatt);
-					connection.resolve(json);
+					GattDiscovery discovery = connection.getDiscovery();
+					if (discovery == null) {
+						discovery = createDiscovery(gatt);
+						connection.setDiscovery(discovery);
+						connection.resolveCharacteristics(gatt);
+					}
+					connection.resolve(discovery);
 					return;
 				}
 				// else go to discovery, no break needed!
@@ -1700,7 +2021,7 @@ public class BleCore extends Logging {
 			final Method refresh = gatt.getClass().getMethod("refresh");
 			if (refresh != null) {
 				success = (Boolean) refresh.invoke(gatt);
-				getLogger().LOGd(TAG, "Refreshing result: " + success);
+				getLogger().LOGd(TAG, "Refreshing result: %s", success);
 			}
 		} catch (Exception e) {
 			getLogger().LOGe(TAG, "An exception occurred while refreshing device", e);
@@ -1763,7 +2084,7 @@ public class BleCore extends Logging {
 
 	/**
 	 * Get the discovery from the device after a discover, i.e. list of all services and characteristics
-	 * parses the discovery and creates a json object with services array and characteristics arrays
+	 * converts the discovery and creates a json object with services array and characteristics arrays
 	 * in the form of
 	 * {
 	 *     status: discovered,
@@ -1787,9 +2108,10 @@ public class BleCore extends Logging {
 	 *     ]
 	 * }
 	 * @param gatt the bluetooth gatt server obtained from the connection
+	 * @param discovery the discovery of the gatt
 	 * @return the json object
 	 */
-	private JSONObject getDiscovery(BluetoothGatt gatt) {
+	private JSONObject getDiscoveryJson(BluetoothGatt gatt, GattDiscovery discovery) {
 
 		JSONObject deviceJson = new JSONObject();
 		BluetoothDevice device = gatt.getDevice();
@@ -1800,26 +2122,33 @@ public class BleCore extends Logging {
 
 		// add all services ...
 		JSONArray servicesArray = new JSONArray();
-		for (BluetoothGattService service : gatt.getServices()) {
+		for (GattDiscovery.Service service : discovery.getServices()) {
 			JSONObject serviceJson = new JSONObject();
 
-			addProperty(serviceJson, BleCoreTypes.PROPERTY_SERVICE_UUID, BleUtils.uuidToString(service.getUuid()));
+			addProperty(serviceJson, BleCoreTypes.PROPERTY_SERVICE_UUID, service.getUuid());
 
 			// .. for each service, add all characteristics ...
 			JSONArray characteristicsArray = new JSONArray();
-			for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+			BluetoothGattService gattService = gatt.getService(UUID.fromString(service.getUuid()));
+			for (GattDiscovery.Characteristic characteristic : service.getCharacteristics()) {
 				JSONObject characteristicJson = new JSONObject();
 
-				addProperty(characteristicJson, BleCoreTypes.PROPERTY_CHARACTERISTIC_UUID, BleUtils.uuidToString(characteristic.getUuid()));
-				addProperty(characteristicJson, BleCoreTypes.PROPERTY_PROPERTIES, getProperties(characteristic));
+				addProperty(characteristicJson, BleCoreTypes.PROPERTY_CHARACTERISTIC_UUID, characteristic.getUuid());
+				addProperty(characteristicJson, BleCoreTypes.PROPERTY_PROPERTIES, getProperties(characteristic.getProperties()));
 
 				// .. for each characteristics, add all descriptors ...
 				JSONArray descriptorsArray = new JSONArray();
-				for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
-					JSONObject descriptorJson = new JSONObject();
+				BluetoothGattCharacteristic gattCharacteristic = null;
+				if (gattService != null) {
+					gattCharacteristic = gattService.getCharacteristic(UUID.fromString(characteristic.getUuid()));
+				}
+				if (gattCharacteristic != null) {
+					for (BluetoothGattDescriptor descriptor : gattCharacteristic.getDescriptors()) {
+						JSONObject descriptorJson = new JSONObject();
 
-					addProperty(descriptorJson, BleCoreTypes.PROPERTY_DESCRIPTOR_UUID, BleUtils.uuidToString(descriptor.getUuid()));
-					descriptorsArray.put(descriptorJson);
+						addProperty(descriptorJson, BleCoreTypes.PROPERTY_DESCRIPTOR_UUID, BleUtils.uuidToString(descriptor.getUuid()));
+						descriptorsArray.put(descriptorJson);
+					}
 				}
 
 				addProperty(characteristicJson, BleCoreTypes.PROPERTY_DESCRIPTORS, descriptorsArray);
@@ -1835,6 +2164,23 @@ public class BleCore extends Logging {
 		return deviceJson;
 	}
 
+	/**
+	 * Create the typed discovery from the services of the gatt, after a discover.
+	 * @param gatt the bluetooth gatt server obtained from the connection
+	 * @return the discovery
+	 */
+	private GattDiscovery createDiscovery(BluetoothGatt gatt) {
+		ArrayList<GattDiscovery.Service> services = new ArrayList<>();
+		for (BluetoothGattService service : gatt.getServices()) {
+			ArrayList<GattDiscovery.Characteristic> characteristics = new ArrayList<>();
+			for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+				characteristics.add(new GattDiscovery.Characteristic(BleUtils.uuidToString(characteristic.getUuid()), characteristic.getProperties()));
+			}
+			services.add(new GattDiscovery.Service(BleUtils.uuidToString(service.getUuid()), characteristics));
+		}
+		return new GattDiscovery(gatt.getDevice().getAddress(), services);
+	}
+
 	/**
 	 * Return the properties of a characteristic as a json, the json has the following boolean fields:
 	 * 		extendedProperties
@@ -1846,12 +2192,11 @@ public class BleCore extends Logging {
 	 * 		read
 	 * 		broadcast
 	 *
-	 * @param characteristic the characteristic in question
+	 * @param properties the properties of the characteristic
 	 * @return json with the properties of the characteristic
 	 */
-	private JSONObject getProperties(BluetoothGattCharacteristic characteristic) {
+	private JSONObject getProperties(int properties) {
 
-		int properties = characteristic.getProperties();
 		JSONObject propertiesJSON = new JSONObject();
 
 		addProperty(propertiesJSON, BleCoreTypes.CHARACTERISTIC_PROP_BROADCAST, hasCharacteristicProperty(properties, BluetoothGattCharacteristic.PROPERTY_BROADCAST));
@@ -1884,7 +2229,49 @@ public class BleCore extends Logging {
 	 * @param callback callback to be informed about read value or error
 	 */
 	public void read(String address, String serviceUuid, String characteristicUuid, IDataCallback callback) {
-		getLogger().LOGd(TAG, "read " + serviceUuid + " " + characteristicUuid + " from " + address);
+		read(address, serviceUuid, characteristicUuid, callback, GattOperationQueue.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Read a characteristic. The read is queued, and executed once the operations before it
+	 * are done.
+	 *
+	 * @param address MAC address of the device
+	 * @param serviceUuid UUID of the service containing the characteristic
+	 * @param characteristicUuid UUID of the characteristic
+	 * @param callback callback to be informed about read value or error
+	 * @param priority priority of the read, see {@link GattOperationQueue}
+	 */
+	public void read(String address, String serviceUuid, String characteristicUuid, IDataCallback callback, int priority) {
+		readHandle(address, GattHandle.lookup(serviceUuid, characteristicUuid), callback, priority);
+	}
+
+	/**
+	 * Read a characteristic
+	 *
+	 * @param address MAC address of the device
+	 * @param handle handle of the characteristic, see {@link GattHandle}
+	 * @param callback callback to be informed about read value or error
+	 */
+	public void read(String address, GattHandle handle, IDataCallback callback) {
+		read(address, handle, callback, GattOperationQueue.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Read a characteristic. The read is queued, and executed once the operations before it
+	 * are done.
+	 *
+	 * @param address MAC address of the device
+	 * @param handle handle of the characteristic, see {@link GattHandle}
+	 * @param callback callback to be informed about read value or error
+	 * @param priority priority of the read, see {@link GattOperationQueue}
+	 */
+	public void read(String address, GattHandle handle, IDataCallback callback, int priority) {
+		readHandle(address, handle, callback, priority);
+	}
+
+	private void readHandle(String address, final GattHandle handle, IDataCallback callback, int priority) {
+		getLogger().LOGd(TAG, "read %s from %s", handle, address);
 
 		if (!isBluetoothReady()) {
 			getLogger().LOGe(TAG, "not ready");
@@ -1892,55 +2279,32 @@ public class BleCore extends Logging {
 			return;
 		}
 
-		Connection connection = _connections.get(address);
+		final Connection connection = _connections.get(address);
 		if (connection == null) {
 			getLogger().LOGe(TAG, "never connected");
 			callback.onError(BleErrors.ERROR_NEVER_CONNECTED);
 			return;
 		}
 
-		if (!connection.setCallback(callback, ActionType.READ)) {
-            getLogger().LOGw(TAG, "busy");
-            callback.onError(BleErrors.ERROR_BUSY);
-            return;
-        }
-
-		if (connection.getConnectionState() != ConnectionState.CONNECTED) {
-			getLogger().LOGe(TAG, "not connected");
-			connection.reject(BleErrors.ERROR_NOT_CONNECTED);
-			return;
-		}
-
-		BluetoothGatt gatt = connection.getGatt();
-        if (gatt == null) {
-            getLogger().LOGe(TAG, "Huh? gatt == null");
-            // TODO: remove connection from _connections?
-            connection.reject(BleErrors.ERROR_DEVICE_NOT_FOUND);
-            return;
-        }
-
-		BluetoothGattService service = gatt.getService(BleUtils.stringToUuid(serviceUuid));
-		if (service == null) {
-			getLogger().LOGe(TAG, "service not found!");
-			connection.reject(BleErrors.ERROR_SERVICE_NOT_FOUND);
-			return;
-		}
-
-		BluetoothGattCharacteristic characteristic = service.getCharacteristic(BleUtils.stringToUuid(characteristicUuid));
-		if (characteristic == null) {
-			getLogger().LOGe(TAG, "characteristic not found!");
-			connection.reject(BleErrors.ERROR_CHARACTERISTIC_NOT_FOUND);
-			return;
-		}
+		connection.addOperation(new GattOperation(connection, ActionType.READ, callback, priority) {
+			@Override
+			protected int start(BluetoothGatt gatt) {
+				BluetoothGattCharacteristic characteristic = connection.getCharacteristic(gatt, handle);
+				if (characteristic == null) {
+					return getNotFoundError(gatt, handle);
+				}
+				setCharacteristicUuid(handle.getCharacteristicUuid());
 
-		boolean result = gatt.readCharacteristic(characteristic);
-		if (!result) {
-			getLogger().LOGe(TAG, "failed to read from characteristic!");
-			connection.reject(BleErrors.ERROR_CHARACTERISTIC_READ_FAILED);
-			return;
-		}
-		getLogger().LOGd(TAG, "read done");
-        // Resolve in BluetoothGattCallbackExt.onCharacteristicRead
+				boolean result = gatt.readCharacteristic(characteristic);
+				if (!result) {
+					getLogger().LOGe(TAG, "failed to read from characteristic!");
+					return BleErrors.ERROR_CHARACTERISTIC_READ_FAILED;
+				}
+				getLogger().LOGd(TAG, "read done");
+				// Resolve in BluetoothGattCallbackExt.onCharacteristicRead
+				return 0;
+			}
+		});
 	}
 
 	/**
@@ -1953,7 +2317,48 @@ public class BleCore extends Logging {
 	 * @param callback callback to be informed about success or error
 	 */
 	public void write(String address, String serviceUuid, String characteristicUuid, byte[] value, IStatusCallback callback) {
-		write(address, serviceUuid, characteristicUuid, value, callback, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+		write(address, serviceUuid, characteristicUuid, value, callback, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, GattOperationQueue.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Write to a characteristic with write type default and given priority. The write is queued,
+	 * and executed once the operations before it are done.
+	 *
+	 * @param address MAC address of the device
+	 * @param serviceUuid UUID of the service containing the characteristic
+	 * @param characteristicUuid UUID of the characteristic
+	 * @param value the value to be written as an array of bytes
+	 * @param callback callback to be informed about success or error
+	 * @param priority priority of the write, see {@link GattOperationQueue}
+	 */
+	public void write(String address, String serviceUuid, String characteristicUuid, byte[] value, IStatusCallback callback, int priority) {
+		write(address, serviceUuid, characteristicUuid, value, callback, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, priority);
+	}
+
+	/**
+	 * Write to a characteristic with write type default
+	 *
+	 * @param address MAC address of the device
+	 * @param handle handle of the characteristic, see {@link GattHandle}
+	 * @param value the value to be written as an array of bytes
+	 * @param callback callback to be informed about success or error
+	 */
+	public void write(String address, GattHandle handle, byte[] value, IStatusCallback callback) {
+		write(address, handle, value, callback, GattOperationQueue.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Write to a characteristic with write type default and given priority. The write is queued,
+	 * and executed once the operations before it are done.
+	 *
+	 * @param address MAC address of the device
+	 * @param handle handle of the characteristic, see {@link GattHandle}
+	 * @param value the value to be written as an array of bytes
+	 * @param callback callback to be informed about success or error
+	 * @param priority priority of the write, see {@link GattOperationQueue}
+	 */
+	public void write(String address, GattHandle handle, byte[] value, IStatusCallback callback, int priority) {
+		writeHandle(address, handle, value, callback, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, priority);
 	}
 
 	/**
@@ -1966,7 +2371,7 @@ public class BleCore extends Logging {
 	 * @param callback callback to be informed about success or error
 	 */
 	public void writeNoResponse(String address, String serviceUuid, String characteristicUuid, byte[] value, IStatusCallback callback) {
-		write(address, serviceUuid, characteristicUuid, value, callback, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+		write(address, serviceUuid, characteristicUuid, value, callback, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, GattOperationQueue.PRIORITY_NORMAL);
 	}
 
 	/**
@@ -1978,9 +2383,14 @@ public class BleCore extends Logging {
 	 * @param value the value to be written as an array of bytes
 	 * @param callback callback to be informed about success or error
 	 * @param writeType write type to be used, see {@link BluetoothGattCharacteristic}
+	 * @param priority priority of the write, see {@link GattOperationQueue}
 	 */
-	private synchronized void write(String address, String serviceUuid, String characteristicUuid, byte[] value, IStatusCallback callback, int writeType) {
-        getLogger().LOGd(TAG, "write " + serviceUuid + " " + characteristicUuid + " on " + address);
+	private void write(String address, String serviceUuid, String characteristicUuid, byte[] value, IStatusCallback callback, int writeType, int priority) {
+		writeHandle(address, GattHandle.lookup(serviceUuid, characteristicUuid), value, callback, writeType, priority);
+	}
+
+	private void writeHandle(String address, final GattHandle handle, final byte[] value, IStatusCallback callback, final int writeType, int priority) {
+        getLogger().LOGd(TAG, "write %s on %s", handle, address);
 
 		if (!isBluetoothReady()) {
 			getLogger().LOGe(TAG, "not ready");
@@ -1988,63 +2398,39 @@ public class BleCore extends Logging {
 			return;
 		}
 
-        Connection connection = _connections.get(address);
+        final Connection connection = _connections.get(address);
         if (connection == null) {
             getLogger().LOGe(TAG, "never connected");
             callback.onError(BleErrors.ERROR_NEVER_CONNECTED);
             return;
         }
 
-        if (!connection.setCallback(callback, ActionType.WRITE)) {
-            getLogger().LOGw(TAG, "busy");
-            callback.onError(BleErrors.ERROR_BUSY);
-            return;
-        }
-
-        if (connection.getConnectionState() != ConnectionState.CONNECTED) {
-            getLogger().LOGe(TAG, "not connected");
-            connection.reject(BleErrors.ERROR_NOT_CONNECTED);
-            return;
-        }
-
-        BluetoothGatt gatt = connection.getGatt();
-        if (gatt == null) {
-            getLogger().LOGe(TAG, "Huh? gatt == null");
-            // TODO: remove connection from _connections?
-            connection.reject(BleErrors.ERROR_DEVICE_NOT_FOUND);
-            return;
-        }
-
-        BluetoothGattService service = gatt.getService(BleUtils.stringToUuid(serviceUuid));
-        if (service == null) {
-            getLogger().LOGe(TAG, "service not found!");
-            connection.reject(BleErrors.ERROR_SERVICE_NOT_FOUND);
-            return;
-        }
-
-        BluetoothGattCharacteristic characteristic = service.getCharacteristic(BleUtils.stringToUuid(characteristicUuid));
-        if (characteristic == null) {
-            getLogger().LOGe(TAG, "characteristic not found!");
-            connection.reject(BleErrors.ERROR_CHARACTERISTIC_NOT_FOUND);
-            return;
-        }
+		connection.addOperation(new GattOperation(connection, ActionType.WRITE, callback, priority) {
+			@Override
+			protected int start(BluetoothGatt gatt) {
+				BluetoothGattCharacteristic characteristic = connection.getCharacteristic(gatt, handle);
+				if (characteristic == null) {
+					return getNotFoundError(gatt, handle);
+				}
+				setCharacteristicUuid(handle.getCharacteristicUuid());
 
-		characteristic.setWriteType(writeType);
-		boolean result = characteristic.setValue(value);
-		if (!result) {
-			getLogger().LOGe(TAG, "failed to set value!");
-			connection.reject(BleErrors.ERROR_WRITE_VALUE_NOT_SET);
-			return;
-		}
+				characteristic.setWriteType(writeType);
+				boolean result = characteristic.setValue(value);
+				if (!result) {
+					getLogger().LOGe(TAG, "failed to set value!");
+					return BleErrors.ERROR_WRITE_VALUE_NOT_SET;
+				}
 
-		result = gatt.writeCharacteristic(characteristic);
-		if (!result) {
-			getLogger().LOGe(TAG, "failed to write characteristic!");
-			connection.reject(BleErrors.ERROR_WRITE_FAILED);
-			return;
-		}
-		getLogger().LOGd(TAG, "write done");
-		// Resolve in BluetoothGattCallbackExt.onCharacteristicWrite
+				result = gatt.writeCharacteristic(characteristic);
+				if (!result) {
+					getLogger().LOGe(TAG, "failed to write characteristic!");
+					return BleErrors.ERROR_WRITE_FAILED;
+				}
+				getLogger().LOGd(TAG, "write done");
+				// Resolve in BluetoothGattCallbackExt.onCharacteristicWrite
+				return 0;
+			}
+		});
 	}
 
 	/**
@@ -2057,8 +2443,21 @@ public class BleCore extends Logging {
 	 * @param notificationCallback callback invoked on received notifications
 	 */
 	protected void subscribe(String address, String serviceUuid, String characteristicUuid,
-								IStatusCallback callback, INotificationCallback notificationCallback) {
-        getLogger().LOGd(TAG, "subscribe to " + serviceUuid + " " + characteristicUuid + " on " + address);
+								IStatusCallback callback, final INotificationCallback notificationCallback) {
+		subscribe(address, GattHandle.lookup(serviceUuid, characteristicUuid), callback, notificationCallback);
+	}
+
+	/**
+	 * Subscribe to a characteristic in order to receive notifications.
+	 *
+	 * @param address MAC address of the device
+	 * @param handle handle of the characteristic, see {@link GattHandle}
+	 * @param callback callback to be informed about success or error
+	 * @param notificationCallback callback invoked on received notifications
+	 */
+	protected void subscribe(String address, final GattHandle handle,
+								IStatusCallback callback, final INotificationCallback notificationCallback) {
+        getLogger().LOGd(TAG, "subscribe to %s on %s", handle, address);
 
 		if (!isBluetoothReady()) {
 			getLogger().LOGe(TAG, "not ready");
@@ -2066,77 +2465,51 @@ public class BleCore extends Logging {
 			return;
 		}
 
-		Connection connection = _connections.get(address);
+		final Connection connection = _connections.get(address);
 		if (connection == null) {
 			getLogger().LOGe(TAG, "never connected");
             callback.onError(BleErrors.ERROR_NEVER_CONNECTED);
 			return;
 		}
 
-        if (!connection.setCallback(callback, ActionType.SUBSCRIBE)) {
-            getLogger().LOGw(TAG, "busy");
-            callback.onError(BleErrors.ERROR_BUSY);
-            return;
-        }
-
-		if (connection.getConnectionState() != ConnectionState.CONNECTED) {
-			getLogger().LOGe(TAG, "not connected");
-			connection.reject(BleErrors.ERROR_NOT_CONNECTED);
-			return;
-		}
-
-        BluetoothGatt gatt = connection.getGatt();
-        if (gatt == null) {
-            getLogger().LOGe(TAG, "Huh? gatt == null");
-            // TODO: remove connection from _connections?
-            connection.reject(BleErrors.ERROR_DEVICE_NOT_FOUND);
-            return;
-        }
-
-        BluetoothGattService service = gatt.getService(BleUtils.stringToUuid(serviceUuid));
-        if (service == null) {
-            getLogger().LOGe(TAG, "service not found!");
-            connection.reject(BleErrors.ERROR_SERVICE_NOT_FOUND);
-            return;
-        }
-
-        BluetoothGattCharacteristic characteristic = service.getCharacteristic(BleUtils.stringToUuid(characteristicUuid));
-        if (characteristic == null) {
-            getLogger().LOGe(TAG, "characteristic not found!");
-            connection.reject(BleErrors.ERROR_CHARACTERISTIC_NOT_FOUND);
-            return;
-        }
+		connection.addOperation(new GattOperation(connection, ActionType.SUBSCRIBE, callback, GattOperationQueue.PRIORITY_NORMAL) {
+			@Override
+			protected int start(BluetoothGatt gatt) {
+				BluetoothGattCharacteristic characteristic = connection.getCharacteristic(gatt, handle);
+				if (characteristic == null) {
+					return getNotFoundError(gatt, handle);
+				}
+				setCharacteristicUuid(handle.getCharacteristicUuid());
 
-        if (connection.getNotificationCallbacks().containsKey(characteristic.getUuid())) {
-            getLogger().LOGe(TAG, "Already subscribed");
-            connection.reject(BleErrors.ERROR_ALREADY_SUBSCRIBED);
-            return;
-        }
+				if (connection.getNotificationCallbacks().containsKey(characteristic.getUuid())) {
+					getLogger().LOGe(TAG, "Already subscribed");
+					return BleErrors.ERROR_ALREADY_SUBSCRIBED;
+				}
 
-		BluetoothGattDescriptor descriptor = characteristic.getDescriptor(BleCoreTypes.CLIENT_CONFIGURATION_DESCRIPTOR_UUID);
-		if (descriptor == null) {
-			getLogger().LOGe(TAG, "descriptor not found!");
-            connection.reject(BleErrors.ERROR_NOTIFICATION_DESCRIPTOR_NOT_FOUND);
-			return;
-		}
+				BluetoothGattDescriptor descriptor = characteristic.getDescriptor(BleCoreTypes.CLIENT_CONFIGURATION_DESCRIPTOR_UUID);
+				if (descriptor == null) {
+					getLogger().LOGe(TAG, "descriptor not found!");
+					return BleErrors.ERROR_NOTIFICATION_DESCRIPTOR_NOT_FOUND;
+				}
 
-		boolean result = descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-		if (!result) {
-			getLogger().LOGe(TAG, "failed to set descriptor for notifications!");
-			connection.reject(BleErrors.ERROR_DESCRIPTOR_SET_FAILED);
-			return;
-		}
+				boolean result = descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+				if (!result) {
+					getLogger().LOGe(TAG, "failed to set descriptor for notifications!");
+					return BleErrors.ERROR_DESCRIPTOR_SET_FAILED;
+				}
 
-		result = gatt.writeDescriptor(descriptor);
-		if (!result) {
-			getLogger().LOGe(TAG, "failed to subscribe for notifications!");
-			connection.reject(BleErrors.ERROR_SUBSCRIBE_NOTIFICATION_FAILED);
-			return;
-		}
+				result = gatt.writeDescriptor(descriptor);
+				if (!result) {
+					getLogger().LOGe(TAG, "failed to subscribe for notifications!");
+					return BleErrors.ERROR_SUBSCRIBE_NOTIFICATION_FAILED;
+				}
 
-		connection.getNotificationCallbacks().put(characteristic.getUuid(), notificationCallback);
-		getLogger().LOGd(TAG, "subscribe done");
-		// Resolve in BluetoothGattCallbackExt.onDescriptorWrite
+				connection.getNotificationCallbacks().put(characteristic.getUuid(), notificationCallback);
+				getLogger().LOGd(TAG, "subscribe done");
+				// Resolve in BluetoothGattCallbackExt.onDescriptorWrite
+				return 0;
+			}
+		});
 	}
 
 	/**
@@ -2149,7 +2522,18 @@ public class BleCore extends Logging {
 	 */
 	protected void unsubscribe(String address, String serviceUuid, String characteristicUuid,
 								  IStatusCallback callback) {
-        getLogger().LOGd(TAG, "unsubscribe from " + serviceUuid + " " + characteristicUuid + " on " + address);
+		unsubscribe(address, GattHandle.lookup(serviceUuid, characteristicUuid), callback);
+	}
+
+	/**
+	 * Unsubscribe from a characteristic, i.e. stop receiving notifications
+	 *
+	 * @param address MAC address of the device
+	 * @param handle handle of the characteristic, see {@link GattHandle}
+	 * @param callback callback to be informed about success or error
+	 */
+	protected void unsubscribe(String address, final GattHandle handle, IStatusCallback callback) {
+        getLogger().LOGd(TAG, "unsubscribe from %s on %s", handle, address);
 
         if (!isBluetoothReady()) {
             getLogger().LOGe(TAG, "not ready");
@@ -2157,71 +2541,95 @@ public class BleCore extends Logging {
             return;
         }
 
-        Connection connection = _connections.get(address);
+        final Connection connection = _connections.get(address);
         if (connection == null) {
             getLogger().LOGe(TAG, "never connected");
             callback.onError(BleErrors.ERROR_NEVER_CONNECTED);
             return;
         }
 
-        if (!connection.setCallback(callback, ActionType.UNSUBSCRIBE)) {
-            getLogger().LOGw(TAG, "busy");
-            callback.onError(BleErrors.ERROR_BUSY);
-            return;
-        }
+		connection.addOperation(new GattOperation(connection, ActionType.UNSUBSCRIBE, callback, GattOperationQueue.PRIORITY_NORMAL) {
+			@Override
+			protected int start(BluetoothGatt gatt) {
+				BluetoothGattCharacteristic characteristic = connection.getCharacteristic(gatt, handle);
+				if (characteristic == null) {
+					return getNotFoundError(gatt, handle);
+				}
+				setCharacteristicUuid(handle.getCharacteristicUuid());
 
-        if (connection.getConnectionState() != ConnectionState.CONNECTED) {
-            getLogger().LOGe(TAG, "not connected");
-            connection.reject(BleErrors.ERROR_NOT_CONNECTED);
-            return;
-        }
+				BluetoothGattDescriptor descriptor = characteristic.getDescriptor(BleCoreTypes.CLIENT_CONFIGURATION_DESCRIPTOR_UUID);
+				if (descriptor == null) {
+					getLogger().LOGe(TAG, "descriptor not found!");
+					return BleErrors.ERROR_NOTIFICATION_DESCRIPTOR_NOT_FOUND;
+				}
 
-        BluetoothGatt gatt = connection.getGatt();
-        if (gatt == null) {
-            getLogger().LOGe(TAG, "Huh? gatt == null");
-            // TODO: remove connection from _connections?
-            connection.reject(BleErrors.ERROR_DEVICE_NOT_FOUND);
-            return;
-        }
+				boolean result = descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+				if (!result) {
+					getLogger().LOGe(TAG, "failed to set descriptor for notifications!");
+					return BleErrors.ERROR_DESCRIPTOR_SET_FAILED;
+				}
 
-        BluetoothGattService service = gatt.getService(BleUtils.stringToUuid(serviceUuid));
-        if (service == null) {
-            getLogger().LOGe(TAG, "service not found!");
-            connection.reject(BleErrors.ERROR_SERVICE_NOT_FOUND);
-            return;
-        }
+				result = gatt.writeDescriptor(descriptor);
+				if (!result) {
+					getLogger().LOGe(TAG, "failed to unsubscribe from notifications!");
+					return BleErrors.ERROR_UNSUBSCRIBE_NOTIFICATION_FAILED;
+				}
 
-        BluetoothGattCharacteristic characteristic = service.getCharacteristic(BleUtils.stringToUuid(characteristicUuid));
-        if (characteristic == null) {
-            getLogger().LOGe(TAG, "characteristic not found!");
-            connection.reject(BleErrors.ERROR_CHARACTERISTIC_NOT_FOUND);
-            return;
-        }
+				getLogger().LOGd(TAG, "unsubscribe done");
+				// Resolve in BluetoothGattCallbackExt.onDescriptorWrite
+				// Remove notification callback in BluetoothGattCallbackExt.onDescriptorWrite
+				return 0;
+			}
+		});
+	}
 
-        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(BleCoreTypes.CLIENT_CONFIGURATION_DESCRIPTOR_UUID);
-        if (descriptor == null) {
-            getLogger().LOGe(TAG, "descriptor not found!");
-            connection.reject(BleErrors.ERROR_NOTIFICATION_DESCRIPTOR_NOT_FOUND);
-            return;
-        }
+	/**
+	 * Look up the characteristic of a handle in the services of the gatt.
+	 * @return the characteristic, or null if not found
+	 */
+	private static BluetoothGattCharacteristic findCharacteristic(BluetoothGatt gatt, GattHandle handle) {
+		BluetoothGattService service = gatt.getService(handle.getServiceUuid());
+		if (service == null) {
+			return null;
+		}
+		return service.getCharacteristic(handle.getCharacteristicUuid());
+	}
 
-        boolean result = descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-        if (!result) {
-            getLogger().LOGe(TAG, "failed to set descriptor for notifications!");
-            connection.reject(BleErrors.ERROR_DESCRIPTOR_SET_FAILED);
-            return;
-        }
+	/**
+	 * Get the error for a characteristic that was not found.
+	 * @return ERROR_SERVICE_NOT_FOUND or ERROR_CHARACTERISTIC_NOT_FOUND
+	 */
+	private int getNotFoundError(BluetoothGatt gatt, GattHandle handle) {
+		if (gatt.getService(handle.getServiceUuid()) == null) {
+			getLogger().LOGe(TAG, "service not found!");
+			return BleErrors.ERROR_SERVICE_NOT_FOUND;
+		}
+		getLogger().LOGe(TAG, "characteristic not found!");
+		return BleErrors.ERROR_CHARACTERISTIC_NOT_FOUND;
+	}
 
-        result = gatt.writeDescriptor(descriptor);
-        if (!result) {
-            getLogger().LOGe(TAG, "failed to unsubscribe from notifications!");
-            connection.reject(BleErrors.ERROR_UNSUBSCRIBE_NOTIFICATION_FAILED);
-            return;
-        }
+	/**
+	 * Set the timeout of GATT operations (read, write, subscribe, unsubscribe). When an
+	 * operation times out, it fails with ERROR_TIMEOUT and the next queued operation is executed.
+	 * Only applies to operations that are added after this call.
+	 *
+	 * @param timeout timeout in ms, 0 for no timeout
+	 */
+	public void setOperationTimeout(int timeout) {
+		_operationTimeout = timeout;
+	}
 
-        getLogger().LOGd(TAG, "unsubscribe done");
-        // Resolve in BluetoothGattCallbackExt.onDescriptorWrite
-		// Remove notification callback in BluetoothGattCallbackExt.onDescriptorWrite
+	/**
+	 * Cancel all queued GATT operations of a device, and the one being executed. The operations
+	 * fail with ERROR_CANCELLED.
+	 *
+	 * @param address MAC address of the device
+	 */
+	public void cancelOperations(String address) {
+		Connection connection = _connections.get(address);
+		if (connection != null) {
+			connection.cancelOperations();
+		}
 	}
 
 
@@ -2250,7 +2658,7 @@ public class BleCore extends Logging {
 			if (status != BluetoothGatt.GATT_SUCCESS) {
                 getLogger().LOGe(TAG, "BluetoothGatt Error, status: %d", status);
 
-                clearConnectTimeout(); // TODO: do we want this here?
+                clearConnectTimeout(address); // TODO: do we want this here?
 
                 // [03.01.17] do not call gatt.close() here, it seems to lead to more gatt error 133
                 //   and BluetoothGatt calls close by itself
@@ -2280,7 +2688,7 @@ public class BleCore extends Logging {
                     getLogger().LOGd(TAG, "Connected to GATT server.");
 
                     if (connection == null) {
-                        getLogger().LOGw(TAG, "No registered connection for device " + address);
+                        getLogger().LOGw(TAG, "No registered connection for device %s", address);
                         return;
                     }
 
@@ -2296,7 +2704,7 @@ public class BleCore extends Logging {
                     getLogger().LOGd(TAG, "Disconnected from GATT server.");
 
                     if (connection == null) {
-                        getLogger().LOGw(TAG, "No registered connection for device " + address);
+                        getLogger().LOGw(TAG, "No registered connection for device %s", address);
                         return;
                     }
 
@@ -2309,7 +2717,7 @@ public class BleCore extends Logging {
                     break;
                 }
                 default:
-                    getLogger().LOGd(TAG, "newState " + address + " = " + status);
+                    getLogger().LOGd(TAG, "newState %s = %d", address, status);
             }
 		}
 
@@ -2323,7 +2731,7 @@ public class BleCore extends Logging {
             String address = device.getAddress();
 			Connection connection = _connections.get(address);
             if (connection == null) {
-                getLogger().LOGe(TAG, "Huh? No registered connection for device " + address);
+                getLogger().LOGe(TAG, "Huh? No registered connection for device %s", address);
                 return;
             }
 
@@ -2340,8 +2748,10 @@ public class BleCore extends Logging {
                 return;
             }
 
-            JSONObject json = getDiscovery(gatt);
-            connection.resolve(json);
+            GattDiscovery discovery = createDiscovery(gatt);
+            connection.setDiscovery(discovery);
+            connection.resolveCharacteristics(gatt);
+            connection.resolve(discovery);
 		}
 
 		/**
@@ -2352,10 +2762,15 @@ public class BleCore extends Logging {
 		public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             BluetoothDevice device = gatt.getDevice();
             String address = device.getAddress();
-			getLogger().LOGd(TAG, "onCharacteristicRead " + address + " char: " + characteristic.getUuid());
+			getLogger().LOGd(TAG, "onCharacteristicRead %s char: %s", address, characteristic.getUuid());
             Connection connection = _connections.get(address);
             if (connection == null) {
-                getLogger().LOGe(TAG, "Huh? No registered connection for device " + address);
+                getLogger().LOGe(TAG, "Huh? No registered connection for device %s", address);
+                return;
+            }
+
+            if (!connection.isExpectedCharacteristic(characteristic.getUuid())) {
+                getLogger().LOGw(TAG, "Ignore read result of previous operation");
                 return;
             }
 
@@ -2385,21 +2800,21 @@ public class BleCore extends Logging {
 		public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
             BluetoothDevice device = gatt.getDevice();
             String address = device.getAddress();
-			getLogger().LOGd(TAG, "onCharacteristicChanged " + address + " char: " + characteristic.getUuid());
+			getLogger().LOGd(TAG, "onCharacteristicChanged %s char: %s", address, characteristic.getUuid());
             Connection connection = _connections.get(address);
             if (connection == null) {
-                getLogger().LOGe(TAG, "Huh? No registered connection for device " + address);
+                getLogger().LOGe(TAG, "Huh? No registered connection for device %s", address);
                 return;
             }
 
             UUID uuidCharacteristic = characteristic.getUuid();
             INotificationCallback notificationCallback = connection.getNotificationCallbacks().get(uuidCharacteristic);
             if (notificationCallback == null) {
-                getLogger().LOGe(TAG, "Huh? No callback for " + characteristic);
+                getLogger().LOGe(TAG, "Huh? No callback for %s", characteristic);
                 return;
             }
 
-            getLogger().LOGd(TAG, "notification: %s", BleUtils.bytesToString(characteristic.getValue()));
+            getLogger().LOGd(TAG, "notification: %s", characteristic.getValue());
             JSONObject json = new JSONObject();
             setStatus(json, BleCoreTypes.CHARACTERISTIC_PROP_NOTIFY);
             setCharacteristic(json, characteristic);
@@ -2415,10 +2830,15 @@ public class BleCore extends Logging {
 		public synchronized void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
 			BluetoothDevice device = gatt.getDevice();
 			String address = device.getAddress();
-			getLogger().LOGd(TAG, "onCharacteristicWrite " + address + " char: " + characteristic.getUuid());
+			getLogger().LOGd(TAG, "onCharacteristicWrite %s char: %s", address, characteristic.getUuid());
 			Connection connection = _connections.get(address);
             if (connection == null) {
-                getLogger().LOGe(TAG, "Huh? No registered connection for device " + address);
+                getLogger().LOGe(TAG, "Huh? No registered connection for device %s", address);
+                return;
+            }
+
+            if (!connection.isExpectedCharacteristic(characteristic.getUuid())) {
+                getLogger().LOGw(TAG, "Ignore write result of previous operation");
                 return;
             }
 
@@ -2462,10 +2882,10 @@ public class BleCore extends Logging {
 		public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             BluetoothDevice device = gatt.getDevice();
             String address = device.getAddress();
-			getLogger().LOGd(TAG, "onDescriptorWrite " + address + " char: " + descriptor.getCharacteristic().getUuid());
+			getLogger().LOGd(TAG, "onDescriptorWrite %s char: %s", address, descriptor.getCharacteristic().getUuid());
             Connection connection = _connections.get(address);
             if (connection == null) {
-                getLogger().LOGe(TAG, "Huh? No registered connection for device " + address);
+                getLogger().LOGe(TAG, "Huh? No registered connection for device %s", address);
                 return;
             }
 
@@ -2473,6 +2893,11 @@ public class BleCore extends Logging {
                 return;
             }
 
+            if (!connection.isExpectedCharacteristic(descriptor.getCharacteristic().getUuid())) {
+                getLogger().LOGw(TAG, "Ignore descriptor write result of previous operation");
+                return;
+            }
+
             if (status != BluetoothGatt.GATT_SUCCESS) {
                 getLogger().LOGe(TAG, "Descriptor write failed, status: %d", status);
                 connection.reject(BleErrors.ERROR_DESCRIPTOR_WRITE_FAILED);
@@ -2544,10 +2969,43 @@ public class BleCore extends Logging {
 	 * stopScan is called. Use the list of uuids as filter. E.g. to return only devices with
 	 * the given service data uuid
 	 *
+	 * Scanned devices are returned as JSON objects, use the overloaded function with an
+	 * IScanRecordCallback to get the raw scan records instead.
+	 *
+	 * @param uuids list of service data uuids for which to filter
+	 * @param callback callback to informed about scanned devices or errors
+	 */
+	public void startEndlessScan(String[] uuids, final IScanCallback callback) {
+		startEndlessScan(uuids, new IScanRecordCallback() {
+			@Override
+			public void onScanRecord(BleScanRecord scanRecord) {
+				callback.onData(getScanResultJson(scanRecord));
+			}
+
+			@Override
+			public void onSuccess() {
+				callback.onSuccess();
+			}
+
+			@Override
+			public void onError(int error) {
+				callback.onError(error);
+			}
+		});
+	}
+
+	/**
+	 * Start an endless scan for bluetooth le devices. endless means it continues to scan until
+	 * stopScan is called. Use the list of uuids as filter. E.g. to return only devices with
+	 * the given service data uuid
+	 *
+	 * Scanned devices are returned as raw scan records, so no JSON object is created for
+	 * every received advertisement.
+	 *
 	 * @param uuids list of service data uuids for which to filter
 	 * @param callback callback to informed about scanned devices or errors
 	 */
-	public synchronized void startEndlessScan(String[] uuids, IScanCallback callback) {
+	public synchronized void startEndlessScan(String[] uuids, IScanRecordCallback callback) {
 		getLogger().LOGd(TAG, "startEndlessScan");
 
 		if (!isScannerReady()) {
@@ -2563,6 +3021,9 @@ public class BleCore extends Logging {
 //			return;
 		}
 
+		// a scan that is still being stopped has to be stopped before it can be restarted
+		finishScanFlush();
+
 		_scanCallback = callback;
 
 		if (_coreScanCallback == null) {
@@ -2581,6 +3042,9 @@ public class BleCore extends Logging {
 				_scanFilters.add(filter);
 			}
 //		}
+		if (_scanProfile != null) {
+			_scanFilters.addAll(_scanProfile.getFilters());
+		}
 
 //		if (_leScanner == null) {
 //			getLogger().LOGe(TAG, "huh? not initialized");
@@ -2602,24 +3066,26 @@ public class BleCore extends Logging {
 			@Override
 			// Callback when a BLE advertisement has been found.
 			public void onScanResult(int callbackType, ScanResult result) {
-				if (result.getRssi() >= 0) {
-					// Invalid rssi, ignore this result.
-					return;
-				}
-				if (result.getScanRecord() != null) {
-					onDeviceScanned(result.getDevice(), result.getRssi(), result.getScanRecord().getBytes());
-				}
-				else {
-					onDeviceScanned(result.getDevice(), result.getRssi(), new byte[]{});
+				BleScanRecord scanRecord = createScanRecord(result, System.currentTimeMillis());
+				if (scanRecord != null) {
+					onDeviceScanned(scanRecord);
 				}
 			}
 
 			@Override
 			// Callback when batch results are delivered.
 			public void onBatchScanResults(List<ScanResult> results) {
+				// The results were received some time ago, so use the time of reception of each
+				// result as timestamp, instead of the current time.
+				long timeOffset = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+				ArrayList<BleScanRecord> scanRecords = new ArrayList<>(results.size());
 				for (ScanResult result : results) {
-					onScanResult(0, result);
+					BleScanRecord scanRecord = createScanRecord(result, timeOffset + result.getTimestampNanos() / 1000000);
+					if (scanRecord != null) {
+						scanRecords.add(scanRecord);
+					}
 				}
+				onDevicesScanned(scanRecords.toArray(new BleScanRecord[scanRecords.size()]));
 			}
 
 			@Override
@@ -2636,6 +3102,9 @@ public class BleCore extends Logging {
 	/**
 	 * Stop an endless scan. i.e. stop scanning for ble devices.
 	 *
+	 * When the scan results are batched (see BleScanProfile), the pending batch is flushed to the
+	 * scan callback first, so the callback is informed once that batch was delivered.
+	 *
 	 * @param callback callback to be informed if the scan was successfully stopped or not
 	 */
 	public synchronized void stopEndlessScan(@Nullable IStatusCallback callback) {
@@ -2647,16 +3116,36 @@ public class BleCore extends Logging {
 //			return;
 //		}
 
-		_scanCallback = null;
-		_scanning = false;
-
 		// TODO: just call it a success?
 		if (!isScannerReady()) {
+			_timeoutHandler.removeCallbacks(_scanFlushTimeout);
+			_scanCallback = null;
+			_flushScanCallback = null;
+			_flushStopCallback = null;
+			_scanning = false;
 			getLogger().LOGe(TAG, "not ready");
 			callback.onError(BleErrors.ERROR_NOT_READY);
 			return;
 		}
 
+		// finish a previous stop first
+		finishScanFlush();
+
+		if (_scanProfile != null && _scanProfile.getReportDelay() > 0 && _coreScanCallback != null && _scanCallback != null) {
+			// Ask for the results that are still in the batch, before they get lost. They are
+			// delivered asynchronously, to the scan callback that is kept until then, so only
+			// stop the scan once they arrived, see finishScanFlush().
+			_flushScanCallback = _scanCallback;
+			_flushStopCallback = callback;
+			_scanCallback = null;
+			_scanning = false;
+			_leScanner.flushPendingScanResults(_coreScanCallback);
+			_timeoutHandler.postDelayed(_scanFlushTimeout, SCAN_FLUSH_TIMEOUT);
+			return;
+		}
+		_scanCallback = null;
+		_scanning = false;
+
 		_leScanner.stopScan(_coreScanCallback);
 
 		if (callback != null) {
@@ -2664,6 +3153,27 @@ public class BleCore extends Logging {
 		}
 	}
 
+	/**
+	 * Stop the scan that waits for its flushed batch results, see stopEndlessScan(). Does nothing
+	 * if no scan is being stopped.
+	 */
+	private synchronized void finishScanFlush() {
+		if (_flushScanCallback == null) {
+			return;
+		}
+		_timeoutHandler.removeCallbacks(_scanFlushTimeout);
+		_flushScanCallback = null;
+		IStatusCallback callback = _flushStopCallback;
+		_flushStopCallback = null;
+
+		if (isScannerReady()) {
+			_leScanner.stopScan(_coreScanCallback);
+		}
+		if (callback != null) {
+			callback.onSuccess();
+		}
+	}
+
 	/**
 	 * Check if the library is scanning for devices
 	 *
@@ -2681,11 +3191,9 @@ public class BleCore extends Logging {
 	 * @param mode scan mode to be set, see {@link ScanSettings}
 	 */
 	public void setScanMode(int mode) {
-		getLogger().LOGd(TAG, "setScanMode: " + mode);
-		_scanSettings = new ScanSettings.Builder()
-				.setScanMode(mode)
-				.build();
+		getLogger().LOGd(TAG, "setScanMode: %d", mode);
 		_scanMode = mode;
+		_scanSettings = createScanSettings();
 	}
 
 	/**
@@ -2696,26 +3204,150 @@ public class BleCore extends Logging {
 	}
 
 	/**
-	 * Create a json object from the scanned device and trigger the scanCallback's onData
+	 * Set the scan profile: scan mode, report delay and filters. The filters are used in addition
+	 * to the service UUIDs given to startEndlessScan, an advertisement passes when it matches any
+	 * of the filters.
+	 * When the report delay is larger than 0, and the controller supports it, results are
+	 * reported in batches. Callbacks that implement IScanRecordBatchCallback then get each batch
+	 * as a whole.
+	 * You need to stop and start scanning again for this to take effect.
+	 *
+	 * @param profile the scan profile, or null to scan without report delay and extra filters.
+	 */
+	public synchronized void setScanProfile(@Nullable BleScanProfile profile) {
+		getLogger().LOGd(TAG, "setScanProfile: %s", profile);
+		_scanProfile = profile;
+		if (profile != null) {
+			_scanMode = profile.getScanMode();
+		}
+		_scanSettings = createScanSettings();
+	}
+
+	/**
+	 * @return Current scan profile, or null if not set.
+	 */
+	public BleScanProfile getScanProfile() {
+		return _scanProfile;
+	}
+
+	/**
+	 * Create the scan settings from the scan mode and scan profile.
+	 */
+	@TargetApi(21)
+	private ScanSettings createScanSettings() {
+		ScanSettings.Builder builder = new ScanSettings.Builder()
+				.setScanMode(_scanMode);
+		if (_scanProfile != null && _scanProfile.getReportDelay() > 0) {
+			if (_bluetoothAdapter != null && _bluetoothAdapter.isOffloadedScanBatchingSupported()) {
+				builder.setReportDelay(_scanProfile.getReportDelay());
+			}
+			else {
+				getLogger().LOGw(TAG, "scan batching not supported, results are reported right away");
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Set a filter on the raw scanned advertisements. Advertisements that don't pass are
+	 * dropped before a scan record is created for them.
+	 *
+	 * @param filter the filter, or null to pass on all advertisements.
+	 */
+	public void setScanRecordFilter(@Nullable IScanRecordFilter filter) {
+		_scanRecordFilter = filter;
+	}
+
+	public IScanRecordFilter getScanRecordFilter() {
+		return _scanRecordFilter;
+	}
+
+	/**
+	 * Create a scan record from a scan result.
+	 *
+	 * @param result the scan result
+	 * @param timestamp time (ms since epoch) at which the result was received
+	 * @return the scan record, or null if the result is invalid or didn't pass the filter
+	 */
+	@TargetApi(21)
+	private BleScanRecord createScanRecord(ScanResult result, long timestamp) {
+		if (result.getRssi() >= 0) {
+			// Invalid rssi, ignore this result.
+			return null;
+		}
+		BluetoothDevice device = result.getDevice();
+		byte[] bytes = result.getScanRecord() != null ? result.getScanRecord().getBytes() : EMPTY_SCAN_RECORD;
+		IScanRecordFilter filter = _scanRecordFilter;
+		if (filter != null && !filter.accept(device.getAddress(), bytes)) {
+			return null;
+		}
+		return new BleScanRecord(device.getAddress(), device.getName(), result.getRssi(), timestamp, bytes);
+	}
+
+	/**
+	 * Trigger the scanCallback's onScanRecord with the scanned device
 	 *
-	 * @param device the bluetooth device that was scanned
-	 * @param rssi the rssi value with which the device was scanned
-	 * @param scanRecord the scan record (advertisement data) which was scanned.
+	 * @param scanRecord the scan record of the scanned device
 	 */
-	private synchronized void onDeviceScanned(BluetoothDevice device, int rssi, byte[] scanRecord) {
+	private synchronized void onDeviceScanned(BleScanRecord scanRecord) {
 
 		// Careful: sometimes a scan result is still received after scanning has been stopped.
 		if (_scanCallback != null) {
 			_scanning = true; // TODO: Is it smart then, to set it to true here?
 
-			JSONObject scanResult = new JSONObject();
-			addDeviceInfo(scanResult, device);
-			addProperty(scanResult, BleCoreTypes.PROPERTY_RSSI, rssi);
-			addBytes(scanResult, BleCoreTypes.PROPERTY_ADVERTISEMENT, scanRecord);
-			setStatus(scanResult, BleCoreTypes.PROPERTY_SCAN_RESULT); // TODO: when is this used?
+			_scanCallback.onScanRecord(scanRecord);
+		}
+	}
 
-			_scanCallback.onData(scanResult);
+	/**
+	 * Trigger the scanCallback with a batch of scanned devices: as a whole if the callback is an
+	 * IScanRecordBatchCallback, else one by one.
+	 *
+	 * @param scanRecords the scan records of the batch
+	 */
+	private synchronized void onDevicesScanned(BleScanRecord[] scanRecords) {
+		IScanRecordCallback scanCallback = _scanCallback;
+		boolean flushed = false;
+		if (scanCallback == null && _flushScanCallback != null) {
+			// the results flushed by stopEndlessScan
+			scanCallback = _flushScanCallback;
+			flushed = true;
+		}
+		if (scanCallback == null) {
+			return;
 		}
+		if (scanRecords.length > 0) {
+			if (!flushed) {
+				_scanning = true;
+			}
+			if (scanCallback instanceof IScanRecordBatchCallback) {
+				((IScanRecordBatchCallback) scanCallback).onScanRecords(scanRecords);
+			}
+			else {
+				for (BleScanRecord scanRecord : scanRecords) {
+					scanCallback.onScanRecord(scanRecord);
+				}
+			}
+		}
+		if (flushed) {
+			finishScanFlush();
+		}
+	}
+
+	/**
+	 * Create the json object of a scanned device, as it is given to an IScanCallback.
+	 *
+	 * @param scanRecord the scan record of the scanned device
+	 * @return json object with address, name, rssi and (base64 encoded) advertisement
+	 */
+	public static JSONObject getScanResultJson(BleScanRecord scanRecord) {
+		JSONObject scanResult = new JSONObject();
+		addProperty(scanResult, BleCoreTypes.PROPERTY_ADDRESS, scanRecord.getAddress());
+		addProperty(scanResult, BleCoreTypes.PROPERTY_NAME, scanRecord.getName());
+		addProperty(scanResult, BleCoreTypes.PROPERTY_RSSI, scanRecord.getRssi());
+		addBytes(scanResult, BleCoreTypes.PROPERTY_ADVERTISEMENT, scanRecord.getScanRecord());
+		setStatus(scanResult, BleCoreTypes.PROPERTY_SCAN_RESULT); // TODO: when is this used?
+		return scanResult;
 	}
 
 
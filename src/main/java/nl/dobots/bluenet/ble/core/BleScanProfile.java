@@ -0,0 +1,134 @@
+package nl.dobots.bluenet.ble.core;
+
+import android.annotation.TargetApi;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import nl.dobots.bluenet.utils.BleUtils;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Settings used by BleCore to scan: the scan mode, the report delay and the filters.
+ *
+ * The filters are handed to the bluetooth controller, so that advertisements that don't match
+ * any of the filters don't wake up the CPU. Note that a scan without filters is stopped by
+ * android when the screen turns off, so a background profile should always have filters.
+ *
+ * With a report delay larger than 0, the controller collects the results and reports them
+ * in batches, see BleCore.setScanProfile(). Only use this when the results are not needed
+ * right away.
+ */
+@TargetApi(21)
+public class BleScanProfile {
+
+	private int _scanMode;
+	private long _reportDelay;
+	private ArrayList<ScanFilter> _filters = new ArrayList<>();
+
+	/**
+	 * @param scanMode the scan mode, see {@link ScanSettings}
+	 * @param reportDelay delay in ms after which results are reported in a batch, 0 to report
+	 *                    each result right away.
+	 */
+	public BleScanProfile(int scanMode, long reportDelay) {
+		_scanMode = scanMode;
+		_reportDelay = reportDelay;
+	}
+
+	/**
+	 * @return profile to be used in foreground: low latency, results are reported right away, no filters.
+	 */
+	public static BleScanProfile createForeground() {
+		return new BleScanProfile(ScanSettings.SCAN_MODE_LOW_LATENCY, 0);
+	}
+
+	/**
+	 * Filters still have to be added to this profile.
+	 * @param reportDelay delay in ms after which results are reported in a batch.
+	 * @return profile to be used in background: low power, results are reported in batches.
+	 */
+	public static BleScanProfile createBackground(long reportDelay) {
+		return new BleScanProfile(ScanSettings.SCAN_MODE_LOW_POWER, reportDelay);
+	}
+
+	/**
+	 * Only let advertisements through that advertise the given service UUID.
+	 * @param serviceUuid the service UUID
+	 */
+	public BleScanProfile addServiceUuidFilter(String serviceUuid) {
+		_filters.add(new ScanFilter.Builder()
+				.setServiceUuid(new ParcelUuid(BleUtils.stringToUuid(serviceUuid)))
+				.build());
+		return this;
+	}
+
+	/**
+	 * Only let advertisements through that have service data with the given 16 bit UUID.
+	 * @param serviceDataUuid the 16 bit UUID of the service data
+	 * @param data the data that the service data should start with, can be empty
+	 * @param mask which bits of the data should match, same length as data, or null to
+	 *             match all bits
+	 */
+	public BleScanProfile addServiceDataFilter(int serviceDataUuid, byte[] data, byte[] mask) {
+		ParcelUuid uuid = new ParcelUuid(BleUtils.stringToUuid(String.format(Locale.US, "%04x", serviceDataUuid)));
+		_filters.add(new ScanFilter.Builder()
+				.setServiceData(uuid, data, mask)
+				.build());
+		return this;
+	}
+
+	/**
+	 * Only let advertisements through that have manufacturer data with the given company id.
+	 * @param manufacturerId the company id
+	 * @param data the data that the manufacturer data should start with (after the company
+	 *             id), can be empty
+	 * @param mask which bits of the data should match, same length as data, or null to
+	 *             match all bits
+	 */
+	public BleScanProfile addManufacturerDataFilter(int manufacturerId, byte[] data, byte[] mask) {
+		_filters.add(new ScanFilter.Builder()
+				.setManufacturerData(manufacturerId, data, mask)
+				.build());
+		return this;
+	}
+
+	public void clearFilters() {
+		_filters.clear();
+	}
+
+	public int getScanMode() {
+		return _scanMode;
+	}
+
+	public void setScanMode(int scanMode) {
+		_scanMode = scanMode;
+	}
+
+	public long getReportDelay() {
+		return _reportDelay;
+	}
+
+	public void setReportDelay(long reportDelay) {
+		_reportDelay = reportDelay;
+	}
+
+	public List<ScanFilter> getFilters() {
+		return Collections.unmodifiableList(_filters);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "scanMode=%d reportDelay=%d filters=%d", _scanMode, _reportDelay, _filters.size());
+	}
+}
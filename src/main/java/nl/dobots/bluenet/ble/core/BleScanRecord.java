@@ -0,0 +1,65 @@
+package nl.dobots.bluenet.ble.core;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Raw result of a single scanned advertisement, as received from the android scanner.
+ * This is passed on as is, so that the advertisement bytes don't have to go through JSON
+ * (and base64) before they can be parsed.
+ */
+public class BleScanRecord {
+
+	private String _address;
+	private String _name;
+	private int _rssi;
+	private long _timestamp;
+	private byte[] _scanRecord;
+
+	/**
+	 * @param address    MAC address of the scanned device
+	 * @param name       name of the scanned device, can be null
+	 * @param rssi       rssi with which the advertisement was received
+	 * @param timestamp  time (ms since epoch) at which the advertisement was received
+	 * @param scanRecord the advertisement data (and scan response) bytes
+	 */
+	public BleScanRecord(String address, String name, int rssi, long timestamp, byte[] scanRecord) {
+		_address = address;
+		_name = name;
+		_rssi = rssi;
+		_timestamp = timestamp;
+		_scanRecord = scanRecord;
+	}
+
+	public String getAddress() {
+		return _address;
+	}
+
+	public String getName() {
+		return _name;
+	}
+
+	public int getRssi() {
+		return _rssi;
+	}
+
+	public long getTimestamp() {
+		return _timestamp;
+	}
+
+	/**
+	 * Note: the returned array is not a copy, so do not modify it.
+	 * @return the advertisement data (and scan response) bytes
+	 */
+	public byte[] getScanRecord() {
+		return _scanRecord;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s (%s), rssi: %d", _address, _name, _rssi);
+	}
+}
@@ -0,0 +1,205 @@
+package nl.dobots.bluenet.ble.core;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Result of a service discovery: the services of a device, with their characteristics.
+ *
+ * Objects are immutable once created, so they can be cached and shared between threads.
+ * UUIDs are stored as strings, in the same format as used by the rest of the lib
+ * (see BleUtils.uuidToString).
+ */
+public class GattDiscovery {
+
+	// Keys used for the json representation, see toJson()
+	private static final String KEY_ADDRESS = "address";
+	private static final String KEY_SERVICES = "services";
+	private static final String KEY_UUID = "uuid";
+	private static final String KEY_CHARACTERISTICS = "characteristics";
+	private static final String KEY_PROPERTIES = "properties";
+
+	public static class Characteristic {
+		private final String _uuid;
+		private final int _properties;
+
+		/**
+		 * @param uuid the UUID of the characteristic
+		 * @param properties the properties, as BluetoothGattCharacteristic.PROPERTY_* flags
+		 */
+		public Characteristic(String uuid, int properties) {
+			_uuid = uuid;
+			_properties = properties;
+		}
+
+		public String getUuid() {
+			return _uuid;
+		}
+
+		public int getProperties() {
+			return _properties;
+		}
+	}
+
+	public static class Service {
+		private final String _uuid;
+		private final List<Characteristic> _characteristics;
+
+		public Service(String uuid, List<Characteristic> characteristics) {
+			_uuid = uuid;
+			_characteristics = Collections.unmodifiableList(new ArrayList<>(characteristics));
+		}
+
+		public String getUuid() {
+			return _uuid;
+		}
+
+		public List<Characteristic> getCharacteristics() {
+			return _characteristics;
+		}
+
+		public Characteristic getCharacteristic(String characteristicUuid) {
+			for (Characteristic characteristic : _characteristics) {
+				if (characteristic.getUuid().equals(characteristicUuid)) {
+					return characteristic;
+				}
+			}
+			return null;
+		}
+	}
+
+	private final String _address;
+	private final List<Service> _services;
+	// UUIDs of all characteristics, for quick lookup
+	private final HashSet<String> _characteristicUuids = new HashSet<>();
+
+	/**
+	 * @param address the MAC address of the device
+	 * @param services the discovered services
+	 */
+	public GattDiscovery(String address, List<Service> services) {
+		_address = address;
+		_services = Collections.unmodifiableList(new ArrayList<>(services));
+		for (Service service : _services) {
+			for (Characteristic characteristic : service.getCharacteristics()) {
+				_characteristicUuids.add(characteristic.getUuid());
+			}
+		}
+	}
+
+	public String getAddress() {
+		return _address;
+	}
+
+	public List<Service> getServices() {
+		return _services;
+	}
+
+	public Service getService(String serviceUuid) {
+		for (Service service : _services) {
+			if (service.getUuid().equals(serviceUuid)) {
+				return service;
+			}
+		}
+		return null;
+	}
+
+	public boolean hasService(String serviceUuid) {
+		return getService(serviceUuid) != null;
+	}
+
+	/**
+	 * @return true if any of the services has the characteristic
+	 */
+	public boolean hasCharacteristic(String characteristicUuid) {
+		return _characteristicUuids.contains(characteristicUuid);
+	}
+
+	public boolean hasCharacteristic(String serviceUuid, String characteristicUuid) {
+		Service service = getService(serviceUuid);
+		return service != null && service.getCharacteristic(characteristicUuid) != null;
+	}
+
+	/**
+	 * Check if the other discovery has the same services and characteristics, ignoring the address.
+	 */
+	public boolean hasSameServices(GattDiscovery other) {
+		if (other == null || other._services.size() != _services.size()) {
+			return false;
+		}
+		for (int i = 0; i < _services.size(); i++) {
+			Service service = _services.get(i);
+			Service otherService = other._services.get(i);
+			if (!service.getUuid().equals(otherService.getUuid()) ||
+					service.getCharacteristics().size() != otherService.getCharacteristics().size()) {
+				return false;
+			}
+			for (int j = 0; j < service.getCharacteristics().size(); j++) {
+				Characteristic characteristic = service.getCharacteristics().get(j);
+				Characteristic otherCharacteristic = otherService.getCharacteristics().get(j);
+				if (!characteristic.getUuid().equals(otherCharacteristic.getUuid()) ||
+						characteristic.getProperties() != otherCharacteristic.getProperties()) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compact json representation, used to store the discovery. Not the same as the discovery
+	 * json of BleCore.
+	 */
+	public JSONObject toJson() throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put(KEY_ADDRESS, _address);
+		JSONArray servicesJson = new JSONArray();
+		for (Service service : _services) {
+			JSONObject serviceJson = new JSONObject();
+			serviceJson.put(KEY_UUID, service.getUuid());
+			JSONArray characteristicsJson = new JSONArray();
+			for (Characteristic characteristic : service.getCharacteristics()) {
+				JSONObject characteristicJson = new JSONObject();
+				characteristicJson.put(KEY_UUID, characteristic.getUuid());
+				characteristicJson.put(KEY_PROPERTIES, characteristic.getProperties());
+				characteristicsJson.put(characteristicJson);
+			}
+			serviceJson.put(KEY_CHARACTERISTICS, characteristicsJson);
+			servicesJson.put(serviceJson);
+		}
+		json.put(KEY_SERVICES, servicesJson);
+		return json;
+	}
+
+	/**
+	 * Parse a discovery from the json created by toJson().
+	 */
+	public static GattDiscovery fromJson(JSONObject json) throws JSONException {
+		String address = json.getString(KEY_ADDRESS);
+		ArrayList<Service> services = new ArrayList<>();
+		JSONArray servicesJson = json.getJSONArray(KEY_SERVICES);
+		for (int i = 0; i < servicesJson.length(); i++) {
+			JSONObject serviceJson = servicesJson.getJSONObject(i);
+			ArrayList<Characteristic> characteristics = new ArrayList<>();
+			JSONArray characteristicsJson = serviceJson.getJSONArray(KEY_CHARACTERISTICS);
+			for (int j = 0; j < characteristicsJson.length(); j++) {
+				JSONObject characteristicJson = characteristicsJson.getJSONObject(j);
+				characteristics.add(new Characteristic(characteristicJson.getString(KEY_UUID), characteristicJson.getInt(KEY_PROPERTIES)));
+			}
+			services.add(new Service(serviceJson.getString(KEY_UUID), characteristics));
+		}
+		return new GattDiscovery(address, services);
+	}
+}
@@ -0,0 +1,165 @@
+package nl.dobots.bluenet.ble.core;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import nl.dobots.bluenet.utils.BleUtils;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Handle of a characteristic: the service UUID and characteristic UUID, parsed once, and a small
+ * id that is used by each connection to look up the characteristic in a table, instead of looking
+ * up the service and characteristic for every operation.
+ *
+ * There is only one registered handle per service and characteristic UUID, get it with get(). As
+ * registered handles are never removed, they should only be created for a fixed set of
+ * characteristics, like the constants in BluenetHandles. For other characteristics, lookup()
+ * returns an unregistered handle, which has no id and is looked up in the services on every use.
+ */
+public final class GattHandle {
+
+	// Id of handles that are not registered, see lookup()
+	public static final int NO_ID = -1;
+
+	// Handles by service UUID and characteristic UUID string
+	private static final ConcurrentHashMap<String, ConcurrentHashMap<String, GattHandle>> _handles = new ConcurrentHashMap<>();
+	// Handles by id
+	private static final CopyOnWriteArrayList<GattHandle> _handleList = new CopyOnWriteArrayList<>();
+
+	private final int _id;
+	private final String _serviceUuidString;
+	private final String _characteristicUuidString;
+	private final UUID _serviceUuid;
+	private final UUID _characteristicUuid;
+
+	private GattHandle(int id, String serviceUuid, String characteristicUuid) {
+		_id = id;
+		_serviceUuidString = serviceUuid;
+		_characteristicUuidString = characteristicUuid;
+		_serviceUuid = BleUtils.stringToUuid(serviceUuid);
+		_characteristicUuid = BleUtils.stringToUuid(characteristicUuid);
+	}
+
+	/**
+	 * Get the registered handle of a characteristic, creates it on first use.
+	 * @param serviceUuid UUID of the service containing the characteristic
+	 * @param characteristicUuid UUID of the characteristic
+	 * @return the handle
+	 */
+	public static GattHandle get(String serviceUuid, String characteristicUuid) {
+		ConcurrentHashMap<String, GattHandle> characteristics = _handles.get(serviceUuid);
+		if (characteristics != null) {
+			GattHandle handle = characteristics.get(characteristicUuid);
+			if (handle != null) {
+				return handle;
+			}
+		}
+		synchronized (_handleList) {
+			characteristics = _handles.get(serviceUuid);
+			if (characteristics == null) {
+				characteristics = new ConcurrentHashMap<>();
+				_handles.put(serviceUuid, characteristics);
+			}
+			GattHandle handle = characteristics.get(characteristicUuid);
+			if (handle == null) {
+				handle = new GattHandle(_handleList.size(), serviceUuid, characteristicUuid);
+				_handleList.add(handle);
+				characteristics.put(characteristicUuid, handle);
+			}
+			return handle;
+		}
+	}
+
+	/**
+	 * Get the registered handle of a characteristic, or an unregistered handle if there is none.
+	 * Use this for characteristics given by the app, so that no handle is registered for them.
+	 * @param serviceUuid UUID of the service containing the characteristic
+	 * @param characteristicUuid UUID of the characteristic
+	 * @return the handle
+	 */
+	public static GattHandle lookup(String serviceUuid, String characteristicUuid) {
+		ConcurrentHashMap<String, GattHandle> characteristics = _handles.get(serviceUuid);
+		if (characteristics != null) {
+			GattHandle handle = characteristics.get(characteristicUuid);
+			if (handle != null) {
+				return handle;
+			}
+		}
+		return new GattHandle(NO_ID, serviceUuid, characteristicUuid);
+	}
+
+	/**
+	 * @return all registered handles, ordered by id
+	 */
+	public static List<GattHandle> getAll() {
+		return _handleList;
+	}
+
+	/**
+	 * @return the number of registered handles, all ids are smaller than this
+	 */
+	public static int getCount() {
+		return _handleList.size();
+	}
+
+	/**
+	 * @return the id of the handle, or NO_ID if the handle is not registered
+	 */
+	public int getId() {
+		return _id;
+	}
+
+	public boolean isRegistered() {
+		return _id != NO_ID;
+	}
+
+	public UUID getServiceUuid() {
+		return _serviceUuid;
+	}
+
+	public UUID getCharacteristicUuid() {
+		return _characteristicUuid;
+	}
+
+	public String getServiceUuidString() {
+		return _serviceUuidString;
+	}
+
+	public String getCharacteristicUuidString() {
+		return _characteristicUuidString;
+	}
+
+	/**
+	 * Unregistered handles are equal to any handle of the same characteristic, so they can be used
+	 * as key, e.g. to unsubscribe.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof GattHandle)) {
+			return false;
+		}
+		GattHandle other = (GattHandle) o;
+		return _serviceUuidString.equals(other._serviceUuidString)
+				&& _characteristicUuidString.equals(other._characteristicUuidString);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * _serviceUuidString.hashCode() + _characteristicUuidString.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return _serviceUuidString + " " + _characteristicUuidString;
+	}
+}
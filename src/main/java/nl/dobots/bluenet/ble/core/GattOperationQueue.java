@@ -0,0 +1,237 @@
+package nl.dobots.bluenet.ble.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+import nl.dobots.bluenet.ble.cfg.BleErrors;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Queue of GATT operations (reads, writes, subscribes, ...) of a single connection.
+ *
+ * Android only handles one GATT operation at a time, so operations are executed one after
+ * the other. Operations with a higher priority are executed before operations with a lower
+ * priority, operations with the same priority are executed in the order they were added.
+ *
+ * Once an operation is executed, the queue waits until done() is called for that operation,
+ * or until its timeout expires. All methods synchronize on the lock given in the constructor,
+ * so that the queue can be used together with the state of the owner (the connection) without
+ * risking deadlocks.
+ */
+public class GattOperationQueue {
+
+	public static final int PRIORITY_LOW = 0;
+	public static final int PRIORITY_NORMAL = 1;
+	public static final int PRIORITY_HIGH = 2;
+
+	/**
+	 * Used to schedule timeouts, e.g. an android Handler.
+	 */
+	public interface Scheduler {
+		void postDelayed(Runnable runnable, long delayMs);
+		void removeCallbacks(Runnable runnable);
+	}
+
+	/**
+	 * An operation in the queue.
+	 */
+	public static abstract class Operation {
+		private final int _priority;
+		private final long _timeout;
+
+		/**
+		 * @param priority priority of the operation, see PRIORITY_*
+		 * @param timeout timeout in ms, after which the operation fails with ERROR_TIMEOUT,
+		 *                0 for no timeout
+		 */
+		public Operation(int priority, long timeout) {
+			_priority = priority;
+			_timeout = timeout;
+		}
+
+		public int getPriority() {
+			return _priority;
+		}
+
+		public long getTimeout() {
+			return _timeout;
+		}
+
+		/**
+		 * Start the operation. If it was started successfully, done() should be called on the
+		 * queue once the operation completed.
+		 * @return 0 if the operation was started, else an error from BleErrors
+		 */
+		protected abstract int execute();
+
+		/**
+		 * Called when the operation failed to start, timed out, or was cancelled.
+		 * @param error the error, see BleErrors
+		 */
+		protected abstract void onError(int error);
+	}
+
+	private final Object _lock;
+	private final Scheduler _scheduler;
+	private final LinkedList<Operation> _queue = new LinkedList<>();
+	private Operation _current = null;
+	// True while executing operations, to avoid recursion when operations complete synchronously
+	private boolean _executing = false;
+
+	private final Runnable _timeoutRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (_lock) {
+				if (_current != null) {
+					finishCurrent(BleErrors.ERROR_TIMEOUT);
+				}
+			}
+		}
+	};
+
+	/**
+	 * @param lock the object to synchronize on
+	 * @param scheduler used for the timeouts
+	 */
+	public GattOperationQueue(Object lock, Scheduler scheduler) {
+		_lock = lock;
+		_scheduler = scheduler;
+	}
+
+	/**
+	 * Add an operation to the queue. If no operation is being executed, it will be executed
+	 * immediately.
+	 * @param operation the operation
+	 */
+	public void add(Operation operation) {
+		synchronized (_lock) {
+			// insert after the last operation with the same or higher priority
+			ListIterator<Operation> it = _queue.listIterator(_queue.size());
+			while (it.hasPrevious()) {
+				if (it.previous().getPriority() >= operation.getPriority()) {
+					it.next();
+					break;
+				}
+			}
+			it.add(operation);
+			executeNext();
+		}
+	}
+
+	/**
+	 * Should be called when the executed operation completed, so that the next operation can
+	 * be executed. Does nothing if the operation is not the one being executed, e.g. when it
+	 * already timed out.
+	 * @param operation the operation that completed
+	 */
+	public void done(Operation operation) {
+		synchronized (_lock) {
+			if (operation == null || operation != _current) {
+				return;
+			}
+			_scheduler.removeCallbacks(_timeoutRunnable);
+			_current = null;
+			executeNext();
+		}
+	}
+
+	/**
+	 * Cancel an operation. If it's still queued, it's removed, if it's being executed, the
+	 * queue continues with the next operation. The operation gets onError(ERROR_CANCELLED).
+	 * @param operation the operation to cancel
+	 * @return true if the operation was found
+	 */
+	public boolean cancel(Operation operation) {
+		synchronized (_lock) {
+			if (operation == _current) {
+				finishCurrent(BleErrors.ERROR_CANCELLED);
+				return true;
+			}
+			if (_queue.remove(operation)) {
+				operation.onError(BleErrors.ERROR_CANCELLED);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Remove all queued operations, they get onError() with the given error. The operation that
+	 * is being executed is not affected.
+	 * @param error the error to report
+	 */
+	public void clear(int error) {
+		synchronized (_lock) {
+			ArrayList<Operation> operations = new ArrayList<>(_queue);
+			_queue.clear();
+			Iterator<Operation> it = operations.iterator();
+			while (it.hasNext()) {
+				it.next().onError(error);
+			}
+		}
+	}
+
+	/**
+	 * @return the operation being executed, or null
+	 */
+	public Operation getCurrent() {
+		synchronized (_lock) {
+			return _current;
+		}
+	}
+
+	/**
+	 * @return number of operations waiting to be executed
+	 */
+	public int size() {
+		synchronized (_lock) {
+			return _queue.size();
+		}
+	}
+
+	public boolean isBusy() {
+		synchronized (_lock) {
+			return _current != null;
+		}
+	}
+
+	private void finishCurrent(int error) {
+		Operation operation = _current;
+		_scheduler.removeCallbacks(_timeoutRunnable);
+		_current = null;
+		operation.onError(error);
+		executeNext();
+	}
+
+	private void executeNext() {
+		if (_executing) {
+			// will be picked up by the loop below
+			return;
+		}
+		_executing = true;
+		try {
+			while (_current == null && !_queue.isEmpty()) {
+				Operation operation = _queue.removeFirst();
+				_current = operation;
+				if (operation.getTimeout() > 0) {
+					_scheduler.postDelayed(_timeoutRunnable, operation.getTimeout());
+				}
+				int error = operation.execute();
+				if (error != 0 && _current == operation) {
+					_scheduler.removeCallbacks(_timeoutRunnable);
+					_current = null;
+					operation.onError(error);
+				}
+			}
+		} finally {
+			_executing = false;
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package nl.dobots.bluenet.ble.core;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Filter on the raw scanned advertisements, before anything is created or parsed for them,
+ * see BleCore.setScanRecordFilter().
+ */
+public interface IScanRecordFilter {
+
+	/**
+	 * Called for every scanned advertisement, on the scan thread, so this should be fast and
+	 * preferably not allocate anything.
+	 *
+	 * @param address MAC address of the scanned device
+	 * @param scanRecord the advertisement data (and scan response) bytes, do not modify
+	 * @return true to pass the advertisement on, false to drop it
+	 */
+	boolean accept(String address, byte[] scanRecord);
+
+}
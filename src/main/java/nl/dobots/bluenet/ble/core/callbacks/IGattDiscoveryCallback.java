@@ -0,0 +1,18 @@
+package nl.dobots.bluenet.ble.core.callbacks;
+
+import nl.dobots.bluenet.ble.core.GattDiscovery;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Returns the result of a service discovery as typed object, see BleCore.discoverServices
+ */
+public interface IGattDiscoveryCallback extends IBaseCallback {
+
+	void onDiscovery(GattDiscovery discovery);
+
+}
@@ -0,0 +1,23 @@
+package nl.dobots.bluenet.ble.core.callbacks;
+
+import nl.dobots.bluenet.ble.core.BleScanRecord;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Return scanned advertisements as raw scan records. When the scanner reports results in
+ * batches (see BleScanProfile), the whole batch is given at once with onScanRecords, instead
+ * of calling onScanRecord for each record.
+ */
+public interface IScanRecordBatchCallback extends IScanRecordCallback {
+
+	/**
+	 * @param scanRecords the scan records of the batch, ordered by time of reception
+	 */
+	void onScanRecords(BleScanRecord[] scanRecords);
+
+}
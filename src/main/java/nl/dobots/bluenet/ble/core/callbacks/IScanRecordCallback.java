@@ -0,0 +1,18 @@
+package nl.dobots.bluenet.ble.core.callbacks;
+
+import nl.dobots.bluenet.ble.core.BleScanRecord;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Return scanned advertisements as raw scan records, without converting them to JSON.
+ */
+public interface IScanRecordCallback extends IStatusCallback {
+
+	void onScanRecord(BleScanRecord scanRecord);
+
+}
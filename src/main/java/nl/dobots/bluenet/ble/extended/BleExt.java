@@ -13,7 +13,6 @@ import org.json.JSONObject;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 
 import nl.dobots.bluenet.ble.base.BleBase;
@@ -37,6 +36,7 @@ import nl.dobots.bluenet.ble.base.structs.PowerSamples;
 import nl.dobots.bluenet.ble.base.structs.TrackedDeviceMsg;
 import nl.dobots.bluenet.ble.cfg.BleErrors;
 import nl.dobots.bluenet.ble.cfg.BluenetConfig;
+import nl.dobots.bluenet.ble.cfg.BluenetHandles;
 import nl.dobots.bluenet.ble.core.BleCore;
 import nl.dobots.bluenet.ble.extended.callbacks.IBleDeviceCallback;
 import nl.dobots.bluenet.ble.extended.callbacks.IExecuteCallback;
@@ -104,8 +104,8 @@ public class BleExt extends Logging implements IWriteCallback {
 	// handler used for delayed execution and timeouts
 	private Handler _handler;
 
-	private ArrayList<String> _blackList;
-	private ArrayList<String> _whiteList;
+	// filter on the raw advertisements: black list, white list, and a quick check of the scan filter
+	private BleScanPreFilter _scanPreFilter = new BleScanPreFilter(_devices, _iBeaconRanger);
 
 	private IBleDeviceCallback _cloudScanCB;
 
@@ -144,6 +144,14 @@ public class BleExt extends Logging implements IWriteCallback {
 		return _iBeaconRanger;
 	}
 
+	/**
+	 * Get the filter on the raw advertisements, for example to check how many advertisements
+	 * were dropped.
+	 */
+	public BleScanPreFilter getScanPreFilter() {
+		return _scanPreFilter;
+	}
+
 	/**
 	 * Set the scan device filter. by setting a filter, only the devices specified will
 	 * pass through the filter and be reported to the application, any other detected devices
@@ -152,13 +160,12 @@ public class BleExt extends Logging implements IWriteCallback {
 	 * @param deviceFilter the scan device filter, see BleDeviceFilter.
 	 */
 	public void setScanFilter(BleDeviceFilter deviceFilter) {
-		getLogger().LOGi(TAG, "setScanFilter " + deviceFilter);
+		getLogger().LOGi(TAG, "setScanFilter %s", deviceFilter);
 		if (_scanFilter != deviceFilter) {
-			synchronized (BleExt.class) {
-				_devices.clear();
-			}
+			_devices.clear();
 		}
 		_scanFilter = deviceFilter;
+		_scanPreFilter.setDeviceFilter(deviceFilter);
 	}
 
 	/**
@@ -234,7 +241,7 @@ public class BleExt extends Logging implements IWriteCallback {
 	 *
 	 * @return the list of scanned devices
 	 */
-	public synchronized BleDeviceMap getDeviceMap() {
+	public BleDeviceMap getDeviceMap() {
 		// make sure it is refreshed
 		_devices.refresh();
 		return _devices;
@@ -243,7 +250,7 @@ public class BleExt extends Logging implements IWriteCallback {
 	/**
 	 * Clear the list of scanned devices.
 	 */
-	public synchronized void clearDeviceMap() {
+	public void clearDeviceMap() {
 		_devices.clear();
 	}
 
@@ -354,14 +361,14 @@ public class BleExt extends Logging implements IWriteCallback {
 	 * @param addresses the MAC addresses of the devices which should be ignored during a scan
 	 */
 	public void setBlackList(String[] addresses) {
-		_blackList = new ArrayList<>(Arrays.asList(addresses.clone()));
+		_scanPreFilter.setBlackList(addresses);
 	}
 
 	/**
 	 * Clear the black list again in order to get all devices during a scan
 	 */
 	public void clearBlackList() {
-		_blackList = null;
+		_scanPreFilter.setBlackList(null);
 	}
 
 	/**
@@ -371,14 +378,14 @@ public class BleExt extends Logging implements IWriteCallback {
 	 * @param addresses the MAC addresses of the devices which should be returned during a scan
 	 */
 	public void setWhiteList(String[] addresses) {
-		_whiteList = new ArrayList<>(Arrays.asList(addresses.clone()));
+		_scanPreFilter.setWhiteList(addresses);
 	}
 
 	/**
 	 * Clear the white list again in order to get all devices during a scan
 	 */
 	public void clearWhiteList() {
-		_whiteList = null;
+		_scanPreFilter.setWhiteList(null);
 	}
 
 	/**
@@ -448,6 +455,7 @@ public class BleExt extends Logging implements IWriteCallback {
 
 //		_connectionState = BleDeviceConnectionState.scanning;
 
+		_bleBase.setScanRecordFilter(_scanPreFilter);
 		_bleBase.startEndlessScan(new IBleDeviceCallback() {
 			@Override
 			public void onSuccess() {
@@ -457,14 +465,8 @@ public class BleExt extends Logging implements IWriteCallback {
 			@Override
 			public void onDeviceScanned(BleDevice device) {
 
-				getLogger().LOGv(TAG, "scanned:" + device.toString());
-
-				if (_blackList != null && _blackList.contains(device.getAddress())) {
-					return;
-				}
-				if (_whiteList != null && !_whiteList.contains(device.getAddress())) {
-					return;
-				}
+				// Black and white list are already checked by the scan pre filter.
+				getLogger().LOGv(TAG, "scanned:%s", device);
 
 //				boolean iBeaconMatch = _iBeaconRanger.onScannedDevice(device, beaconCallback);
 				boolean iBeaconMatch = _iBeaconRanger.onScannedDevice(device, null);
@@ -491,10 +493,7 @@ public class BleExt extends Logging implements IWriteCallback {
 
 				// If we didn't get any service data, we probably received an advertisement with no scan response
 				// So if the device is already in the list, let's assume that it still passes the filter.
-				boolean isInDeviceMap;
-				synchronized (BleExt.class) {
-					isInDeviceMap = _devices.contains(device);
-				}
+				boolean isInDeviceMap = _devices.contains(device);
 				if (isInDeviceMap && device.getServiceData() == null) {
 					// Just update rssi
 				}
@@ -549,7 +548,7 @@ public class BleExt extends Logging implements IWriteCallback {
 		});
 	}
 
-	private synchronized BleDevice updateDevice(BleDevice device) {
+	private BleDevice updateDevice(BleDevice device) {
 		return _devices.updateDevice(device);
 	}
 
@@ -749,7 +748,7 @@ public class BleExt extends Logging implements IWriteCallback {
 			@Override
 			public void onError(int error) {
 				// TODO: now what? Set _connectionState to initialized anyway?
-				getLogger().LOGe(TAG, "failed to disconnect: " + error);
+				getLogger().LOGe(TAG, "failed to disconnect: %d", error);
 				callback.onError(error);
 			}
 		});
@@ -782,7 +781,7 @@ public class BleExt extends Logging implements IWriteCallback {
 		if (_connectionState != state) {
 //			getLogger().LOGe(TAG, "wrong connection state: %s instead of %s", _connectionState.toString(), state.toString());
 			if (callback != null) {
-				getLogger().LOGd(TAG, _connectionState + " != " + state);
+				getLogger().LOGd(TAG, "%s != %s", _connectionState, state);
 				callback.onError(BleErrors.ERROR_WRONG_STATE);
 			}
 			return false;
@@ -995,7 +994,7 @@ public class BleExt extends Logging implements IWriteCallback {
 
 					@Override
 					public void onError(int error) {
-						getLogger().LOGw(TAG, "Failed to discover services: " + error);
+						getLogger().LOGw(TAG, "Failed to discover services: %d", error);
 						callback.onError(error);
 					}
 				}, readSessionNonce, true);
@@ -1024,10 +1023,10 @@ public class BleExt extends Logging implements IWriteCallback {
 				getLogger().LOGe(TAG, "characteristic not found");
 				callback.onError(BleErrors.ERROR_CHARACTERISTIC_NOT_FOUND);
 			}
-			getLogger().LOGd(TAG, "hasCharacteristic? " + characteristicUuid + " false");
+			getLogger().LOGd(TAG, "hasCharacteristic? %s false", characteristicUuid);
 			return false;
 		}
-		getLogger().LOGd(TAG, "hasCharacteristic? " + characteristicUuid + " true");
+		getLogger().LOGd(TAG, "hasCharacteristic? %s true", characteristicUuid);
 		return true;
 	}
 
@@ -1430,6 +1429,7 @@ public class BleExt extends Logging implements IWriteCallback {
 				if (resumeDelayedDisconnect[0]) {
 					delayedDisconnect(null);
 				}
+				_bleBase.checkDiscoveryCache(address, error);
 				if (error == BleErrors.ERROR_CHARACTERISTIC_NOT_FOUND) {
 					executeFailed[0] = true;
 					callback.onError(error);
@@ -1462,7 +1462,9 @@ public class BleExt extends Logging implements IWriteCallback {
 				@Override
 				public void onError(final int error) {
 					// todo: do we need to disconnect and close here?
-					// Clear cache, because ??
+					// Clear cache, because a retry should not use a possibly outdated android cache.
+					// Our cached discovery is only invalidated when it was the cause of the error.
+					_bleBase.checkDiscoveryCache(address, error);
 					disconnectAndClose(true, new IStatusCallback() {
 
 						private void done() {
@@ -1793,7 +1795,7 @@ public class BleExt extends Logging implements IWriteCallback {
 	 */
 	public void writeSwitchLock(final boolean enable, final IStatusCallback callback) {
 		if (isConnected(callback)) {
-			getLogger().LOGd(TAG, "Enable switch lock " + enable);
+			getLogger().LOGd(TAG, "Enable switch lock %s", enable);
 			if (hasControlCharacteristic(callback)) {
 				byte[] val = { (byte)(enable ? 1 : 0) };
 				_bleBase.sendCommand(_targetAddress, new ControlMsg(BluenetConfig.CMD_LOCK_SWITCH, 1, val), callback);
@@ -1814,7 +1816,7 @@ public class BleExt extends Logging implements IWriteCallback {
 		getHandler().post(new Runnable() {
 			@Override
 			public void run() {
-				getLogger().LOGd(TAG, "Enable switch lock " + enable);
+				getLogger().LOGd(TAG, "Enable switch lock %s", enable);
 				connectAndExecute(address, new IExecuteCallback() {
 					@Override
 					public void execute(final IExecStatusCallback execCallback) {
@@ -1837,7 +1839,7 @@ public class BleExt extends Logging implements IWriteCallback {
 	 */
 	public void writeAllowDimming(final boolean enable, final IStatusCallback callback) {
 		if (isConnected(callback)) {
-			getLogger().LOGd(TAG, "Allow dimming " + enable);
+			getLogger().LOGd(TAG, "Allow dimming %s", enable);
 			if (hasControlCharacteristic(callback)) {
 				byte[] val = { (byte)(enable ? 1 : 0) };
 				_bleBase.sendCommand(_targetAddress, new ControlMsg(BluenetConfig.CMD_ALLOW_DIMMING, 1, val), callback);
@@ -1858,7 +1860,7 @@ public class BleExt extends Logging implements IWriteCallback {
 		getHandler().post(new Runnable() {
 			@Override
 			public void run() {
-				getLogger().LOGd(TAG, "Allow dimming " + enable);
+				getLogger().LOGd(TAG, "Allow dimming %s", enable);
 				connectAndExecute(address, new IExecuteCallback() {
 					@Override
 					public void execute(final IExecStatusCallback execCallback) {
@@ -2719,7 +2721,7 @@ public class BleExt extends Logging implements IWriteCallback {
 		getHandler().post(new Runnable() {
 			@Override
 			public void run() {
-				getLogger().LOGi(TAG, "Reset to bootloader " + address);
+				getLogger().LOGi(TAG, "Reset to bootloader %s", address);
 				connectAndExecute(address, new IExecuteCallback() {
 					@Override
 					public void execute(final IExecStatusCallback execCallback) {
@@ -2771,14 +2773,14 @@ public class BleExt extends Logging implements IWriteCallback {
 				}
 
 				// Have to subscribe, else the bootloader doesn't accept any commands.
-				_bleBase.subscribe(_targetAddress, BluenetConfig.DFU_SERVICE_UUID, BluenetConfig.DFU_CONTROL_UUID,
+				_bleBase.subscribe(_targetAddress, BluenetHandles.DFU_CONTROL,
 						new IIntegerCallback() {
 							@Override
 							public void onSuccess(int result) {
-								BleLog.getInstance().LOGi(TAG, "Subscribed to dfu control: " + result);
+								BleLog.getInstance().LOGi(TAG, "Subscribed to dfu control: %s", result);
 								byte[] val = new byte[1];
 								val[0] = 0x06;
-								_bleBase.write(_targetAddress, BluenetConfig.DFU_SERVICE_UUID, BluenetConfig.DFU_CONTROL_UUID, val, BleBaseEncryption.ACCESS_LEVEL_ENCRYPTION_DISABLED, new IStatusCallback() {
+								_bleBase.write(_targetAddress, BluenetHandles.DFU_CONTROL, val, BleBaseEncryption.ACCESS_LEVEL_ENCRYPTION_DISABLED, new IStatusCallback() {
 									@Override
 									public void onSuccess() {
 										done();
@@ -2795,26 +2797,26 @@ public class BleExt extends Logging implements IWriteCallback {
 
 							@Override
 							public void onError(int error) {
-								BleLog.getInstance().LOGi(TAG, "error: " + error);
+								BleLog.getInstance().LOGi(TAG, "error: %d", error);
 								callback.onError(error);
 							}
 						},
 						new IDataCallback() {
 							@Override
 							public void onData(JSONObject json) {
-								BleLog.getInstance().LOGd(TAG, "onData: " + json);
+								BleLog.getInstance().LOGd(TAG, "onData: %s", json);
 							}
 
 							@Override
 							public void onError(int error) {
-								BleLog.getInstance().LOGd(TAG, "onError datacallback: " + error);
+								BleLog.getInstance().LOGd(TAG, "onError datacallback: %d", error);
 							}
 						});
 			}
 
 			@Override
 			public void onError(int error) {
-				BleLog.getInstance().LOGi(TAG, "error: " + error);
+				BleLog.getInstance().LOGi(TAG, "error: %d", error);
 				callback.onError(error);
 			}
 		});
@@ -2828,7 +2830,7 @@ public class BleExt extends Logging implements IWriteCallback {
 		getHandler().post(new Runnable() {
 			@Override
 			public void run() {
-				getLogger().LOGi(TAG, "Reset bootloader " + address);
+				getLogger().LOGi(TAG, "Reset bootloader %s", address);
 				connectAndExecute(address, new IExecuteCallback() {
 					@Override
 					public void execute(final IExecStatusCallback execCallback) {
@@ -2850,7 +2852,7 @@ public class BleExt extends Logging implements IWriteCallback {
 		}
 		getLogger().LOGd(TAG, "Write recovery characteristic");
 		byte[] code = BleUtils.intToByteArray(BluenetConfig.RECOVERY_CODE);
-		_bleBase.write(_targetAddress, BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_RECOVERY_UUID, code, BleBaseEncryption.ACCESS_LEVEL_ENCRYPTION_DISABLED, new IStatusCallback() {
+		_bleBase.write(_targetAddress, BluenetHandles.RECOVERY, code, BleBaseEncryption.ACCESS_LEVEL_ENCRYPTION_DISABLED, new IStatusCallback() {
 			@Override
 			public void onSuccess() {
 				// We have to delay the read a bit until the result is written to the characteristic
@@ -2859,13 +2861,13 @@ public class BleExt extends Logging implements IWriteCallback {
 					@Override
 					public void run() {
 						getLogger().LOGd(TAG, "Read recovery characteristic");
-						_bleBase.read(_targetAddress, BluenetConfig.CROWNSTONE_SERVICE_UUID, BluenetConfig.CHAR_RECOVERY_UUID, false, new IDataCallback() {
+						_bleBase.read(_targetAddress, BluenetHandles.RECOVERY, false, new IDataCallback() {
 							@Override
 							public void onData(JSONObject json) {
 
 								// Verify that the crownstone accepted the recover command
 								byte[] data = BleCore.getValue(json);
-								getLogger().LOGd(TAG, "Read recover data: " + BleUtils.bytesToString(data));
+								getLogger().LOGd(TAG, "Read recover data: %s", data);
 								//						if (data == null || data.length != 1) {
 								if (data == null || data.length < 1) {
 									callback.onError(BleErrors.ERROR_RETURN_VALUE_PARSING);
@@ -3594,7 +3596,7 @@ public class BleExt extends Logging implements IWriteCallback {
 
 	public void writeResetStateErrors(int stateErrorsBitmask, final IStatusCallback callback) {
 		if (isConnected(callback)) {
-			getLogger().LOGi(TAG, "write reset state errors: " + Integer.toBinaryString(stateErrorsBitmask));
+			getLogger().LOGi(TAG, "write reset state errors: %s", Integer.toBinaryString(stateErrorsBitmask));
 			ByteBuffer bb = ByteBuffer.allocate(4);
 			bb.order(ByteOrder.LITTLE_ENDIAN);
 			bb.putInt(stateErrorsBitmask);
@@ -3623,7 +3625,7 @@ public class BleExt extends Logging implements IWriteCallback {
 
 	public void writeSetTime(long timeStamp, final IStatusCallback callback) {
 		if (isConnected(callback)) {
-			getLogger().LOGd(TAG, "writeSetTime: " + timeStamp);
+			getLogger().LOGd(TAG, "writeSetTime: %d", timeStamp);
 			_bleBase.sendCommand(_targetAddress, new ControlMsg(BluenetConfig.CMD_SET_TIME, 4, BleUtils.uint32ToByteArray(timeStamp)), callback);
 		}
 	}
@@ -457,7 +457,7 @@ public class BleExtState {
 	private BleLog getLogger() {
 		BleLog logger = _bleExt.getLogger();
 		// update the log level to the default of this class if it hasn't been set already
-		if (logger.getLogLevel(TAG) == null) {
+		if (!logger.hasLogLevel(TAG)) {
 			logger.setLogLevelPerTag(TAG, LOG_LEVEL);
 		}
 		return logger;
@@ -0,0 +1,648 @@
+package nl.dobots.bluenet.ble.extended;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import nl.dobots.bluenet.ble.base.BleBase;
+import nl.dobots.bluenet.ble.base.callbacks.IDiscoveryCallback;
+import nl.dobots.bluenet.ble.base.callbacks.IExecStatusCallback;
+import nl.dobots.bluenet.ble.base.callbacks.SimpleExecStatusCallback;
+import nl.dobots.bluenet.ble.cfg.BleErrors;
+import nl.dobots.bluenet.ble.core.callbacks.IDataCallback;
+import nl.dobots.bluenet.ble.core.callbacks.IStatusCallback;
+import nl.dobots.bluenet.ble.extended.callbacks.IDeviceExecuteCallback;
+import nl.dobots.bluenet.ble.extended.callbacks.IExecuteCallback;
+import nl.dobots.bluenet.ble.extended.callbacks.IFleetCallback;
+import nl.dobots.bluenet.utils.Logging;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Executes functions on many devices, with several devices connected at the same time.
+ *
+ * Works like BleExt.connectAndExecute: the executor connects to the device, discovers the
+ * services, reads the session nonce and executes the function. The connection is closed after a
+ * delay, so that subsequent functions on the same device don't have to connect again. Each device
+ * has its own retries, delayed disconnect and connection timeout, and at most
+ * getMaxConnections() devices are connected at the same time. Functions on other devices wait
+ * until a connection is closed.
+ *
+ * The functions get the address of the device, and should use the BleBase functions with that
+ * address. Functions of BleExt can't be used, as those only work on the single target address of
+ * BleExt. Don't use BleExt to connect to the same devices while the executor is busy.
+ *
+ * All bookkeeping is done on the handler thread of the executor.
+ */
+public class BleFleetExecutor extends Logging {
+
+	private static final String TAG = BleFleetExecutor.class.getCanonicalName();
+	private static final int LOG_LEVEL = Log.WARN;
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+	// default time used for delayed disconnects, shorter than the one of BleExt, as usually only
+	// one function is executed per device
+	public static final int DEFAULT_DISCONNECT_DELAY = 1000;
+
+	// default delay before the first retry, doubled for every next retry
+	public static final int DEFAULT_RETRY_DELAY = 500;
+
+	private static final int MAX_RETRY_DELAY = 8000;
+
+	private BleBase _bleBase;
+	private Handler _handler;
+
+	private int _maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private int _connectTimeout = 10000;
+	private int _disconnectDelay = DEFAULT_DISCONNECT_DELAY;
+	private int _retryDelay = DEFAULT_RETRY_DELAY;
+	private int _numConnectRetries = 3;
+	private int _numOtherRetries = 1;
+	private boolean _readSessionNonce = true;
+
+	// jobs waiting for a free connection
+	private LinkedList<Job> _pendingJobs = new LinkedList<>();
+
+	// devices that have a connection (or are connecting / disconnecting), by address
+	private HashMap<String, Device> _devices = new HashMap<>();
+
+	/**
+	 * A function to execute on a device
+	 */
+	private static class Job {
+		final String address;
+		final IExecuteCallback function;
+		final IExecStatusCallback callback;
+
+		Job(String address, IExecuteCallback function, IExecStatusCallback callback) {
+			this.address = address;
+			this.function = function;
+			this.callback = callback;
+		}
+	}
+
+	/**
+	 * State of a device that has a connection
+	 */
+	private class Device {
+		final String address;
+		final LinkedList<Job> jobs = new LinkedList<>();
+		Job currentJob = null;
+		boolean connected = false;
+		boolean disconnecting = false;
+		int connectRetries = 0;
+		int otherRetries = 0;
+
+		final Runnable delayedDisconnect = new Runnable() {
+			@Override
+			public void run() {
+				getLogger().LOGi(TAG, "Delayed disconnect timeout %s", address);
+				disconnect(Device.this, false);
+			}
+		};
+
+		Device(String address) {
+			this.address = address;
+		}
+
+		/**
+		 * @return delay before the next retry, based on the number of retries done so far
+		 */
+		int getRetryDelay() {
+			int retries = Math.max(connectRetries, otherRetries);
+			return Math.min(_retryDelay << Math.max(0, retries - 1), MAX_RETRY_DELAY);
+		}
+	}
+
+	/**
+	 * @param bleBase the base object used to connect to the devices, e.g. BleExt.getBleBase()
+	 */
+	public BleFleetExecutor(BleBase bleBase) {
+		_bleBase = bleBase;
+
+		// create handler with its own thread
+		HandlerThread handlerThread = new HandlerThread("BleFleetExecutorHandler");
+		handlerThread.start();
+		_handler = new Handler(handlerThread.getLooper());
+	}
+
+	@Override
+	protected int getLogLevel() {
+		return LOG_LEVEL;
+	}
+
+	@Override
+	protected String getTag() {
+		return TAG;
+	}
+
+	/**
+	 * Set the maximum number of devices that are connected at the same time. Android supports
+	 * about 7 connections, but 3 to 6 usually gives the best throughput.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		_maxConnections = Math.max(1, maxConnections);
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				startPendingJobs();
+			}
+		});
+	}
+
+	public int getMaxConnections() { return _maxConnections; }
+
+	public void setConnectTimeout(int timeoutMs) {
+		_connectTimeout = timeoutMs;
+	}
+
+	public int getConnectTimeout() { return _connectTimeout; }
+
+	/**
+	 * Set the time after which a device is disconnected once no more functions are queued for it.
+	 */
+	public void setDisconnectDelay(int delayMs) {
+		_disconnectDelay = delayMs;
+	}
+
+	public int getDisconnectDelay() { return _disconnectDelay; }
+
+	/**
+	 * Set the delay before the first retry, the delay is doubled for every next retry.
+	 */
+	public void setRetryDelay(int delayMs) {
+		_retryDelay = delayMs;
+	}
+
+	public void setNumRetries(int numConnectRetries, int numOtherRetries) {
+		_numConnectRetries = numConnectRetries;
+		_numOtherRetries = numOtherRetries;
+	}
+
+	/**
+	 * Set whether to read the session nonce after connecting, see BleExt.connectAndExecute
+	 */
+	public void setReadSessionNonce(boolean readSessionNonce) {
+		_readSessionNonce = readSessionNonce;
+	}
+
+	/**
+	 * Execute a function on a device. The function is executed as soon as the device is connected,
+	 * or if too many devices are connected, once a connection is available.
+	 *
+	 * @param address  the MAC address of the device on which the function should be executed
+	 * @param function the function to be executed
+	 * @param callback the callback which should be notified once the function completed, or if
+	 *                 an error occurs
+	 */
+	public void execute(String address, IExecuteCallback function, IExecStatusCallback callback) {
+		final Job job = new Job(address, function, callback);
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				addJob(job);
+			}
+		});
+	}
+
+	/**
+	 * Execute a function on many devices, and get the aggregated results. The function is executed
+	 * once per device, duplicate addresses are ignored.
+	 *
+	 * @param addresses the MAC addresses of the devices on which the function should be executed
+	 * @param function  the function to be executed, gets the address of the device
+	 * @param callback  the callback which is informed about the progress and results
+	 */
+	public void executeAll(List<String> addresses, final IDeviceExecuteCallback function, final IFleetCallback callback) {
+		// results are stored per address, so every address should only be done once
+		LinkedHashSet<String> uniqueAddresses = new LinkedHashSet<>(addresses);
+		final int numTotal = uniqueAddresses.size();
+		final Map<String, Integer> results = new LinkedHashMap<>();
+		if (numTotal == 0) {
+			callback.onFinished(results);
+			return;
+		}
+		for (final String address : uniqueAddresses) {
+			IExecuteCallback deviceFunction = new IExecuteCallback() {
+				@Override
+				public void execute(IExecStatusCallback execCallback) {
+					function.execute(address, execCallback);
+				}
+			};
+			IExecStatusCallback deviceCallback = new SimpleExecStatusCallback() {
+				// A function can report both success and error, only the first result counts
+				private boolean _done = false;
+
+				private void done(int error) {
+					int numDone;
+					synchronized (results) {
+						if (_done) {
+							return;
+						}
+						_done = true;
+						results.put(address, error);
+						numDone = results.size();
+					}
+					callback.onProgress(address, error, numDone, numTotal);
+					if (numDone == numTotal) {
+						callback.onFinished(results);
+					}
+				}
+
+				@Override
+				public void onSuccess() { done(0); }
+
+				@Override
+				public void onSuccess(byte[] result) { done(0); }
+
+				@Override
+				public void onSuccess(boolean value) { done(0); }
+
+				@Override
+				public void onSuccess(int result) { done(0); }
+
+				@Override
+				public void onSuccess(long result) { done(0); }
+
+				@Override
+				public void onSuccess(float result) { done(0); }
+
+				@Override
+				public void onError(int error) { done(error); }
+			};
+			execute(address, deviceFunction, deviceCallback);
+		}
+	}
+
+	/**
+	 * Cancel all functions that are not executed yet, they get ERROR_CANCELLED. Functions that are
+	 * being executed are not affected.
+	 */
+	public void cancelPending() {
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				LinkedList<Job> cancelled = new LinkedList<>(_pendingJobs);
+				_pendingJobs.clear();
+				for (Device device : _devices.values()) {
+					cancelled.addAll(device.jobs);
+					device.jobs.clear();
+				}
+				for (Job job : cancelled) {
+					job.callback.onError(BleErrors.ERROR_CANCELLED);
+				}
+			}
+		});
+	}
+
+	private void addJob(Job job) {
+		Device device = _devices.get(job.address);
+		if (device != null) {
+			device.jobs.add(job);
+			if (device.connected && device.currentJob == null && !device.disconnecting) {
+				_handler.removeCallbacks(device.delayedDisconnect);
+				executeNext(device);
+			}
+		}
+		else {
+			_pendingJobs.add(job);
+			startPendingJobs();
+		}
+	}
+
+	/**
+	 * Start connecting to the devices of pending jobs, as long as connections are available
+	 */
+	private void startPendingJobs() {
+		Iterator<Job> it = _pendingJobs.iterator();
+		while (it.hasNext()) {
+			Job job = it.next();
+			Device device = _devices.get(job.address);
+			if (device != null) {
+				// will be executed once the device is connected, or reconnected after disconnecting
+				device.jobs.add(job);
+				it.remove();
+				continue;
+			}
+			if (_devices.size() >= _maxConnections) {
+				continue;
+			}
+			device = new Device(job.address);
+			device.jobs.add(job);
+			_devices.put(job.address, device);
+			it.remove();
+			connect(device);
+		}
+	}
+
+	private void connect(final Device device) {
+		getLogger().LOGd(TAG, "connect %s", device.address);
+		if (_bleBase.isDeviceConnected(device.address)) {
+			onConnected(device);
+			return;
+		}
+		if (!_bleBase.isDisconnected(device.address)) {
+			onConnectFailed(device, BleErrors.ERROR_WRONG_STATE);
+			return;
+		}
+		_bleBase.connectDevice(device.address, _connectTimeout, new IStatusCallback() {
+			@Override
+			public void onSuccess() {
+				post(new Runnable() {
+					@Override
+					public void run() {
+						device.connectRetries = 0;
+						discover(device);
+					}
+				});
+			}
+
+			@Override
+			public void onError(final int error) {
+				post(new Runnable() {
+					@Override
+					public void run() {
+						onConnectFailed(device, error);
+					}
+				});
+			}
+		});
+	}
+
+	private void discover(final Device device) {
+		_bleBase.discoverServices(device.address, false, new IDiscoveryCallback() {
+			@Override
+			public void onDiscovery(String serviceUuid, String characteristicUuid) { /* don't care */ }
+
+			@Override
+			public void onSuccess() {
+				if (_readSessionNonce && _bleBase.isEncryptionEnabled()) {
+					_bleBase.readSessionNonce(device.address, new IDataCallback() {
+						@Override
+						public void onData(JSONObject json) {
+							post(new Runnable() {
+								@Override
+								public void run() {
+									onConnected(device);
+								}
+							});
+						}
+
+						@Override
+						public void onError(final int error) {
+							post(new Runnable() {
+								@Override
+								public void run() {
+									onConnectFailed(device, error);
+								}
+							});
+						}
+					});
+				}
+				else {
+					post(new Runnable() {
+						@Override
+						public void run() {
+							onConnected(device);
+						}
+					});
+				}
+			}
+
+			@Override
+			public void onError(final int error) {
+				getLogger().LOGe(TAG, "discovery failed: %s", device.address);
+				post(new Runnable() {
+					@Override
+					public void run() {
+						onConnectFailed(device, error);
+					}
+				});
+			}
+		});
+	}
+
+	private void onConnected(Device device) {
+		getLogger().LOGd(TAG, "connected %s", device.address);
+		device.connected = true;
+		executeNext(device);
+	}
+
+	private void onConnectFailed(final Device device, int error) {
+		getLogger().LOGw(TAG, "connect to %s failed: %d", device.address, error);
+		device.connected = false;
+		_bleBase.checkDiscoveryCache(device.address, error);
+		if (retry(device, error)) {
+			// Clear cache, same as BleExt.connectAndExecute
+			_bleBase.disconnectAndCloseDevice(device.address, true, new IStatusCallback() {
+				@Override
+				public void onSuccess() {
+					reconnect();
+				}
+
+				@Override
+				public void onError(int e) {
+					reconnect();
+				}
+
+				private void reconnect() {
+					_handler.postDelayed(new Runnable() {
+						@Override
+						public void run() {
+							connect(device);
+						}
+					}, device.getRetryDelay());
+				}
+			});
+			return;
+		}
+		// give up on this device, all its functions fail
+		LinkedList<Job> failed = new LinkedList<>(device.jobs);
+		if (device.currentJob != null) {
+			failed.addFirst(device.currentJob);
+			device.currentJob = null;
+		}
+		device.jobs.clear();
+		for (Job job : failed) {
+			job.callback.onError(error);
+		}
+		disconnect(device, true);
+	}
+
+	private void executeNext(final Device device) {
+		final Job job = device.jobs.poll();
+		if (job == null) {
+			device.currentJob = null;
+			_handler.postDelayed(device.delayedDisconnect, _disconnectDelay);
+			return;
+		}
+		device.currentJob = job;
+		job.function.execute(new IExecStatusCallback() {
+			private void success() {
+				post(new Runnable() {
+					@Override
+					public void run() {
+						device.otherRetries = 0;
+						executeNext(device);
+					}
+				});
+			}
+
+			@Override
+			public void onExecuteSuccess(boolean disconnect) { /* the executor decides when to disconnect */ }
+
+			@Override
+			public void onSuccess() {
+				job.callback.onSuccess();
+				success();
+			}
+
+			@Override
+			public void onSuccess(byte[] result) {
+				job.callback.onSuccess(result);
+				success();
+			}
+
+			@Override
+			public void onSuccess(boolean value) {
+				job.callback.onSuccess(value);
+				success();
+			}
+
+			@Override
+			public void onSuccess(int value) {
+				job.callback.onSuccess(value);
+				success();
+			}
+
+			@Override
+			public void onSuccess(long value) {
+				job.callback.onSuccess(value);
+				success();
+			}
+
+			@Override
+			public void onSuccess(float value) {
+				job.callback.onSuccess(value);
+				success();
+			}
+
+			@Override
+			public void onError(final int error) {
+				post(new Runnable() {
+					@Override
+					public void run() {
+						onJobFailed(device, job, error);
+					}
+				});
+			}
+		});
+	}
+
+	private void onJobFailed(Device device, Job job, int error) {
+		_bleBase.checkDiscoveryCache(device.address, error);
+		if (error != BleErrors.ERROR_CHARACTERISTIC_NOT_FOUND && retry(device, error)) {
+			// try again, reconnect if the connection was lost
+			device.jobs.addFirst(job);
+			device.currentJob = null;
+			final Device retryDevice = device;
+			_handler.postDelayed(new Runnable() {
+				@Override
+				public void run() {
+					if (_bleBase.isDeviceConnected(retryDevice.address)) {
+						executeNext(retryDevice);
+					}
+					else {
+						retryDevice.connected = false;
+						connect(retryDevice);
+					}
+				}
+			}, device.getRetryDelay());
+			return;
+		}
+		job.callback.onError(error);
+		executeNext(device);
+	}
+
+	/**
+	 * Same retry policy as BleExt, but with the retries counted per device
+	 */
+	private boolean retry(Device device, int error) {
+		switch (error) {
+			case BleErrors.ERROR_SERVICE_NOT_FOUND:
+			case BleErrors.ERROR_CHARACTERISTIC_READ_FAILED:
+			case BleErrors.ERROR_CHARACTERISTIC_WRITE_FAILED: {
+				if (device.otherRetries < _numOtherRetries) {
+					device.otherRetries++;
+					getLogger().LOGw(TAG, "retry %s: %d (error=%d)", device.address, device.otherRetries, error);
+					return true;
+				}
+				device.otherRetries = 0;
+				return false;
+			}
+			case 133: {
+				if (device.connectRetries < _numConnectRetries) {
+					device.connectRetries++;
+					getLogger().LOGw(TAG, "connect retry %s: %d (error=%d)", device.address, device.connectRetries, error);
+					return true;
+				}
+				device.connectRetries = 0;
+				return false;
+			}
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Disconnect and close the device, then free its connection for pending jobs.
+	 */
+	private void disconnect(final Device device, boolean clearCache) {
+		device.disconnecting = true;
+		_handler.removeCallbacks(device.delayedDisconnect);
+		_bleBase.disconnectAndCloseDevice(device.address, clearCache, new IStatusCallback() {
+			@Override
+			public void onSuccess() {
+				onDisconnected();
+			}
+
+			@Override
+			public void onError(int error) {
+				getLogger().LOGw(TAG, "disconnect %s failed: %d", device.address, error);
+				onDisconnected();
+			}
+
+			private void onDisconnected() {
+				post(new Runnable() {
+					@Override
+					public void run() {
+						_devices.remove(device.address);
+						// jobs that were added while disconnecting have to connect again
+						_pendingJobs.addAll(0, device.jobs);
+						device.jobs.clear();
+						startPendingJobs();
+					}
+				});
+			}
+		});
+	}
+
+	private void post(Runnable runnable) {
+		_handler.post(runnable);
+	}
+}
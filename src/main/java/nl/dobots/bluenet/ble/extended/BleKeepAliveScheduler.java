@@ -0,0 +1,320 @@
+package nl.dobots.bluenet.ble.extended;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import nl.dobots.bluenet.ble.cfg.BluenetConfig;
+import nl.dobots.bluenet.ble.core.callbacks.IStatusCallback;
+import nl.dobots.bluenet.ble.mesh.structs.MeshControlMsg;
+import nl.dobots.bluenet.ble.mesh.structs.keepalive.MeshKeepAlivePacket;
+import nl.dobots.bluenet.ble.mesh.structs.keepalive.MeshKeepAliveSameTimeoutPacket;
+import nl.dobots.bluenet.utils.BleLog;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Keeps the keep alive of many Crownstones alive via mesh keep alive messages, sent through a
+ * single relay Crownstone, instead of connecting to each Crownstone.
+ *
+ * The desired keep alive (action switch state and timeout) is kept per Crownstone. Every interval,
+ * the entries that need to be sent are selected: entries that were changed, and entries of which
+ * the keep alive would expire before the next interval. These entries are grouped by timeout, and
+ * each group is packed in MeshKeepAliveSameTimeoutPacket (MAX_ITEMS per packet). Free items in a
+ * packet are filled with the other entries of the same timeout that expire first, as they can be
+ * refreshed for free.
+ *
+ * The relay is selected the same way as for the BleSwitchDispatcher.
+ */
+public class BleKeepAliveScheduler {
+
+	private static final String TAG = BleKeepAliveScheduler.class.getCanonicalName();
+
+	// default interval (in ms) at which is checked which keep alives have to be sent
+	public static final int DEFAULT_INTERVAL = 30000;
+
+	// delay (in ms) before sending changed keep alives, to collect several changes in one message
+	private static final int CHANGE_DELAY = 100;
+
+	private BleExt _bleExt;
+	private Handler _handler;
+
+	private int _interval = DEFAULT_INTERVAL;
+	private String _relayAddress = null;
+	private boolean _running = false;
+	private boolean _sending = false;
+	private boolean _changedWhileSending = false;
+
+	// desired keep alive per crownstone id, only accessed on the handler thread
+	private HashMap<Integer, KeepAliveEntry> _entries = new HashMap<>();
+
+	private static class KeepAliveEntry {
+		final int crownstoneId;
+		final int actionSwitchState;
+		// timeout in seconds
+		final int timeout;
+		boolean changed = true;
+		// time (elapsed realtime in ms) at which the sent keep alive expires, 0 if never sent
+		long deadline = 0;
+
+		KeepAliveEntry(int crownstoneId, int actionSwitchState, int timeout) {
+			this.crownstoneId = crownstoneId;
+			this.actionSwitchState = actionSwitchState;
+			this.timeout = timeout;
+		}
+	}
+
+	private final Runnable _tickRunnable = new Runnable() {
+		@Override
+		public void run() {
+			_handler.removeCallbacks(_tickRunnable);
+			if (!_running) {
+				return;
+			}
+			_handler.postDelayed(_tickRunnable, _interval);
+			send();
+		}
+	};
+
+	public BleKeepAliveScheduler(BleExt bleExt) {
+		_bleExt = bleExt;
+		_handler = bleExt.getHandler();
+	}
+
+	/**
+	 * Set the interval at which keep alives are checked and sent. Keep alives are refreshed when
+	 * they would expire before the next interval, so the interval should be well below the
+	 * shortest timeout.
+	 * @param intervalMs the interval in ms
+	 */
+	public void setInterval(int intervalMs) {
+		_interval = intervalMs;
+	}
+
+	public int getInterval() { return _interval; }
+
+	/**
+	 * Set the address of the Crownstone that forwards the messages into the mesh.
+	 * @param address the MAC address of the relay, or null to select the relay automatically
+	 */
+	public void setRelayAddress(String address) {
+		_relayAddress = address;
+	}
+
+	public String getRelayAddress() { return _relayAddress; }
+
+	/**
+	 * Start sending keep alives.
+	 */
+	public void start() {
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				_running = true;
+				_tickRunnable.run();
+			}
+		});
+	}
+
+	/**
+	 * Stop sending keep alives. The keep alives that were already sent will expire on the
+	 * Crownstones.
+	 */
+	public void stop() {
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				_running = false;
+				_handler.removeCallbacks(_tickRunnable);
+			}
+		});
+	}
+
+	/**
+	 * Set the desired keep alive of a Crownstone. If it differs from what was sent before, it will
+	 * be sent shortly.
+	 *
+	 * @param crownstoneId      the id of the Crownstone
+	 * @param actionSwitchState the switch state (0-100) to set when the keep alive times out, or
+	 *                          MeshKeepAliveSameTimeoutPacket.ACTION_NONE for no action
+	 * @param timeout           the timeout in seconds
+	 */
+	public void setKeepAlive(final int crownstoneId, final int actionSwitchState, final int timeout) {
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				KeepAliveEntry entry = _entries.get(crownstoneId);
+				if (entry != null && entry.actionSwitchState == actionSwitchState && entry.timeout == timeout) {
+					return;
+				}
+				// replace the entry, so that a message that is being sent doesn't mark the new state as sent
+				KeepAliveEntry newEntry = new KeepAliveEntry(crownstoneId, actionSwitchState, timeout);
+				if (entry != null) {
+					newEntry.deadline = entry.deadline;
+				}
+				_entries.put(crownstoneId, newEntry);
+				if (_sending) {
+					_changedWhileSending = true;
+				}
+				else if (_running) {
+					_handler.removeCallbacks(_tickRunnable);
+					_handler.postDelayed(_tickRunnable, CHANGE_DELAY);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop sending keep alives for a Crownstone, the sent keep alive will expire on the Crownstone.
+	 * @param crownstoneId the id of the Crownstone
+	 */
+	public void removeKeepAlive(final int crownstoneId) {
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				_entries.remove(crownstoneId);
+			}
+		});
+	}
+
+	public void clear() {
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				_entries.clear();
+			}
+		});
+	}
+
+	private void send() {
+		if (_sending) {
+			// the next tick will pick up what is left
+			return;
+		}
+		long now = SystemClock.elapsedRealtime();
+		List<MeshControlMsg> messages = new ArrayList<>();
+		List<List<KeepAliveEntry>> messageEntries = new ArrayList<>();
+		createMessages(now, messages, messageEntries);
+		if (messages.isEmpty()) {
+			return;
+		}
+
+		String relayAddress = BleSwitchDispatcher.getRelay(_bleExt, _relayAddress);
+		if (relayAddress == null) {
+			BleLog.getInstance().LOGw(TAG, "no relay available");
+			return;
+		}
+		BleLog.getInstance().LOGi(TAG, "send %d keep alive messages via %s", messages.size(), relayAddress);
+		_sending = true;
+		sendNext(relayAddress, messages, messageEntries, 0);
+	}
+
+	/**
+	 * Create the messages for the entries that have to be sent.
+	 */
+	private void createMessages(long now, List<MeshControlMsg> messages, List<List<KeepAliveEntry>> messageEntries) {
+		// entries that have to be sent, and entries that may be sent, grouped by timeout
+		TreeMap<Integer, ArrayList<KeepAliveEntry>> due = new TreeMap<>();
+		HashMap<Integer, ArrayList<KeepAliveEntry>> optional = new HashMap<>();
+		for (KeepAliveEntry entry : _entries.values()) {
+			boolean isDue = entry.changed || entry.deadline - now < 2L * _interval;
+			Map<Integer, ArrayList<KeepAliveEntry>> map = isDue ? due : optional;
+			ArrayList<KeepAliveEntry> list = map.get(entry.timeout);
+			if (list == null) {
+				list = new ArrayList<>();
+				map.put(entry.timeout, list);
+			}
+			list.add(entry);
+		}
+
+		Comparator<KeepAliveEntry> byDeadline = new Comparator<KeepAliveEntry>() {
+			@Override
+			public int compare(KeepAliveEntry lhs, KeepAliveEntry rhs) {
+				return lhs.deadline < rhs.deadline ? -1 : (lhs.deadline == rhs.deadline ? 0 : 1);
+			}
+		};
+
+		for (Map.Entry<Integer, ArrayList<KeepAliveEntry>> group : due.entrySet()) {
+			int timeout = group.getKey();
+			ArrayList<KeepAliveEntry> entries = group.getValue();
+			int numItems = entries.size();
+			int numPackets = (numItems + MeshKeepAliveSameTimeoutPacket.MAX_ITEMS - 1) / MeshKeepAliveSameTimeoutPacket.MAX_ITEMS;
+
+			// fill up the last packet with the entries that expire first
+			ArrayList<KeepAliveEntry> extra = optional.get(timeout);
+			if (extra != null) {
+				Collections.sort(extra, byDeadline);
+				int free = numPackets * MeshKeepAliveSameTimeoutPacket.MAX_ITEMS - numItems;
+				entries.addAll(extra.subList(0, Math.min(free, extra.size())));
+			}
+
+			for (int start = 0; start < entries.size(); start += MeshKeepAliveSameTimeoutPacket.MAX_ITEMS) {
+				List<KeepAliveEntry> packetEntries = entries.subList(start, Math.min(start + MeshKeepAliveSameTimeoutPacket.MAX_ITEMS, entries.size()));
+				MeshKeepAliveSameTimeoutPacket sameTimeoutPacket = new MeshKeepAliveSameTimeoutPacket(timeout);
+				for (KeepAliveEntry entry : packetEntries) {
+					sameTimeoutPacket.addItem(entry.crownstoneId, entry.actionSwitchState);
+				}
+				MeshKeepAlivePacket keepAlivePacket = new MeshKeepAlivePacket();
+				keepAlivePacket.setPayload(sameTimeoutPacket);
+				messages.add(new MeshControlMsg(BluenetConfig.MESH_HANDLE_KEEP_ALIVE, keepAlivePacket));
+				messageEntries.add(new ArrayList<>(packetEntries));
+			}
+		}
+	}
+
+	private void sendNext(final String relayAddress, final List<MeshControlMsg> messages,
+						  final List<List<KeepAliveEntry>> messageEntries, final int index) {
+		if (index >= messages.size()) {
+			_sending = false;
+			// send the entries that were changed while sending, failed entries wait for the next tick
+			if (_changedWhileSending && _running) {
+				_handler.removeCallbacks(_tickRunnable);
+				_handler.postDelayed(_tickRunnable, CHANGE_DELAY);
+			}
+			_changedWhileSending = false;
+			return;
+		}
+		final long sendTime = SystemClock.elapsedRealtime();
+		_bleExt.writeMeshMessage(relayAddress, messages.get(index), new IStatusCallback() {
+			@Override
+			public void onSuccess() {
+				_handler.post(new Runnable() {
+					@Override
+					public void run() {
+						for (KeepAliveEntry entry : messageEntries.get(index)) {
+							// skip entries that were changed or removed while sending
+							if (_entries.get(entry.crownstoneId) == entry) {
+								entry.deadline = sendTime + entry.timeout * 1000L;
+								entry.changed = false;
+							}
+						}
+						sendNext(relayAddress, messages, messageEntries, index + 1);
+					}
+				});
+			}
+
+			@Override
+			public void onError(int error) {
+				BleLog.getInstance().LOGe(TAG, "failed to send keep alive: %d", error);
+				_handler.post(new Runnable() {
+					@Override
+					public void run() {
+						// entries stay due, they will be sent again on the next tick
+						sendNext(relayAddress, messages, messageEntries, index + 1);
+					}
+				});
+			}
+		});
+	}
+}
@@ -0,0 +1,257 @@
+package nl.dobots.bluenet.ble.extended;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.dobots.bluenet.ble.cfg.BluenetConfig;
+import nl.dobots.bluenet.ble.core.IScanRecordFilter;
+import nl.dobots.bluenet.ble.extended.structs.BleDeviceMap;
+import nl.dobots.bluenet.ibeacon.BleIbeaconRanging;
+import nl.dobots.bluenet.utils.BleUtils;
+import nl.dobots.bluenet.utils.LongHashSet;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Filter of BleExt on the raw scanned advertisements, so that advertisements of devices that
+ * would be thrown away anyway are not parsed (and decrypted) first.
+ *
+ * An advertisement is dropped when:
+ * - the address is on the black list, or not on the white list.
+ * - it doesn't look like a device of the device filter: Crownstone service data, the dfu service,
+ *   or iBeacon data, depending on the device filter. Except for iBeacons that match the
+ *   ranger, and devices that are already in the device map (as not every advertisement has
+ *   the service data).
+ *
+ * The advertisement is only peeked at, the full check is still done after parsing.
+ */
+public class BleScanPreFilter implements IScanRecordFilter {
+
+	// AD types, see: https://www.bluetooth.com/specifications/assigned-numbers/generic-access-profile
+	private static final int AD_TYPE_INCOMPLETE_128_BIT_UUIDS = 0x06;
+	private static final int AD_TYPE_COMPLETE_128_BIT_UUIDS =   0x07;
+	private static final int AD_TYPE_SERVICE_DATA_16_BIT_UUID = 0x16;
+	private static final int AD_TYPE_MANUFACTURER_DATA =        0xFF;
+
+	// Length of company id, advertisement id and proximity UUID
+	private static final int IBEACON_UUID_END = 2+2+16;
+
+	private static final long DFU_SERVICE_UUID_MSB = UUID.fromString(BluenetConfig.DFU_SERVICE_UUID).getMostSignificantBits();
+	private static final long DFU_SERVICE_UUID_LSB = UUID.fromString(BluenetConfig.DFU_SERVICE_UUID).getLeastSignificantBits();
+
+	// Results of peeking at the advertisement
+	private static final int HAS_CROWNSTONE_SERVICE_DATA = 1 << 0;
+	private static final int HAS_DFU_SERVICE =             1 << 1;
+	private static final int IS_IBEACON =                  1 << 2;
+	private static final int IS_RANGED_IBEACON =           1 << 3;
+
+	private final BleDeviceMap _devices;
+	private final BleIbeaconRanging _iBeaconRanger;
+
+	// Sets are replaced instead of modified, so they can be read without lock.
+	private volatile LongHashSet _blackList = null;
+	private volatile LongHashSet _whiteList = null;
+	private volatile BleDeviceFilter _deviceFilter = BleDeviceFilter.all;
+
+	// Scan callbacks can come from several threads
+	private final AtomicLong _numAccepted = new AtomicLong(0);
+	private final AtomicLong _numDropped = new AtomicLong(0);
+
+	/**
+	 * @param devices the device map of BleExt, devices in it are let through
+	 * @param iBeaconRanger the iBeacon ranger of BleExt, matching iBeacons are let through
+	 */
+	public BleScanPreFilter(BleDeviceMap devices, BleIbeaconRanging iBeaconRanger) {
+		_devices = devices;
+		_iBeaconRanger = iBeaconRanger;
+	}
+
+	/**
+	 * @param addresses the MAC addresses to drop, or null to clear the black list
+	 */
+	public void setBlackList(String[] addresses) {
+		_blackList = createAddressSet(addresses);
+	}
+
+	/**
+	 * @param addresses the only MAC addresses to let through, or null to clear the white list
+	 */
+	public void setWhiteList(String[] addresses) {
+		_whiteList = createAddressSet(addresses);
+	}
+
+	/**
+	 * @param deviceFilter the device filter of BleExt, null is the same as all
+	 */
+	public void setDeviceFilter(BleDeviceFilter deviceFilter) {
+		_deviceFilter = deviceFilter != null ? deviceFilter : BleDeviceFilter.all;
+	}
+
+	/**
+	 * @return number of advertisements that passed the filter
+	 */
+	public long getNumAccepted() {
+		return _numAccepted.get();
+	}
+
+	/**
+	 * @return number of advertisements that were dropped by the filter
+	 */
+	public long getNumDropped() {
+		return _numDropped.get();
+	}
+
+	public void resetStats() {
+		_numAccepted.set(0);
+		_numDropped.set(0);
+	}
+
+	@Override
+	public boolean accept(String address, byte[] scanRecord) {
+		if (isAccepted(address, scanRecord)) {
+			_numAccepted.incrementAndGet();
+			return true;
+		}
+		_numDropped.incrementAndGet();
+		return false;
+	}
+
+	private boolean isAccepted(String address, byte[] scanRecord) {
+		LongHashSet blackList = _blackList;
+		LongHashSet whiteList = _whiteList;
+		if (blackList != null || whiteList != null) {
+			long packedAddress = BleUtils.addressToLong(address);
+			if (blackList != null && blackList.contains(packedAddress)) {
+				return false;
+			}
+			if (whiteList != null && !whiteList.contains(packedAddress)) {
+				return false;
+			}
+		}
+
+		BleDeviceFilter deviceFilter = _deviceFilter;
+		if (deviceFilter == BleDeviceFilter.all) {
+			return true;
+		}
+
+		int flags = peek(scanRecord);
+		switch (deviceFilter) {
+			case iBeacon:
+				if ((flags & IS_IBEACON) != 0) {
+					return true;
+				}
+				break;
+			case anyStone:
+				if ((flags & (HAS_CROWNSTONE_SERVICE_DATA | HAS_DFU_SERVICE)) != 0) {
+					return true;
+				}
+				break;
+			default:
+				// The exact type is only known after parsing.
+				if ((flags & HAS_CROWNSTONE_SERVICE_DATA) != 0) {
+					return true;
+				}
+				break;
+		}
+		if ((flags & IS_RANGED_IBEACON) != 0) {
+			return true;
+		}
+		// The service data is not in every advertisement, so let devices through that passed before.
+		return _devices.containsKey(address);
+	}
+
+	/**
+	 * Walk over the AD structures of the advertisement, without parsing them.
+	 * @return flags of what was found
+	 */
+	private int peek(byte[] scanRecord) {
+		int flags = 0;
+		int index = 0;
+		while (index < scanRecord.length) {
+			int len = scanRecord[index] & 0xFF;
+			if (len == 0 || index + 1 + len > scanRecord.length) {
+				// End of the valid data, or malformed.
+				break;
+			}
+			int type = scanRecord[index + 1] & 0xFF;
+			int dataIndex = index + 2;
+			int dataLen = len - 1;
+			switch (type) {
+				case AD_TYPE_SERVICE_DATA_16_BIT_UUID: {
+					if (dataLen >= 2) {
+						int uuid = readUint16LittleEndian(scanRecord, dataIndex);
+						if (uuid == BluenetConfig.CROWNSTONE_PLUG_SERVICE_DATA_UUID ||
+								uuid == BluenetConfig.CROWNSTONE_BUILTIN_SERVICE_DATA_UUID ||
+								uuid == BluenetConfig.GUIDESTONE_SERVICE_DATA_UUID) {
+							flags |= HAS_CROWNSTONE_SERVICE_DATA;
+						}
+					}
+					break;
+				}
+				case AD_TYPE_INCOMPLETE_128_BIT_UUIDS:
+				case AD_TYPE_COMPLETE_128_BIT_UUIDS: {
+					for (int i = dataIndex; i + 16 <= dataIndex + dataLen; i += 16) {
+						// UUIDs are little endian
+						long lsb = readLong(scanRecord, i, false);
+						long msb = readLong(scanRecord, i + 8, false);
+						if (msb == DFU_SERVICE_UUID_MSB && lsb == DFU_SERVICE_UUID_LSB) {
+							flags |= HAS_DFU_SERVICE;
+						}
+					}
+					break;
+				}
+				case AD_TYPE_MANUFACTURER_DATA: {
+					if (dataLen >= IBEACON_UUID_END &&
+							readUint16LittleEndian(scanRecord, dataIndex) == BluenetConfig.APPLE_COMPANY_ID &&
+							readUint16BigEndian(scanRecord, dataIndex + 2) == BluenetConfig.IBEACON_ADVERTISEMENT_ID) {
+						flags |= IS_IBEACON;
+						// iBeacon data is big endian
+						long msb = readLong(scanRecord, dataIndex + 4, true);
+						long lsb = readLong(scanRecord, dataIndex + 12, true);
+						if (_iBeaconRanger.hasProximityUuid(msb, lsb)) {
+							flags |= IS_RANGED_IBEACON;
+						}
+					}
+					break;
+				}
+			}
+			index += 1 + len;
+		}
+		return flags;
+	}
+
+	private static int readUint16LittleEndian(byte[] bytes, int index) {
+		return (bytes[index] & 0xFF) | ((bytes[index + 1] & 0xFF) << 8);
+	}
+
+	private static int readUint16BigEndian(byte[] bytes, int index) {
+		return ((bytes[index] & 0xFF) << 8) | (bytes[index + 1] & 0xFF);
+	}
+
+	private static long readLong(byte[] bytes, int index, boolean bigEndian) {
+		long result = 0;
+		for (int i = 0; i < 8; i++) {
+			int b = bytes[bigEndian ? index + i : index + 7 - i] & 0xFF;
+			result = (result << 8) | b;
+		}
+		return result;
+	}
+
+	private static LongHashSet createAddressSet(String[] addresses) {
+		if (addresses == null) {
+			return null;
+		}
+		LongHashSet set = new LongHashSet(addresses.length);
+		for (String address : addresses) {
+			long packedAddress = BleUtils.addressToLong(address);
+			if (packedAddress != -1) {
+				set.add(packedAddress);
+			}
+		}
+		return set;
+	}
+}
@@ -0,0 +1,261 @@
+package nl.dobots.bluenet.ble.extended;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import nl.dobots.bluenet.ble.cfg.BleErrors;
+import nl.dobots.bluenet.ble.cfg.BluenetConfig;
+import nl.dobots.bluenet.ble.core.callbacks.IStatusCallback;
+import nl.dobots.bluenet.ble.extended.structs.BleDevice;
+import nl.dobots.bluenet.ble.mesh.structs.MeshControlMsg;
+import nl.dobots.bluenet.ble.mesh.structs.multiswitch.MeshMultiSwitchListPacket;
+import nl.dobots.bluenet.ble.mesh.structs.multiswitch.MeshMultiSwitchPacket;
+import nl.dobots.bluenet.utils.BleLog;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Sends switch commands for many Crownstones as mesh multi switch messages through a single
+ * relay Crownstone, instead of connecting to each Crownstone.
+ *
+ * Switch requests are collected for a short window (see setCollectWindow). Only the latest
+ * request per Crownstone is kept. After the window, the requests are packed into multi switch
+ * packets (MeshMultiSwitchListPacket.MAX_ITEMS per packet), which are written one after the
+ * other to the relay with BleExt.writeMeshMessage, so that the relay is only connected once.
+ *
+ * The relay is the address set with setRelayAddress, or if not set: the device BleExt is
+ * connected to, or else the validated Crownstone with the strongest signal in the device map.
+ */
+public class BleSwitchDispatcher {
+
+	private static final String TAG = BleSwitchDispatcher.class.getCanonicalName();
+
+	// default time (in ms) to collect switch requests before sending them
+	public static final int DEFAULT_COLLECT_WINDOW = 100;
+
+	private BleExt _bleExt;
+	private Handler _handler;
+
+	private int _collectWindow = DEFAULT_COLLECT_WINDOW;
+	private String _relayAddress = null;
+
+	// latest switch request per crownstone id, in order of arrival.
+	// Only accessed on the handler thread.
+	private LinkedHashMap<Integer, SwitchRequest> _requests = new LinkedHashMap<>();
+	private boolean _flushScheduled = false;
+
+	/**
+	 * A switch request for a single Crownstone, with the callbacks of all requests it replaced.
+	 */
+	private static class SwitchRequest {
+		final int crownstoneId;
+		final int switchState;
+		final int timeout;
+		final int intent;
+		final ArrayList<IStatusCallback> callbacks = new ArrayList<>();
+
+		SwitchRequest(int crownstoneId, int switchState, int timeout, int intent) {
+			this.crownstoneId = crownstoneId;
+			this.switchState = switchState;
+			this.timeout = timeout;
+			this.intent = intent;
+		}
+	}
+
+	private final Runnable _flushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			_flushScheduled = false;
+			flush();
+		}
+	};
+
+	public BleSwitchDispatcher(BleExt bleExt) {
+		_bleExt = bleExt;
+		_handler = bleExt.getHandler();
+	}
+
+	/**
+	 * Set the time to collect switch requests before sending them. A longer window gives more
+	 * requests per message, but adds delay to the first request.
+	 * @param windowMs the window in ms
+	 */
+	public void setCollectWindow(int windowMs) {
+		_collectWindow = windowMs;
+	}
+
+	public int getCollectWindow() { return _collectWindow; }
+
+	/**
+	 * Set the address of the Crownstone that forwards the messages into the mesh.
+	 * @param address the MAC address of the relay, or null to select the relay automatically
+	 */
+	public void setRelayAddress(String address) {
+		_relayAddress = address;
+	}
+
+	public String getRelayAddress() { return _relayAddress; }
+
+	/**
+	 * Switch a Crownstone, with the manual intent and without timeout.
+	 * @see #writeSwitch(int, int, int, int, IStatusCallback)
+	 */
+	public void writeSwitch(int crownstoneId, int switchState, IStatusCallback callback) {
+		writeSwitch(crownstoneId, switchState, 0, BluenetConfig.SWITCH_INTENT_MANUAL, callback);
+	}
+
+	/**
+	 * Switch a Crownstone via the mesh. If another request for the same Crownstone is still
+	 * waiting to be sent, it is replaced by this request.
+	 *
+	 * @param crownstoneId the id of the Crownstone
+	 * @param switchState  the switch value (0-100)
+	 * @param timeout      the timeout of the switch, see the multi switch protocol
+	 * @param intent       the intent of the switch, see BluenetConfig.SWITCH_INTENT_*
+	 * @param callback     informed once the message with this request is written to the relay.
+	 *                     If this request replaced others, their callbacks are informed as well.
+	 */
+	public void writeSwitch(final int crownstoneId, final int switchState, final int timeout, final int intent,
+							final IStatusCallback callback) {
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				SwitchRequest request = new SwitchRequest(crownstoneId, switchState, timeout, intent);
+				// remove the old request, so that the new one is added at the end
+				SwitchRequest replaced = _requests.remove(crownstoneId);
+				if (replaced != null) {
+					BleLog.getInstance().LOGd(TAG, "replace switch %d for crownstone %d", replaced.switchState, crownstoneId);
+					request.callbacks.addAll(replaced.callbacks);
+				}
+				request.callbacks.add(callback);
+				_requests.put(crownstoneId, request);
+				if (!_flushScheduled) {
+					_flushScheduled = true;
+					_handler.postDelayed(_flushRunnable, _collectWindow);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Send the collected requests now, instead of waiting for the collect window to expire.
+	 */
+	public void flushNow() {
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (_flushScheduled) {
+					_handler.removeCallbacks(_flushRunnable);
+					_flushScheduled = false;
+				}
+				flush();
+			}
+		});
+	}
+
+	private void flush() {
+		if (_requests.isEmpty()) {
+			return;
+		}
+		ArrayList<SwitchRequest> requests = new ArrayList<>(_requests.values());
+		_requests.clear();
+
+		String relayAddress = getRelay(_bleExt, _relayAddress);
+		if (relayAddress == null) {
+			BleLog.getInstance().LOGe(TAG, "no relay available");
+			fail(requests, BleErrors.ERROR_DEVICE_NOT_FOUND);
+			return;
+		}
+		BleLog.getInstance().LOGi(TAG, "send %d switch requests via %s", requests.size(), relayAddress);
+		sendNext(relayAddress, requests, 0);
+	}
+
+	/**
+	 * Send the packet with the requests starting at the given index, then continue with the rest.
+	 * The writes are done one after the other, so that connectAndExecute of BleExt reuses the
+	 * connection to the relay.
+	 */
+	private void sendNext(final String relayAddress, final List<SwitchRequest> requests, final int start) {
+		if (start >= requests.size()) {
+			return;
+		}
+		final int end = Math.min(start + MeshMultiSwitchListPacket.MAX_ITEMS, requests.size());
+		final List<SwitchRequest> packetRequests = requests.subList(start, end);
+
+		MeshMultiSwitchListPacket listPacket = new MeshMultiSwitchListPacket();
+		for (SwitchRequest request : packetRequests) {
+			listPacket.addItem(request.crownstoneId, request.switchState, request.timeout, request.intent);
+		}
+		MeshMultiSwitchPacket multiSwitchPacket = new MeshMultiSwitchPacket();
+		multiSwitchPacket.setPayload(listPacket);
+		MeshControlMsg message = new MeshControlMsg(BluenetConfig.MESH_HANDLE_MULTI_SWITCH, multiSwitchPacket);
+
+		_bleExt.writeMeshMessage(relayAddress, message, new IStatusCallback() {
+			@Override
+			public void onSuccess() {
+				for (SwitchRequest request : packetRequests) {
+					for (IStatusCallback callback : request.callbacks) {
+						callback.onSuccess();
+					}
+				}
+				next();
+			}
+
+			@Override
+			public void onError(int error) {
+				BleLog.getInstance().LOGe(TAG, "failed to send multi switch: %d", error);
+				fail(packetRequests, error);
+				next();
+			}
+
+			private void next() {
+				_handler.post(new Runnable() {
+					@Override
+					public void run() {
+						sendNext(relayAddress, requests, end);
+					}
+				});
+			}
+		});
+	}
+
+	private void fail(List<SwitchRequest> requests, int error) {
+		for (SwitchRequest request : requests) {
+			for (IStatusCallback callback : request.callbacks) {
+				callback.onError(error);
+			}
+		}
+	}
+
+	/**
+	 * Get the Crownstone to send mesh messages through.
+	 * @param bleExt the BleExt object used to send the messages
+	 * @param relayAddress the address set by the user, or null
+	 * @return the given relay address, or if null: the device BleExt is connected to, or the
+	 *         validated Crownstone with the strongest signal. Null if no relay is available.
+	 */
+	static String getRelay(BleExt bleExt, String relayAddress) {
+		if (relayAddress != null) {
+			return relayAddress;
+		}
+		if (bleExt.isConnected(null)) {
+			return bleExt.getTargetAddress();
+		}
+		Iterator<BleDevice> it = bleExt.getDeviceMap().getRssiSortedList().iterator();
+		while (it.hasNext()) {
+			BleDevice device = it.next();
+			if (device.isValidatedCrownstone() && !device.isSetupMode() && !device.isDfuMode()) {
+				return device.getAddress();
+			}
+		}
+		return null;
+	}
+}
@@ -17,6 +17,7 @@ import nl.dobots.bluenet.ble.base.callbacks.SimpleExecStatusCallback;
 import nl.dobots.bluenet.ble.base.structs.ControlMsg;
 import nl.dobots.bluenet.ble.cfg.BleErrors;
 import nl.dobots.bluenet.ble.cfg.BluenetConfig;
+import nl.dobots.bluenet.ble.cfg.BluenetHandles;
 import nl.dobots.bluenet.ble.extended.callbacks.IExecuteCallback;
 import nl.dobots.bluenet.utils.BleLog;
 import nl.dobots.bluenet.utils.BleUtils;
@@ -264,7 +265,7 @@ public class CrownstoneSetup {
 							}
 						};
 
-						_bleBase.subscribeMultipart(_targetAddress, BluenetConfig.SETUP_SERVICE_UUID, BluenetConfig.CHAR_SETUP_CONTROL2_UUID, new IIntegerCallback() {
+						_bleBase.subscribeMultipart(_targetAddress, BluenetHandles.SETUP_CONTROL2, new IIntegerCallback() {
 							@Override
 							public void onSuccess(int result) {
 								_bleExt.getLogger().LOGi(TAG, "Successfully subscribed for notifications");
@@ -0,0 +1,19 @@
+package nl.dobots.bluenet.ble.extended.callbacks;
+
+import nl.dobots.bluenet.ble.base.callbacks.IExecStatusCallback;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Same as IExecuteCallback, but gets the address of the device on which the function should be
+ * executed, so that one function can be executed on many devices, see BleFleetExecutor.
+ */
+public interface IDeviceExecuteCallback {
+
+	void execute(String address, IExecStatusCallback callback);
+
+}
@@ -0,0 +1,32 @@
+package nl.dobots.bluenet.ble.extended.callbacks;
+
+import java.util.Map;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Informs about the progress and results of executing a function on many devices, see
+ * BleFleetExecutor.
+ */
+public interface IFleetCallback {
+
+	/**
+	 * Called every time the function completed on a device.
+	 * @param address the address of the device
+	 * @param error 0 on success, else the error, see BleErrors
+	 * @param numDone number of devices that are done
+	 * @param numTotal total number of devices
+	 */
+	void onProgress(String address, int error, int numDone, int numTotal);
+
+	/**
+	 * Called once the function completed on all devices.
+	 * @param results for each address: 0 on success, else the error, see BleErrors
+	 */
+	void onFinished(Map<String, Integer> results);
+
+}
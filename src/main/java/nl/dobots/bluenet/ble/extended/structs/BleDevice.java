@@ -70,13 +70,23 @@ public class BleDevice {
 
 	private static long expirationTime = 1000;
 
+	// max number of rssi measurements kept per device
+	private static int historyCapacity = 100;
+
 	private String _address;
+	// MAC address packed in a long, see BleUtils.addressToLong(), -1 until first used
+	private long _packedAddress = -1;
 	private String _name;
 	private int _rssi;
 	private DeviceType _type;
 
 	private Integer _averageRssi;
-	private ArrayList<RssiMeasurement> _rssiHistory = new ArrayList<>();
+	// Created on the first use, most devices take over the history of the old device instead
+	private RssiHistory _rssiHistory = null;
+	// First rssi measurement, added to the history when it is created
+	private int _firstRssi;
+	private long _firstRssiTimestamp;
+	private boolean _hasFirstRssi = false;
 
 	private Double _distance;
 
@@ -91,7 +101,7 @@ public class BleDevice {
 	private CrownstoneMode _crownstoneMode = CrownstoneMode.unknown;
 	private boolean _isValidatedCrownstone = false;
 	private int _lastCrownstoneId = -1;
-	private String _lastChangingBytes;
+	private int _lastChangingBytes = -1;
 	private int _numSimilarCrownstoneIds = 0;
 
 
@@ -105,7 +115,28 @@ public class BleDevice {
 		_crownstoneMode = CrownstoneMode.unknown;
 		_isValidatedCrownstone = false;
 
-		updateRssiValue((new Date()).getTime(), rssi);
+		setFirstRssiValue((new Date()).getTime(), rssi);
+	}
+
+	/**
+	 * Create a device from a scanned advertisement. Set the parsed advertisement data with
+	 * setIBeaconData(), setServiceData() and setDfuMode(), and call updateDeviceType() when done.
+	 *
+	 * @param address   MAC address of the device
+	 * @param name      name of the device, can be null
+	 * @param rssi      rssi with which the advertisement was received
+	 * @param timestamp time at which the advertisement was received
+	 */
+	public BleDevice(String address, String name, int rssi, long timestamp) {
+		_address = address;
+		_name = (name != null) ? name : "No Name";
+		_rssi = rssi;
+		_type = DeviceType.unknown;
+		_isIBeacon = false;
+		_crownstoneMode = CrownstoneMode.unknown;
+		_isValidatedCrownstone = false;
+
+		setFirstRssiValue(timestamp, rssi);
 	}
 
 	private BleDevice(String address, String name, int rssi, DeviceType type, boolean isIBeacon, int major, int minor, UUID proximityUuid, int calibratedRssi, boolean validated, CrownstoneMode mode) {
@@ -121,7 +152,7 @@ public class BleDevice {
 		_crownstoneMode = mode; // TODO: should this be copied?
 		_isValidatedCrownstone = validated; // TODO: should this be copied?
 
-		updateRssiValue((new Date()).getTime(), rssi);
+		setFirstRssiValue((new Date()).getTime(), rssi);
 	}
 
 	public BleDevice(JSONObject json) throws JSONException {
@@ -143,7 +174,7 @@ public class BleDevice {
 
 		if (json.has(BleTypes.PROPERTY_SERVICE_DATA)) {
 //			_serviceData = new CrownstoneServiceData(json.getString(BleTypes.PROPERTY_SERVICE_DATA));
-			_serviceData = (CrownstoneServiceData)json.getJSONObject(BleTypes.PROPERTY_SERVICE_DATA);
+			_serviceData = getServiceData(json);
 			if (_serviceData.isSetupMode()) {
 				_crownstoneMode = CrownstoneMode.setup;
 			} else {
@@ -161,7 +192,7 @@ public class BleDevice {
 		}
 
 		validateCrownstone();
-		updateRssiValue((new Date()).getTime(), _rssi);
+		setFirstRssiValue((new Date()).getTime(), _rssi);
 	}
 
 	public BleDevice clone() {
@@ -218,9 +249,73 @@ public class BleDevice {
 
 	public boolean isDfuMode() { return _crownstoneMode == CrownstoneMode.dfu; }
 
+	/**
+	 * Set the iBeacon data parsed from the advertisement, marks the device as iBeacon.
+	 */
+	public void setIBeaconData(UUID proximityUuid, int major, int minor, int calibratedRssi) {
+		_isIBeacon = true;
+		_proximityUuid = proximityUuid;
+		_major = major;
+		_minor = minor;
+		_calibratedRssi = calibratedRssi;
+	}
+
+	/**
+	 * Mark the device as being in dfu mode, takes effect on the next updateDeviceType()
+	 */
+	public void setDfuMode() {
+		_crownstoneMode = CrownstoneMode.dfu;
+	}
+
+	/**
+	 * Determine the device type and crownstone mode from the parsed advertisement data, and
+	 * validate the crownstone. Same as is done when the device is created from JSON.
+	 */
+	public synchronized void updateDeviceType() {
+		boolean isDfuMode = _crownstoneMode == CrownstoneMode.dfu;
+		_type = determineDeviceType(_serviceData, _isIBeacon);
+		_crownstoneMode = CrownstoneMode.unknown;
+
+		if (_serviceData != null) {
+			if (_serviceData.isSetupMode()) {
+				_crownstoneMode = CrownstoneMode.setup;
+			} else {
+				_crownstoneMode = CrownstoneMode.normal;
+			}
+		}
+		else {
+			_serviceData = new CrownstoneServiceData();
+		}
+
+		if (isDfuMode) {
+			_crownstoneMode = CrownstoneMode.dfu;
+		}
+
+		validateCrownstone();
+	}
+
 	private DeviceType determineDeviceType(JSONObject json) throws JSONException {
+		CrownstoneServiceData serviceData = null;
 		if (json.has(BleTypes.PROPERTY_SERVICE_DATA)) {
-			CrownstoneServiceData serviceData = (CrownstoneServiceData) json.getJSONObject(BleTypes.PROPERTY_SERVICE_DATA);
+			serviceData = getServiceData(json);
+		}
+		return determineDeviceType(serviceData, json.optBoolean(BleTypes.PROPERTY_IS_IBEACON, false));
+	}
+
+	/**
+	 * The service data in the json can either be a CrownstoneServiceData object, or the
+	 * service data as json object.
+	 */
+	private static CrownstoneServiceData getServiceData(JSONObject json) throws JSONException {
+		Object serviceData = json.get(BleTypes.PROPERTY_SERVICE_DATA);
+		if (serviceData instanceof CrownstoneServiceData) {
+			return (CrownstoneServiceData) serviceData;
+		}
+		return new CrownstoneServiceData(json.getJSONObject(BleTypes.PROPERTY_SERVICE_DATA));
+	}
+
+	private static DeviceType determineDeviceType(CrownstoneServiceData serviceData, boolean isIBeacon) {
+		if (serviceData != null) {
 			switch (serviceData.getDeviceType()) {
 				case BluenetConfig.DEVICE_CROWNSTONE_PLUG:
 					return DeviceType.crownstonePlug;
@@ -232,10 +327,8 @@ public class BleDevice {
 					return DeviceType.crownstoneDongle;
 			}
 		}
-		if (json.has(BleTypes.PROPERTY_IS_IBEACON)) {
-			if (json.getBoolean(BleTypes.PROPERTY_IS_IBEACON)) {
-				return DeviceType.ibeacon;
-			}
+		if (isIBeacon) {
+			return DeviceType.ibeacon;
 		}
 		return DeviceType.unknown;
 	}
@@ -246,6 +339,17 @@ public class BleDevice {
 
 	public void setAddress(String address) {
 		this._address = address;
+		_packedAddress = -1;
+	}
+
+	/**
+	 * @return the MAC address packed in a long, see BleUtils.addressToLong(), or -1 if invalid
+	 */
+	public long getPackedAddress() {
+		if (_packedAddress == -1) {
+			_packedAddress = BleUtils.addressToLong(_address);
+		}
+		return _packedAddress;
 	}
 
 	public String getName() {
@@ -308,47 +412,47 @@ public class BleDevice {
 	public synchronized void updateRssiValue(long timestamp, int rssi) {
 		if (rssi != 127) {
 			_rssi = rssi;
-			// todo: maybe also add a capacity limit, in case we only scan and never check
-			//   for rssi or distance values, we would only add and never remove any values
-			//   and the history will only grow
-			_rssiHistory.add(new RssiMeasurement(rssi, timestamp));
+			// history has a fixed capacity, so if we only scan and never check for rssi or
+			// distance values, the oldest values are dropped
+			getRssiHistory().add(timestamp, rssi);
 		}
 
 		_averageRssi = null;
 	}
 
-	private synchronized boolean refreshHistory() {
-		Date now = new Date();
-		ArrayList<RssiMeasurement> newHistory = new ArrayList<>();
-		// TODO: sometime get a ConcurrentModificationException here
-		boolean hasChange = false;
-		for (RssiMeasurement measurement : _rssiHistory) {
-			if (measurement.timestamp + expirationTime > now.getTime()) {
-				newHistory.add(measurement);
-			} else {
-//				if (!hasChange) {
-//					Log.d(TAG, "dropping old rssi measurements");
-//				}
-				hasChange = true;
+	/**
+	 * Same as updateRssiValue(), but doesn't create the history yet.
+	 */
+	private void setFirstRssiValue(long timestamp, int rssi) {
+		if (rssi != 127) {
+			_rssi = rssi;
+			_firstRssi = rssi;
+			_firstRssiTimestamp = timestamp;
+			_hasFirstRssi = true;
+		}
+		_averageRssi = null;
+	}
+
+	private RssiHistory getRssiHistory() {
+		if (_rssiHistory == null) {
+			_rssiHistory = new RssiHistory(historyCapacity);
+			if (_hasFirstRssi) {
+				_rssiHistory.add(_firstRssiTimestamp, _firstRssi);
 			}
 		}
+		_hasFirstRssi = false;
+		return _rssiHistory;
+	}
 
-		this._rssiHistory = newHistory;
-		return hasChange;
+	private synchronized boolean refreshHistory() {
+		return getRssiHistory().expire(System.currentTimeMillis(), expirationTime);
 	}
 
 	public synchronized int getOccurrences() {
 		refreshHistory();
-		return _rssiHistory.size();
+		return getRssiHistory().size();
 	}
 
-	Comparator<RssiMeasurement> timeSorter = new Comparator<RssiMeasurement>() {
-		@Override
-		public int compare(RssiMeasurement lhs, RssiMeasurement rhs) {
-			return lhs.timestamp.compareTo(rhs.timestamp);
-		}
-	};
-
 	Comparator<RssiMeasurement> rssiSorter = new Comparator<RssiMeasurement>() {
 		@Override
 		public int compare(RssiMeasurement lhs, RssiMeasurement rhs) {
@@ -357,14 +461,22 @@ public class BleDevice {
 	};
 
 	private synchronized ArrayList<RssiMeasurement> getHistoryClone() {
-		return (ArrayList<RssiMeasurement>) _rssiHistory.clone(); // Doesn't clone the RssiMeasurements, only the list with pointers
+		RssiHistory history = getRssiHistory();
+		int size = history.size();
+		int[] rssis = new int[size];
+		long[] timestamps = new long[size];
+		size = history.copyTo(rssis, timestamps);
+		ArrayList<RssiMeasurement> clone = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			clone.add(new RssiMeasurement(rssis[i], timestamps[i]));
+		}
+		return clone;
 	}
 
 	public synchronized ArrayList<RssiMeasurement> getTimeSortedHistory() {
 		refreshHistory();
-		ArrayList<RssiMeasurement> clone = getHistoryClone();
-		Collections.sort(clone, timeSorter);
-		return clone;
+		// history is already in time order
+		return getHistoryClone();
 	}
 
 	public synchronized ArrayList<RssiMeasurement> getRssiSortedHistory() {
@@ -382,24 +494,17 @@ public class BleDevice {
 		BleDevice.expirationTime = expirationTime;
 	}
 
-	private synchronized void calculateAverageRssi() {
-		Collections.sort(this._rssiHistory, rssiSorter);
-
-		int size = _rssiHistory.size();
-		int startIndex = 0;
-		int endIndex = size - 1;
-		if (size > 2) {
-			startIndex = size / 10 + 1;
-			endIndex = size - size / 10 - 2;
-		}
-
-		double sum = 0;
-
-		for (int i = startIndex; i <= endIndex; i++) {
-			sum += _rssiHistory.get(i).rssi;
-		}
+	/**
+	 * set max number of rssi measurements kept per device. globaly used for every beacon,
+	 * only applies to devices created after this call
+	 * @param capacity
+	 */
+	public static void setHistoryCapacity(int capacity) {
+		BleDevice.historyCapacity = capacity;
+	}
 
-		_averageRssi = (int)(sum / (endIndex - startIndex + 1));
+	private synchronized void calculateAverageRssi() {
+		_averageRssi = getRssiHistory().getTrimmedMean();
 		_distance = null;
 	}
 
@@ -414,12 +519,12 @@ public class BleDevice {
 
 	public synchronized void validateCrownstone() {
 		// TODO: if in dfu mode: validate differently
-		getLogger().LOGv(TAG, "validateCrownstone " + getAddress());
+		getLogger().LOGv(TAG, "validateCrownstone %s", getAddress());
 
 		if (isDfuMode()) {
 			getLogger().LOGv(TAG, "validate crownstone in dfu mode!");
 			_lastCrownstoneId = -1;
-			_lastChangingBytes = null;
+			_lastChangingBytes = -1;
 			_isValidatedCrownstone = true;
 			return;
 		}
@@ -431,19 +536,19 @@ public class BleDevice {
 		if (isSetupMode()) {
 			getLogger().LOGv(TAG, "validate crownstone in setup mode!");
 			_lastCrownstoneId = -1;
-			_lastChangingBytes = null;
+			_lastChangingBytes = -1;
 			_isValidatedCrownstone = true;
 			return;
 		}
 
-		getLogger().LOGv(TAG, "_lastCrownstoneId=" + _lastCrownstoneId + " _lastChangingBytes=" + _lastChangingBytes);
-		if (_lastCrownstoneId != -1 && _lastChangingBytes != null) {
+		getLogger().LOGv(TAG, "_lastCrownstoneId=%d _lastChangingBytes=%d", _lastCrownstoneId, _lastChangingBytes);
+		if (_lastCrownstoneId != -1 && _lastChangingBytes != -1) {
 			// Skip check if crownstone id is external crownstone, or when advertisement didn't change.
-			if (_serviceData.getFlagExternalData() || _lastChangingBytes.equals(_serviceData.getChangingBytes())) {
+			if (_serviceData.getFlagExternalData() || _lastChangingBytes == _serviceData.getChangingBytesValue()) {
 				getLogger().LOGv(TAG, "isExternalData or similar rand");
 				return;
 			}
-			getLogger().LOGv(TAG, "_lastCrownstoneId=" + _lastCrownstoneId + " current=" + _serviceData.getCrownstoneId());
+			getLogger().LOGv(TAG, "_lastCrownstoneId=%d current=%d", _lastCrownstoneId, _serviceData.getCrownstoneId());
 			if (_lastCrownstoneId == _serviceData.getCrownstoneId()) {
 				if (!_isValidatedCrownstone) {
 //					_numSimilarCrownstoneIds += 1;
@@ -451,7 +556,7 @@ public class BleDevice {
 						getLogger().LOGv(TAG, "validated crownstone!");
 						_isValidatedCrownstone = true;
 					}
-					getLogger().LOGv(TAG, "_numSimilarCrownstoneIds=" + _numSimilarCrownstoneIds);
+					getLogger().LOGv(TAG, "_numSimilarCrownstoneIds=%d", _numSimilarCrownstoneIds);
 				}
 			}
 			else {
@@ -460,8 +565,8 @@ public class BleDevice {
 			}
 		}
 		_lastCrownstoneId = _serviceData.getCrownstoneId();
-		_lastChangingBytes = _serviceData.getChangingBytes();
-		getLogger().LOGv(TAG, "updated: _lastCrownstoneId=" + _lastCrownstoneId + " _lastChangingBytes=" + _lastChangingBytes);
+		_lastChangingBytes = _serviceData.getChangingBytesValue();
+		getLogger().LOGv(TAG, "updated: _lastCrownstoneId=%d _lastChangingBytes=%d", _lastCrownstoneId, _lastChangingBytes);
 	}
 
 	/**
@@ -526,7 +631,9 @@ public class BleDevice {
 		_lastCrownstoneId        = old._lastCrownstoneId;
 		_lastChangingBytes       = old._lastChangingBytes;
 		_numSimilarCrownstoneIds = old._numSimilarCrownstoneIds;
-		_rssiHistory             = old._rssiHistory;
+		// The first rssi of this device is added to the old history below.
+		_rssiHistory             = old.getRssiHistory();
+		_hasFirstRssi            = false;
 
 
 		// If we didn't get any service data, we probably received an advertisement with no scan response
@@ -537,7 +644,7 @@ public class BleDevice {
 				_type = old._type;
 			}
 			else {
-				getLogger().LOGv(TAG, "copy service data " + _address);
+				getLogger().LOGv(TAG, "copy service data %s", _address);
 				_serviceData = old._serviceData;
 				_type = old._type;
 				_crownstoneMode = old._crownstoneMode;
@@ -572,7 +679,7 @@ public class BleDevice {
 	private BleLog getLogger() {
 		BleLog logger = BleLog.getInstance();
 		// update the log level to the default of this class if it hasn't been set already
-		if (logger.getLogLevel(TAG) == null) {
+		if (!logger.hasLogLevel(TAG)) {
 			logger.setLogLevelPerTag(TAG, LOG_LEVEL);
 		}
 		return logger;
@@ -1,19 +1,32 @@
 package nl.dobots.bluenet.ble.extended.structs;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The BleDeviceMap is a wrapper class for a list of Bluetooth devices. It provides
  * updating bluetooth devices in the list, retrieving devices based on their address, and
  * functions to get the raw or a sorted list of devices.
  *
+ * The map can be used from several threads at once: reads don't lock, updates of a device
+ * only lock the stripe of that device's address. Next to the map, an index of the devices
+ * sorted by average RSSI is kept up to date on every update, so getting the sorted list
+ * doesn't need to sort all devices.
+ *
+ * Modify the map with its own methods: values() and entrySet() are read only, and removing a
+ * device via keySet() makes the next sorted list rebuild the index from the map.
+ *
  * Created on 15-7-15
  *
  * @author Dominik Egger
  */
-public class BleDeviceMap extends HashMap<String, BleDevice> {
+public class BleDeviceMap extends ConcurrentHashMap<String, BleDevice> {
 
 	/**
 	 * The sort order used for sorting the list by average RSSI
@@ -23,12 +36,51 @@ public class BleDeviceMap extends HashMap<String, BleDevice> {
 		descending
 	}
 
+	// Number of locks used for updating devices, devices are spread over the locks by address
+	private static final int NUM_UPDATE_LOCKS = 16;
+
+	private final Object[] _updateLocks = new Object[NUM_UPDATE_LOCKS];
+
+	/**
+	 * Entry of the sorted index. Sorted by key, which is the average RSSI at the time the
+	 * device was indexed, see getRssiSortKey().
+	 */
+	private static class IndexEntry {
+		String address;
+		BleDevice device;
+		int key;
+	}
+
+	/**
+	 * Sorted list of devices, as handed out to readers. Devices are sorted by average RSSI in
+	 * descending order, with the devices with an average RSSI of 0 at the end.
+	 */
+	private static class RssiSnapshot {
+		BleDevice[] devices;
+		// Number of devices with an average RSSI other than 0
+		int numValid;
+	}
+
+	// Lock for the sorted index and the snapshot
+	private final Object _indexLock = new Object();
+	private final ArrayList<IndexEntry> _rssiIndex = new ArrayList<>();
+	private final HashMap<String, IndexEntry> _rssiIndexEntries = new HashMap<>();
+	// Snapshot of the sorted index, null when the index changed since the last snapshot
+	private volatile RssiSnapshot _rssiSnapshot = null;
+
+	public BleDeviceMap() {
+		super();
+		for (int i = 0; i < NUM_UPDATE_LOCKS; i++) {
+			_updateLocks[i] = new Object();
+		}
+	}
+
 	/**
 	 * Get the bluetooth device for the given address
 	 * @param address the address of the device to be retrieved
 	 * @return the device if found, null otherwise
 	 */
-	public synchronized BleDevice getDevice(String address) {
+	public BleDevice getDevice(String address) {
 		return get(address);
 	}
 
@@ -37,7 +89,7 @@ public class BleDeviceMap extends HashMap<String, BleDevice> {
 	 * @param device device to be checked
 	 * @return true if present, false otherwise
 	 */
-	public synchronized boolean contains(BleDevice device) {
+	public boolean contains(BleDevice device) {
 		return containsKey(device.getAddress());
 	}
 
@@ -48,35 +100,151 @@ public class BleDeviceMap extends HashMap<String, BleDevice> {
 	 * @param device the device to be updated
 	 * @return the updated device
 	 */
-	public synchronized BleDevice updateDevice(BleDevice device) {
-		if (contains(device)) {
-			BleDevice old = getDevice(device.getAddress());
-			// Update rssi and perform validation
-			// Keep old data, as not every device has the service data
-			device.copyFromOld(old);
-			device.validateCrownstone();
-			put(device.getAddress(), device);
-			return device;
-		}
-		put(device.getAddress(), device);
+	public BleDevice updateDevice(BleDevice device) {
+		String address = device.getAddress();
+		synchronized (getUpdateLock(address)) {
+			BleDevice old = get(address);
+			if (old != null) {
+				// Update rssi and perform validation
+				// Keep old data, as not every device has the service data
+				device.copyFromOld(old);
+				device.validateCrownstone();
+			}
+			super.put(address, device);
+			updateIndex(address, device);
+		}
 		return device;
 	}
 
+	@Override
+	public BleDevice put(String address, BleDevice device) {
+		synchronized (getUpdateLock(address)) {
+			BleDevice old = super.put(address, device);
+			updateIndex(address, device);
+			return old;
+		}
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ? extends BleDevice> map) {
+		for (Map.Entry<? extends String, ? extends BleDevice> entry : map.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@Override
+	public BleDevice remove(Object address) {
+		if (!(address instanceof String)) {
+			return null;
+		}
+		synchronized (getUpdateLock((String)address)) {
+			BleDevice old = super.remove(address);
+			updateIndex((String)address, null);
+			return old;
+		}
+	}
+
+	@Override
+	public BleDevice putIfAbsent(String address, BleDevice device) {
+		synchronized (getUpdateLock(address)) {
+			BleDevice old = super.putIfAbsent(address, device);
+			if (old == null) {
+				updateIndex(address, device);
+			}
+			return old;
+		}
+	}
+
+	@Override
+	public BleDevice replace(String address, BleDevice device) {
+		synchronized (getUpdateLock(address)) {
+			BleDevice old = super.replace(address, device);
+			if (old != null) {
+				updateIndex(address, device);
+			}
+			return old;
+		}
+	}
+
+	@Override
+	public boolean replace(String address, BleDevice oldDevice, BleDevice newDevice) {
+		synchronized (getUpdateLock(address)) {
+			if (super.replace(address, oldDevice, newDevice)) {
+				updateIndex(address, newDevice);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	@Override
+	public boolean remove(Object address, Object device) {
+		if (!(address instanceof String)) {
+			return false;
+		}
+		synchronized (getUpdateLock((String)address)) {
+			if (super.remove(address, device)) {
+				updateIndex((String)address, null);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	@Override
+	public void clear() {
+		clear(0);
+	}
+
+	/**
+	 * Take the update locks from the given one on, and clear the map when all are taken.
+	 */
+	private void clear(int lock) {
+		if (lock < NUM_UPDATE_LOCKS) {
+			synchronized (_updateLocks[lock]) {
+				clear(lock + 1);
+			}
+			return;
+		}
+		synchronized (_indexLock) {
+			super.clear();
+			_rssiIndex.clear();
+			_rssiIndexEntries.clear();
+			_rssiSnapshot = null;
+		}
+	}
+
+	/**
+	 * @return read only view of the devices, so that devices can't be removed without updating
+	 *         the sorted index
+	 */
+	@Override
+	public Collection<BleDevice> values() {
+		return Collections.unmodifiableCollection(super.values());
+	}
+
+	/**
+	 * @return read only view of the entries, so that devices can't be removed without updating
+	 *         the sorted index. Setting the value of an entry is the same as put().
+	 */
+	@Override
+	public Set<Map.Entry<String, BleDevice>> entrySet() {
+		return Collections.unmodifiableSet(super.entrySet());
+	}
+
 	/**
 	 * Get the unsorted bluetooth device list
 	 * @return unsorted bluetooth device list
 	 */
-	public synchronized BleDeviceList getList() {
-		BleDeviceList result = new BleDeviceList();
-		result.addAll(values());
-		return result;
+	public BleDeviceList getList() {
+		return new BleDeviceList(values());
 	}
 
 	/**
 	 * Sort bluetooth device list based on average RSSI in descending order.
  	 * @return device list sorted by average RSSI in descending order
 	 */
-	public synchronized BleDeviceList getRssiSortedList() {
+	public BleDeviceList getRssiSortedList() {
 		return getRssiSortedList(SortOrder.descending);
 	}
 
@@ -86,36 +254,31 @@ public class BleDeviceMap extends HashMap<String, BleDevice> {
 	 * Note: Average RSSI values of 0 are used for devices that haven't been
 	 *   seen within a specified time and are timed-out. This is so as to avoid
 	 *   devices staying in the list forever even if they are not seen anymore
+	 * Note: the list is sorted by the average RSSI as it was on the last update of
+	 *   each device, call refresh() to recalculate the averages of all devices.
 	 * @param order define the order in which the list should be sorted, can
 	 *              be ascending or descending
 	 * @return device list sorted by average RSSI and specified sort order
 	 */
-	public synchronized BleDeviceList getRssiSortedList(final SortOrder order) {
+	public BleDeviceList getRssiSortedList(final SortOrder order) {
+		RssiSnapshot snapshot = getRssiSnapshot();
 		BleDeviceList result = new BleDeviceList();
-		result.addAll(values());
-		Collections.sort(result, new Comparator<BleDevice>() {
-			@Override
-			public int compare(BleDevice lhs, BleDevice rhs) {
-				int ld = lhs.getAverageRssi();
-				int rd = rhs.getAverageRssi();
-				// we need to handle the 0 value specifically, because we want it
-				// to end up at the end of the list, no matter if we sort ascending
-				// or descending
-				if (ld == 0 && rd == 0)	return 0;
-				if (ld == 0) return 1;
-				if (rd == 0) return -1;
-				// if neither of the values is 0, check how we want to sort
-				switch (order) {
-					case ascending:
-						return ld - rd;
-					case descending:
-						return rd - ld;
-					default:
-						// should never occur, but just in case ...
-						return 0;
+		result.ensureCapacity(snapshot.devices.length);
+		switch (order) {
+			case ascending:
+				// reverse the valid part, devices with average RSSI of 0 stay at the end
+				for (int i = snapshot.numValid - 1; i >= 0; i--) {
+					result.add(snapshot.devices[i]);
 				}
-			}
-		});
+				for (int i = snapshot.numValid; i < snapshot.devices.length; i++) {
+					result.add(snapshot.devices[i]);
+				}
+				break;
+			case descending:
+			default:
+				Collections.addAll(result, snapshot.devices);
+				break;
+		}
 		return result;
 	}
 
@@ -125,9 +288,8 @@ public class BleDeviceMap extends HashMap<String, BleDevice> {
 	 *   moved to the end of the list
 	 * @return device list sorted by distance in ascending order
 	 */
-	public synchronized BleDeviceList getDistanceSortedList() {
-		BleDeviceList result = new BleDeviceList();
-		result.addAll(values());
+	public BleDeviceList getDistanceSortedList() {
+		BleDeviceList result = new BleDeviceList(values());
 		Collections.sort(result, new Comparator<BleDevice>() {
 			@Override
 			public int compare(BleDevice lhs, BleDevice rhs) {
@@ -156,12 +318,165 @@ public class BleDeviceMap extends HashMap<String, BleDevice> {
 
 	/**
 	 * Refreshes the device list. this triggers recalculation of average rssi and
-	 * distance estimation
+	 * distance estimation. Only devices of which the average rssi changed are moved in the
+	 * sorted index.
+	 */
+	public void refresh() {
+		for (String address : keySet()) {
+			synchronized (getUpdateLock(address)) {
+				BleDevice device = get(address);
+				if (device != null) {
+					device.refresh();
+					updateIndex(address, device);
+				}
+			}
+		}
+	}
+
+	private Object getUpdateLock(String address) {
+		return _updateLocks[(address.hashCode() & 0x7FFFFFFF) % NUM_UPDATE_LOCKS];
+	}
+
+	/**
+	 * Devices are sorted by average RSSI in descending order, average RSSI of 0 at the end.
+	 */
+	private static int getRssiSortKey(int averageRssi) {
+		return averageRssi == 0 ? Integer.MAX_VALUE : -averageRssi;
+	}
+
+	/**
+	 * Update the sorted index for the given address.
+	 * @param address the address of the device
+	 * @param device the new device, or null if it was removed
 	 */
-	public synchronized void refresh() {
-		for (BleDevice device : values()) {
-			device.refresh();
+	private void updateIndex(String address, BleDevice device) {
+		// calculate the key outside the index lock
+		int key = (device == null) ? 0 : getRssiSortKey(device.getAverageRssi());
+		synchronized (_indexLock) {
+			IndexEntry entry = _rssiIndexEntries.get(address);
+			if (entry != null && entry.device == device && entry.key == key) {
+				// Nothing changed
+				return;
+			}
+			if (entry != null) {
+				_rssiIndex.remove(findIndex(entry));
+			}
+			if (device == null) {
+				_rssiIndexEntries.remove(address);
+			}
+			else {
+				if (entry == null) {
+					entry = new IndexEntry();
+					entry.address = address;
+					_rssiIndexEntries.put(address, entry);
+				}
+				entry.device = device;
+				entry.key = key;
+				_rssiIndex.add(lowerBound(key), entry);
+			}
+			_rssiSnapshot = null;
 		}
 	}
 
+	/**
+	 * Rebuild the sorted index from all devices in the map, only needed when the map was
+	 * modified without updating the index. Must be called with the index lock held.
+	 */
+	private void rebuildIndex() {
+		_rssiIndex.clear();
+		_rssiIndexEntries.clear();
+		for (Map.Entry<String, BleDevice> mapEntry : super.entrySet()) {
+			IndexEntry entry = new IndexEntry();
+			entry.address = mapEntry.getKey();
+			entry.device = mapEntry.getValue();
+			entry.key = getRssiSortKey(entry.device.getAverageRssi());
+			_rssiIndex.add(entry);
+			_rssiIndexEntries.put(entry.address, entry);
+		}
+		Collections.sort(_rssiIndex, new Comparator<IndexEntry>() {
+			@Override
+			public int compare(IndexEntry lhs, IndexEntry rhs) {
+				return lhs.key < rhs.key ? -1 : (lhs.key == rhs.key ? 0 : 1);
+			}
+		});
+	}
+
+	/**
+	 * @return index of the first entry with a key equal to or larger than the given key.
+	 *         Must be called with the index lock held.
+	 */
+	private int lowerBound(int key) {
+		int low = 0;
+		int high = _rssiIndex.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (_rssiIndex.get(mid).key < key) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return index of the given entry in the sorted index. Must be called with the index
+	 *         lock held.
+	 */
+	private int findIndex(IndexEntry entry) {
+		for (int i = lowerBound(entry.key); i < _rssiIndex.size(); i++) {
+			if (_rssiIndex.get(i) == entry) {
+				return i;
+			}
+		}
+		// should never happen, the key of an entry only changes when it's not in the index
+		return _rssiIndex.indexOf(entry);
+	}
+
+	/**
+	 * Get a snapshot of the sorted index. The snapshot is only created when the index changed
+	 * since the last call, so repeated calls don't copy the index.
+	 */
+	private RssiSnapshot getRssiSnapshot() {
+		RssiSnapshot snapshot = _rssiSnapshot;
+		// A device removed via keySet() doesn't clear the snapshot, but does change the size
+		if (snapshot != null && snapshot.devices.length == size()) {
+			return snapshot;
+		}
+		synchronized (_indexLock) {
+			if (!isIndexInSync()) {
+				rebuildIndex();
+			}
+			snapshot = new RssiSnapshot();
+			int size = _rssiIndex.size();
+			snapshot.devices = new BleDevice[size];
+			snapshot.numValid = size;
+			for (int i = 0; i < size; i++) {
+				IndexEntry entry = _rssiIndex.get(i);
+				snapshot.devices[i] = entry.device;
+				if (entry.key == Integer.MAX_VALUE && snapshot.numValid == size) {
+					snapshot.numValid = i;
+				}
+			}
+			_rssiSnapshot = snapshot;
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Check that the index has the same devices as the map, which is not the case when the map
+	 * was modified via an iterator of keySet(). Must be called with the index lock held.
+	 */
+	private boolean isIndexInSync() {
+		if (_rssiIndex.size() != size()) {
+			return false;
+		}
+		for (IndexEntry entry : _rssiIndex) {
+			if (get(entry.address) != entry.device) {
+				return false;
+			}
+		}
+		return true;
+	}
 }
@@ -0,0 +1,153 @@
+package nl.dobots.bluenet.ble.extended.structs;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Fixed capacity history of rssi measurements, used by BleDevice.
+ *
+ * Measurements are kept in a ring buffer, when it is full, the oldest measurement is dropped.
+ * Next to the ring buffer, a histogram of the rssi values is kept up to date, so the trimmed
+ * mean can be calculated without sorting the measurements.
+ *
+ * Measurements are expected to be added in time order, expiry only removes the oldest ones.
+ */
+public class RssiHistory {
+
+	// Rssi values range from -128 up to (not including) 0, anything else is clamped.
+	private static final int MIN_RSSI = -128;
+	private static final int MAX_RSSI = -1;
+	private static final int HISTOGRAM_SIZE = MAX_RSSI - MIN_RSSI + 1;
+
+	private final int[] _rssis;
+	private final long[] _timestamps;
+	private final int[] _histogram = new int[HISTOGRAM_SIZE];
+
+	// Index of the oldest measurement
+	private int _tail = 0;
+	private int _size = 0;
+
+	/**
+	 * @param capacity max number of measurements to keep
+	 */
+	public RssiHistory(int capacity) {
+		if (capacity < 1) {
+			capacity = 1;
+		}
+		_rssis = new int[capacity];
+		_timestamps = new long[capacity];
+	}
+
+	public int getCapacity() {
+		return _rssis.length;
+	}
+
+	public synchronized int size() {
+		return _size;
+	}
+
+	/**
+	 * Add a measurement, drops the oldest measurement if the history is full.
+	 *
+	 * @param timestamp time of the measurement
+	 * @param rssi      the rssi value
+	 */
+	public synchronized void add(long timestamp, int rssi) {
+		rssi = clamp(rssi);
+		if (_size == _rssis.length) {
+			removeOldest();
+		}
+		int head = (_tail + _size) % _rssis.length;
+		_rssis[head] = rssi;
+		_timestamps[head] = timestamp;
+		_histogram[rssi - MIN_RSSI]++;
+		_size++;
+	}
+
+	/**
+	 * Remove all measurements that are older than the expiration time.
+	 *
+	 * @param now            current time
+	 * @param expirationTime how long a measurement stays valid
+	 * @return true when any measurement was removed
+	 */
+	public synchronized boolean expire(long now, long expirationTime) {
+		boolean hasChange = false;
+		while (_size > 0 && _timestamps[_tail] + expirationTime <= now) {
+			removeOldest();
+			hasChange = true;
+		}
+		return hasChange;
+	}
+
+	/**
+	 * Calculate the mean of the rssi values, leaving out the lowest and highest 10%.
+	 *
+	 * @return the trimmed mean, or 0 when there are no measurements
+	 */
+	public synchronized int getTrimmedMean() {
+		if (_size == 0) {
+			return 0;
+		}
+		// Same trimming as was done on the sorted list of measurements.
+		int startIndex = 0;
+		int endIndex = _size - 1;
+		if (_size > 2) {
+			startIndex = _size / 10 + 1;
+			endIndex = _size - _size / 10 - 2;
+		}
+
+		// Walk through the histogram, and sum the values with a rank within the trimmed range.
+		long sum = 0;
+		int rank = 0;
+		for (int i = 0; i < HISTOGRAM_SIZE && rank <= endIndex; i++) {
+			int count = _histogram[i];
+			if (count == 0) {
+				continue;
+			}
+			int first = Math.max(rank, startIndex);
+			int last = Math.min(rank + count - 1, endIndex);
+			if (last >= first) {
+				sum += (long)(last - first + 1) * (i + MIN_RSSI);
+			}
+			rank += count;
+		}
+		return (int)((double)sum / (endIndex - startIndex + 1));
+	}
+
+	/**
+	 * Copy the measurements, from oldest to newest.
+	 *
+	 * @param rssis      array to copy the rssi values to, should have room for size() values
+	 * @param timestamps array to copy the timestamps to, should have room for size() values
+	 * @return the number of measurements copied
+	 */
+	public synchronized int copyTo(int[] rssis, long[] timestamps) {
+		int size = Math.min(_size, Math.min(rssis.length, timestamps.length));
+		for (int i = 0; i < size; i++) {
+			int index = (_tail + i) % _rssis.length;
+			rssis[i] = _rssis[index];
+			timestamps[i] = _timestamps[index];
+		}
+		return size;
+	}
+
+	private void removeOldest() {
+		_histogram[_rssis[_tail] - MIN_RSSI]--;
+		_tail = (_tail + 1) % _rssis.length;
+		_size--;
+	}
+
+	private static int clamp(int rssi) {
+		if (rssi < MIN_RSSI) {
+			return MIN_RSSI;
+		}
+		if (rssi > MAX_RSSI) {
+			return MAX_RSSI;
+		}
+		return rssi;
+	}
+}
@@ -32,7 +32,8 @@ public class MeshScanResultPacket implements MeshPayload {
 
 	public class ScannedDevice {
 		private int id;
-		private byte[] address;
+		// MAC address packed in a long, see BleUtils.addressToLong()
+		private long address;
 		private int rssi;
 
 		public int getCrownstoneId() {
@@ -44,7 +45,14 @@ public class MeshScanResultPacket implements MeshPayload {
 		}
 
 		public String getAddress() {
-			return BleUtils.bytesToAddress(address);
+			return BleUtils.longToAddress(address);
+		}
+
+		/**
+		 * @return the MAC address packed in a long, see BleUtils.addressToLong()
+		 */
+		public long getPackedAddress() {
+			return address;
 		}
 
 //		public byte[] getAddress() {
@@ -55,7 +63,7 @@ public class MeshScanResultPacket implements MeshPayload {
 		public String toString() {
 			return "ScannedDevice{" +
 					"id=" + id +
-					", address=" + BleUtils.bytesToAddress(address) +
+					", address=" + getAddress() +
 					", rssi=" + rssi +
 					'}';
 		}
@@ -144,13 +152,11 @@ public class MeshScanResultPacket implements MeshPayload {
 		_devices = new ArrayList<>();
 		for (int i = 0; i < _numItems; ++i) {
 			ScannedDevice device = new ScannedDevice();
-			// need to reverse the address because it is in little endian, and even though we
-			// set the byte order to little endian, arrays are still being read as is, and not
-			// reversed automatically
+			// the address is in little endian
 			byte[] address = new byte[BluenetConfig.BLE_DEVICE_ADDRESS_LENGTH];
 			bb.get(address);
 			device.id = BleUtils.toUint8(bb.get());
-			device.address = BleUtils.reverse(address);
+			device.address = BleUtils.addressBytesToLong(address);
 			device.rssi = bb.get();
 			_devices.add(device);
 		}
@@ -171,7 +177,7 @@ public class MeshScanResultPacket implements MeshPayload {
 
 		for (ScannedDevice device : _devices) {
 			bb.put((byte) device.id);
-			bb.put(device.address);
+			bb.put(BleUtils.reverse(BleUtils.longToAddressBytes(device.address)));
 			bb.put((byte) device.rssi);
 		}
 		return bb.array();
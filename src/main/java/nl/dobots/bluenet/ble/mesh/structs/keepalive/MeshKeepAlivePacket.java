@@ -166,8 +166,8 @@ public class MeshKeepAlivePacket implements MeshPayload {
 	@Override
 	public String toString() {
 		if (_payload == null) {
-			return String.format(Locale.ENGLISH, "type: %i payload: null", _type);
+			return String.format(Locale.ENGLISH, "type: %d payload: null", _type);
 		}
-		return String.format(Locale.ENGLISH, "type: %i payload: %s", _type, _payload.toString());
+		return String.format(Locale.ENGLISH, "type: %d payload: %s", _type, _payload.toString());
 	}
 }
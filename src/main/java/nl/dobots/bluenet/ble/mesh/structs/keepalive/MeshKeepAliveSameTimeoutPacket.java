@@ -28,6 +28,9 @@ public class MeshKeepAliveSameTimeoutPacket implements MeshKeepAlivePayload {
 
 	private static final String TAG = MeshKeepAliveSameTimeoutPacket.class.getCanonicalName();
 
+	// Action switch state value for no action when the keep alive times out
+	public static final int ACTION_NONE = 255;
+
 	public class MeshKeepAliveSameTimeoutItem {
 
 		private int _crownstoneId;
@@ -76,7 +79,7 @@ public class MeshKeepAliveSameTimeoutPacket implements MeshKeepAlivePayload {
 	// 1B Crownstone ID + 1B action + switch state
 	private static final int ITEM_SIZE = 2;
 	// Max number of items in the list
-	private static final int MAX_ITEMS = (MeshKeepAlivePacket.KEEP_ALIVE_PACKET_MAX_PAYLOAD_SIZE - HEADER_SIZE) / ITEM_SIZE;
+	public static final int MAX_ITEMS = (MeshKeepAlivePacket.KEEP_ALIVE_PACKET_MAX_PAYLOAD_SIZE - HEADER_SIZE) / ITEM_SIZE;
 
 	// Timeout in seconds
 	private int _timeout;
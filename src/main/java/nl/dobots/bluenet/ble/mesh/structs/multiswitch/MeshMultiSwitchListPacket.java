@@ -64,7 +64,7 @@ public class MeshMultiSwitchListPacket implements MeshMultiSwitchPayload {
 	// 1B Crownstone ID + 1B switch state + 2B timeout + 1B intent
 	private static final int ITEM_SIZE = 5;
 	// Max number of items in the list
-	private static final int MAX_ITEMS = (MeshMultiSwitchPacket.MULTI_SWITCH_PACKET_MAX_PAYLOAD_SIZE - HEADER_SIZE) / ITEM_SIZE;
+	public static final int MAX_ITEMS = (MeshMultiSwitchPacket.MULTI_SWITCH_PACKET_MAX_PAYLOAD_SIZE - HEADER_SIZE) / ITEM_SIZE;
 
 	// Number of items in the list
 	private int _count;
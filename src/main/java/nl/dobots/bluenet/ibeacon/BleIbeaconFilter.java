@@ -2,8 +2,13 @@ package nl.dobots.bluenet.ibeacon;
 
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.UUID;
 
+import nl.dobots.bluenet.ble.cfg.BluenetConfig;
+
 /**
  * Copyright (c) 2015 Bart van Vliet <bart@dobots.nl>. All rights reserved.
  * <p/>
@@ -22,6 +27,9 @@ import java.util.UUID;
  * @author Bart van Vliet
  */
 public class BleIbeaconFilter {
+	// Length of advertisement id, proximity UUID, major and minor
+	private static final int IBEACON_DATA_LENGTH = 2+16+2+2;
+
 	private UUID uuid;
 	private int major; // Use -1 to ignore this value
 	private int minor; // Use -1 to ignore this value
@@ -59,6 +67,53 @@ public class BleIbeaconFilter {
 		return uuid;
 	}
 
+	/**
+	 * @return the major, or -1 if any major matches
+	 */
+	public int getMajor() {
+		return major;
+	}
+
+	/**
+	 * @return the minor, or -1 if any minor matches
+	 */
+	public int getMinor() {
+		return minor;
+	}
+
+	/**
+	 * @return the iBeacon manufacturer data (without company id) that matches this filter, to
+	 *         be used as scan filter, see getManufacturerDataMask()
+	 */
+	public byte[] getManufacturerData() {
+		ByteBuffer bb = ByteBuffer.allocate(IBEACON_DATA_LENGTH);
+		// ibeacon data is in big endian format
+		bb.order(ByteOrder.BIG_ENDIAN);
+		bb.putShort((short) BluenetConfig.IBEACON_ADVERTISEMENT_ID);
+		bb.putLong(uuid.getMostSignificantBits());
+		bb.putLong(uuid.getLeastSignificantBits());
+		bb.putShort((short) (major == -1 ? 0 : major));
+		bb.putShort((short) (minor == -1 ? 0 : minor));
+		return bb.array();
+	}
+
+	/**
+	 * @return mask of the manufacturer data: major and minor are only matched when set.
+	 */
+	public byte[] getManufacturerDataMask() {
+		byte[] mask = new byte[IBEACON_DATA_LENGTH];
+		Arrays.fill(mask, 0, 2+16, (byte) 0xFF);
+		if (major != -1) {
+			mask[18] = (byte) 0xFF;
+			mask[19] = (byte) 0xFF;
+		}
+		if (minor != -1) {
+			mask[20] = (byte) 0xFF;
+			mask[21] = (byte) 0xFF;
+		}
+		return mask;
+	}
+
 	public String toString() {
 		return "uuid=" + uuid.toString() + " major=" + major + " minor=" + minor;
 	}
@@ -0,0 +1,185 @@
+package nl.dobots.bluenet.ibeacon;
+
+import java.util.List;
+
+import nl.dobots.bluenet.utils.LongHashMap;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Index of iBeacon filters, to find the filters that match an iBeacon without going over all
+ * filters.
+ *
+ * Filters are indexed by proximity UUID, then by major and minor. A filter that ignores the
+ * major or minor is put in a wildcard bucket, so a match looks up at most 4 buckets: the exact
+ * major and minor, any minor, any major, and any major and minor.
+ * Lookups don't allocate a UUID, so they can be done on the raw advertisement.
+ *
+ * Not thread safe. BleIbeaconRanging creates a new index when the filters change, so that it
+ * can be read without lock.
+ *
+ * @param <T> type of the values stored per filter
+ */
+public class BleIbeaconFilterIndex<T> {
+
+	// Value of major or minor of a filter that ignores it
+	private static final int WILDCARD = -1;
+
+	private static class UuidEntry<T> {
+		final long leastSigBits;
+		// Values by major and minor, see getKey()
+		final LongHashMap<T> values = new LongHashMap<>();
+		// Next entry with the same most significant bits
+		UuidEntry<T> next;
+
+		UuidEntry(long leastSigBits) {
+			this.leastSigBits = leastSigBits;
+		}
+	}
+
+	// Entries by most significant bits of the proximity UUID
+	private final LongHashMap<UuidEntry<T>> _entries = new LongHashMap<>();
+	private int _size = 0;
+
+	/**
+	 * @param filter the filter
+	 * @param value the value to store for the filter, not null
+	 * @return the previous value of the filter, or null if there was none
+	 */
+	public T put(BleIbeaconFilter filter, T value) {
+		long mostSigBits = filter.getUuid().getMostSignificantBits();
+		long leastSigBits = filter.getUuid().getLeastSignificantBits();
+		UuidEntry<T> entry = getEntry(mostSigBits, leastSigBits);
+		if (entry == null) {
+			entry = new UuidEntry<>(leastSigBits);
+			entry.next = _entries.get(mostSigBits);
+			_entries.put(mostSigBits, entry);
+		}
+		T old = entry.values.put(getKey(filter.getMajor(), filter.getMinor()), value);
+		if (old == null) {
+			_size++;
+		}
+		return old;
+	}
+
+	/**
+	 * @return the value of the filter, or null if the filter is not in the index
+	 */
+	public T get(BleIbeaconFilter filter) {
+		UuidEntry<T> entry = getEntry(filter.getUuid().getMostSignificantBits(), filter.getUuid().getLeastSignificantBits());
+		if (entry == null) {
+			return null;
+		}
+		return entry.values.get(getKey(filter.getMajor(), filter.getMinor()));
+	}
+
+	/**
+	 * @return the removed value, or null if the filter was not in the index
+	 */
+	public T remove(BleIbeaconFilter filter) {
+		long mostSigBits = filter.getUuid().getMostSignificantBits();
+		long leastSigBits = filter.getUuid().getLeastSignificantBits();
+		UuidEntry<T> entry = getEntry(mostSigBits, leastSigBits);
+		if (entry == null) {
+			return null;
+		}
+		T old = entry.values.remove(getKey(filter.getMajor(), filter.getMinor()));
+		if (old == null) {
+			return null;
+		}
+		_size--;
+		if (entry.values.isEmpty()) {
+			removeEntry(mostSigBits, entry);
+		}
+		return old;
+	}
+
+	/**
+	 * @return number of filters in the index
+	 */
+	public int size() {
+		return _size;
+	}
+
+	public boolean isEmpty() {
+		return _size == 0;
+	}
+
+	/**
+	 * @return true if any filter has the given proximity UUID
+	 */
+	public boolean containsUuid(long mostSigBits, long leastSigBits) {
+		return getEntry(mostSigBits, leastSigBits) != null;
+	}
+
+	/**
+	 * Find the filters that match an iBeacon.
+	 *
+	 * @param mostSigBits most significant bits of the proximity UUID
+	 * @param leastSigBits least significant bits of the proximity UUID
+	 * @param major major of the iBeacon
+	 * @param minor minor of the iBeacon
+	 * @param result list to add the values of the matching filters to, can be null
+	 * @return number of matching filters
+	 */
+	public int match(long mostSigBits, long leastSigBits, int major, int minor, List<T> result) {
+		UuidEntry<T> entry = getEntry(mostSigBits, leastSigBits);
+		if (entry == null) {
+			return 0;
+		}
+		int count = 0;
+		count += match(entry, getKey(major, minor), result);
+		count += match(entry, getKey(major, WILDCARD), result);
+		count += match(entry, getKey(WILDCARD, minor), result);
+		count += match(entry, getKey(WILDCARD, WILDCARD), result);
+		return count;
+	}
+
+	private int match(UuidEntry<T> entry, long key, List<T> result) {
+		T value = entry.values.get(key);
+		if (value == null) {
+			return 0;
+		}
+		if (result != null) {
+			result.add(value);
+		}
+		return 1;
+	}
+
+	private UuidEntry<T> getEntry(long mostSigBits, long leastSigBits) {
+		UuidEntry<T> entry = _entries.get(mostSigBits);
+		while (entry != null && entry.leastSigBits != leastSigBits) {
+			entry = entry.next;
+		}
+		return entry;
+	}
+
+	private void removeEntry(long mostSigBits, UuidEntry<T> entry) {
+		UuidEntry<T> first = _entries.get(mostSigBits);
+		if (first == entry) {
+			if (entry.next == null) {
+				_entries.remove(mostSigBits);
+			}
+			else {
+				_entries.put(mostSigBits, entry.next);
+			}
+			return;
+		}
+		UuidEntry<T> prev = first;
+		while (prev.next != entry) {
+			prev = prev.next;
+		}
+		prev.next = entry.next;
+	}
+
+	/**
+	 * Pack major and minor in a key, a wildcard (-1) gets its own value.
+	 */
+	private static long getKey(int major, int minor) {
+		return ((major & 0x1FFFFL) << 17) | (minor & 0x1FFFFL);
+	}
+}
@@ -13,6 +13,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import nl.dobots.bluenet.ble.extended.structs.BleDevice;
 import nl.dobots.bluenet.ble.extended.structs.BleDeviceMap;
@@ -44,29 +45,32 @@ public class BleIbeaconRanging {
 
 	private static final String TAG = BleIbeaconRanging.class.getCanonicalName();
 
-	private static final long REGION_TIMEOUT_MS = 30000L;
 	private static final long TICK_INTERVAL_MS = 1000L;
 
-	private List<BleIbeaconFilter> _iBeaconFilter;
+	private ArrayList<BleIbeaconRegion> _regions;
+	// Replaced when the filters change, so that it can be read without lock.
+	private volatile BleIbeaconFilterIndex<BleIbeaconRegion> _index;
+	private BleIbeaconRegionTracker _tracker;
 //	private Set<IBleBeaconCallback> _scanCallbacks;
 	private Set<BleBeaconRangingListener> _rangingListeners;
+	private Set<BleIbeaconRegionListener> _regionListeners;
 	private BleDeviceMap _devices;
-	private Map<UUID, Long> _lastSeen;
-	private Set<UUID> _inRegion;
-	private boolean _paused;
+	// Number of entered regions per proximity UUID
+	private Map<UUID, Integer> _inRegion;
+	private volatile boolean _paused;
 
 	// handler used for delayed execution and timeouts
 	private Handler _handler;
 
-	private int _minRssi = -110;
-
 	public BleIbeaconRanging() {
-		_iBeaconFilter = new ArrayList<>();
+		_regions = new ArrayList<>();
+		_index = new BleIbeaconFilterIndex<>();
+		_tracker = new BleIbeaconRegionTracker(TICK_INTERVAL_MS);
 //		_scanCallbacks = new HashSet<>();
-		_rangingListeners = new HashSet<>();
+		_rangingListeners = new CopyOnWriteArraySet<>();
+		_regionListeners = new CopyOnWriteArraySet<>();
 		_devices = new BleDeviceMap();
-		_lastSeen = new HashMap<>();
-		_inRegion = new HashSet<>();
+		_inRegion = new HashMap<>();
 		_paused = false;
 
 		// create handler with its own thread
@@ -84,31 +88,46 @@ public class BleIbeaconRanging {
 
 	public synchronized void addIbeaconFilter(BleIbeaconFilter filter) {
 		getLogger().LOGi(TAG, "addIbeaconFilter: " + filter);
-		_iBeaconFilter.add(filter);
-		_lastSeen.put(filter.getUuid(), 0L);
-		getLogger().LOGv(TAG, "lastseen " + filter.getUuid() + " at " + _lastSeen.get(filter.getUuid()));
+		if (_index.get(filter) != null) {
+			getLogger().LOGd(TAG, "filter already added");
+			return;
+		}
+		_regions.add(new BleIbeaconRegion(filter));
+		updateIndex();
 	}
 
 	public synchronized void remIbeaconFilter(BleIbeaconFilter filter) {
-		getLogger().LOGi(TAG, "addIbeaconFilter: " + filter);
-		for (int i = _iBeaconFilter.size()-1; i >= 0; i--) {
-			if (_iBeaconFilter.get(i).equals(filter)) {
-				_iBeaconFilter.remove(i);
+		getLogger().LOGi(TAG, "remIbeaconFilter: " + filter);
+		for (int i = _regions.size()-1; i >= 0; i--) {
+			BleIbeaconRegion region = _regions.get(i);
+			if (region.getFilter().equals(filter)) {
+				// Removed without exit event.
+				if (region.isInside()) {
+					decrementInRegion(filter.getUuid());
+				}
+				_tracker.remove(region);
+				_regions.remove(i);
 			}
 		}
-		// TODO: Not sure if we can remove this, there may be others with the same UUID
-		_lastSeen.remove(filter.getUuid());
-		_inRegion.remove(filter.getUuid());
+		updateIndex();
 	}
 
 	public synchronized void clearIbeaconFilter() {
-		_iBeaconFilter.clear();
-		_lastSeen.clear();
+		_tracker.clear();
+		_regions.clear();
 		_inRegion.clear();
+		updateIndex();
 	}
 
-	public List<BleIbeaconFilter> getIbeaconFilter() {
-		return _iBeaconFilter;
+	/**
+	 * @return a copy of the iBeacon filters
+	 */
+	public synchronized List<BleIbeaconFilter> getIbeaconFilter() {
+		ArrayList<BleIbeaconFilter> filters = new ArrayList<>(_regions.size());
+		for (BleIbeaconRegion region : _regions) {
+			filters.add(region.getFilter());
+		}
+		return filters;
 	}
 
 	public BleDeviceMap getDeviceMap() {
@@ -134,6 +153,17 @@ public class BleIbeaconRanging {
 		return _rangingListeners.remove(listener);
 	}
 
+	// Subscribe to enter / exit events of the region of each iBeacon filter.
+	public boolean registerRegionListener(BleIbeaconRegionListener listener) {
+		getLogger().LOGi(TAG, "registerRegionListener");
+		return _regionListeners.add(listener);
+	}
+
+	public boolean unregisterRegionListener(BleIbeaconRegionListener listener) {
+		getLogger().LOGi(TAG, "unregisterRegionListener");
+		return _regionListeners.remove(listener);
+	}
+
 	public synchronized void pause() {
 		_paused = true;
 	}
@@ -145,52 +175,111 @@ public class BleIbeaconRanging {
 
 	// Rssi threshold for enter region events
 	public synchronized void setRssiThreshold(int rssi) {
-		_minRssi = rssi;
+		_tracker.setEnterRssi(rssi);
 	}
 
-	public synchronized Set getEnteredRegions() {
-		return _inRegion;
+	/**
+	 * @param hysteresis how much lower than the rssi threshold the rssi of an entered region can
+	 *                   be, before it is considered not seen.
+	 */
+	public synchronized void setRssiHysteresis(int hysteresis) {
+		_tracker.setRssiHysteresis(hysteresis);
 	}
 
-	public boolean isMatch(BleDevice device) {
-		if (_iBeaconFilter.isEmpty() || _paused) return false;
-		if (device.isIBeacon()) {
-			for (BleIbeaconFilter iBeaconFilter : _iBeaconFilter) {
-				if (iBeaconFilter.matches(device.getProximityUuid(), device.getMajor(), device.getMinor())) {
-					return true;
-				}
+	/**
+	 * @param time time in ms a region has to be seen above the rssi threshold before it's entered
+	 */
+	public synchronized void setEnterDwellTime(long time) {
+		_tracker.setEnterDwellTime(time);
+	}
+
+	/**
+	 * @param timeout time in ms a region has to be not seen before it's exited
+	 */
+	public synchronized void setExitTimeout(long timeout) {
+		_tracker.setExitTimeout(timeout);
+	}
+
+	/**
+	 * @return the proximity UUIDs of which a region is entered
+	 */
+	public synchronized Set<UUID> getEnteredRegions() {
+		return new HashSet<>(_inRegion.keySet());
+	}
+
+	/**
+	 * @return the filters of which the region is entered
+	 */
+	public synchronized List<BleIbeaconFilter> getEnteredIbeaconRegions() {
+		ArrayList<BleIbeaconFilter> filters = new ArrayList<>();
+		for (BleIbeaconRegion region : _regions) {
+			if (region.isInside()) {
+				filters.add(region.getFilter());
 			}
-//		} else { Log.d(TAG, "is not ibeacon"); }
 		}
-		return false;
+		return filters;
 	}
 
+	public boolean isMatch(BleDevice device) {
+		if (_paused || !device.isIBeacon()) return false;
+		UUID uuid = device.getProximityUuid();
+		return _index.match(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), device.getMajor(), device.getMinor(), null) > 0;
+	}
 
-	public synchronized boolean onScannedDevice(BleDevice device, @Nullable IBleBeaconCallback callback) {
-		boolean iBeaconMatch = isMatch(device);
-		if (iBeaconMatch) {
-			getLogger().LOGv(TAG, "matching ibeacon filter: " + device.getAddress() + " (" + device.getName() + ")");
-			device = updateDevice(device);
-//			for (IBleBeaconCallback cb : _scanCallbacks) {
-//				cb.onBeaconScanned(device);
-//			}
-			if (device.getRssi() >= _minRssi) {
-				long currentTime = SystemClock.elapsedRealtime();
-				_lastSeen.put(device.getProximityUuid(), currentTime);
-				getLogger().LOGv(TAG, "lastseen " + device.getProximityUuid() + " at " + currentTime + "=" + _lastSeen.get(device.getProximityUuid()));
-				if (!_inRegion.contains(device.getProximityUuid())) {
-					enterRegion(device.getProximityUuid());
-				}
-			}
 
-			for (BleBeaconRangingListener listener : _rangingListeners) {
-//				Log.d(TAG, "send to listener: " + listener);
-				listener.onBeaconScanned(device);
-			}
-		} else {
+	/**
+	 * Check if any of the filters has the given proximity UUID, without allocating a UUID.
+	 * @param mostSigBits most significant bits of the proximity UUID
+	 * @param leastSigBits least significant bits of the proximity UUID
+	 * @return true if a filter has the UUID and ranging is not paused
+	 */
+	public boolean hasProximityUuid(long mostSigBits, long leastSigBits) {
+		return !_paused && _index.containsUuid(mostSigBits, leastSigBits);
+	}
+
+	public boolean onScannedDevice(BleDevice device, @Nullable IBleBeaconCallback callback) {
+		if (_paused || !device.isIBeacon()) {
+			return false;
+		}
+		UUID uuid = device.getProximityUuid();
+		ArrayList<BleIbeaconRegion> regions = new ArrayList<>(1);
+		if (_index.match(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), device.getMajor(), device.getMinor(), regions) == 0) {
 			getLogger().LOGv(TAG, "not matching any ibeacon filter:" + device.getAddress() + " (" + device.getName() + ")");
+			return false;
+		}
+		getLogger().LOGv(TAG, "matching ibeacon filter: " + device.getAddress() + " (" + device.getName() + ")");
+		device = updateDevice(device);
+//		for (IBleBeaconCallback cb : _scanCallbacks) {
+//			cb.onBeaconScanned(device);
+//		}
+		updateRegions(regions, device.getRssi());
+
+		for (BleBeaconRangingListener listener : _rangingListeners) {
+//			Log.d(TAG, "send to listener: " + listener);
+			listener.onBeaconScanned(device);
 		}
-		return iBeaconMatch;
+		return true;
+	}
+
+	private synchronized void updateRegions(List<BleIbeaconRegion> regions, int rssi) {
+		long currentTime = SystemClock.elapsedRealtime();
+		for (BleIbeaconRegion region : regions) {
+			// The filters may have changed since the match.
+			if (_index.get(region.getFilter()) != region) {
+				continue;
+			}
+			if (_tracker.update(region, rssi, currentTime)) {
+				enterRegion(region);
+			}
+		}
+	}
+
+	private void updateIndex() {
+		BleIbeaconFilterIndex<BleIbeaconRegion> index = new BleIbeaconFilterIndex<>();
+		for (BleIbeaconRegion region : _regions) {
+			index.put(region.getFilter(), region);
+		}
+		_index = index;
 	}
 
 	private Runnable tick = new Runnable() {
@@ -202,49 +291,68 @@ public class BleIbeaconRanging {
 	};
 
 	private synchronized void checkRegionExits() {
-		// TODO: this crashes on logout, because _lastSeen.get(uuid) returns null for some reason unknown
-		long curTime = SystemClock.elapsedRealtime();
-		if (_lastSeen == null) {
-			getLogger().LOGe(TAG, "lastSeen = null!");
+		ArrayList<BleIbeaconRegion> exited = new ArrayList<>(0);
+		_tracker.advance(SystemClock.elapsedRealtime(), exited);
+		for (BleIbeaconRegion region : exited) {
+			exitRegion(region);
 		}
+	}
 
-		// TODO: this causes ConcurrentModificationException because we edit _inRegion in the loop.
-		for (UUID uuid : _inRegion) {
-			getLogger().LOGv(TAG, "lastSeen " + uuid + ": " + _lastSeen.get(uuid));
-
-			if (curTime - _lastSeen.get(uuid) > REGION_TIMEOUT_MS) {
-				exitRegion(uuid);
+	private synchronized void enterRegion(BleIbeaconRegion region) {
+		getLogger().LOGi(TAG, "enterRegion: " + region.getFilter());
+		for (BleIbeaconRegionListener listener : _regionListeners) {
+			listener.onRegionEnter(region.getFilter());
+		}
+		UUID uuid = region.getFilter().getUuid();
+		Integer count = _inRegion.get(uuid);
+		_inRegion.put(uuid, count == null ? 1 : count + 1);
+		if (count == null) {
+			getLogger().LOGi(TAG, "enterRegion: " + uuid.toString());
+			for (BleBeaconRangingListener listener : _rangingListeners) {
+				listener.onRegionEnter(uuid);
 			}
 		}
 	}
 
-	private synchronized void enterRegion(UUID uuid) {
-		getLogger().LOGi(TAG, "enterRegion: " + uuid.toString());
-		_inRegion.add(uuid);
-		for (BleBeaconRangingListener listener : _rangingListeners) {
-			listener.onRegionEnter(uuid);
+	private synchronized void exitRegion(BleIbeaconRegion region) {
+		getLogger().LOGi(TAG, "exitRegion: " + region.getFilter());
+		if (!_paused) {
+			for (BleIbeaconRegionListener listener : _regionListeners) {
+				listener.onRegionExit(region.getFilter());
+			}
+		}
+		UUID uuid = region.getFilter().getUuid();
+		if (decrementInRegion(uuid)) {
+			getLogger().LOGi(TAG, "exitRegion: " + uuid.toString());
+			if (!_paused) {
+				for (BleBeaconRangingListener listener : _rangingListeners) {
+					listener.onRegionExit(uuid);
+				}
+			}
 		}
 	}
 
-	private synchronized void exitRegion(UUID uuid) {
-		getLogger().LOGi(TAG, "exitRegion: " + uuid.toString());
-//		_lastSeen.remove(uuid);
-		_inRegion.remove(uuid);
-		if (!_paused) {
-			for (BleBeaconRangingListener listener : _rangingListeners) {
-				listener.onRegionExit(uuid);
-			}
+	/**
+	 * @return true when no region with the UUID is entered anymore
+	 */
+	private boolean decrementInRegion(UUID uuid) {
+		Integer count = _inRegion.get(uuid);
+		if (count == null || count <= 1) {
+			_inRegion.remove(uuid);
+			return true;
 		}
+		_inRegion.put(uuid, count - 1);
+		return false;
 	}
 
-	private synchronized BleDevice updateDevice(BleDevice device) {
+	private BleDevice updateDevice(BleDevice device) {
 		return _devices.updateDevice(device);
 	}
 
 	private static BleLog getLogger() {
 		BleLog logger = BleLog.getInstance();
 		// update the log level to the default of this class if it hasn't been set already
-		if (logger.getLogLevel(TAG) == null) {
+		if (!logger.hasLogLevel(TAG)) {
 			logger.setLogLevelPerTag(TAG, LOG_LEVEL);
 		}
 		return logger;
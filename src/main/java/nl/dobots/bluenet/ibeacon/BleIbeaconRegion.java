@@ -0,0 +1,52 @@
+package nl.dobots.bluenet.ibeacon;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Region of an iBeacon filter: iBeacons with the proximity UUID, major and minor of the filter.
+ * The state is kept by BleIbeaconRegionTracker.
+ */
+public class BleIbeaconRegion {
+
+	private final BleIbeaconFilter _filter;
+
+	// State, as updated by BleIbeaconRegionTracker
+	boolean _inside = false;
+	// Time the region was seen above the enter threshold first, or -1 if not
+	long _candidateSince = -1;
+	// Time the region was seen last, above the exit threshold when inside
+	long _lastSeen = 0;
+	// Tick of the timer wheel at which the exit is checked, or -1 if not scheduled
+	long _exitTick = -1;
+
+	public BleIbeaconRegion(BleIbeaconFilter filter) {
+		_filter = filter;
+	}
+
+	public BleIbeaconFilter getFilter() {
+		return _filter;
+	}
+
+	/**
+	 * @return true if the region has been entered, and not exited since
+	 */
+	public boolean isInside() {
+		return _inside;
+	}
+
+	/**
+	 * @return time the region was seen last
+	 */
+	public long getLastSeen() {
+		return _lastSeen;
+	}
+
+	@Override
+	public String toString() {
+		return _filter.toString() + " inside=" + _inside;
+	}
+}
@@ -0,0 +1,18 @@
+package nl.dobots.bluenet.ibeacon;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Listener for enter and exit events of the region of each iBeacon filter, see
+ * BleIbeaconRanging.registerRegionListener().
+ */
+public interface BleIbeaconRegionListener {
+
+	void onRegionEnter(BleIbeaconFilter filter);
+	void onRegionExit(BleIbeaconFilter filter);
+
+}
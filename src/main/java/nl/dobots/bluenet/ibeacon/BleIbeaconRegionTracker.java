@@ -0,0 +1,219 @@
+package nl.dobots.bluenet.ibeacon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Keeps track of entering and exiting iBeacon regions.
+ *
+ * A region is entered when it has been seen with an rssi of at least the enter threshold for
+ * the enter dwell time. It is exited when it hasn't been seen with an rssi of at least the exit
+ * threshold (the enter threshold minus the hysteresis) for the exit timeout. This way, a beacon
+ * with an rssi around the threshold doesn't keep entering and exiting.
+ *
+ * Exits are checked with a timer wheel: an entered region is put in the slot of its exit time,
+ * and only the slots that are due are checked on advance(). When a region has been seen since,
+ * it is moved to the slot of its new exit time, so seeing a region only updates its time.
+ *
+ * Times are in ms, from any monotonic clock. Not thread safe.
+ */
+public class BleIbeaconRegionTracker {
+
+	public static final int DEFAULT_ENTER_RSSI = -110;
+	public static final int DEFAULT_RSSI_HYSTERESIS = 5;
+	public static final long DEFAULT_ENTER_DWELL_TIME = 0;
+	public static final long DEFAULT_EXIT_TIMEOUT = 30000L;
+
+	// Number of slots of the timer wheel, should be a power of 2
+	private static final int WHEEL_SIZE = 64;
+
+	private final long _tickInterval;
+	private final ArrayList<ArrayList<BleIbeaconRegion>> _wheel = new ArrayList<>(WHEEL_SIZE);
+	// Last tick that has been checked
+	private long _currentTick = -1;
+
+	private int _enterRssi = DEFAULT_ENTER_RSSI;
+	private int _rssiHysteresis = DEFAULT_RSSI_HYSTERESIS;
+	private long _enterDwellTime = DEFAULT_ENTER_DWELL_TIME;
+	private long _exitTimeout = DEFAULT_EXIT_TIMEOUT;
+
+	/**
+	 * @param tickInterval time in ms per slot of the timer wheel, exits are at most this late
+	 */
+	public BleIbeaconRegionTracker(long tickInterval) {
+		_tickInterval = tickInterval;
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			_wheel.add(new ArrayList<BleIbeaconRegion>());
+		}
+	}
+
+	/**
+	 * @param rssi minimal rssi to enter a region
+	 */
+	public void setEnterRssi(int rssi) {
+		_enterRssi = rssi;
+	}
+
+	public int getEnterRssi() {
+		return _enterRssi;
+	}
+
+	/**
+	 * @param hysteresis how much lower than the enter threshold the rssi can be, while still
+	 *                   keeping an entered region
+	 */
+	public void setRssiHysteresis(int hysteresis) {
+		_rssiHysteresis = hysteresis;
+	}
+
+	public int getRssiHysteresis() {
+		return _rssiHysteresis;
+	}
+
+	/**
+	 * @param time time in ms a region has to be seen above the enter threshold before it's entered
+	 */
+	public void setEnterDwellTime(long time) {
+		_enterDwellTime = time;
+	}
+
+	public long getEnterDwellTime() {
+		return _enterDwellTime;
+	}
+
+	/**
+	 * @param timeout time in ms a region has to be not seen above the exit threshold before it's exited
+	 */
+	public void setExitTimeout(long timeout) {
+		_exitTimeout = timeout;
+	}
+
+	public long getExitTimeout() {
+		return _exitTimeout;
+	}
+
+	/**
+	 * Update a region with an rssi measurement.
+	 *
+	 * @param region the region that was seen
+	 * @param rssi the rssi it was seen with
+	 * @param now current time
+	 * @return true if the region is entered
+	 */
+	public boolean update(BleIbeaconRegion region, int rssi, long now) {
+		if (region._inside) {
+			if (rssi >= _enterRssi - _rssiHysteresis) {
+				// The exit is rescheduled when its slot is checked.
+				region._lastSeen = now;
+			}
+			return false;
+		}
+		if (rssi < _enterRssi) {
+			if (rssi < _enterRssi - _rssiHysteresis) {
+				region._candidateSince = -1;
+			}
+			return false;
+		}
+		if (region._candidateSince < 0 || now - region._lastSeen > _exitTimeout) {
+			region._candidateSince = now;
+		}
+		region._lastSeen = now;
+		if (now - region._candidateSince < _enterDwellTime) {
+			return false;
+		}
+		region._inside = true;
+		region._candidateSince = -1;
+		schedule(region, now + _exitTimeout, now);
+		return true;
+	}
+
+	/**
+	 * Check the exits that are due.
+	 *
+	 * @param now current time
+	 * @param exited list to add the exited regions to
+	 */
+	public void advance(long now, List<BleIbeaconRegion> exited) {
+		long tick = now / _tickInterval;
+		if (_currentTick < 0) {
+			_currentTick = tick;
+			return;
+		}
+		// Skipped ticks end up in the same slots, so no need to go around more than once.
+		if (tick - _currentTick > WHEEL_SIZE) {
+			_currentTick = tick - WHEEL_SIZE;
+		}
+		while (_currentTick < tick) {
+			_currentTick++;
+			checkSlot(_wheel.get((int) (_currentTick & (WHEEL_SIZE - 1))), now, exited);
+		}
+	}
+
+	/**
+	 * Stop tracking a region, without exiting it.
+	 */
+	public void remove(BleIbeaconRegion region) {
+		if (region._exitTick >= 0) {
+			_wheel.get((int) (region._exitTick & (WHEEL_SIZE - 1))).remove(region);
+		}
+		reset(region);
+	}
+
+	/**
+	 * Stop tracking all regions, without exiting them.
+	 */
+	public void clear() {
+		for (ArrayList<BleIbeaconRegion> slot : _wheel) {
+			for (BleIbeaconRegion region : slot) {
+				reset(region);
+			}
+			slot.clear();
+		}
+	}
+
+	private void checkSlot(ArrayList<BleIbeaconRegion> slot, long now, List<BleIbeaconRegion> exited) {
+		// Go backwards, as regions are removed from the slot.
+		for (int i = slot.size() - 1; i >= 0; i--) {
+			BleIbeaconRegion region = slot.get(i);
+			if (region._exitTick > _currentTick) {
+				// Due in a later round of the wheel.
+				continue;
+			}
+			slot.remove(i);
+			region._exitTick = -1;
+			long exitTime = region._lastSeen + _exitTimeout;
+			if (exitTime > now) {
+				schedule(region, exitTime, now);
+			}
+			else {
+				region._inside = false;
+				exited.add(region);
+			}
+		}
+	}
+
+	private void schedule(BleIbeaconRegion region, long time, long now) {
+		// Round up, so that the exit is never early.
+		long tick = (time + _tickInterval - 1) / _tickInterval;
+		if (_currentTick < 0) {
+			_currentTick = now / _tickInterval;
+		}
+		if (tick <= _currentTick) {
+			tick = _currentTick + 1;
+		}
+		region._exitTick = tick;
+		_wheel.get((int) (tick & (WHEEL_SIZE - 1))).add(region);
+	}
+
+	private static void reset(BleIbeaconRegion region) {
+		region._inside = false;
+		region._candidateSince = -1;
+		region._exitTick = -1;
+	}
+}
@@ -62,7 +62,7 @@ public class SimpleLocalization implements Localization {
 		// loop over all devices in the list and find ...
 		for (BleDevice device : devices) {
 			// ... the closest device registered with a location
-			if ((location = _locationsList.findLocation(device.getAddress())) != null) {
+			if ((location = _locationsList.findLocation(device.getPackedAddress())) != null) {
 				double distance = device.getDistance();
 				if (distance != -1 && distance < _detectionDistance) {
 					Log.i(TAG, String.format("I am in range of: %s at %.2f m", device.getName(), device.getDistance()));
@@ -3,6 +3,8 @@ package nl.dobots.bluenet.localization.locations;
 import nl.dobots.bluenet.ble.extended.structs.BleDevice;
 import nl.dobots.bluenet.ble.extended.structs.BleDeviceList;
 import nl.dobots.bluenet.ble.extended.structs.BleDeviceMap;
+import nl.dobots.bluenet.utils.BleUtils;
+import nl.dobots.bluenet.utils.LongHashSet;
 //import nl.dobots.presence.R;
 //import nl.dobots.presence.utils.Utils;
 
@@ -29,12 +31,15 @@ public class Location {
 
 	private BleDeviceMap _beaconsMap;
 	private BleDeviceList _beaconsList;
+	// packed MAC addresses of the beacons, for quick lookup
+	private LongHashSet _beaconAddresses;
 
 	public Location(String name) {
 		_name = name;
 
 		_beaconsMap = new BleDeviceMap();
 		_beaconsList = new BleDeviceList();
+		_beaconAddresses = new LongHashSet();
 	}
 
 //	private AdapterView.OnItemLongClickListener _onBeaconLongClickListener = new AdapterView.OnItemLongClickListener() {
@@ -72,18 +77,27 @@ public class Location {
 		_name = name;
 	}
 
-	public void addBeacon(BleDevice device) {
+	public synchronized void addBeacon(BleDevice device) {
 		_beaconsMap.updateDevice(device);
 		_beaconsList.add(device);
+		_beaconAddresses.add(device.getPackedAddress());
 	}
 
-	public void removeBeacon(BleDevice device) {
+	public synchronized void removeBeacon(BleDevice device) {
 		_beaconsMap.remove(device.getAddress());
 		_beaconsList.remove(device);
+		_beaconAddresses.remove(device.getPackedAddress());
 	}
 
 	public boolean containsBeacon(String deviceAddress) {
-		return _beaconsMap.containsKey(deviceAddress);
+		return containsBeacon(BleUtils.addressToLong(deviceAddress));
+	}
+
+	/**
+	 * @param deviceAddress MAC address packed in a long, see BleUtils.addressToLong()
+	 */
+	public synchronized boolean containsBeacon(long deviceAddress) {
+		return _beaconAddresses.contains(deviceAddress);
 	}
 
 //	public AdapterView.OnItemLongClickListener getOnBeaconLongClickListener() {
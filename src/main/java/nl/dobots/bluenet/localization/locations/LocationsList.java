@@ -2,6 +2,8 @@ package nl.dobots.bluenet.localization.locations;
 
 import java.util.ArrayList;
 
+import nl.dobots.bluenet.utils.BleUtils;
+
 /**
  * Copyright (c) 2015 Dominik Egger <dominik@dobots.nl>. All rights reserved.
  * <p/>
@@ -22,8 +24,16 @@ import java.util.ArrayList;
 public class LocationsList extends ArrayList<Location> {
 
 	public Location findLocation(String deviceAddress) {
+		return findLocation(BleUtils.addressToLong(deviceAddress));
+	}
 
-		for (Location location : this) {
+	/**
+	 * @param deviceAddress MAC address packed in a long, see BleUtils.addressToLong()
+	 * @return the location that has the device as beacon, or null if none
+	 */
+	public Location findLocation(long deviceAddress) {
+		for (int i = 0; i < size(); i++) {
+			Location location = get(i);
 			if (location.containsBeacon(deviceAddress)) {
 				return location;
 			}
@@ -0,0 +1,336 @@
+package nl.dobots.bluenet.power;
+
+import nl.dobots.bluenet.ble.base.structs.PowerSamples;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Spectrum analysis of current and voltage waveforms, to recognize the type of load.
+ *
+ * Each window of samples is multiplied by a Hann window, and the spectrum of bins 0 to N/2 is
+ * computed with a real valued DFT, using a precomputed twiddle table. A window of 75 samples
+ * (one power samples notification) is not a power of two, but the DFT of its 38 bins only takes
+ * about 5700 multiply-adds per channel: HarmonicAnalyzerBenchmark measures about 7 us per
+ * window on a desktop JVM. The time grows with the square of the window size. The amplitudes
+ * and the cross spectrum of current and voltage are accumulated over all windows, nothing is
+ * allocated per window.
+ *
+ * The fundamental is the bin with the largest voltage amplitude, the harmonics are multiples of
+ * that bin, so the window should hold a few periods of the fundamental: the Hann window
+ * spreads each bin into its neighbours. The load is classified by the total harmonic distortion of the current, and the
+ * phase of the current relative to the voltage.
+ *
+ * Thread safe.
+ */
+public class HarmonicAnalyzer {
+
+	public static final int DEFAULT_WINDOW_SIZE = PowerSamples.NUM_SAMPLES;
+
+	// Load types
+	public static final int LOAD_UNKNOWN = 0;
+	public static final int LOAD_RESISTIVE = 1;
+	public static final int LOAD_INDUCTIVE = 2;
+	public static final int LOAD_CAPACITIVE = 3;
+	public static final int LOAD_NON_LINEAR = 4;
+
+	public static final double DEFAULT_MAX_LINEAR_THD = 0.3;
+	public static final double DEFAULT_MAX_RESISTIVE_PHASE = Math.toRadians(15);
+
+	private final int _windowSize;
+	private final int _numBins;
+
+	// Twiddle table: cos and sin of 2*pi*i/N
+	private final double[] _cos;
+	private final double[] _sin;
+	private final double[] _window;
+	// Amplitude of a sine, from the magnitude of its bin
+	private final double _amplitudeScale;
+
+	// Work arrays
+	private final double[] _samples;
+	private final double[] _currentRe;
+	private final double[] _currentIm;
+	private final double[] _voltageRe;
+	private final double[] _voltageIm;
+
+	// Accumulated spectra
+	private final double[] _currentAmplitudes;
+	private final double[] _voltageAmplitudes;
+	private final double[] _crossRe;
+	private final double[] _crossIm;
+	private int _numWindows = 0;
+
+	private double _minCurrentAmplitude = 0;
+	private double _maxLinearThd = DEFAULT_MAX_LINEAR_THD;
+	private double _maxResistivePhase = DEFAULT_MAX_RESISTIVE_PHASE;
+
+	public HarmonicAnalyzer() {
+		this(DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * @param windowSize number of samples per window
+	 */
+	public HarmonicAnalyzer(int windowSize) {
+		_windowSize = windowSize;
+		_numBins = windowSize / 2 + 1;
+		_cos = new double[windowSize];
+		_sin = new double[windowSize];
+		_window = new double[windowSize];
+		double windowSum = 0;
+		for (int i = 0; i < windowSize; i++) {
+			double angle = 2 * Math.PI * i / windowSize;
+			_cos[i] = Math.cos(angle);
+			_sin[i] = Math.sin(angle);
+			// Periodic Hann window
+			_window[i] = 0.5 - 0.5 * _cos[i];
+			windowSum += _window[i];
+		}
+		_amplitudeScale = 2 / windowSum;
+		_samples = new double[windowSize];
+		_currentRe = new double[_numBins];
+		_currentIm = new double[_numBins];
+		_voltageRe = new double[_numBins];
+		_voltageIm = new double[_numBins];
+		_currentAmplitudes = new double[_numBins];
+		_voltageAmplitudes = new double[_numBins];
+		_crossRe = new double[_numBins];
+		_crossIm = new double[_numBins];
+	}
+
+	/**
+	 * @param minCurrentAmplitude min amplitude of the fundamental of the current, in ADC units,
+	 *                            below which the load is unknown
+	 */
+	public synchronized void setMinCurrentAmplitude(double minCurrentAmplitude) {
+		_minCurrentAmplitude = minCurrentAmplitude;
+	}
+
+	/**
+	 * @param maxLinearThd max total harmonic distortion of the current of a linear load
+	 */
+	public synchronized void setMaxLinearThd(double maxLinearThd) {
+		_maxLinearThd = maxLinearThd;
+	}
+
+	/**
+	 * @param maxResistivePhase max phase difference in radians between current and voltage of a
+	 *                          resistive load
+	 */
+	public synchronized void setMaxResistivePhase(double maxResistivePhase) {
+		_maxResistivePhase = maxResistivePhase;
+	}
+
+	/**
+	 * Add the samples of a power samples notification.
+	 * @return false if the notification has fewer samples than the window size
+	 */
+	public synchronized boolean add(PowerSamples samples) {
+		PowerSamples.Samples current = samples.getCurrentSamples();
+		PowerSamples.Samples voltage = samples.getVoltageSamples();
+		if (current.getCount() < _windowSize || voltage.getCount() < _windowSize) {
+			return false;
+		}
+		for (int i = 0; i < _windowSize; i++) {
+			_samples[i] = current.getSample(i) * _window[i];
+		}
+		transform(_currentRe, _currentIm);
+		for (int i = 0; i < _windowSize; i++) {
+			_samples[i] = voltage.getSample(i) * _window[i];
+		}
+		transform(_voltageRe, _voltageIm);
+		accumulate();
+		return true;
+	}
+
+	/**
+	 * Add a window of samples.
+	 * @param current current samples
+	 * @param voltage voltage samples
+	 * @param offset index of the first sample of the window
+	 */
+	public synchronized void add(short[] current, short[] voltage, int offset) {
+		for (int i = 0; i < _windowSize; i++) {
+			_samples[i] = current[offset + i] * _window[i];
+		}
+		transform(_currentRe, _currentIm);
+		for (int i = 0; i < _windowSize; i++) {
+			_samples[i] = voltage[offset + i] * _window[i];
+		}
+		transform(_voltageRe, _voltageIm);
+		accumulate();
+	}
+
+	/**
+	 * Remove all accumulated spectra.
+	 */
+	public synchronized void reset() {
+		for (int k = 0; k < _numBins; k++) {
+			_currentAmplitudes[k] = 0;
+			_voltageAmplitudes[k] = 0;
+			_crossRe[k] = 0;
+			_crossIm[k] = 0;
+		}
+		_numWindows = 0;
+	}
+
+	/**
+	 * @return number of windows that were added since the start (or reset)
+	 */
+	public synchronized int getNumWindows() {
+		return _numWindows;
+	}
+
+	/**
+	 * @return number of bins of the spectrum, from DC to half the sample rate
+	 */
+	public int getNumBins() {
+		return _numBins;
+	}
+
+	/**
+	 * Get the average amplitude spectrum of the current.
+	 * @param amplitudes array of at least getNumBins() to put the amplitudes in, in ADC units
+	 */
+	public synchronized void getCurrentSpectrum(double[] amplitudes) {
+		getSpectrum(_currentAmplitudes, amplitudes);
+	}
+
+	/**
+	 * Get the average amplitude spectrum of the voltage.
+	 * @param amplitudes array of at least getNumBins() to put the amplitudes in, in ADC units
+	 */
+	public synchronized void getVoltageSpectrum(double[] amplitudes) {
+		getSpectrum(_voltageAmplitudes, amplitudes);
+	}
+
+	/**
+	 * @return bin of the fundamental frequency: the bin with the largest voltage amplitude, or 0
+	 *         if no windows were added
+	 */
+	public synchronized int getFundamentalBin() {
+		int fundamental = 0;
+		double max = 0;
+		for (int k = 1; k < _numBins; k++) {
+			if (_voltageAmplitudes[k] > max) {
+				max = _voltageAmplitudes[k];
+				fundamental = k;
+			}
+		}
+		return fundamental;
+	}
+
+	/**
+	 * @param harmonic number of the harmonic, 1 is the fundamental
+	 * @return average amplitude of the harmonic of the current in ADC units, or 0 if it's above
+	 *         half the sample rate
+	 */
+	public synchronized double getCurrentHarmonic(int harmonic) {
+		int bin = harmonic * getFundamentalBin();
+		if (_numWindows == 0 || bin == 0 || bin >= _numBins) {
+			return 0;
+		}
+		return _currentAmplitudes[bin] / _numWindows;
+	}
+
+	/**
+	 * @return total harmonic distortion of the current: the rms of the harmonics above the
+	 *         fundamental, relative to the fundamental. 0 if there is no fundamental.
+	 */
+	public synchronized double getCurrentThd() {
+		int fundamental = getFundamentalBin();
+		if (fundamental == 0 || _currentAmplitudes[fundamental] == 0) {
+			return 0;
+		}
+		double sumSquares = 0;
+		for (int bin = 2 * fundamental; bin < _numBins; bin += fundamental) {
+			sumSquares += _currentAmplitudes[bin] * _currentAmplitudes[bin];
+		}
+		return Math.sqrt(sumSquares) / _currentAmplitudes[fundamental];
+	}
+
+	/**
+	 * @return phase in radians by which the current lags the voltage at the fundamental, negative
+	 *         when the current leads
+	 */
+	public synchronized double getPhase() {
+		int fundamental = getFundamentalBin();
+		if (fundamental == 0) {
+			return 0;
+		}
+		return Math.atan2(_crossIm[fundamental], _crossRe[fundamental]);
+	}
+
+	/**
+	 * Classify the load from the accumulated spectra.
+	 * @return the load type, see LOAD_*
+	 */
+	public synchronized int classify() {
+		double fundamentalCurrent = getCurrentHarmonic(1);
+		if (fundamentalCurrent == 0 || fundamentalCurrent < _minCurrentAmplitude) {
+			return LOAD_UNKNOWN;
+		}
+		if (getCurrentThd() > _maxLinearThd) {
+			return LOAD_NON_LINEAR;
+		}
+		double phase = getPhase();
+		if (phase > _maxResistivePhase) {
+			return LOAD_INDUCTIVE;
+		}
+		if (phase < -_maxResistivePhase) {
+			return LOAD_CAPACITIVE;
+		}
+		return LOAD_RESISTIVE;
+	}
+
+	/**
+	 * Real valued DFT of the work samples, for bins 0 to N/2.
+	 */
+	private void transform(double[] re, double[] im) {
+		for (int k = 0; k < _numBins; k++) {
+			double sumRe = 0;
+			double sumIm = 0;
+			// Index of k*n mod N in the twiddle table, without multiplying.
+			int index = 0;
+			for (int n = 0; n < _windowSize; n++) {
+				sumRe += _samples[n] * _cos[index];
+				sumIm -= _samples[n] * _sin[index];
+				index += k;
+				if (index >= _windowSize) {
+					index -= _windowSize;
+				}
+			}
+			re[k] = sumRe;
+			im[k] = sumIm;
+		}
+	}
+
+	private void accumulate() {
+		for (int k = 0; k < _numBins; k++) {
+			double currentAmplitude = Math.hypot(_currentRe[k], _currentIm[k]) * _amplitudeScale;
+			double voltageAmplitude = Math.hypot(_voltageRe[k], _voltageIm[k]) * _amplitudeScale;
+			// DC and the bin at half the sample rate are not doubled
+			if (k == 0 || 2 * k == _windowSize) {
+				currentAmplitude /= 2;
+				voltageAmplitude /= 2;
+			}
+			_currentAmplitudes[k] += currentAmplitude;
+			_voltageAmplitudes[k] += voltageAmplitude;
+			// Voltage times the conjugate of the current: its angle is the phase of the voltage
+			// minus the phase of the current.
+			_crossRe[k] += _voltageRe[k] * _currentRe[k] + _voltageIm[k] * _currentIm[k];
+			_crossIm[k] += _voltageIm[k] * _currentRe[k] - _voltageRe[k] * _currentIm[k];
+		}
+		_numWindows++;
+	}
+
+	private void getSpectrum(double[] accumulated, double[] amplitudes) {
+		for (int k = 0; k < _numBins; k++) {
+			amplitudes[k] = _numWindows == 0 ? 0 : accumulated[k] / _numWindows;
+		}
+	}
+}
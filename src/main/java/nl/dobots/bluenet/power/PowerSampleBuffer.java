@@ -0,0 +1,375 @@
+package nl.dobots.bluenet.power;
+
+import nl.dobots.bluenet.ble.base.structs.PowerSamples;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Ring buffer of current and voltage samples, with metrics computed per window of samples.
+ *
+ * Power samples are appended as they come in, without allocating anything. Every window of
+ * windowSize samples, the rms current, rms voltage, real power, apparent power and power factor
+ * of that window are computed, and stored in a ring buffer of metrics. The DC offset of the
+ * samples is removed per window.
+ *
+ * Each append is an independent snapshot, so windows never span two appends: windows are
+ * counted from the first sample of each append, and the samples of a partial window at the end
+ * of an append are kept in the sample buffer, but not used for the metrics.
+ *
+ * Samples are in ADC units, set the scale of current and voltage to get the metrics in
+ * ampere, volt and watt.
+ *
+ * Thread safe, so samples can be appended from the notification thread, while the UI reads.
+ */
+public class PowerSampleBuffer {
+
+	public static final int DEFAULT_CAPACITY = 16384;
+	public static final int DEFAULT_WINDOW_SIZE = 75;
+	public static final int DEFAULT_WINDOW_CAPACITY = 4096;
+
+	// Channels
+	public static final int CURRENT = 0;
+	public static final int VOLTAGE = 1;
+
+	// Metrics
+	public static final int METRIC_CURRENT_RMS = 0;
+	public static final int METRIC_VOLTAGE_RMS = 1;
+	public static final int METRIC_REAL_POWER = 2;
+	public static final int METRIC_APPARENT_POWER = 3;
+	public static final int METRIC_POWER_FACTOR = 4;
+	public static final int NUM_METRICS = 5;
+
+	// Samples
+	private final int _capacity;
+	private final short[] _current;
+	private final short[] _voltage;
+	private final int[] _timestamps;
+	// Index where the next sample is written
+	private int _head = 0;
+	private int _size = 0;
+	private long _totalSamples = 0;
+
+	// Sums of the window that is being filled
+	private final int _windowSize;
+	private int _windowSamples = 0;
+	private long _sumCurrent = 0;
+	private long _sumVoltage = 0;
+	private long _sumCurrentSquared = 0;
+	private long _sumVoltageSquared = 0;
+	private long _sumProduct = 0;
+
+	// Metrics per window
+	private final int _windowCapacity;
+	private final float[][] _metrics;
+	private final int[] _windowTimestamps;
+	private int _windowHead = 0;
+	private int _numWindows = 0;
+	private long _totalWindows = 0;
+
+	private double _currentScale = 1;
+	private double _voltageScale = 1;
+
+	public PowerSampleBuffer() {
+		this(DEFAULT_CAPACITY, DEFAULT_WINDOW_SIZE, DEFAULT_WINDOW_CAPACITY);
+	}
+
+	/**
+	 * @param capacity number of samples to keep
+	 * @param windowSize number of samples per window of which the metrics are computed
+	 * @param windowCapacity number of windows of which the metrics are kept
+	 */
+	public PowerSampleBuffer(int capacity, int windowSize, int windowCapacity) {
+		_capacity = capacity;
+		_current = new short[capacity];
+		_voltage = new short[capacity];
+		_timestamps = new int[capacity];
+		_windowSize = windowSize;
+		_windowCapacity = windowCapacity;
+		_metrics = new float[NUM_METRICS][windowCapacity];
+		_windowTimestamps = new int[windowCapacity];
+	}
+
+	/**
+	 * Set the scale of the samples, the metrics of windows that are already done are not changed.
+	 * @param currentScale value of one current ADC step, for example in ampere
+	 * @param voltageScale value of one voltage ADC step, for example in volt
+	 */
+	public synchronized void setScale(double currentScale, double voltageScale) {
+		_currentScale = currentScale;
+		_voltageScale = voltageScale;
+	}
+
+	/**
+	 * Append the samples of a power samples notification. Current and voltage samples are paired
+	 * by index, the timestamps of the current samples are used. A partial window of the previous
+	 * append is dropped.
+	 */
+	public synchronized void append(PowerSamples samples) {
+		PowerSamples.Samples current = samples.getCurrentSamples();
+		PowerSamples.Samples voltage = samples.getVoltageSamples();
+		PowerSamples.Timestamps timestamps = samples.getCurrentTimestamps();
+		int count = Math.min(Math.min(current.getCount(), voltage.getCount()), PowerSamples.NUM_SAMPLES);
+		resetWindow();
+		for (int i = 0; i < count; i++) {
+			add((short) current.getSample(i), (short) voltage.getSample(i), timestamps.getTimestamp(i));
+		}
+	}
+
+	/**
+	 * Append samples, a partial window of the previous append is dropped.
+	 * @param current current samples
+	 * @param voltage voltage samples, paired by index with the current samples
+	 * @param timestamps timestamps of the samples
+	 * @param count number of samples to append
+	 */
+	public synchronized void append(short[] current, short[] voltage, int[] timestamps, int count) {
+		resetWindow();
+		for (int i = 0; i < count; i++) {
+			add(current[i], voltage[i], timestamps[i]);
+		}
+	}
+
+	/**
+	 * Remove all samples and metrics, the scale is kept.
+	 */
+	public synchronized void clear() {
+		_head = 0;
+		_size = 0;
+		_totalSamples = 0;
+		resetWindow();
+		_windowHead = 0;
+		_numWindows = 0;
+		_totalWindows = 0;
+	}
+
+	/**
+	 * @return number of samples in the buffer
+	 */
+	public synchronized int getNumSamples() {
+		return _size;
+	}
+
+	/**
+	 * @return number of samples appended since the start (or clear)
+	 */
+	public synchronized long getTotalSamples() {
+		return _totalSamples;
+	}
+
+	/**
+	 * @param index index of the sample, 0 is the oldest sample in the buffer
+	 * @return the current sample, in ADC units
+	 */
+	public synchronized int getCurrent(int index) {
+		return _current[getSampleIndex(index)];
+	}
+
+	/**
+	 * @param index index of the sample, 0 is the oldest sample in the buffer
+	 * @return the voltage sample, in ADC units
+	 */
+	public synchronized int getVoltage(int index) {
+		return _voltage[getSampleIndex(index)];
+	}
+
+	/**
+	 * @param index index of the sample, 0 is the oldest sample in the buffer
+	 * @return the timestamp of the sample
+	 */
+	public synchronized int getTimestamp(int index) {
+		return _timestamps[getSampleIndex(index)];
+	}
+
+	/**
+	 * Downsample the last samples of a channel for a chart: the min and max of each bucket of
+	 * samples is given, so that peaks are not lost.
+	 *
+	 * @param channel CURRENT or VOLTAGE
+	 * @param numSamples number of last samples to downsample
+	 * @param min array to put the min value of each bucket in, scaled. Its length is the number
+	 *            of buckets.
+	 * @param max array to put the max value of each bucket in, scaled, same length as min
+	 * @return number of buckets that were filled, less than the length of min when there are
+	 *         fewer samples than buckets
+	 */
+	public synchronized int downsample(int channel, int numSamples, float[] min, float[] max) {
+		short[] samples = channel == CURRENT ? _current : _voltage;
+		double scale = channel == CURRENT ? _currentScale : _voltageScale;
+		int count = Math.min(numSamples, _size);
+		int numBuckets = Math.min(min.length, count);
+		int start = _size - count;
+		for (int bucket = 0; bucket < numBuckets; bucket++) {
+			int from = start + (int) ((long) bucket * count / numBuckets);
+			int to = start + (int) ((long) (bucket + 1) * count / numBuckets);
+			int bucketMin = Integer.MAX_VALUE;
+			int bucketMax = Integer.MIN_VALUE;
+			for (int i = from; i < to; i++) {
+				int sample = samples[getSampleIndex(i)];
+				bucketMin = Math.min(bucketMin, sample);
+				bucketMax = Math.max(bucketMax, sample);
+			}
+			min[bucket] = (float) (bucketMin * scale);
+			max[bucket] = (float) (bucketMax * scale);
+		}
+		return numBuckets;
+	}
+
+	/**
+	 * @return number of windows of which the metrics are in the buffer
+	 */
+	public synchronized int getNumWindows() {
+		return _numWindows;
+	}
+
+	/**
+	 * @return number of windows completed since the start (or clear)
+	 */
+	public synchronized long getTotalWindows() {
+		return _totalWindows;
+	}
+
+	/**
+	 * @param metric the metric, see METRIC_*
+	 * @param window index of the window, 0 is the oldest window in the buffer
+	 * @return the metric of the window
+	 */
+	public synchronized float getMetric(int metric, int window) {
+		return _metrics[metric][getWindowIndex(window)];
+	}
+
+	/**
+	 * @param window index of the window, 0 is the oldest window in the buffer
+	 * @return the timestamp of the last sample of the window
+	 */
+	public synchronized int getWindowTimestamp(int window) {
+		return _windowTimestamps[getWindowIndex(window)];
+	}
+
+	/**
+	 * @param metric the metric, see METRIC_*
+	 * @return the metric of the last window, or 0 if there is none
+	 */
+	public synchronized float getLatestMetric(int metric) {
+		if (_numWindows == 0) {
+			return 0;
+		}
+		return getMetric(metric, _numWindows - 1);
+	}
+
+	/**
+	 * Get a metric over several windows. The rms values are combined as rms, and the power
+	 * factor is the average real power over the average apparent power.
+	 *
+	 * @param metric the metric, see METRIC_*
+	 * @param numWindows number of last windows to use
+	 * @return the metric, or 0 if there are no windows
+	 */
+	public synchronized float getAverageMetric(int metric, int numWindows) {
+		int count = Math.min(numWindows, _numWindows);
+		if (count == 0) {
+			return 0;
+		}
+		if (metric == METRIC_POWER_FACTOR) {
+			float apparentPower = getAverageMetric(METRIC_APPARENT_POWER, count);
+			return apparentPower > 0 ? getAverageMetric(METRIC_REAL_POWER, count) / apparentPower : 0;
+		}
+		boolean rms = metric == METRIC_CURRENT_RMS || metric == METRIC_VOLTAGE_RMS;
+		double sum = 0;
+		for (int i = _numWindows - count; i < _numWindows; i++) {
+			double value = _metrics[metric][getWindowIndex(i)];
+			sum += rms ? value * value : value;
+		}
+		return (float) (rms ? Math.sqrt(sum / count) : sum / count);
+	}
+
+	/**
+	 * Copy the metric of the last windows, for a chart.
+	 * @param metric the metric, see METRIC_*
+	 * @param values array to copy the values into, oldest first
+	 * @return number of values copied
+	 */
+	public synchronized int getMetrics(int metric, float[] values) {
+		int count = Math.min(values.length, _numWindows);
+		int start = _numWindows - count;
+		for (int i = 0; i < count; i++) {
+			values[i] = _metrics[metric][getWindowIndex(start + i)];
+		}
+		return count;
+	}
+
+	private void add(short current, short voltage, int timestamp) {
+		_current[_head] = current;
+		_voltage[_head] = voltage;
+		_timestamps[_head] = timestamp;
+		_head = (_head + 1) % _capacity;
+		if (_size < _capacity) {
+			_size++;
+		}
+		_totalSamples++;
+
+		_sumCurrent += current;
+		_sumVoltage += voltage;
+		_sumCurrentSquared += current * current;
+		_sumVoltageSquared += voltage * voltage;
+		_sumProduct += current * voltage;
+		_windowSamples++;
+		if (_windowSamples == _windowSize) {
+			completeWindow(timestamp);
+		}
+	}
+
+	private void completeWindow(int timestamp) {
+		double n = _windowSamples;
+		double meanCurrent = _sumCurrent / n;
+		double meanVoltage = _sumVoltage / n;
+		// Variance and covariance, which removes the DC offset.
+		double varCurrent = Math.max(0, _sumCurrentSquared / n - meanCurrent * meanCurrent);
+		double varVoltage = Math.max(0, _sumVoltageSquared / n - meanVoltage * meanVoltage);
+		double covariance = _sumProduct / n - meanCurrent * meanVoltage;
+
+		double currentRms = Math.sqrt(varCurrent) * _currentScale;
+		double voltageRms = Math.sqrt(varVoltage) * _voltageScale;
+		double realPower = covariance * _currentScale * _voltageScale;
+		double apparentPower = currentRms * voltageRms;
+
+		_metrics[METRIC_CURRENT_RMS][_windowHead] = (float) currentRms;
+		_metrics[METRIC_VOLTAGE_RMS][_windowHead] = (float) voltageRms;
+		_metrics[METRIC_REAL_POWER][_windowHead] = (float) realPower;
+		_metrics[METRIC_APPARENT_POWER][_windowHead] = (float) apparentPower;
+		_metrics[METRIC_POWER_FACTOR][_windowHead] = (float) (apparentPower > 0 ? realPower / apparentPower : 0);
+		_windowTimestamps[_windowHead] = timestamp;
+		_windowHead = (_windowHead + 1) % _windowCapacity;
+		if (_numWindows < _windowCapacity) {
+			_numWindows++;
+		}
+		_totalWindows++;
+		resetWindow();
+	}
+
+	private void resetWindow() {
+		_windowSamples = 0;
+		_sumCurrent = 0;
+		_sumVoltage = 0;
+		_sumCurrentSquared = 0;
+		_sumVoltageSquared = 0;
+		_sumProduct = 0;
+	}
+
+	private int getSampleIndex(int index) {
+		if (index < 0 || index >= _size) {
+			throw new IndexOutOfBoundsException("index=" + index + " size=" + _size);
+		}
+		return (_head - _size + index + _capacity) % _capacity;
+	}
+
+	private int getWindowIndex(int window) {
+		if (window < 0 || window >= _numWindows) {
+			throw new IndexOutOfBoundsException("window=" + window + " size=" + _numWindows);
+		}
+		return (_windowHead - _numWindows + window + _windowCapacity) % _windowCapacity;
+	}
+}
@@ -11,13 +11,16 @@ import java.util.ArrayList;
 import java.util.Locale;
 
 import nl.dobots.bluenet.ble.cfg.BleErrors;
+import nl.dobots.bluenet.ble.cfg.BluenetConfig;
 import nl.dobots.bluenet.ble.core.BleCore;
+import nl.dobots.bluenet.ble.core.BleScanProfile;
 import nl.dobots.bluenet.ble.core.callbacks.IStatusCallback;
 import nl.dobots.bluenet.ble.extended.BleDeviceFilter;
 import nl.dobots.bluenet.ble.extended.BleExt;
 import nl.dobots.bluenet.ble.extended.callbacks.EventListener;
 import nl.dobots.bluenet.ble.extended.callbacks.IBleDeviceCallback;
 import nl.dobots.bluenet.ble.extended.structs.BleDevice;
+import nl.dobots.bluenet.ibeacon.BleIbeaconFilter;
 import nl.dobots.bluenet.scanner.callbacks.ScanBeaconListener;
 import nl.dobots.bluenet.scanner.callbacks.ScanDeviceListener;
 import nl.dobots.bluenet.utils.BleLog;
@@ -42,6 +45,11 @@ public class BleIntervalScanner {
 	private static final int DEFAULT_SCAN_DURATION = 60000;
 	private static final int DEFAULT_SCAN_PAUSE = 100;
 
+	/**
+	 * Default report delay of the background scan profile.
+	 */
+	public static final int DEFAULT_BACKGROUND_REPORT_DELAY = 5000;
+
 	/**
 	 * Sometimes stopScan() didn't work properly, resulting in a failure at startScan().
 	 * We will retry to call stopScan for a couple of times with some delay
@@ -297,6 +305,53 @@ public class BleIntervalScanner {
 		return _ble.getBleBase().getScanMode();
 	}
 
+	/**
+	 * Set the scan profile, restarts the scan if currently scanning.
+	 * @see BleCore#setScanProfile(BleScanProfile)
+	 */
+	public void setScanProfile(@Nullable BleScanProfile profile) {
+		_ble.getBleBase().setScanProfile(profile);
+		if (isScanActive()) {
+			// Stop the scan, it will be started again with the new profile.
+			_intervalScanHandler.removeCallbacks(_stopScanRunnable);
+			_intervalScanHandler.post(_stopScanRunnable);
+		}
+	}
+
+	/**
+	 * @see BleCore#getScanProfile()
+	 */
+	public BleScanProfile getScanProfile() {
+		return _ble.getBleBase().getScanProfile();
+	}
+
+	/**
+	 * Use the foreground scan profile: low latency, every advertisement is reported right away.
+	 */
+	public void setForegroundScanProfile() {
+		setScanProfile(BleScanProfile.createForeground());
+	}
+
+	/**
+	 * Use the background scan profile: low power, only Crownstones and the iBeacons of the
+	 * iBeacon filters of the ranger are let through by the bluetooth controller, and results are
+	 * reported in batches.
+	 * Note: the iBeacon filters are copied, so set the profile again after changing them.
+	 *
+	 * @param reportDelay delay in ms after which results are reported in a batch, see
+	 *                    DEFAULT_BACKGROUND_REPORT_DELAY.
+	 */
+	public void setBackgroundScanProfile(int reportDelay) {
+		BleScanProfile profile = BleScanProfile.createBackground(reportDelay);
+		profile.addServiceDataFilter(BluenetConfig.CROWNSTONE_PLUG_SERVICE_DATA_UUID, new byte[0], null);
+		profile.addServiceDataFilter(BluenetConfig.CROWNSTONE_BUILTIN_SERVICE_DATA_UUID, new byte[0], null);
+		profile.addServiceDataFilter(BluenetConfig.GUIDESTONE_SERVICE_DATA_UUID, new byte[0], null);
+		for (BleIbeaconFilter filter : _ble.getIbeaconRanger().getIbeaconFilter()) {
+			profile.addManufacturerDataFilter(BluenetConfig.APPLE_COMPANY_ID, filter.getManufacturerData(), filter.getManufacturerDataMask());
+		}
+		setScanProfile(profile);
+	}
+
 
 
 	/**
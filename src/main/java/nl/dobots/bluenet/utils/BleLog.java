@@ -2,7 +2,8 @@ package nl.dobots.bluenet.utils;
 
 import android.util.Log;
 
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Copyright (c) 2015 Dominik Egger <dominik@dobots.nl>. All rights reserved.
@@ -25,22 +26,43 @@ public class BleLog {
 
 	public static final String TAG = "BleLog";
 
-	private int _logLevel = Log.VERBOSE;
-	private int _fileLogLevel = _logLevel;
+	private volatile int _logLevel = Log.VERBOSE;
+	private volatile int _fileLogLevel = _logLevel;
 
-	private HashMap<String, Integer> _logLevels = new HashMap<>();
-	private HashMap<String, Integer> _fileLogLevels = new HashMap<>();
+	/**
+	 * Log levels of a tag, kept as primitives so that checking a level doesn't need unboxing.
+	 */
+	private static class TagLogLevel {
+		final int logLevel;
+		final int fileLogLevel;
+
+		TagLogLevel(int logLevel, int fileLogLevel) {
+			this.logLevel = logLevel;
+			this.fileLogLevel = fileLogLevel;
+		}
+	}
+
+	private ConcurrentHashMap<String, TagLogLevel> _tagLogLevels = new ConcurrentHashMap<>();
+
+	// Lowest log level over the default and all tags, anything below can be skipped without
+	// looking up the tag.
+	private volatile int _minLogLevel = _logLevel;
+	private volatile int _minFileLogLevel = _fileLogLevel;
+
+	// Whether to add the line number of the caller to each log line. Getting the line number
+	// requires a stack trace, which is expensive.
+	private volatile boolean _lineNumbersEnabled = true;
 
 	private static BleLog _instance;
 
 	private static FileLogger _fileLogger = null;
 
 	public BleLog(int logLevel) {
-		_logLevel = logLevel;
+		setLogLevel(logLevel, _fileLogLevel);
 	}
 
 	public BleLog() {
-		_logLevel = Log.VERBOSE;
+		setLogLevel(Log.VERBOSE, _fileLogLevel);
 	}
 
 	public static BleLog getInstance() {
@@ -65,12 +87,25 @@ public class BleLog {
 	}
 
 	public void setLogLevelPerTag(String tag, int logLevel, int fileLogLevel) {
-		_logLevels.put(tag, logLevel);
-		_fileLogLevels.put(tag, fileLogLevel);
+		_tagLogLevels.put(tag, new TagLogLevel(logLevel, fileLogLevel));
+		updateMinLogLevels();
+	}
+
+	/**
+	 * Check if a log level was set for the tag, without boxing the level like getLogLevel(tag).
+	 * @param tag the tag
+	 * @return true if a log level was set for the tag
+	 */
+	public boolean hasLogLevel(String tag) {
+		return _tagLogLevels.containsKey(tag);
 	}
 
 	public Integer getLogLevel(String tag) {
-		return _logLevels.get(tag);
+		TagLogLevel tagLogLevel = _tagLogLevels.get(tag);
+		if (tagLogLevel == null) {
+			return null;
+		}
+		return tagLogLevel.logLevel;
 	}
 
 	/**
@@ -84,6 +119,7 @@ public class BleLog {
 	public void setLogLevel(int logLevel, int fileLogLevel) {
 		_logLevel = logLevel;
 		_fileLogLevel = fileLogLevel;
+		updateMinLogLevels();
 	}
 
 	public int getLogLevel() {
@@ -92,86 +128,222 @@ public class BleLog {
 
 	public int getFileLogLevel() { return _fileLogLevel; }
 
+	/**
+	 * Enable or disable adding the line number of the caller to each log line. Disabling it
+	 * avoids getting a stack trace for every line that is logged.
+	 * @param enabled true to add line numbers (default), false otherwise
+	 */
+	public void setLineNumbersEnabled(boolean enabled) {
+		_lineNumbersEnabled = enabled;
+	}
+
+	public boolean isLineNumbersEnabled() {
+		return _lineNumbersEnabled;
+	}
 
+	/**
+	 * Check if a message with given tag and level would be logged, either to logcat or to file.
+	 * Use this to avoid building log messages that won't be logged.
+	 * @param tag the tag of the message
+	 * @param level the level of the message, see android.util.Log
+	 * @return true if the message would be logged
+	 */
+	public boolean isLoggable(String tag, int level) {
+		return checkLogLevel(tag, level) || checkFileLogLevel(tag, level);
+	}
+
+	private void updateMinLogLevels() {
+		int minLogLevel = _logLevel;
+		int minFileLogLevel = _fileLogLevel;
+		Iterator<TagLogLevel> it = _tagLogLevels.values().iterator();
+		while (it.hasNext()) {
+			TagLogLevel tagLogLevel = it.next();
+			minLogLevel = Math.min(minLogLevel, tagLogLevel.logLevel);
+			minFileLogLevel = Math.min(minFileLogLevel, tagLogLevel.fileLogLevel);
+		}
+		_minLogLevel = minLogLevel;
+		_minFileLogLevel = minFileLogLevel;
+	}
 
 	private int getLineNumber() {
 		return Thread.currentThread().getStackTrace()[5].getLineNumber();
 	}
 
 	private boolean checkLogLevel(String tag, int checkLevel) {
-		Integer logLevel = _logLevels.get(tag);
-		if (logLevel == null) {
+		if (checkLevel < _minLogLevel) {
+			return false;
+		}
+		TagLogLevel tagLogLevel = _tagLogLevels.get(tag);
+		if (tagLogLevel == null) {
 			return _logLevel <= checkLevel;
 		} else {
 //			return Math.max(logLevel, _logLevel) <= checkLevel;
-			return logLevel <= checkLevel;
+			return tagLogLevel.logLevel <= checkLevel;
 		}
 	}
 
 	private boolean checkFileLogLevel(String tag, int checkLevel) {
-		Integer logLevel = _fileLogLevels.get(tag);
-		if (logLevel == null) {
+		if (_fileLogger == null || checkLevel < _minFileLogLevel || !_fileLogger.isEnabled()) {
+			return false;
+		}
+		TagLogLevel tagLogLevel = _tagLogLevels.get(tag);
+		if (tagLogLevel == null) {
 			return _fileLogLevel <= checkLevel;
 		} else {
-			return logLevel <= checkLevel;
+			return tagLogLevel.fileLogLevel <= checkLevel;
 		}
 	}
 
-	private void log(int level, String tag, String message) {
-		if (checkLogLevel(tag, level)) {
-			String line = String.format("[%d] %s", getLineNumber(), message);
+	/**
+	 * Log a message. The message is only formatted if it will be logged.
+	 * @param level the log level
+	 * @param tag the tag
+	 * @param fmt the message, or format string if args is not null
+	 * @param args the format arguments, or null if fmt is the message itself
+	 */
+	private void log(int level, String tag, String fmt, Object[] args) {
+		boolean logToLogcat = checkLogLevel(tag, level);
+		boolean logToFile = checkFileLogLevel(tag, level);
+		if (!logToLogcat && !logToFile) {
+			return;
+		}
+		String message = (args == null) ? fmt : String.format(fmt, args);
+		String line;
+		if (_lineNumbersEnabled) {
+			line = "[" + getLineNumber() + "] " + message;
+		}
+		else {
+			line = message;
+		}
+		if (logToLogcat) {
 			Log.println(level, tag, line);
 		}
-		if (_fileLogger != null && _fileLogger.isEnabled() && checkFileLogLevel(tag, level)) {
-			String line = String.format("[%d] %s", getLineNumber(), message);
+		if (logToFile) {
 			_fileLogger.logToFile(level, tag, line);
 		}
 	}
 
+	/**
+	 * Wrap a byte array so that it is only converted to a string when the message is
+	 * actually logged. Use as argument of the format functions, e.g.:
+	 *   LOGv(TAG, "data: %s, other: %s", BleLog.bytes(data), other);
+	 * The wrapper itself is always created, so for a single byte array argument use the
+	 * overloads that take a byte array instead, or check isLoggable() first.
+	 * @param bytes the byte array
+	 * @return object of which toString() gives BleUtils.bytesToString(bytes)
+	 */
+	public static Object bytes(final byte[] bytes) {
+		return new Object() {
+			@Override
+			public String toString() {
+				return BleUtils.bytesToString(bytes);
+			}
+		};
+	}
+
 	// Helper functions for logging
+	// The overloads with one or two arguments avoid creating an array for the arguments.
 	public void LOGi(String tag, String message) {
-		log(Log.INFO, tag, message);
+		log(Log.INFO, tag, message, null);
+	}
+
+	public void LOGi(String tag, String fmt, Object arg) {
+		if (isLoggable(tag, Log.INFO)) {
+			log(Log.INFO, tag, fmt, new Object[]{arg});
+		}
 	}
 
 	public void LOGi(String tag, String fmt, Object ... args) {
-		log(Log.INFO, tag, String.format(fmt, args));
+		log(Log.INFO, tag, fmt, args);
 	}
 
 	// Helper functions for logging
 	public void LOGd(String tag, String message) {
-		log(Log.DEBUG, tag, message);
+		log(Log.DEBUG, tag, message, null);
+	}
+
+	public void LOGd(String tag, String fmt, Object arg) {
+		if (isLoggable(tag, Log.DEBUG)) {
+			log(Log.DEBUG, tag, fmt, new Object[]{arg});
+		}
+	}
+
+	/**
+	 * Log a byte array, which is only converted to a string if the message will be logged.
+	 * @param fmt the format string, with one %s for the bytes
+	 */
+	public void LOGd(String tag, String fmt, byte[] bytes) {
+		if (isLoggable(tag, Log.DEBUG)) {
+			log(Log.DEBUG, tag, fmt, new Object[]{BleUtils.bytesToString(bytes)});
+		}
+	}
+
+	public void LOGd(String tag, String fmt, Object arg1, Object arg2) {
+		if (isLoggable(tag, Log.DEBUG)) {
+			log(Log.DEBUG, tag, fmt, new Object[]{arg1, arg2});
+		}
 	}
 
 	public void LOGd(String tag, String fmt, Object ... args) {
-		log(Log.DEBUG, tag, String.format(fmt, args));
+		log(Log.DEBUG, tag, fmt, args);
 	}
 
 	public void LOGe(String tag, String message) {
-		log(Log.ERROR, tag, message);
+		log(Log.ERROR, tag, message, null);
 	}
 
 	public void LOGe(String tag, String message, Throwable tr) {
-		log(Log.ERROR, tag, message + '\n' + Log.getStackTraceString(tr));
+		log(Log.ERROR, tag, message + '\n' + Log.getStackTraceString(tr), null);
+	}
+
+	public void LOGe(String tag, String fmt, byte[] bytes) {
+		if (isLoggable(tag, Log.ERROR)) {
+			log(Log.ERROR, tag, fmt, new Object[]{BleUtils.bytesToString(bytes)});
+		}
 	}
 
 	public void LOGe(String tag, String fmt, Object ... args) {
-		log(Log.ERROR, tag, String.format(fmt, args));
+		log(Log.ERROR, tag, fmt, args);
 	}
 
 	public void LOGv(String tag, String message) {
-		log(Log.VERBOSE, tag, message);
+		log(Log.VERBOSE, tag, message, null);
+	}
+
+	public void LOGv(String tag, String fmt, Object arg) {
+		if (isLoggable(tag, Log.VERBOSE)) {
+			log(Log.VERBOSE, tag, fmt, new Object[]{arg});
+		}
+	}
+
+	public void LOGv(String tag, String fmt, byte[] bytes) {
+		if (isLoggable(tag, Log.VERBOSE)) {
+			log(Log.VERBOSE, tag, fmt, new Object[]{BleUtils.bytesToString(bytes)});
+		}
+	}
+
+	public void LOGv(String tag, String fmt, Object arg1, Object arg2) {
+		if (isLoggable(tag, Log.VERBOSE)) {
+			log(Log.VERBOSE, tag, fmt, new Object[]{arg1, arg2});
+		}
 	}
 
 	public void LOGv(String tag, String fmt, Object ... args) {
-		log(Log.VERBOSE, tag, String.format(fmt, args));
+		log(Log.VERBOSE, tag, fmt, args);
 	}
 
 	public void LOGw(String tag, String message) {
-		log(Log.WARN, tag, message);
+		log(Log.WARN, tag, message, null);
+	}
+
+	public void LOGw(String tag, String fmt, byte[] bytes) {
+		if (isLoggable(tag, Log.WARN)) {
+			log(Log.WARN, tag, fmt, new Object[]{BleUtils.bytesToString(bytes)});
+		}
 	}
 
 	public void LOGw(String tag, String fmt, Object ... args) {
-		log(Log.WARN, tag, String.format(fmt, args));
+		log(Log.WARN, tag, fmt, args);
 	}
 
 	//***********************************************
@@ -185,6 +185,82 @@ public class BleUtils {
 		return result;
 	}
 
+	/**
+	 * Pack a MAC address string, like "00:43:A8:23:10:F0", into the lower 48 bits of a long.
+	 * Does not allocate, so it can be used for every scanned advertisement.
+	 *
+	 * @param address the MAC address
+	 * @return the packed address, or -1 if the address is not valid
+	 */
+	public static long addressToLong(String address) {
+		if (address == null || address.length() != STR_ADDRESS_LENGTH) {
+			return -1;
+		}
+		long result = 0;
+		for (int i = 0; i < STR_ADDRESS_LENGTH; i++) {
+			char c = address.charAt(i);
+			if (i % 3 == 2) {
+				if (c != ':') {
+					return -1;
+				}
+				continue;
+			}
+			int digit = Character.digit(c, 16);
+			if (digit < 0) {
+				return -1;
+			}
+			result = (result << 4) | digit;
+		}
+		return result;
+	}
+
+	/**
+	 * @param address MAC address packed with addressToLong()
+	 * @return the MAC address string, in upper case
+	 */
+	public static String longToAddress(long address) {
+		StringBuilder sb = new StringBuilder(STR_ADDRESS_LENGTH);
+		for (int i = ADDRESS_LENGTH - 1; i >= 0; i--) {
+			int b = (int) (address >>> (8 * i)) & 0xFF;
+			sb.append(Character.toUpperCase(Character.forDigit(b >> 4, 16)));
+			sb.append(Character.toUpperCase(Character.forDigit(b & 0x0F, 16)));
+			if (i > 0) {
+				sb.append(':');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Pack MAC address bytes, in the order of addressToBytes() (least significant byte first),
+	 * into the lower 48 bits of a long, the same as addressToLong() does with the string.
+	 *
+	 * @param bytes the MAC address bytes
+	 * @return the packed address, or -1 if the length is wrong
+	 */
+	public static long addressBytesToLong(byte[] bytes) {
+		if (bytes == null || bytes.length != ADDRESS_LENGTH) {
+			return -1;
+		}
+		long result = 0;
+		for (int i = ADDRESS_LENGTH - 1; i >= 0; i--) {
+			result = (result << 8) | (bytes[i] & 0xFF);
+		}
+		return result;
+	}
+
+	/**
+	 * @param address MAC address packed with addressToLong()
+	 * @return the MAC address bytes, in the order of addressToBytes() (least significant byte first)
+	 */
+	public static byte[] longToAddressBytes(long address) {
+		byte[] result = new byte[ADDRESS_LENGTH];
+		for (int i = 0; i < ADDRESS_LENGTH; i++) {
+			result[i] = (byte) (address >>> (8 * i));
+		}
+		return result;
+	}
+
 	public static String bytesToAddress(byte[] bytes) {
 		StringBuilder sb = new StringBuilder();
 		for (byte b : bytes) {
@@ -218,12 +294,13 @@ public class BleUtils {
 		if (bytes.length == 0) {
 			return "[]";
 		}
-		String str = "[" + toUint8(bytes[0]);
+		StringBuilder str = new StringBuilder(bytes.length * 5 + 2);
+		str.append('[').append(toUint8(bytes[0]));
 		for (int i=1; i<bytes.length; i++) {
-			str += ", " + toUint8(bytes[i]);
+			str.append(", ").append(toUint8(bytes[i]));
 		}
-		str += "]";
-		return str;
+		str.append(']');
+		return str.toString();
 	}
 
 	public static boolean isValidAddress(String address) {
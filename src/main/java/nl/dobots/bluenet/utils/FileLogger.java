@@ -11,16 +11,25 @@ import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
 
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
 import java.text.SimpleDateFormat;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.Locale;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import nl.dobots.bluenet.ble.core.callbacks.IStatusCallback;
 
@@ -57,6 +66,10 @@ import nl.dobots.bluenet.ble.core.callbacks.IStatusCallback;
  * a new file is created.
  * If the free disk space drops below MIN_FREE_SPACE, logging to file will be disabled
  *
+ * By default, lines are written on the thread that logs them. Call setAsync(true) to queue lines
+ * instead, they will then be written in batches by a separate writer thread. If the queue is
+ * full, lines are dropped, see getDroppedLines().
+ *
  * @author Dominik Egger <dominik@dobots.nl>
  */
 public class FileLogger {
@@ -70,6 +83,11 @@ public class FileLogger {
 	private static final int  MAX_LOG_DAYS = 3; // Only keep up logs of the last 3 days
 
 	private static final long CLEANUP_INTERVAL_MS = 60*1000; // Clean up every minute
+	private static final long FREE_SPACE_CHECK_INTERVAL_MS = 10*1000; // Check free space every 10 seconds
+
+	private static final int MAX_QUEUE_SIZE = 10000; // Max number of lines waiting to be written in async mode
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+	private static final long WRITER_IDLE_TIMEOUT_NS = 1000L * 1000 * 1000; // 1 s
 
 	// log level identifier used by android log in logcat, first two are not used
 	private static final char LOG_LEVELS_STR[] = { ' ', ' ', 'V', 'D', 'I', 'W', 'E' };
@@ -81,11 +99,49 @@ public class FileLogger {
 
 
 	private boolean _hasWritePermissions;
-	private DataOutputStream _logFileDos;
-	private Date _logFileDate;
+	private FileOutputStream _logFileStream;
+	private FileChannel _logFileChannel;
+	// Size of the current log file, kept up to date while writing so the file doesn't need to be checked
+	private long _logFileSize;
+	// Timestamp at which the current log file should be replaced by a file for the next day
+	private long _logFileDayEnd;
+	private long _lastFreeSpaceCheck;
 	private File _logFile;
 	private File _logDir;
-	private boolean _enabled = true;
+	private volatile boolean _enabled = true;
+
+	// Everything below is only used with the file lock held
+	private final Object _fileLock = new Object();
+	private final ByteBuffer _writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+	private final CharsetEncoder _encoder = Charset.forName("UTF-8").newEncoder();
+	private final StringBuilder _lineBuilder = new StringBuilder(256);
+	private CharBuffer _lineChars = CharBuffer.allocate(256);
+	// Last formatted timestamp, lines logged in the same millisecond reuse it
+	private long _lastTimestamp = -1;
+	private String _lastTimestampStr;
+
+	/**
+	 * Line waiting to be written in async mode.
+	 */
+	private static class LogLine {
+		final long timestamp;
+		final int level;
+		final String tag;
+		final String line;
+
+		LogLine(long timestamp, int level, String tag, String line) {
+			this.timestamp = timestamp;
+			this.level = level;
+			this.tag = tag;
+			this.line = line;
+		}
+	}
+
+	private volatile boolean _async = false;
+	private final ConcurrentLinkedQueue<LogLine> _queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger _queueSize = new AtomicInteger(0);
+	private final AtomicLong _droppedLines = new AtomicLong(0);
+	private volatile Thread _writerThread;
 
 	private Handler _handler;
 
@@ -142,86 +198,233 @@ public class FileLogger {
 		return _enabled;
 	}
 
+	/**
+	 * Set whether lines are written by a separate writer thread.
+	 * When async, logToFile() only queues the line, which keeps the logging thread from waiting
+	 * on the file system. Lines that are still queued when async is turned off will be written
+	 * by the writer thread.
+	 * @param async true to write lines on a separate thread
+	 */
+	public synchronized void setAsync(boolean async) {
+		_async = async;
+		if (async && _writerThread == null) {
+			_writerThread = new Thread(_writerRunnable, "FileLoggerWriter");
+			_writerThread.setDaemon(true);
+			_writerThread.start();
+		}
+	}
+
+	public boolean isAsync() {
+		return _async;
+	}
+
+	/**
+	 * @return number of lines that were dropped because the queue was full
+	 */
+	public long getDroppedLines() {
+		return _droppedLines.get();
+	}
 
 	public void logToFile(int level, String tag, String line) {
-		if (_enabled && checkFile()) {
-			try {
-				String log = String.format("%s %s/%s: %s\r\n",
-						_logTimestampFormat.format(new Date()),
-						LOG_LEVELS_STR[level],
-						tag,
-						line);
-				_logFileDos.write(log.getBytes());
-			} catch (IOException e) {
-				Log.e(TAG, "Failed to write to log file");
-				e.printStackTrace();
+		if (!_enabled) {
+			return;
+		}
+		long timestamp = System.currentTimeMillis();
+		if (_async) {
+			int queueSize = _queueSize.incrementAndGet();
+			if (queueSize > MAX_QUEUE_SIZE) {
+				_queueSize.decrementAndGet();
+				_droppedLines.incrementAndGet();
+				return;
+			}
+			_queue.offer(new LogLine(timestamp, level, tag, line));
+			// the writer thread only has to be woken up when the queue was empty
+			if (queueSize == 1) {
+				LockSupport.unpark(_writerThread);
+			}
+		}
+		else {
+			synchronized (_fileLock) {
+				if (writeLine(timestamp, level, tag, line)) {
+					flushBuffer();
+				}
+			}
+		}
+	}
+
+	private Runnable _writerRunnable = new Runnable() {
+		@Override
+		public void run() {
+			while (true) {
+				LogLine logLine = _queue.poll();
+				if (logLine == null) {
+					LockSupport.parkNanos(WRITER_IDLE_TIMEOUT_NS);
+					continue;
+				}
+				synchronized (_fileLock) {
+					// write all queued lines before flushing
+					boolean written = false;
+					while (logLine != null) {
+						_queueSize.decrementAndGet();
+						if (_enabled) {
+							written |= writeLine(logLine.timestamp, logLine.level, logLine.tag, logLine.line);
+						}
+						logLine = _queue.poll();
+					}
+					if (written) {
+						flushBuffer();
+					}
+				}
+			}
+		}
+	};
+
+	/**
+	 * Format the line and add it to the write buffer. Must be called with the file lock held.
+	 * @return true if the line was added to the write buffer
+	 */
+	private boolean writeLine(long timestamp, int level, String tag, String line) {
+		if (!checkFile(timestamp)) {
+			return false;
+		}
+		if (timestamp != _lastTimestamp) {
+			_lastTimestamp = timestamp;
+			_lastTimestampStr = _logTimestampFormat.format(new Date(timestamp));
+		}
+		StringBuilder builder = _lineBuilder;
+		builder.setLength(0);
+		builder.append(_lastTimestampStr).append(' ')
+				.append(LOG_LEVELS_STR[level]).append('/')
+				.append(tag).append(": ")
+				.append(line).append("\r\n");
+
+		if (_lineChars.capacity() < builder.length()) {
+			_lineChars = CharBuffer.allocate(builder.length());
+		}
+		_lineChars.clear();
+		_lineChars.append(builder);
+		_lineChars.flip();
+
+		_encoder.reset();
+		try {
+			while (true) {
+				int position = _writeBuffer.position();
+				CoderResult result = _encoder.encode(_lineChars, _writeBuffer, true);
+				if (result.isOverflow()) {
+					_logFileSize += _writeBuffer.position() - position;
+					if (!flushBuffer()) {
+						return false;
+					}
+					continue;
+				}
+				_encoder.flush(_writeBuffer);
+				_logFileSize += _writeBuffer.position() - position;
+				break;
 			}
+		} catch (IllegalStateException e) {
+			Log.e(TAG, "Failed to encode log line", e);
+			return false;
 		}
+		return true;
 	}
 
-	private boolean createLogFile() {
+	/**
+	 * Write the contents of the write buffer to the log file. Must be called with the file lock held.
+	 * @return true on success
+	 */
+	private boolean flushBuffer() {
+		_writeBuffer.flip();
+		try {
+			if (_logFileChannel != null) {
+				while (_writeBuffer.hasRemaining()) {
+					_logFileChannel.write(_writeBuffer);
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to write to log file");
+			e.printStackTrace();
+			return false;
+		} finally {
+			_writeBuffer.clear();
+		}
+	}
 
-		_logFileDate = new Date();
-		String fileName = _filenamePrefix + _fileNameTimestampFormat.format(_logFileDate) + _filenamePostfix;
+	private boolean createLogFile(long timestamp) {
+
+		Date logFileDate = new Date(timestamp);
+		String fileName = _filenamePrefix + _fileNameTimestampFormat.format(logFileDate) + _filenamePostfix;
 
 //		File path = new File(Environment.getExternalStorageDirectory().getPath() + "/" + _logDir);
 		_logFile = new File(_logDir, fileName);
 
 //		path.mkdirs();
 		try {
-			_logFileDos = new DataOutputStream(new FileOutputStream(_logFile));
+			_logFileStream = new FileOutputStream(_logFile);
+			_logFileChannel = _logFileStream.getChannel();
 		} catch (FileNotFoundException e) {
 			Log.e(TAG, "Error creating " + fileName, e);
 			return false;
 		}
+		_logFileSize = 0;
+
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(logFileDate);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		calendar.add(Calendar.DAY_OF_MONTH, 1);
+		_logFileDayEnd = calendar.getTimeInMillis();
 
 		return true;
 	}
 
-	private Semaphore _semaphore = new Semaphore(1);
-
-	private boolean checkFile() {
-
-		try {
-			_semaphore.acquire();
+	/**
+	 * Write any buffered data and close the log file. Must be called with the file lock held.
+	 */
+	private void closeLogFile() throws IOException {
+		if (_logFileStream != null) {
+			flushBuffer();
+			_logFileStream.close();
+			_logFileStream = null;
+			_logFileChannel = null;
+		}
+	}
 
-			boolean result = true;
+	/**
+	 * Make sure there is a log file to write to. Must be called with the file lock held.
+	 * @param timestamp the current time
+	 * @return true if a line can be written
+	 */
+	private boolean checkFile(long timestamp) {
 
-			if (_logFileDos == null) {
-				result = createLogFile();
-			} else {
-				try {
-					if (_logFileDate.getDay() != new Date().getDay()) {
-						_logFileDos.close();
-						result = createLogFile();
-					}
+		boolean result = true;
 
-					if (_logFile.length() > MAX_LOG_FILE_SIZE) {
-						_logFileDos.close();
-						result = createLogFile();
-					}
+		if (_logFileStream == null) {
+			result = createLogFile(timestamp);
+		} else {
+			try {
+				if (timestamp >= _logFileDayEnd || _logFileSize > MAX_LOG_FILE_SIZE) {
+					closeLogFile();
+					result = createLogFile(timestamp);
+				}
 
+				if (result && timestamp - _lastFreeSpaceCheck > FREE_SPACE_CHECK_INTERVAL_MS) {
+					_lastFreeSpaceCheck = timestamp;
 					if (_logFile.getFreeSpace() < MIN_FREE_SPACE) {
-						_logFileDos.close();
+						closeLogFile();
 						_enabled = false;
 						result = false;
 					}
-				} catch (IOException e) {
-					Log.e("BleLog", "Error closing logfile", e);
-					result = false;
 				}
+			} catch (IOException e) {
+				Log.e("BleLog", "Error closing logfile", e);
+				result = false;
 			}
-
-			_semaphore.release();
-
-			return result;
-
-		} catch (InterruptedException e) {
-			Log.e("BleLog", "Failed to acquire semaphore", e);
-
-			return false;
 		}
 
+		return result;
 	}
 
 	private Runnable _cleanupRunnable = new Runnable() {
@@ -281,13 +484,13 @@ public class FileLogger {
 	}
 
 	public boolean clearLogFiles() {
-		try {
-			if (_logFileDos != null) {
-				_logFileDos.close();
+		synchronized (_fileLock) {
+			try {
+				closeLogFile();
+			} catch (IOException e) {
+				Log.e("BleLog", "Error closing logfile", e);
+				return false;
 			}
-		} catch (IOException e) {
-			Log.e("BleLog", "Error closing logfile", e);
-			return false;
 		}
 
 		File[] files = getLogFiles();
@@ -0,0 +1,213 @@
+package nl.dobots.bluenet.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Map with primitive long keys, like packed MAC addresses (see BleUtils.addressToLong).
+ * Unlike a HashMap with Long keys, a lookup doesn't box the key, and there is no entry object
+ * per key.
+ *
+ * Uses open addressing with linear probing, same as LongHashSet. Null values are not allowed.
+ * Not thread safe.
+ *
+ * @param <V> type of the values
+ */
+public class LongHashMap<V> {
+
+	private static final int MIN_CAPACITY = 16;
+
+	// Key used to mark an empty slot, the value of this key is stored in _emptyKeyValue
+	private static final long EMPTY = 0;
+
+	private long[] _keys;
+	private Object[] _values;
+	private int _size = 0;
+	private V _emptyKeyValue = null;
+
+	public LongHashMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize number of entries that can be added without growing
+	 */
+	public LongHashMap(int expectedSize) {
+		int capacity = getCapacity(expectedSize);
+		_keys = new long[capacity];
+		_values = new Object[capacity];
+	}
+
+	/**
+	 * @return the value of the key, or null if the key is not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		if (key == EMPTY) {
+			return _emptyKeyValue;
+		}
+		return (V) _values[indexOf(_keys, key)];
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @param key the key
+	 * @param value the value, not null
+	 * @return the previous value of the key, or null if the key was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new NullPointerException("null values are not allowed");
+		}
+		if (key == EMPTY) {
+			V old = _emptyKeyValue;
+			_emptyKeyValue = value;
+			if (old == null) {
+				_size++;
+			}
+			return old;
+		}
+		int index = indexOf(_keys, key);
+		V old = (V) _values[index];
+		_keys[index] = key;
+		_values[index] = value;
+		if (old == null) {
+			_size++;
+			if (_size * 2 > _keys.length) {
+				grow();
+			}
+		}
+		return old;
+	}
+
+	/**
+	 * @return the removed value, or null if the key was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		if (key == EMPTY) {
+			V old = _emptyKeyValue;
+			if (old != null) {
+				_emptyKeyValue = null;
+				_size--;
+			}
+			return old;
+		}
+		int index = indexOf(_keys, key);
+		V old = (V) _values[index];
+		if (old == null) {
+			return null;
+		}
+		_keys[index] = EMPTY;
+		_values[index] = null;
+		_size--;
+		// Move back the entries after the removed one, so that they can still be found.
+		int mask = _keys.length - 1;
+		int next = (index + 1) & mask;
+		while (_keys[next] != EMPTY) {
+			long movedKey = _keys[next];
+			Object movedValue = _values[next];
+			_keys[next] = EMPTY;
+			_values[next] = null;
+			int newIndex = indexOf(_keys, movedKey);
+			_keys[newIndex] = movedKey;
+			_values[newIndex] = movedValue;
+			next = (next + 1) & mask;
+		}
+		return old;
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	public boolean isEmpty() {
+		return _size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(_keys, EMPTY);
+		Arrays.fill(_values, null);
+		_emptyKeyValue = null;
+		_size = 0;
+	}
+
+	/**
+	 * @return all keys in the map, in no particular order
+	 */
+	public long[] keys() {
+		long[] result = new long[_size];
+		int i = 0;
+		if (_emptyKeyValue != null) {
+			result[i++] = EMPTY;
+		}
+		for (int j = 0; j < _keys.length; j++) {
+			if (_values[j] != null) {
+				result[i++] = _keys[j];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return all values in the map, in no particular order
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		ArrayList<V> result = new ArrayList<>(_size);
+		if (_emptyKeyValue != null) {
+			result.add(_emptyKeyValue);
+		}
+		for (Object value : _values) {
+			if (value != null) {
+				result.add((V) value);
+			}
+		}
+		return result;
+	}
+
+	private void grow() {
+		long[] keys = new long[_keys.length * 2];
+		Object[] values = new Object[_values.length * 2];
+		for (int i = 0; i < _keys.length; i++) {
+			if (_values[i] != null) {
+				int index = indexOf(keys, _keys[i]);
+				keys[index] = _keys[i];
+				values[index] = _values[i];
+			}
+		}
+		_keys = keys;
+		_values = values;
+	}
+
+	/**
+	 * @return index of the key, or of the empty slot where it should be added
+	 */
+	private static int indexOf(long[] keys, long key) {
+		int mask = keys.length - 1;
+		int index = LongHashSet.hash(key) & mask;
+		while (keys[index] != EMPTY && keys[index] != key) {
+			index = (index + 1) & mask;
+		}
+		return index;
+	}
+
+	private static int getCapacity(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+}
@@ -0,0 +1,169 @@
+package nl.dobots.bluenet.utils;
+
+import java.util.Arrays;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Set of primitive longs, like packed MAC addresses (see BleUtils.addressToLong).
+ * Unlike a HashSet of Long, a lookup doesn't box the value, so it doesn't allocate.
+ *
+ * Uses open addressing with linear probing. Not thread safe.
+ */
+public class LongHashSet {
+
+	private static final int MIN_CAPACITY = 16;
+
+	// Value used to mark an empty slot, the value itself is tracked by _hasEmptyValue
+	private static final long EMPTY = 0;
+
+	private long[] _values;
+	private int _size = 0;
+	private boolean _hasEmptyValue = false;
+
+	public LongHashSet() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize number of values that can be added without growing
+	 */
+	public LongHashSet(int expectedSize) {
+		_values = new long[getCapacity(expectedSize)];
+	}
+
+	/**
+	 * @return true if the value was added, false if it was already in the set
+	 */
+	public boolean add(long value) {
+		if (value == EMPTY) {
+			if (_hasEmptyValue) {
+				return false;
+			}
+			_hasEmptyValue = true;
+			_size++;
+			return true;
+		}
+		int index = indexOf(_values, value);
+		if (_values[index] == value) {
+			return false;
+		}
+		_values[index] = value;
+		_size++;
+		if (_size * 2 > _values.length) {
+			grow();
+		}
+		return true;
+	}
+
+	public boolean contains(long value) {
+		if (value == EMPTY) {
+			return _hasEmptyValue;
+		}
+		return _values[indexOf(_values, value)] == value;
+	}
+
+	/**
+	 * @return true if the value was removed, false if it was not in the set
+	 */
+	public boolean remove(long value) {
+		if (value == EMPTY) {
+			if (!_hasEmptyValue) {
+				return false;
+			}
+			_hasEmptyValue = false;
+			_size--;
+			return true;
+		}
+		int index = indexOf(_values, value);
+		if (_values[index] != value) {
+			return false;
+		}
+		_values[index] = EMPTY;
+		_size--;
+		// Move back the values after the removed one, so that they can still be found.
+		int mask = _values.length - 1;
+		int next = (index + 1) & mask;
+		while (_values[next] != EMPTY) {
+			long moved = _values[next];
+			_values[next] = EMPTY;
+			_values[indexOf(_values, moved)] = moved;
+			next = (next + 1) & mask;
+		}
+		return true;
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	public boolean isEmpty() {
+		return _size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(_values, EMPTY);
+		_hasEmptyValue = false;
+		_size = 0;
+	}
+
+	/**
+	 * @return all values in the set, in no particular order
+	 */
+	public long[] toArray() {
+		long[] result = new long[_size];
+		int i = 0;
+		if (_hasEmptyValue) {
+			result[i++] = EMPTY;
+		}
+		for (long value : _values) {
+			if (value != EMPTY) {
+				result[i++] = value;
+			}
+		}
+		return result;
+	}
+
+	private void grow() {
+		long[] values = new long[_values.length * 2];
+		for (long value : _values) {
+			if (value != EMPTY) {
+				values[indexOf(values, value)] = value;
+			}
+		}
+		_values = values;
+	}
+
+	/**
+	 * @return index of the value, or of the empty slot where it should be added
+	 */
+	private static int indexOf(long[] values, long value) {
+		int mask = values.length - 1;
+		int index = hash(value) & mask;
+		while (values[index] != EMPTY && values[index] != value) {
+			index = (index + 1) & mask;
+		}
+		return index;
+	}
+
+	/**
+	 * Hash of a value, also used by LongHashMap.
+	 */
+	static int hash(long value) {
+		// Mix the bits, as MAC addresses often only differ in a few bits.
+		long h = value * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private static int getCapacity(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+}
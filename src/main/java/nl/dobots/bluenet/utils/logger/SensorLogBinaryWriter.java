@@ -0,0 +1,186 @@
+package nl.dobots.bluenet.utils.logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import nl.dobots.bluenet.utils.logger.SensorLogger.BleLogEvent;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Writes sensor log records in the binary format, which is a lot smaller and faster to read than
+ * the text format. Use the SensorLogReader to read the records, and SensorLogConverter to convert
+ * a binary log to the text format.
+ *
+ * Format:
+ *   header: MAGIC (4 bytes), VERSION (1 byte)
+ *   record: type (1 byte), timestamp (varint), payload
+ *
+ * The type is the ordinal of the BleLogEvent, with TYPE_TEXT_FLAG set if the payload is text.
+ * The timestamp is stored as zigzag encoded varint of the difference with the timestamp of the
+ * previous record. The payload depends on the type:
+ *   text:             length (varint), UTF-8 bytes
+ *   onScan:           address (6 bytes, as packed by BleUtils.addressToLong()), rssi (1 byte),
+ *                     calibrated rssi (1 byte)
+ *   stepCount:        count (float, 4 bytes)
+ *   orientation:      azimuth, pitch, roll (3 floats, 12 bytes)
+ *   other events:     no payload
+ * A record of type TYPE_RESET resets the previous timestamp to 0, it is written when appending to
+ * an existing log.
+ * Multi byte values are little endian.
+ */
+public class SensorLogBinaryWriter {
+
+	static final byte[] MAGIC = { 'B', 'S', 'L', 'G' };
+	// Version 2: address is little endian
+	static final int VERSION = 2;
+
+	static final int TYPE_TEXT_FLAG = 0x80;
+	static final int TYPE_RESET = 0x7F;
+
+	static final int ADDRESS_LENGTH = 6;
+	static final int NUM_ORIENTATION_VALUES = 3;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Max size of a record without text: type, timestamp, orientation values
+	private static final int MAX_FIXED_RECORD_SIZE = 1 + 10 + NUM_ORIENTATION_VALUES * 4;
+
+	private OutputStream _outputStream;
+	private long _lastTimestamp = 0;
+	private byte[] _buffer = new byte[64];
+	private int _bufferPos = 0;
+
+	/**
+	 * Create a writer. Writes the header if the stream is at the start of the file, else writes
+	 * a reset record so that the timestamps don't depend on the records already in the file.
+	 * @param outputStream the stream to write to, preferably buffered
+	 * @param append true if the stream appends to an existing, non empty log
+	 * @throws IOException when writing fails
+	 */
+	public SensorLogBinaryWriter(OutputStream outputStream, boolean append) throws IOException {
+		_outputStream = outputStream;
+		if (append) {
+			_outputStream.write(TYPE_RESET);
+		}
+		else {
+			_outputStream.write(MAGIC);
+			_outputStream.write(VERSION);
+		}
+	}
+
+	/**
+	 * Write a record with text payload, the text is the same as used in the text format.
+	 */
+	public void writeText(long timestamp, BleLogEvent event, String text) throws IOException {
+		byte[] textBytes = text.getBytes(UTF8);
+		ensureCapacity(MAX_FIXED_RECORD_SIZE + 5 + textBytes.length);
+		if (textBytes.length == 0 && !hasValuesPayload(event)) {
+			// no need for the text flag, these events have no payload
+			writeHeader(event.ordinal(), timestamp);
+		}
+		else {
+			writeHeader(event.ordinal() | TYPE_TEXT_FLAG, timestamp);
+			putVarint(textBytes.length);
+			System.arraycopy(textBytes, 0, _buffer, _bufferPos, textBytes.length);
+			_bufferPos += textBytes.length;
+		}
+		flushRecord();
+	}
+
+	/**
+	 * Write a scan record.
+	 * @param address the MAC address, packed with BleUtils.addressToLong()
+	 */
+	public void writeScan(long timestamp, long address, int rssi, int calibratedRssi) throws IOException {
+		writeHeader(BleLogEvent.onScan.ordinal(), timestamp);
+		for (int i = 0; i < ADDRESS_LENGTH; i++) {
+			_buffer[_bufferPos++] = (byte)(address >>> (8 * i));
+		}
+		_buffer[_bufferPos++] = (byte)rssi;
+		_buffer[_bufferPos++] = (byte)calibratedRssi;
+		flushRecord();
+	}
+
+	/**
+	 * Write a step count record.
+	 */
+	public void writeStepCount(long timestamp, float stepCount) throws IOException {
+		writeHeader(BleLogEvent.stepCount.ordinal(), timestamp);
+		putFloat(stepCount);
+		flushRecord();
+	}
+
+	/**
+	 * Write an orientation record.
+	 */
+	public void writeOrientation(long timestamp, float azimuth, float pitch, float roll) throws IOException {
+		writeHeader(BleLogEvent.orientation.ordinal(), timestamp);
+		putFloat(azimuth);
+		putFloat(pitch);
+		putFloat(roll);
+		flushRecord();
+	}
+
+	public void flush() throws IOException {
+		_outputStream.flush();
+	}
+
+	public void close() throws IOException {
+		_outputStream.close();
+	}
+
+	/**
+	 * @return true if records of given event without text flag have values as payload
+	 */
+	static boolean hasValuesPayload(BleLogEvent event) {
+		switch (event) {
+			case onScan:
+			case stepCount:
+			case orientation:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private void writeHeader(int type, long timestamp) {
+		_bufferPos = 0;
+		_buffer[_bufferPos++] = (byte)type;
+		long delta = timestamp - _lastTimestamp;
+		_lastTimestamp = timestamp;
+		putVarint((delta << 1) ^ (delta >> 63));
+	}
+
+	private void flushRecord() throws IOException {
+		_outputStream.write(_buffer, 0, _bufferPos);
+		_bufferPos = 0;
+	}
+
+	private void ensureCapacity(int size) {
+		if (_buffer.length < size) {
+			_buffer = new byte[size];
+		}
+	}
+
+	private void putVarint(long value) {
+		while ((value & ~0x7FL) != 0) {
+			_buffer[_bufferPos++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		_buffer[_bufferPos++] = (byte)value;
+	}
+
+	private void putFloat(float value) {
+		int bits = Float.floatToIntBits(value);
+		_buffer[_bufferPos++] = (byte)bits;
+		_buffer[_bufferPos++] = (byte)(bits >> 8);
+		_buffer[_bufferPos++] = (byte)(bits >> 16);
+		_buffer[_bufferPos++] = (byte)(bits >> 24);
+	}
+}
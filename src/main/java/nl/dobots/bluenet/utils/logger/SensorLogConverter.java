@@ -0,0 +1,72 @@
+package nl.dobots.bluenet.utils.logger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Converts a binary sensor log to the text format, so that the scripts in log-utils can be used.
+ *
+ * Usage: java nl.dobots.bluenet.utils.logger.SensorLogConverter <binary log> <text log>
+ */
+public class SensorLogConverter {
+
+	/**
+	 * Convert a binary sensor log to the text format.
+	 * @param reader reader of the binary log
+	 * @param writer writer for the text log
+	 * @return number of records converted
+	 * @throws IOException when writing fails, or the binary log is corrupt
+	 */
+	public static long toText(SensorLogReader reader, Writer writer) throws IOException {
+		long count = 0;
+		while (reader.hasNext()) {
+			writer.append(reader.next().toLine());
+			writer.append('\n');
+			count++;
+		}
+		if (reader.getError() != null) {
+			throw reader.getError();
+		}
+		return count;
+	}
+
+	/**
+	 * Convert a binary sensor log file to a text log file.
+	 * @param binaryFile the binary log
+	 * @param textFile the text log, will be overwritten
+	 * @return number of records converted
+	 * @throws IOException when reading or writing fails
+	 */
+	public static long toText(File binaryFile, File textFile) throws IOException {
+		SensorLogReader reader = new SensorLogReader(binaryFile);
+		try {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(textFile), SensorLogBinaryWriter.UTF8));
+			try {
+				return toText(reader, writer);
+			} finally {
+				writer.close();
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: SensorLogConverter <binary log> <text log>");
+			System.exit(1);
+		}
+		long count = toText(new File(args[0]), new File(args[1]));
+		System.out.println("Converted " + count + " records");
+	}
+}
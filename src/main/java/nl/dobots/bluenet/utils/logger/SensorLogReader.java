@@ -0,0 +1,241 @@
+package nl.dobots.bluenet.utils.logger;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import nl.dobots.bluenet.utils.logger.SensorLogger.BleLogEvent;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * Reads the records of a binary sensor log, see SensorLogBinaryWriter for the format.
+ *
+ * Use as iterator:
+ *   SensorLogReader reader = new SensorLogReader(file);
+ *   while (reader.hasNext()) {
+ *       SensorLogRecord record = reader.next();
+ *   }
+ *   reader.close();
+ *
+ * If the log is corrupt or truncated, hasNext() returns false and getError() returns the cause.
+ */
+public class SensorLogReader implements Iterator<SensorLogRecord>, Closeable {
+
+	private static final BleLogEvent[] EVENTS = BleLogEvent.values();
+
+	private InputStream _inputStream;
+	private long _lastTimestamp = 0;
+	private SensorLogRecord _next;
+	private IOException _error;
+	private byte[] _buffer = new byte[64];
+
+	public SensorLogReader(File file) throws IOException {
+		this(new BufferedInputStream(new FileInputStream(file)));
+	}
+
+	/**
+	 * Create a reader, reads and checks the header.
+	 * @param inputStream the stream to read from, preferably buffered
+	 * @throws IOException when the header can't be read, or is not a valid header
+	 */
+	public SensorLogReader(InputStream inputStream) throws IOException {
+		_inputStream = inputStream;
+		readFully(SensorLogBinaryWriter.MAGIC.length + 1);
+		for (int i = 0; i < SensorLogBinaryWriter.MAGIC.length; i++) {
+			if (_buffer[i] != SensorLogBinaryWriter.MAGIC[i]) {
+				throw new IOException("not a binary sensor log");
+			}
+		}
+		int version = _buffer[SensorLogBinaryWriter.MAGIC.length];
+		if (version != SensorLogBinaryWriter.VERSION) {
+			throw new IOException("unsupported version: " + version);
+		}
+	}
+
+	/**
+	 * Check whether the file starts with the header of a binary sensor log.
+	 * @param file the file to check
+	 * @return true if the file is a binary sensor log
+	 */
+	public static boolean isBinaryLog(File file) {
+		return getBinaryLogVersion(file) >= 0;
+	}
+
+	/**
+	 * Get the version of a binary sensor log.
+	 * @param file the file to check
+	 * @return the version, or -1 if the file is not a binary sensor log
+	 */
+	static int getBinaryLogVersion(File file) {
+		try {
+			FileInputStream inputStream = new FileInputStream(file);
+			try {
+				byte[] header = new byte[SensorLogBinaryWriter.MAGIC.length + 1];
+				int len = 0;
+				while (len < header.length) {
+					int read = inputStream.read(header, len, header.length - len);
+					if (read < 0) {
+						return -1;
+					}
+					len += read;
+				}
+				for (int i = 0; i < SensorLogBinaryWriter.MAGIC.length; i++) {
+					if (header[i] != SensorLogBinaryWriter.MAGIC[i]) {
+						return -1;
+					}
+				}
+				return header[SensorLogBinaryWriter.MAGIC.length];
+			} finally {
+				inputStream.close();
+			}
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (_next == null && _error == null) {
+			try {
+				_next = readRecord();
+			} catch (IOException e) {
+				_error = e;
+			}
+		}
+		return _next != null;
+	}
+
+	@Override
+	public SensorLogRecord next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		SensorLogRecord record = _next;
+		_next = null;
+		return record;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return the error that stopped the reading, or null if the end of the log was reached without error
+	 */
+	public IOException getError() {
+		return _error;
+	}
+
+	@Override
+	public void close() throws IOException {
+		_inputStream.close();
+	}
+
+	/**
+	 * @return the next record, or null at the end of the log
+	 */
+	private SensorLogRecord readRecord() throws IOException {
+		int type;
+		while (true) {
+			type = _inputStream.read();
+			if (type < 0) {
+				return null;
+			}
+			if (type != SensorLogBinaryWriter.TYPE_RESET) {
+				break;
+			}
+			_lastTimestamp = 0;
+		}
+		int eventOrdinal = type & ~SensorLogBinaryWriter.TYPE_TEXT_FLAG;
+		if (eventOrdinal >= EVENTS.length) {
+			throw new IOException("invalid record type: " + type);
+		}
+		BleLogEvent event = EVENTS[eventOrdinal];
+		long zigzag = readVarint();
+		long timestamp = _lastTimestamp + ((zigzag >>> 1) ^ -(zigzag & 1));
+		_lastTimestamp = timestamp;
+
+		if ((type & SensorLogBinaryWriter.TYPE_TEXT_FLAG) != 0) {
+			long length = readVarint();
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("invalid text length: " + length);
+			}
+			readFully((int)length);
+			return new SensorLogRecord(timestamp, event, new String(_buffer, 0, (int)length, SensorLogBinaryWriter.UTF8));
+		}
+
+		switch (event) {
+			case onScan: {
+				readFully(SensorLogBinaryWriter.ADDRESS_LENGTH + 2);
+				long address = 0;
+				for (int i = SensorLogBinaryWriter.ADDRESS_LENGTH - 1; i >= 0; i--) {
+					address = (address << 8) | (_buffer[i] & 0xFF);
+				}
+				return new SensorLogRecord(timestamp, address, _buffer[SensorLogBinaryWriter.ADDRESS_LENGTH], _buffer[SensorLogBinaryWriter.ADDRESS_LENGTH + 1]);
+			}
+			case stepCount: {
+				readFully(4);
+				return new SensorLogRecord(timestamp, event, new float[] { getFloat(0) });
+			}
+			case orientation: {
+				readFully(SensorLogBinaryWriter.NUM_ORIENTATION_VALUES * 4);
+				float[] values = new float[SensorLogBinaryWriter.NUM_ORIENTATION_VALUES];
+				for (int i = 0; i < values.length; i++) {
+					values[i] = getFloat(i * 4);
+				}
+				return new SensorLogRecord(timestamp, event, values);
+			}
+			default:
+				return new SensorLogRecord(timestamp, event, "");
+		}
+	}
+
+	private long readVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = _inputStream.read();
+			if (b < 0) {
+				throw new EOFException("truncated record");
+			}
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("invalid varint");
+	}
+
+	private void readFully(int length) throws IOException {
+		if (_buffer.length < length) {
+			_buffer = new byte[length];
+		}
+		int pos = 0;
+		while (pos < length) {
+			int read = _inputStream.read(_buffer, pos, length - pos);
+			if (read < 0) {
+				throw new EOFException("truncated record");
+			}
+			pos += read;
+		}
+	}
+
+	private float getFloat(int offset) {
+		int bits = (_buffer[offset] & 0xFF)
+				| (_buffer[offset + 1] & 0xFF) << 8
+				| (_buffer[offset + 2] & 0xFF) << 16
+				| (_buffer[offset + 3] & 0xFF) << 24;
+		return Float.intBitsToFloat(bits);
+	}
+}
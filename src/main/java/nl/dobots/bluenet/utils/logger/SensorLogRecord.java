@@ -0,0 +1,133 @@
+package nl.dobots.bluenet.utils.logger;
+
+import nl.dobots.bluenet.utils.BleUtils;
+import nl.dobots.bluenet.utils.logger.SensorLogger.BleLogEvent;
+
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+/**
+ * A single record of a sensor log, as read by the SensorLogReader.
+ *
+ * Records are either stored as text, or as fixed width values (see SensorLogBinaryWriter). Use
+ * getText() to get the text as it would have been written to a text log.
+ */
+public class SensorLogRecord {
+
+	private long _timestamp;
+	private BleLogEvent _event;
+	private String _text;
+
+	// Only set for scan records that are stored as values, packed with BleUtils.addressToLong()
+	private long _address = -1;
+	private int _rssi;
+	private int _calibratedRssi;
+
+	// Only set for records that are stored as float values
+	private float[] _values;
+
+	SensorLogRecord(long timestamp, BleLogEvent event, String text) {
+		_timestamp = timestamp;
+		_event = event;
+		_text = text;
+	}
+
+	SensorLogRecord(long timestamp, long address, int rssi, int calibratedRssi) {
+		_timestamp = timestamp;
+		_event = BleLogEvent.onScan;
+		_address = address;
+		_rssi = rssi;
+		_calibratedRssi = calibratedRssi;
+	}
+
+	SensorLogRecord(long timestamp, BleLogEvent event, float[] values) {
+		_timestamp = timestamp;
+		_event = event;
+		_values = values;
+	}
+
+	public long getTimestamp() {
+		return _timestamp;
+	}
+
+	public BleLogEvent getEvent() {
+		return _event;
+	}
+
+	/**
+	 * @return true if this is a scan record stored as values, so that getAddress(), getRssi()
+	 *         and getCalibratedRssi() can be used.
+	 */
+	public boolean hasScanValues() {
+		return _address != -1;
+	}
+
+	/**
+	 * @return the MAC address, or null if not available
+	 */
+	public String getAddress() {
+		return _address != -1 ? BleUtils.longToAddress(_address) : null;
+	}
+
+	/**
+	 * @return the MAC address packed in a long (see BleUtils.addressToLong()), or -1 if not available
+	 */
+	public long getPackedAddress() {
+		return _address;
+	}
+
+	public int getRssi() {
+		return _rssi;
+	}
+
+	public int getCalibratedRssi() {
+		return _calibratedRssi;
+	}
+
+	/**
+	 * @return the float values (step count or orientation), or null if not available
+	 */
+	public float[] getValues() {
+		return _values;
+	}
+
+	/**
+	 * Get the text of this record, the same as the text that is written after the event in a text log.
+	 * @return the text
+	 */
+	public String getText() {
+		if (_text == null) {
+			StringBuilder builder = new StringBuilder();
+			if (_address != -1) {
+				builder.append(BleUtils.longToAddress(_address)).append(' ')
+						.append(_rssi).append(' ')
+						.append(_calibratedRssi);
+			}
+			else if (_values != null) {
+				for (int i = 0; i < _values.length; i++) {
+					if (i > 0) {
+						builder.append(' ');
+					}
+					builder.append(_values[i]);
+				}
+			}
+			_text = builder.toString();
+		}
+		return _text;
+	}
+
+	/**
+	 * @return the line as it would have been written to a text log, without line end
+	 */
+	public String toLine() {
+		return _timestamp + " " + _event.toString() + " " + getText();
+	}
+
+	@Override
+	public String toString() {
+		return toLine();
+	}
+}
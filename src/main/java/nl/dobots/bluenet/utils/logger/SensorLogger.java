@@ -17,8 +17,10 @@ import android.os.SystemClock;
 import android.util.Log;
 import android.view.Display;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -28,6 +30,7 @@ import nl.dobots.bluenet.ble.extended.structs.BleDevice;
 import nl.dobots.bluenet.ble.extended.callbacks.EventListener;
 import nl.dobots.bluenet.scanner.callbacks.IntervalScanListener;
 import nl.dobots.bluenet.scanner.callbacks.ScanDeviceListener;
+import nl.dobots.bluenet.utils.BleUtils;
 
 /**
  * Copyright (c) 2015 Bart van Vliet <bart@dobots.nl>. All rights reserved.
@@ -62,6 +65,7 @@ public class SensorLogger extends BroadcastReceiver implements ScanDeviceListene
 	private float[] _gravity;
 	private float[] _geoMagnetic;
 
+	// The ordinal is used in the binary format, so only add new events at the end
 	public enum BleLogEvent {
 		start,
 		stop,
@@ -81,6 +85,8 @@ public class SensorLogger extends BroadcastReceiver implements ScanDeviceListene
 	}
 
 	private BufferedWriter _bufferedWriter = null;
+	private SensorLogBinaryWriter _binaryWriter = null;
+	private boolean _binary = false;
 	private boolean _initialized = false;
 	private File _path;
 	private File _logFile;
@@ -90,7 +96,20 @@ public class SensorLogger extends BroadcastReceiver implements ScanDeviceListene
 	// TODO: include date in filename, so that we get a file per day
 
 	synchronized public void init(Context context, String logFileName) {
+		init(context, logFileName, false);
+	}
+
+	/**
+	 * Initialize the logger.
+	 * @param context the context
+	 * @param logFileName name of the log file, is appended to if it exists. If the existing file
+	 *                    has another format, it is renamed, and a new file is started.
+	 * @param binary true to write the binary format (see SensorLogBinaryWriter) instead of text,
+	 *               use SensorLogConverter to convert it to text
+	 */
+	synchronized public void init(Context context, String logFileName, boolean binary) {
 		_context = context;
+		_binary = binary;
 		if (isExternalStorageWritable()) {
 			// TODO: use external storage if possible
 			Log.d(TAG, "Can write to external storage!");
@@ -114,6 +133,16 @@ public class SensorLogger extends BroadcastReceiver implements ScanDeviceListene
 		_logFile = new File(_path, logFileName);
 		Log.d(TAG, "Logging to file: " + _logFile.getAbsolutePath());
 
+		if (_logFile.length() > 0 && !hasFormat(_logFile, binary)) {
+			// Appending would make the file unreadable, so move the old log out of the way.
+			File oldLogFile = new File(_path, logFileName + "." + _logFile.lastModified());
+			Log.w(TAG, "Log file has another format, moving it to: " + oldLogFile.getAbsolutePath());
+			if (!_logFile.renameTo(oldLogFile)) {
+				Log.e(TAG, "Failed to move file: " + _logFile.getAbsolutePath());
+				return;
+			}
+		}
+
 		if (!_logFile.exists()) {
 			try {
 				Log.d(TAG, "Creating new file: " + _logFile.getAbsolutePath());
@@ -131,7 +160,13 @@ public class SensorLogger extends BroadcastReceiver implements ScanDeviceListene
 
 	synchronized private void init() {
 		try {
-			_bufferedWriter = new BufferedWriter(new FileWriter(_logFile, true));
+			if (_binary) {
+				boolean append = _logFile.length() > 0;
+				_binaryWriter = new SensorLogBinaryWriter(new BufferedOutputStream(new FileOutputStream(_logFile, true)), append);
+			}
+			else {
+				_bufferedWriter = new BufferedWriter(new FileWriter(_logFile, true));
+			}
 
 			_handlerThread = new HandlerThread("FileWriter");
 			_handlerThread.start();
@@ -162,7 +197,12 @@ public class SensorLogger extends BroadcastReceiver implements ScanDeviceListene
 				logLine(BleLogEvent.stop);
 
 				// Closes the stream, flushing it first.
-				_bufferedWriter.close();
+				if (_binary) {
+					_binaryWriter.close();
+				}
+				else {
+					_bufferedWriter.close();
+				}
 
 				_handlerThread.quit();
 
@@ -176,6 +216,17 @@ public class SensorLogger extends BroadcastReceiver implements ScanDeviceListene
 		}
 	}
 
+	/**
+	 * @return true if the file is a log of the given format, which can be appended to
+	 */
+	private static boolean hasFormat(File file, boolean binary) {
+		int version = SensorLogReader.getBinaryLogVersion(file);
+		if (binary) {
+			return version == SensorLogBinaryWriter.VERSION;
+		}
+		return version < 0;
+	}
+
 	/* Checks if external storage is available for read and write */
 	private boolean isExternalStorageWritable() {
 		if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
@@ -188,7 +239,12 @@ public class SensorLogger extends BroadcastReceiver implements ScanDeviceListene
 	synchronized public void flush() {
 		if (_initialized) {
 			try {
-				_bufferedWriter.flush();
+				if (_binary) {
+					_binaryWriter.flush();
+				}
+				else {
+					_bufferedWriter.flush();
+				}
 			} catch (IOException e) {
 				// TODO: handle exception
 				e.printStackTrace();
@@ -209,8 +265,76 @@ public class SensorLogger extends BroadcastReceiver implements ScanDeviceListene
 			return;
 		}
 		try {
-			_bufferedWriter.append(timeStampMs + " " + event.toString() + " " + text);
-			_bufferedWriter.append('\n');
+			if (_binary) {
+				_binaryWriter.writeText(timeStampMs, event, text);
+			}
+			else {
+				_bufferedWriter.append(timeStampMs + " " + event.toString() + " " + text);
+				_bufferedWriter.append('\n');
+			}
+		} catch (IOException e) {
+			// TODO: handle exception
+			e.printStackTrace();
+		}
+	}
+
+	synchronized public void logScan(long timeStampMs, String address, int rssi, int calibratedRssi) {
+		if (!_initialized) {
+			return;
+		}
+		long packedAddress;
+		if (!_binary || (packedAddress = BleUtils.addressToLong(address)) == -1) {
+			logLine(timeStampMs, BleLogEvent.onScan, address + " " + rssi + " " + calibratedRssi);
+			return;
+		}
+		logScan(timeStampMs, packedAddress, rssi, calibratedRssi);
+	}
+
+	/**
+	 * @param address MAC address packed with BleUtils.addressToLong()
+	 */
+	synchronized public void logScan(long timeStampMs, long address, int rssi, int calibratedRssi) {
+		if (!_initialized) {
+			return;
+		}
+		if (!_binary) {
+			logLine(timeStampMs, BleLogEvent.onScan, BleUtils.longToAddress(address) + " " + rssi + " " + calibratedRssi);
+			return;
+		}
+		try {
+			_binaryWriter.writeScan(timeStampMs, address, rssi, calibratedRssi);
+		} catch (IOException e) {
+			// TODO: handle exception
+			e.printStackTrace();
+		}
+	}
+
+	synchronized public void logStepCount(long timeStampMs, float stepCount) {
+		if (!_initialized) {
+			return;
+		}
+		if (!_binary) {
+			logLine(timeStampMs, BleLogEvent.stepCount, "" + stepCount);
+			return;
+		}
+		try {
+			_binaryWriter.writeStepCount(timeStampMs, stepCount);
+		} catch (IOException e) {
+			// TODO: handle exception
+			e.printStackTrace();
+		}
+	}
+
+	synchronized public void logOrientation(long timeStampMs, float azimuth, float pitch, float roll) {
+		if (!_initialized) {
+			return;
+		}
+		if (!_binary) {
+			logLine(timeStampMs, BleLogEvent.orientation, azimuth + " " + pitch + " " + roll);
+			return;
+		}
+		try {
+			_binaryWriter.writeOrientation(timeStampMs, azimuth, pitch, roll);
 		} catch (IOException e) {
 			// TODO: handle exception
 			e.printStackTrace();
@@ -293,7 +417,7 @@ public class SensorLogger extends BroadcastReceiver implements ScanDeviceListene
 			}
 			else if (event.sensor.getType() == Sensor.TYPE_STEP_COUNTER) {
 				long timeStampMs = System.currentTimeMillis() - ((SystemClock.elapsedRealtimeNanos() - event.timestamp) / 1000000L);
-				logLine(timeStampMs, BleLogEvent.stepCount, "" + event.values[0]);
+				logStepCount(timeStampMs, event.values[0]);
 			}
 			else {
 				return;
@@ -338,7 +462,7 @@ public class SensorLogger extends BroadcastReceiver implements ScanDeviceListene
 								average[j] += 2 * Math.PI;
 							}
 						}
-						logLine(BleLogEvent.orientation, average[0] + " " + average[1] + " " + average[2]);
+						logOrientation(System.currentTimeMillis(), average[0], average[1], average[2]);
 //						Log.d(TAG, "orientation average = " + average[0] + " " + average[1] + " " + average[2]);
 						_orientationHistory.clear();
 					}
@@ -360,9 +484,8 @@ public class SensorLogger extends BroadcastReceiver implements ScanDeviceListene
 
 	@Override
 	public void onDeviceScanned(BleDevice device) {
-		String text = device.getAddress() + " " + device.getRssi() + " " + device.getCalibratedRssi();
-		logLine(BleLogEvent.onScan, text);
-		Log.d(TAG, text);
+		logScan(System.currentTimeMillis(), device.getAddress(), device.getRssi(), device.getCalibratedRssi());
+		Log.d(TAG, device.getAddress() + " " + device.getRssi() + " " + device.getCalibratedRssi());
 	}
 
 	@Override
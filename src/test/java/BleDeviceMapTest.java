@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+
+import nl.dobots.bluenet.ble.extended.structs.BleDevice;
+import nl.dobots.bluenet.ble.extended.structs.BleDeviceList;
+import nl.dobots.bluenet.ble.extended.structs.BleDeviceMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BleDeviceMapTest {
+
+	private static String address(int i) {
+		return String.format("01:23:45:67:%02X:%02X", i / 256, i % 256);
+	}
+
+	private static BleDevice device(int i, int rssi) {
+		return new BleDevice(address(i), "", rssi, System.currentTimeMillis());
+	}
+
+	/**
+	 * Check that the sorted lists have exactly the devices of the map, in the right order.
+	 */
+	private static void assertSorted(BleDeviceMap map) {
+		BleDeviceList descending = map.getRssiSortedList();
+		BleDeviceList ascending = map.getRssiSortedList(BleDeviceMap.SortOrder.ascending);
+		assertEquals(map.size(), descending.size());
+		assertEquals(map.size(), ascending.size());
+		HashSet<String> addresses = new HashSet<>();
+		for (int i = 0; i < descending.size(); i++) {
+			BleDevice device = descending.get(i);
+			assertSame(map.get(device.getAddress()), device);
+			assertTrue(addresses.add(device.getAddress()));
+			if (i > 0) {
+				int previous = descending.get(i - 1).getAverageRssi();
+				int rssi = device.getAverageRssi();
+				// Descending, with an average rssi of 0 at the end
+				assertTrue(rssi == 0 || (previous != 0 && previous >= rssi));
+			}
+		}
+		int numValid = 0;
+		while (numValid < descending.size() && descending.get(numValid).getAverageRssi() != 0) {
+			numValid++;
+		}
+		for (int i = 0; i < numValid; i++) {
+			assertEquals(descending.get(numValid - 1 - i).getAverageRssi(), ascending.get(i).getAverageRssi());
+		}
+		for (int i = numValid; i < ascending.size(); i++) {
+			assertEquals(0, ascending.get(i).getAverageRssi());
+		}
+	}
+
+	@Test
+	public void testOrder() {
+		BleDeviceMap map = new BleDeviceMap();
+		map.updateDevice(device(1, -70));
+		map.updateDevice(device(2, -50));
+		map.updateDevice(device(3, -90));
+		BleDeviceList list = map.getRssiSortedList();
+		assertEquals(address(2), list.get(0).getAddress());
+		assertEquals(address(1), list.get(1).getAddress());
+		assertEquals(address(3), list.get(2).getAddress());
+		list = map.getRssiSortedList(BleDeviceMap.SortOrder.ascending);
+		assertEquals(address(3), list.get(0).getAddress());
+		assertEquals(address(2), list.get(2).getAddress());
+
+		// Replacing a device moves it
+		map.put(address(3), device(3, -40));
+		list = map.getRssiSortedList();
+		assertEquals(address(3), list.get(0).getAddress());
+		assertEquals(address(2), list.get(1).getAddress());
+		assertSorted(map);
+	}
+
+	@Test
+	public void testUpdates() {
+		BleDeviceMap map = new BleDeviceMap();
+		Random random = new Random(42);
+		for (int i = 0; i < 2000; i++) {
+			int id = random.nextInt(50);
+			int rssi = -30 - random.nextInt(70);
+			switch (random.nextInt(4)) {
+				case 0:
+					map.put(address(id), device(id, rssi));
+					break;
+				case 1:
+					map.remove(address(id));
+					break;
+				default:
+					// Adds the rssi to the history of the old device
+					map.updateDevice(device(id, rssi));
+					break;
+			}
+			if (i % 100 == 0) {
+				assertSorted(map);
+			}
+		}
+		assertSorted(map);
+	}
+
+	@Test
+	public void testRemove() {
+		BleDeviceMap map = new BleDeviceMap();
+		for (int i = 0; i < 10; i++) {
+			map.updateDevice(device(i, -40 - i));
+		}
+		map.remove(address(0));
+		map.remove(address(5), map.get(address(5)));
+		// Wrong device, not removed
+		map.remove(address(6), device(6, -46));
+		assertEquals(8, map.size());
+		assertEquals(address(1), map.getRssiSortedList().get(0).getAddress());
+		assertSorted(map);
+
+		// Removed via the key set, which bypasses the map
+		Iterator<String> it = map.keySet().iterator();
+		it.next();
+		it.remove();
+		assertEquals(7, map.size());
+		assertSorted(map);
+
+		map.clear();
+		assertEquals(0, map.getRssiSortedList().size());
+	}
+
+	@Test
+	public void testExpiry() {
+		BleDevice.setExpirationTime(60000);
+		try {
+			BleDeviceMap map = new BleDeviceMap();
+			long now = System.currentTimeMillis();
+			map.updateDevice(new BleDevice(address(1), "", -50, now - 10000));
+			map.updateDevice(new BleDevice(address(2), "", -60, now));
+			map.updateDevice(new BleDevice(address(3), "", -70, now - 10000));
+			map.updateDevice(new BleDevice(address(4), "", -80, now));
+			assertEquals(address(1), map.getRssiSortedList().get(0).getAddress());
+
+			// The sorted list only changes on refresh
+			BleDevice.setExpirationTime(5000);
+			assertEquals(address(1), map.getRssiSortedList().get(0).getAddress());
+			map.refresh();
+			BleDeviceList list = map.getRssiSortedList();
+			assertEquals(address(2), list.get(0).getAddress());
+			assertEquals(address(4), list.get(1).getAddress());
+			assertEquals(0, list.get(2).getAverageRssi());
+			assertEquals(0, list.get(3).getAverageRssi());
+			list = map.getRssiSortedList(BleDeviceMap.SortOrder.ascending);
+			assertEquals(address(4), list.get(0).getAddress());
+			assertEquals(address(2), list.get(1).getAddress());
+			assertSorted(map);
+
+			// A new advertisement makes an expired device valid again
+			map.updateDevice(device(3, -55));
+			assertEquals(address(3), map.getRssiSortedList().get(0).getAddress());
+			assertSorted(map);
+		}
+		finally {
+			BleDevice.setExpirationTime(1000);
+		}
+	}
+}
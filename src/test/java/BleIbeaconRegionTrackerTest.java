@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+import nl.dobots.bluenet.ibeacon.BleIbeaconFilter;
+import nl.dobots.bluenet.ibeacon.BleIbeaconFilterIndex;
+import nl.dobots.bluenet.ibeacon.BleIbeaconRegion;
+import nl.dobots.bluenet.ibeacon.BleIbeaconRegionTracker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BleIbeaconRegionTrackerTest {
+
+	private static final UUID UUID_1 = UUID.fromString("a643423e-e175-4af0-a2e4-31e32f729a8a");
+	private static final UUID UUID_2 = UUID.fromString("a643423e-e175-4af0-a2e4-31e32f729a8b");
+
+	@Test
+	public void testFilterIndex() {
+		BleIbeaconFilterIndex<String> index = new BleIbeaconFilterIndex<>();
+		index.put(new BleIbeaconFilter(UUID_1), "all");
+		index.put(new BleIbeaconFilter(UUID_1, 1, -1), "major");
+		index.put(new BleIbeaconFilter(UUID_1, -1, 2), "minor");
+		index.put(new BleIbeaconFilter(UUID_1, 1, 2), "exact");
+		index.put(new BleIbeaconFilter(UUID_2, 3, 4), "other");
+		assertEquals(5, index.size());
+
+		ArrayList<String> result = new ArrayList<>();
+		assertEquals(4, index.match(UUID_1.getMostSignificantBits(), UUID_1.getLeastSignificantBits(), 1, 2, result));
+		assertTrue(result.contains("exact") && result.contains("major") && result.contains("minor") && result.contains("all"));
+		assertEquals(2, index.match(UUID_1.getMostSignificantBits(), UUID_1.getLeastSignificantBits(), 1, 3, null));
+		assertEquals(1, index.match(UUID_1.getMostSignificantBits(), UUID_1.getLeastSignificantBits(), 0, 0, null));
+		assertEquals(0, index.match(UUID_2.getMostSignificantBits(), UUID_2.getLeastSignificantBits(), 3, 5, null));
+		assertEquals(1, index.match(UUID_2.getMostSignificantBits(), UUID_2.getLeastSignificantBits(), 3, 4, null));
+
+		assertEquals("other", index.remove(new BleIbeaconFilter(UUID_2, 3, 4)));
+		assertFalse(index.containsUuid(UUID_2.getMostSignificantBits(), UUID_2.getLeastSignificantBits()));
+		assertTrue(index.containsUuid(UUID_1.getMostSignificantBits(), UUID_1.getLeastSignificantBits()));
+		assertEquals(4, index.size());
+	}
+
+	@Test
+	public void testHysteresis() {
+		BleIbeaconRegionTracker tracker = new BleIbeaconRegionTracker(1000);
+		tracker.setEnterRssi(-80);
+		tracker.setRssiHysteresis(10);
+		tracker.setExitTimeout(5000);
+		BleIbeaconRegion region = new BleIbeaconRegion(new BleIbeaconFilter(UUID_1));
+		ArrayList<BleIbeaconRegion> exited = new ArrayList<>();
+
+		tracker.advance(0, exited);
+		assertFalse(tracker.update(region, -85, 0));
+		assertTrue(tracker.update(region, -75, 100));
+		assertTrue(region.isInside());
+
+		// Below the enter threshold, but above the exit threshold: stays inside.
+		for (long time = 1000; time <= 20000; time += 1000) {
+			assertFalse(tracker.update(region, -85, time));
+			tracker.advance(time, exited);
+		}
+		assertTrue(exited.isEmpty());
+		assertTrue(region.isInside());
+
+		// Below the exit threshold: exits after the timeout.
+		for (long time = 21000; time < 25000; time += 1000) {
+			tracker.update(region, -95, time);
+			tracker.advance(time, exited);
+		}
+		assertTrue(exited.isEmpty());
+		tracker.advance(26000, exited);
+		assertEquals(1, exited.size());
+		assertFalse(region.isInside());
+	}
+
+	@Test
+	public void testDwellTime() {
+		BleIbeaconRegionTracker tracker = new BleIbeaconRegionTracker(1000);
+		tracker.setEnterRssi(-80);
+		tracker.setEnterDwellTime(3000);
+		BleIbeaconRegion region = new BleIbeaconRegion(new BleIbeaconFilter(UUID_1));
+
+		assertFalse(tracker.update(region, -70, 0));
+		assertFalse(tracker.update(region, -70, 2000));
+		// Far below the threshold: the dwell time starts again.
+		assertFalse(tracker.update(region, -100, 2500));
+		assertFalse(tracker.update(region, -70, 3000));
+		assertFalse(tracker.update(region, -70, 5000));
+		assertTrue(tracker.update(region, -70, 6000));
+	}
+
+	@Test
+	public void testLongGap() {
+		BleIbeaconRegionTracker tracker = new BleIbeaconRegionTracker(1000);
+		tracker.setExitTimeout(100000);
+		BleIbeaconRegion region = new BleIbeaconRegion(new BleIbeaconFilter(UUID_1));
+		ArrayList<BleIbeaconRegion> exited = new ArrayList<>();
+
+		tracker.advance(0, exited);
+		assertTrue(tracker.update(region, -50, 0));
+		// Timeout is longer than the wheel, the region should not exit in the first round.
+		tracker.advance(70000, exited);
+		assertTrue(exited.isEmpty());
+		// Not advanced for a long time.
+		tracker.advance(1000000, exited);
+		assertEquals(1, exited.size());
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import nl.dobots.bluenet.ble.extended.BleDeviceFilter;
+import nl.dobots.bluenet.ble.extended.BleScanPreFilter;
+import nl.dobots.bluenet.ble.extended.structs.BleDevice;
+import nl.dobots.bluenet.ble.extended.structs.BleDeviceMap;
+import nl.dobots.bluenet.ibeacon.BleIbeaconFilter;
+import nl.dobots.bluenet.ibeacon.BleIbeaconRanging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BleScanPreFilterTest {
+
+	private static final String ADDRESS_1 = "01:23:45:67:89:AB";
+	private static final String ADDRESS_2 = "01:23:45:67:89:AC";
+	private static final UUID IBEACON_UUID = UUID.fromString("a643423e-e175-4af0-a2e4-31e32f729a8a");
+
+	private static byte[] crownstoneAdvertisement() {
+		return new byte[] {
+				2, 0x01, 0x06,                                  // flags
+				5, 0x16, 0x01, (byte) 0xC0, 5, 1,               // service data 0xC001
+				0                                               // end
+		};
+	}
+
+	private static byte[] dfuAdvertisement() {
+		byte[] bytes = new byte[2 + 16];
+		bytes[0] = 17;
+		bytes[1] = 0x07;
+		UUID uuid = UUID.fromString("00001530-1212-efde-1523-785feabcd123");
+		// Little endian
+		for (int i = 0; i < 8; i++) {
+			bytes[2 + i] = (byte) (uuid.getLeastSignificantBits() >> (8 * i));
+			bytes[10 + i] = (byte) (uuid.getMostSignificantBits() >> (8 * i));
+		}
+		return bytes;
+	}
+
+	private static byte[] iBeaconAdvertisement(UUID uuid) {
+		byte[] bytes = new byte[2 + 25];
+		bytes[0] = 26;
+		bytes[1] = (byte) 0xFF;
+		bytes[2] = 0x4C;
+		bytes[3] = 0x00;
+		bytes[4] = 0x02;
+		bytes[5] = 0x15;
+		// Big endian
+		for (int i = 0; i < 8; i++) {
+			bytes[6 + i] = (byte) (uuid.getMostSignificantBits() >> (8 * (7 - i)));
+			bytes[14 + i] = (byte) (uuid.getLeastSignificantBits() >> (8 * (7 - i)));
+		}
+		return bytes;
+	}
+
+	private static byte[] otherAdvertisement() {
+		return new byte[] {2, 0x01, 0x06, 3, 0x16, 0x0F, 0x18, 0};
+	}
+
+	@Test
+	public void testLists() {
+		BleScanPreFilter filter = new BleScanPreFilter(new BleDeviceMap(), new BleIbeaconRanging());
+		assertTrue(filter.accept(ADDRESS_1, otherAdvertisement()));
+
+		filter.setBlackList(new String[] {ADDRESS_1});
+		assertFalse(filter.accept(ADDRESS_1, crownstoneAdvertisement()));
+		assertTrue(filter.accept(ADDRESS_2, crownstoneAdvertisement()));
+
+		filter.setBlackList(null);
+		filter.setWhiteList(new String[] {ADDRESS_1});
+		assertTrue(filter.accept(ADDRESS_1, crownstoneAdvertisement()));
+		assertFalse(filter.accept(ADDRESS_2, crownstoneAdvertisement()));
+
+		assertEquals(3, filter.getNumAccepted());
+		assertEquals(2, filter.getNumDropped());
+		filter.resetStats();
+		assertEquals(0, filter.getNumAccepted());
+		assertEquals(0, filter.getNumDropped());
+	}
+
+	@Test
+	public void testDeviceFilter() {
+		BleDeviceMap devices = new BleDeviceMap();
+		BleIbeaconRanging ranger = new BleIbeaconRanging();
+		BleScanPreFilter filter = new BleScanPreFilter(devices, ranger);
+
+		filter.setDeviceFilter(BleDeviceFilter.anyStone);
+		assertTrue(filter.accept(ADDRESS_1, crownstoneAdvertisement()));
+		assertTrue(filter.accept(ADDRESS_1, dfuAdvertisement()));
+		assertFalse(filter.accept(ADDRESS_1, otherAdvertisement()));
+		assertFalse(filter.accept(ADDRESS_1, iBeaconAdvertisement(IBEACON_UUID)));
+
+		// Not every advertisement has the service data, so known devices are let through
+		devices.updateDevice(new BleDevice(ADDRESS_1, "", -60, 0));
+		assertTrue(filter.accept(ADDRESS_1, otherAdvertisement()));
+		assertFalse(filter.accept(ADDRESS_2, otherAdvertisement()));
+
+		// As are ranged iBeacons
+		ranger.addIbeaconFilter(new BleIbeaconFilter(IBEACON_UUID));
+		assertTrue(filter.accept(ADDRESS_2, iBeaconAdvertisement(IBEACON_UUID)));
+
+		filter.setDeviceFilter(BleDeviceFilter.iBeacon);
+		assertTrue(filter.accept(ADDRESS_2, iBeaconAdvertisement(UUID.randomUUID())));
+		assertFalse(filter.accept(ADDRESS_2, crownstoneAdvertisement()));
+
+		filter.setDeviceFilter(BleDeviceFilter.crownstonePlug);
+		assertTrue(filter.accept(ADDRESS_2, crownstoneAdvertisement()));
+		assertFalse(filter.accept(ADDRESS_2, dfuAdvertisement()));
+
+		// Malformed advertisements don't throw
+		assertFalse(filter.accept(ADDRESS_2, new byte[] {30, 0x16, 0x01}));
+	}
+
+	@Test
+	public void testConcurrentCounts() throws InterruptedException {
+		final BleScanPreFilter filter = new BleScanPreFilter(new BleDeviceMap(), new BleIbeaconRanging());
+		filter.setDeviceFilter(BleDeviceFilter.anyStone);
+		final int numThreads = 4;
+		final int numScans = 10000;
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < numScans; i++) {
+						filter.accept(ADDRESS_1, crownstoneAdvertisement());
+						filter.accept(ADDRESS_2, otherAdvertisement());
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(numThreads * numScans, filter.getNumAccepted());
+		assertEquals(numThreads * numScans, filter.getNumDropped());
+	}
+}
@@ -0,0 +1,283 @@
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import nl.dobots.bluenet.ble.base.structs.CrownstoneServiceData;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CrownstoneServiceDataTest {
+
+	private static final int SERVICE_UUID = 0xC001;
+	private static final int DEVICE_TYPE = 1;
+
+	// Keys and types of the JSON form, as when CrownstoneServiceData was a JSONObject
+	private static final HashMap<String, Class<?>> KEY_TYPES = new HashMap<>();
+	static {
+		for (String key : new String[] {"serviceUuid", "opCode", "serviceDataType", "deviceType",
+				"crownstoneId", "crownstoneExternalId", "externalRssi", "switchState", "pwm",
+				"temperature", "partialTimestamp"}) {
+			KEY_TYPES.put(key, Integer.class);
+		}
+		for (String key : new String[] {"reconstructedTimestamp", "errorTimestamp"}) {
+			KEY_TYPES.put(key, Long.class);
+		}
+		for (String key : new String[] {"powerFactor", "powerUsageReal", "powerUsageApparent", "accumulatedEnergy"}) {
+			KEY_TYPES.put(key, Double.class);
+		}
+		for (String key : new String[] {"errorBitMaskString", "changingBytes"}) {
+			KEY_TYPES.put(key, String.class);
+		}
+		for (String key : new String[] {"relayState", "flagNewData", "flagExternalData", "flagError",
+				"flagSetup", "flagDimmingAvailable", "flagDimmingAllowed", "flagSwitchLocked",
+				"flagTimeSet", "switchcraftEnabled", "errorOverCurrent", "errorOverCurrentDimmer",
+				"errorChipTemperature", "errorDimmerTemperature", "errorDimmerFailureOn",
+				"errorDimmerFailureOff", "validation"}) {
+			KEY_TYPES.put(key, Boolean.class);
+		}
+	}
+
+	private static final String[] HEADER_KEYS = {"serviceUuid", "opCode", "serviceDataType", "deviceType"};
+	private static final String[] FLAG_KEYS = {"flagDimmingAvailable", "flagDimmingAllowed",
+			"flagError", "flagSwitchLocked", "flagTimeSet", "switchcraftEnabled"};
+	private static final String[] ERROR_KEYS = {"errorBitMaskString", "errorOverCurrent",
+			"errorOverCurrentDimmer", "errorChipTemperature", "errorDimmerTemperature",
+			"errorDimmerFailureOn", "errorDimmerFailureOff"};
+	private static final String[] STATE_KEYS = {"crownstoneId", "crownstoneExternalId",
+			"switchState", "relayState", "pwm", "temperature", "powerFactor", "powerUsageReal",
+			"powerUsageApparent", "accumulatedEnergy", "partialTimestamp", "changingBytes", "validation"};
+	private static final String[] ERROR_PACKET_KEYS = {"crownstoneId", "crownstoneExternalId",
+			"errorTimestamp", "temperature", "partialTimestamp", "changingBytes"};
+	private static final String[] SETUP_KEYS = {"flagSetup", "crownstoneId", "crownstoneExternalId",
+			"temperature", "powerFactor", "powerUsageReal", "powerUsageApparent", "changingBytes"};
+
+	/**
+	 * Service data: the service uuid, opcode and for opcode 5 and 6 the device type, followed
+	 * by the payload.
+	 */
+	private static byte[] serviceData(int opCode, int... payload) {
+		boolean withDeviceType = opCode >= 5;
+		byte[] bytes = new byte[3 + (withDeviceType ? 1 : 0) + payload.length];
+		bytes[0] = (byte) SERVICE_UUID;
+		bytes[1] = (byte) (SERVICE_UUID >> 8);
+		bytes[2] = (byte) opCode;
+		int offset = 3;
+		if (withDeviceType) {
+			bytes[offset++] = DEVICE_TYPE;
+		}
+		for (int value : payload) {
+			bytes[offset++] = (byte) value;
+		}
+		return bytes;
+	}
+
+	/**
+	 * State payload: id 5, switch state 0x80 (relay on), flags, power factor 1, power 100 W,
+	 * energy 64 * 1000, validation.
+	 */
+	private static int[] statePayload(int type, int flags, int reserved) {
+		return new int[] {type, 5, 0x80, flags, 22, 127, 0x20, 0x03, 0xE8, 0x03, 0, 0, 0x34, 0x12, reserved, 0xFA};
+	}
+
+	/**
+	 * Error payload of the crownstone itself: id 5, over current error.
+	 */
+	private static int[] errorPayload(int flags) {
+		return new int[] {1, 5, 0x01, 0, 0, 0, 0x10, 0x20, 0x30, 0x40, flags, 60, 0x34, 0x12, 0x20, 0x03};
+	}
+
+	/**
+	 * Error payload of another crownstone: id 7, over current error, rssi -70.
+	 */
+	private static int[] externalErrorPayload(int flags) {
+		return new int[] {3, 7, 0x01, 0, 0, 0, 0x10, 0x20, 0x30, 0x40, flags, 60, 0x34, 0x12, -70, 0xFA};
+	}
+
+	/**
+	 * Setup payload: id 0, power 100 W, no errors.
+	 */
+	private static int[] setupPayload() {
+		return new int[] {0, 0, 0, 22, 127, 0x20, 0x03, 0, 0, 0, 0, 0x55, 0, 0, 0, 0};
+	}
+
+	private static Set<String> keys(String[]... keyLists) {
+		Set<String> keys = new HashSet<>();
+		for (String[] keyList : keyLists) {
+			keys.addAll(Arrays.asList(keyList));
+		}
+		return keys;
+	}
+
+	private static Set<String> keys(JSONObject json) {
+		Set<String> keys = new HashSet<>();
+		Iterator<String> it = json.keys();
+		while (it.hasNext()) {
+			keys.add(it.next());
+		}
+		return keys;
+	}
+
+	/**
+	 * Parse the service data, check the keys and types of its JSON form, and check that the
+	 * service data created from the JSON form gives the same JSON.
+	 */
+	private static CrownstoneServiceData assertRoundTrip(byte[] bytes, boolean encrypted, byte[] key, Set<String> expectedKeys) throws Exception {
+		CrownstoneServiceData serviceData = new CrownstoneServiceData();
+		assertTrue(serviceData.parseBytes(bytes, encrypted, key));
+		if (serviceData.getChangingBytes() == null) {
+			// Without android.util.Base64 there is no string of the changing bytes
+			expectedKeys.remove("changingBytes");
+		}
+
+		JSONObject json = serviceData.toJson();
+		assertEquals(expectedKeys, keys(json));
+		for (String jsonKey : expectedKeys) {
+			assertEquals(jsonKey, KEY_TYPES.get(jsonKey), json.get(jsonKey).getClass());
+		}
+
+		JSONObject copyJson = new CrownstoneServiceData(json).toJson();
+		assertEquals(expectedKeys, keys(copyJson));
+		for (String jsonKey : expectedKeys) {
+			assertEquals(jsonKey, json.get(jsonKey), copyJson.get(jsonKey));
+		}
+		return serviceData;
+	}
+
+	@Test
+	public void testV1() throws Exception {
+		byte[] bytes = serviceData(1, 5, 0, 0x80, 0, 22, 0xA0, 0x86, 0x01, 0, 0xE8, 0x03, 0, 0, 1, 2, 3);
+		CrownstoneServiceData serviceData = assertRoundTrip(bytes, false, null, keys(HEADER_KEYS,
+				new String[] {"crownstoneId", "crownstoneExternalId", "switchState", "relayState",
+						"pwm", "flagNewData", "flagExternalData", "flagError", "flagSetup",
+						"temperature", "powerUsageReal", "accumulatedEnergy", "changingBytes"}));
+		assertEquals(CrownstoneServiceData.TYPE_V1, serviceData.getType());
+		assertEquals(5, serviceData.getCrownstoneId());
+		assertEquals(100, serviceData.getPowerUsageReal(), 0.001);
+		assertEquals(1000, serviceData.getAccumulatedEnergy(), 0.001);
+		assertEquals(0x030201 | (3 << 24), serviceData.getChangingBytesValue());
+	}
+
+	@Test
+	public void testState() throws Exception {
+		for (int opCode : new int[] {3, 5}) {
+			CrownstoneServiceData serviceData = assertRoundTrip(serviceData(opCode, statePayload(0, 0x01, 0)), false, null,
+					keys(HEADER_KEYS, FLAG_KEYS, STATE_KEYS));
+			assertEquals(CrownstoneServiceData.TYPE_STATE, serviceData.getType());
+			assertEquals(5, serviceData.getCrownstoneId());
+			assertEquals(-1, serviceData.getCrownstoneExternalId());
+			assertTrue(serviceData.getRelayState());
+			assertTrue(serviceData.getFlagDimmingAvailable());
+			assertEquals(100, serviceData.getPowerUsageReal(), 0.001);
+			assertEquals(64000, serviceData.getAccumulatedEnergy(), 0.001);
+			assertEquals(0x1234, serviceData.getPartialTimestamp());
+			assertTrue(serviceData.getValidation());
+		}
+
+		// With the time set, the timestamp is reconstructed
+		assertRoundTrip(serviceData(5, statePayload(0, 0x10, 0)), false, null,
+				keys(HEADER_KEYS, FLAG_KEYS, STATE_KEYS, new String[] {"reconstructedTimestamp"}));
+	}
+
+	@Test
+	public void testExternalState() throws Exception {
+		CrownstoneServiceData serviceData = assertRoundTrip(serviceData(3, statePayload(2, 0, 0)), false, null,
+				keys(HEADER_KEYS, FLAG_KEYS, STATE_KEYS, new String[] {"flagExternalData"}));
+		assertEquals(CrownstoneServiceData.TYPE_EXT_STATE, serviceData.getType());
+		assertEquals(-1, serviceData.getCrownstoneId());
+		assertEquals(5, serviceData.getCrownstoneExternalId());
+
+		// Opcode 5 has the rssi of the other crownstone
+		serviceData = assertRoundTrip(serviceData(5, statePayload(2, 0, -70)), false, null,
+				keys(HEADER_KEYS, FLAG_KEYS, STATE_KEYS, new String[] {"flagExternalData", "externalRssi"}));
+		assertEquals(-70, serviceData.getExternalRssi());
+	}
+
+	@Test
+	public void testError() throws Exception {
+		for (int opCode : new int[] {3, 5}) {
+			CrownstoneServiceData serviceData = assertRoundTrip(serviceData(opCode, errorPayload(0x04)), false, null,
+					keys(HEADER_KEYS, FLAG_KEYS, ERROR_KEYS, ERROR_PACKET_KEYS, new String[] {"powerUsageReal"}));
+			assertEquals(CrownstoneServiceData.TYPE_ERROR, serviceData.getType());
+			assertEquals(5, serviceData.getCrownstoneId());
+			assertTrue(serviceData.getFlagError());
+			assertTrue(serviceData.getErrorOverCurrent());
+			assertFalse(serviceData.getErrorChipTemperature());
+			assertEquals("1", serviceData.getErrorBitMaskString());
+			assertEquals(100, serviceData.getPowerUsageReal(), 0.001);
+		}
+	}
+
+	@Test
+	public void testExternalError() throws Exception {
+		CrownstoneServiceData serviceData = assertRoundTrip(serviceData(3, externalErrorPayload(0x04)), false, null,
+				keys(HEADER_KEYS, FLAG_KEYS, ERROR_KEYS, ERROR_PACKET_KEYS, new String[] {"flagExternalData", "validation"}));
+		assertEquals(CrownstoneServiceData.TYPE_EXT_ERROR, serviceData.getType());
+		assertEquals(7, serviceData.getCrownstoneExternalId());
+		assertTrue(serviceData.getValidation());
+
+		serviceData = assertRoundTrip(serviceData(5, externalErrorPayload(0x04)), false, null,
+				keys(HEADER_KEYS, FLAG_KEYS, ERROR_KEYS, ERROR_PACKET_KEYS, new String[] {"flagExternalData", "validation", "externalRssi"}));
+		assertEquals(-70, serviceData.getExternalRssi());
+	}
+
+	@Test
+	public void testSetup() throws Exception {
+		for (int opCode : new int[] {4, 6}) {
+			CrownstoneServiceData serviceData = assertRoundTrip(serviceData(opCode, setupPayload()), false, null,
+					keys(HEADER_KEYS, FLAG_KEYS, ERROR_KEYS, SETUP_KEYS));
+			assertEquals(CrownstoneServiceData.TYPE_SETUP, serviceData.getType());
+			assertTrue(serviceData.isSetupMode());
+			assertEquals(100, serviceData.getPowerUsageReal(), 0.001);
+			assertEquals(0x55 | (1 << 24), serviceData.getChangingBytesValue());
+		}
+	}
+
+	@Test
+	public void testEncrypted() throws Exception {
+		byte[] key = new byte[16];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = (byte) i;
+		}
+		int[] payload = statePayload(0, 0x01, 0);
+		byte[] plain = new byte[payload.length];
+		for (int i = 0; i < payload.length; i++) {
+			plain[i] = (byte) payload[i];
+		}
+		Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+		byte[] encrypted = cipher.doFinal(plain);
+		int[] encryptedPayload = new int[encrypted.length];
+		for (int i = 0; i < encrypted.length; i++) {
+			encryptedPayload[i] = encrypted[i];
+		}
+
+		CrownstoneServiceData serviceData = assertRoundTrip(serviceData(5, encryptedPayload), true, key,
+				keys(HEADER_KEYS, FLAG_KEYS, STATE_KEYS));
+		assertEquals(5, serviceData.getCrownstoneId());
+		assertEquals(100, serviceData.getPowerUsageReal(), 0.001);
+	}
+
+	@Test
+	public void testInvalid() {
+		CrownstoneServiceData serviceData = new CrownstoneServiceData();
+		assertFalse(serviceData.parseBytes(new byte[] {1, 2}, false, null));
+		assertFalse(serviceData.parseBytes(serviceData(5, 0, 1, 2), false, null));
+		assertFalse(serviceData.parseBytes(serviceData(9, statePayload(0, 0, 0)), false, null));
+	}
+}
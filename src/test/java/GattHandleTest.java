@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import nl.dobots.bluenet.ble.core.GattHandle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class GattHandleTest {
+
+	// Registered handles are never removed, so every test uses its own UUIDs
+	private static String randomUuid() {
+		return UUID.randomUUID().toString();
+	}
+
+	@Test
+	public void testGet() {
+		String service = randomUuid();
+		String characteristic = randomUuid();
+		int count = GattHandle.getCount();
+		GattHandle handle = GattHandle.get(service, characteristic);
+		assertTrue(handle.isRegistered());
+		assertEquals(count, handle.getId());
+		assertEquals(count + 1, GattHandle.getCount());
+		assertSame(handle, GattHandle.getAll().get(handle.getId()));
+		assertEquals(UUID.fromString(service), handle.getServiceUuid());
+		assertEquals(UUID.fromString(characteristic), handle.getCharacteristicUuid());
+		assertEquals(service, handle.getServiceUuidString());
+		assertEquals(characteristic, handle.getCharacteristicUuidString());
+
+		// Same characteristic, same handle
+		assertSame(handle, GattHandle.get(service, characteristic));
+		assertEquals(count + 1, GattHandle.getCount());
+
+		// Other characteristic of the same service
+		GattHandle other = GattHandle.get(service, randomUuid());
+		assertEquals(count + 1, other.getId());
+		assertFalse(handle.equals(other));
+	}
+
+	@Test
+	public void testLookup() {
+		String service = randomUuid();
+		String characteristic = randomUuid();
+		int count = GattHandle.getCount();
+		GattHandle unregistered = GattHandle.lookup(service, characteristic);
+		assertFalse(unregistered.isRegistered());
+		assertEquals(GattHandle.NO_ID, unregistered.getId());
+		assertEquals(count, GattHandle.getCount());
+		assertNotSame(unregistered, GattHandle.lookup(service, characteristic));
+
+		GattHandle registered = GattHandle.get(service, characteristic);
+		assertSame(registered, GattHandle.lookup(service, characteristic));
+
+		// Unregistered handles can be used as key of a registered handle
+		assertTrue(unregistered.equals(registered));
+		assertTrue(registered.equals(unregistered));
+		assertEquals(registered.hashCode(), unregistered.hashCode());
+	}
+
+	@Test
+	public void testConcurrentGet() throws InterruptedException {
+		final String service = randomUuid();
+		final String[] characteristics = new String[50];
+		for (int i = 0; i < characteristics.length; i++) {
+			characteristics[i] = randomUuid();
+		}
+		final int numThreads = 4;
+		final AtomicReferenceArray<GattHandle> handles = new AtomicReferenceArray<>(numThreads * characteristics.length);
+		int count = GattHandle.getCount();
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			final int thread = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < characteristics.length; i++) {
+						handles.set(thread * characteristics.length + i, GattHandle.get(service, characteristics[i]));
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// Every thread got the same handle, and the ids index the list of all handles
+		assertEquals(count + characteristics.length, GattHandle.getCount());
+		List<GattHandle> all = GattHandle.getAll();
+		for (int i = 0; i < characteristics.length; i++) {
+			GattHandle handle = handles.get(i);
+			for (int t = 1; t < numThreads; t++) {
+				assertSame(handle, handles.get(t * characteristics.length + i));
+			}
+			assertSame(handle, all.get(handle.getId()));
+		}
+	}
+}
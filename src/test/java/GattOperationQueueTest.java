@@ -0,0 +1,129 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.dobots.bluenet.ble.cfg.BleErrors;
+import nl.dobots.bluenet.ble.core.GattOperationQueue;
+
+import static org.junit.Assert.assertTrue;
+
+public class GattOperationQueueTest {
+
+	/**
+	 * Scheduler of which the timeouts are fired manually.
+	 */
+	private static class FakeScheduler implements GattOperationQueue.Scheduler {
+		List<Runnable> runnables = new ArrayList<>();
+
+		@Override
+		public void postDelayed(Runnable runnable, long delayMs) {
+			runnables.add(runnable);
+		}
+
+		@Override
+		public void removeCallbacks(Runnable runnable) {
+			runnables.remove(runnable);
+		}
+
+		void fire() {
+			for (Runnable runnable : new ArrayList<>(runnables)) {
+				runnables.remove(runnable);
+				runnable.run();
+			}
+		}
+	}
+
+	/**
+	 * Fake GATT: keeps track of the started operations, which are completed manually.
+	 */
+	private static class FakeGatt {
+		List<String> started = new ArrayList<>();
+		List<String> results = new ArrayList<>();
+	}
+
+	private static class FakeOperation extends GattOperationQueue.Operation {
+		String name;
+		FakeGatt gatt;
+		int startError;
+
+		FakeOperation(FakeGatt gatt, String name, int priority, long timeout, int startError) {
+			super(priority, timeout);
+			this.gatt = gatt;
+			this.name = name;
+			this.startError = startError;
+		}
+
+		@Override
+		protected int execute() {
+			gatt.started.add(name);
+			return startError;
+		}
+
+		@Override
+		protected void onError(int error) {
+			gatt.results.add(name + ":" + error);
+		}
+	}
+
+	@Test
+	public void testOrder() {
+		FakeGatt gatt = new FakeGatt();
+		GattOperationQueue queue = new GattOperationQueue(new Object(), new FakeScheduler());
+		FakeOperation first = new FakeOperation(gatt, "first", GattOperationQueue.PRIORITY_LOW, 0, 0);
+		queue.add(first);
+		queue.add(new FakeOperation(gatt, "low", GattOperationQueue.PRIORITY_LOW, 0, 0));
+		queue.add(new FakeOperation(gatt, "normal1", GattOperationQueue.PRIORITY_NORMAL, 0, 0));
+		queue.add(new FakeOperation(gatt, "high", GattOperationQueue.PRIORITY_HIGH, 0, 0));
+		queue.add(new FakeOperation(gatt, "normal2", GattOperationQueue.PRIORITY_NORMAL, 0, 0));
+		assertTrue(gatt.started.size() == 1);
+		assertTrue(queue.size() == 4);
+
+		while (queue.getCurrent() != null) {
+			queue.done(queue.getCurrent());
+		}
+		assertTrue(gatt.started.toString().equals("[first, high, normal1, normal2, low]"));
+		assertTrue(gatt.results.isEmpty());
+	}
+
+	@Test
+	public void testStartError() {
+		FakeGatt gatt = new FakeGatt();
+		GattOperationQueue queue = new GattOperationQueue(new Object(), new FakeScheduler());
+		queue.add(new FakeOperation(gatt, "busy", GattOperationQueue.PRIORITY_NORMAL, 0, 0));
+		queue.add(new FakeOperation(gatt, "fail", GattOperationQueue.PRIORITY_NORMAL, 0, BleErrors.ERROR_WRITE_FAILED));
+		queue.add(new FakeOperation(gatt, "next", GattOperationQueue.PRIORITY_NORMAL, 0, 0));
+		queue.done(queue.getCurrent());
+		// fail is started and fails immediately, so next is started
+		assertTrue(gatt.started.toString().equals("[busy, fail, next]"));
+		assertTrue(gatt.results.toString().equals("[fail:" + BleErrors.ERROR_WRITE_FAILED + "]"));
+		assertTrue(queue.isBusy());
+	}
+
+	@Test
+	public void testTimeoutAndCancel() {
+		FakeGatt gatt = new FakeGatt();
+		FakeScheduler scheduler = new FakeScheduler();
+		GattOperationQueue queue = new GattOperationQueue(new Object(), scheduler);
+		FakeOperation slow = new FakeOperation(gatt, "slow", GattOperationQueue.PRIORITY_NORMAL, 1000, 0);
+		FakeOperation cancelled = new FakeOperation(gatt, "cancelled", GattOperationQueue.PRIORITY_NORMAL, 1000, 0);
+		FakeOperation last = new FakeOperation(gatt, "last", GattOperationQueue.PRIORITY_NORMAL, 1000, 0);
+		queue.add(slow);
+		queue.add(cancelled);
+		queue.add(last);
+		assertTrue(queue.cancel(cancelled));
+		assertTrue(!queue.cancel(cancelled));
+
+		scheduler.fire();
+		assertTrue(queue.getCurrent() == last);
+		// late result of the timed out operation is ignored
+		queue.done(slow);
+		assertTrue(queue.getCurrent() == last);
+		queue.done(last);
+		assertTrue(!queue.isBusy());
+		assertTrue(scheduler.runnables.isEmpty());
+
+		assertTrue(gatt.started.toString().equals("[slow, last]"));
+		assertTrue(gatt.results.toString().equals("[cancelled:" + BleErrors.ERROR_CANCELLED + ", slow:" + BleErrors.ERROR_TIMEOUT + "]"));
+	}
+}
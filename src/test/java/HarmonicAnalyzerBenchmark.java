@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+import nl.dobots.bluenet.power.HarmonicAnalyzer;
+
+/**
+ * Timing harness of the HarmonicAnalyzer, not a unit test: run its main() on the device or on
+ * the JVM of the build machine.
+ *
+ * For each window size, synthetic current and voltage waveforms (a phase shifted current with a
+ * third harmonic) are added window by window, after a warm up. The time per window is the time
+ * to handle one power samples notification, the time of classify() is measured separately.
+ */
+public class HarmonicAnalyzerBenchmark {
+
+	private static final int[] WINDOW_SIZES = {75, 150, 300};
+	private static final int PERIODS_PER_WINDOW = 3;
+	private static final int NUM_BUFFER_WINDOWS = 64;
+	private static final int WARM_UP_WINDOWS = 20000;
+	private static final int NUM_RUNS = 5;
+	private static final int WINDOWS_PER_RUN = 20000;
+
+	public static void main(String[] args) {
+		for (int windowSize : WINDOW_SIZES) {
+			run(windowSize);
+		}
+	}
+
+	private static void run(int windowSize) {
+		HarmonicAnalyzer analyzer = new HarmonicAnalyzer(windowSize);
+		int samplesPerPeriod = windowSize / PERIODS_PER_WINDOW;
+		short[] current = new short[windowSize * NUM_BUFFER_WINDOWS];
+		short[] voltage = new short[windowSize * NUM_BUFFER_WINDOWS];
+		for (int i = 0; i < current.length; i++) {
+			// Vary the phase a bit per window, so that no two windows are the same
+			double angle = 2 * Math.PI * i / samplesPerPeriod + 0.01 * (i / windowSize);
+			voltage[i] = (short) Math.round(2000 * Math.sin(angle));
+			current[i] = (short) Math.round(1000 * Math.sin(angle - Math.PI / 6) + 200 * Math.sin(3 * angle));
+		}
+
+		addWindows(analyzer, current, voltage, windowSize, WARM_UP_WINDOWS);
+		double bestAdd = Double.MAX_VALUE;
+		double bestClassify = Double.MAX_VALUE;
+		int load = 0;
+		for (int run = 0; run < NUM_RUNS; run++) {
+			analyzer.reset();
+			long start = System.nanoTime();
+			addWindows(analyzer, current, voltage, windowSize, WINDOWS_PER_RUN);
+			bestAdd = Math.min(bestAdd, (System.nanoTime() - start) / (double) WINDOWS_PER_RUN);
+
+			start = System.nanoTime();
+			for (int i = 0; i < WINDOWS_PER_RUN; i++) {
+				load += analyzer.classify();
+			}
+			bestClassify = Math.min(bestClassify, (System.nanoTime() - start) / (double) WINDOWS_PER_RUN);
+		}
+		// Print the load, so that classify() can't be optimized away
+		System.out.printf("window %3d: %7.2f us per window, classify %5.2f us (load %d)%n",
+				windowSize, bestAdd / 1000, bestClassify / 1000, load / (NUM_RUNS * WINDOWS_PER_RUN));
+	}
+
+	private static void addWindows(HarmonicAnalyzer analyzer, short[] current, short[] voltage, int windowSize, int numWindows) {
+		for (int i = 0; i < numWindows; i++) {
+			analyzer.add(current, voltage, (i % NUM_BUFFER_WINDOWS) * windowSize);
+		}
+	}
+}
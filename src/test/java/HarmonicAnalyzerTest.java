@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+import org.junit.Test;
+
+import nl.dobots.bluenet.power.HarmonicAnalyzer;
+
+import static org.junit.Assert.assertEquals;
+
+public class HarmonicAnalyzerTest {
+
+	private static final int WINDOW_SIZE = 75;
+	// 3 periods per window, so the fundamental is bin 3
+	private static final int SAMPLES_PER_PERIOD = 25;
+
+	/**
+	 * Add windows of a sine voltage and a current with a phase lag and a third harmonic.
+	 */
+	private static void addWindows(HarmonicAnalyzer analyzer, int numWindows, double phase, double thirdHarmonic) {
+		short[] current = new short[WINDOW_SIZE * numWindows];
+		short[] voltage = new short[WINDOW_SIZE * numWindows];
+		for (int i = 0; i < current.length; i++) {
+			double angle = 2 * Math.PI * i / SAMPLES_PER_PERIOD;
+			voltage[i] = (short) Math.round(20 + 2000 * Math.sin(angle));
+			current[i] = (short) Math.round(-10 + 1000 * Math.sin(angle - phase) + thirdHarmonic * Math.sin(3 * angle));
+		}
+		for (int w = 0; w < numWindows; w++) {
+			analyzer.add(current, voltage, w * WINDOW_SIZE);
+		}
+	}
+
+	@Test
+	public void testResistive() {
+		HarmonicAnalyzer analyzer = new HarmonicAnalyzer(WINDOW_SIZE);
+		addWindows(analyzer, 4, 0, 0);
+		assertEquals(4, analyzer.getNumWindows());
+		assertEquals(38, analyzer.getNumBins());
+		assertEquals(3, analyzer.getFundamentalBin());
+		assertEquals(1000, analyzer.getCurrentHarmonic(1), 1);
+		assertEquals(0, analyzer.getCurrentThd(), 0.01);
+		assertEquals(0, analyzer.getPhase(), 0.01);
+		assertEquals(HarmonicAnalyzer.LOAD_RESISTIVE, analyzer.classify());
+
+		double[] spectrum = new double[analyzer.getNumBins()];
+		analyzer.getVoltageSpectrum(spectrum);
+		assertEquals(20, spectrum[0], 1);
+		assertEquals(2000, spectrum[3], 1);
+	}
+
+	@Test
+	public void testInductiveAndCapacitive() {
+		HarmonicAnalyzer analyzer = new HarmonicAnalyzer(WINDOW_SIZE);
+		addWindows(analyzer, 2, Math.PI / 4, 0);
+		assertEquals(Math.PI / 4, analyzer.getPhase(), 0.01);
+		assertEquals(HarmonicAnalyzer.LOAD_INDUCTIVE, analyzer.classify());
+
+		analyzer.reset();
+		assertEquals(0, analyzer.getNumWindows());
+		assertEquals(HarmonicAnalyzer.LOAD_UNKNOWN, analyzer.classify());
+
+		addWindows(analyzer, 2, -Math.PI / 4, 0);
+		assertEquals(HarmonicAnalyzer.LOAD_CAPACITIVE, analyzer.classify());
+	}
+
+	@Test
+	public void testNonLinear() {
+		HarmonicAnalyzer analyzer = new HarmonicAnalyzer(WINDOW_SIZE);
+		addWindows(analyzer, 3, 0, 500);
+		assertEquals(500, analyzer.getCurrentHarmonic(3), 1);
+		assertEquals(0.5, analyzer.getCurrentThd(), 0.01);
+		assertEquals(HarmonicAnalyzer.LOAD_NON_LINEAR, analyzer.classify());
+
+		analyzer.setMinCurrentAmplitude(2000);
+		assertEquals(HarmonicAnalyzer.LOAD_UNKNOWN, analyzer.classify());
+	}
+}
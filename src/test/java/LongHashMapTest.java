@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import nl.dobots.bluenet.utils.BleUtils;
+import nl.dobots.bluenet.utils.LongHashMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LongHashMapTest {
+
+	@Test
+	public void testPutRemove() {
+		// Compare with a HashMap, with few keys, so that there are many collisions and removals.
+		Random random = new Random(42);
+		LongHashMap<Integer> map = new LongHashMap<>();
+		HashMap<Long, Integer> expected = new HashMap<>();
+		for (int i = 0; i < 10000; i++) {
+			long key = random.nextInt(200) - 20;
+			if (random.nextBoolean()) {
+				assertEquals(expected.put(key, i), map.put(key, i));
+			}
+			else {
+				assertEquals(expected.remove(key), map.remove(key));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for (long key = -20; key < 180; key++) {
+			assertEquals(expected.get(key), map.get(key));
+		}
+		assertEquals(expected.size(), map.keys().length);
+		assertEquals(expected.size(), map.values().size());
+		for (long key : map.keys()) {
+			assertEquals(expected.get(key), map.get(key));
+		}
+
+		map.clear();
+		assertEquals(0, map.size());
+		assertNull(map.get(0));
+		assertNull(map.get(1));
+	}
+
+	@Test
+	public void testAddressBytes() {
+		String address = "00:43:A8:23:10:F0";
+		long packed = BleUtils.addressToLong(address);
+		byte[] bytes = new byte[] {(byte) 0xF0, 0x10, 0x23, (byte) 0xA8, 0x43, 0x00};
+		assertArrayEquals(bytes, BleUtils.longToAddressBytes(packed));
+		assertEquals(packed, BleUtils.addressBytesToLong(bytes));
+		assertEquals(address, BleUtils.longToAddress(BleUtils.addressBytesToLong(bytes)));
+		assertEquals(-1, BleUtils.addressBytesToLong(new byte[5]));
+	}
+}
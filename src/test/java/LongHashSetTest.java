@@ -0,0 +1,58 @@
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import nl.dobots.bluenet.utils.BleUtils;
+import nl.dobots.bluenet.utils.LongHashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongHashSetTest {
+
+	@Test
+	public void testAddRemove() {
+		// Compare with a HashSet, with few values, so that there are many collisions and removals.
+		Random random = new Random(42);
+		LongHashSet set = new LongHashSet();
+		HashSet<Long> expected = new HashSet<>();
+		for (int i = 0; i < 10000; i++) {
+			long value = random.nextInt(200) - 20;
+			if (random.nextBoolean()) {
+				assertEquals(expected.add(value), set.add(value));
+			}
+			else {
+				assertEquals(expected.remove(value), set.remove(value));
+			}
+			assertEquals(expected.size(), set.size());
+		}
+		for (long value = -20; value < 180; value++) {
+			assertEquals(expected.contains(value), set.contains(value));
+		}
+		assertEquals(expected.size(), set.toArray().length);
+		set.clear();
+		assertTrue(set.isEmpty());
+		assertFalse(set.contains(0));
+	}
+
+	@Test
+	public void testAddress() {
+		String address = "00:43:A8:23:10:F0";
+		long packed = BleUtils.addressToLong(address);
+		assertEquals(0x0043A82310F0L, packed);
+		assertEquals(address, BleUtils.longToAddress(packed));
+		assertEquals(packed, BleUtils.addressToLong("00:43:a8:23:10:f0"));
+		assertEquals(-1, BleUtils.addressToLong("00:43:A8:23:10"));
+		assertEquals(-1, BleUtils.addressToLong("00-43-A8-23-10-F0"));
+		assertEquals(-1, BleUtils.addressToLong("00:43:A8:23:10:G0"));
+		assertEquals("FF:FF:FF:FF:FF:FF", BleUtils.longToAddress(BleUtils.addressToLong("ff:ff:ff:ff:ff:ff")));
+	}
+}
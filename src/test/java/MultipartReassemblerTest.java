@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import nl.dobots.bluenet.ble.base.MultipartReassembler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MultipartReassemblerTest {
+
+	private static class Handler implements MultipartReassembler.MessageHandler {
+		ArrayList<byte[]> messages = new ArrayList<>();
+		ArrayList<Integer> dropped = new ArrayList<>();
+
+		@Override
+		public void onMessage(ByteBuffer message) {
+			byte[] bytes = new byte[message.remaining()];
+			message.get(bytes);
+			messages.add(bytes);
+		}
+
+		@Override
+		public void onDropped(int reason) {
+			dropped.add(reason);
+		}
+	}
+
+	private static byte[] part(int nr, int... data) {
+		byte[] bytes = new byte[data.length + 1];
+		bytes[0] = (byte) nr;
+		for (int i = 0; i < data.length; i++) {
+			bytes[i + 1] = (byte) data[i];
+		}
+		return bytes;
+	}
+
+	@Test
+	public void testInterleavedStreams() {
+		MultipartReassembler reassembler = new MultipartReassembler(16, 2);
+		Handler handler1 = new Handler();
+		Handler handler2 = new Handler();
+		long stream1 = MultipartReassembler.getStreamKey(1, 1);
+		long stream2 = MultipartReassembler.getStreamKey(1, 2);
+
+		reassembler.onPart(stream1, part(0, 1, 2), 0, handler1);
+		reassembler.onPart(stream2, part(0, 9), 0, handler2);
+		reassembler.onPart(stream1, part(1, 3), 10, handler1);
+		reassembler.onPart(stream2, part(0xFF, 8), 20, handler2);
+		reassembler.onPart(stream1, part(0xFF, 4), 30, handler1);
+
+		assertEquals(1, handler1.messages.size());
+		assertArrayEquals(new byte[] {1, 2, 3, 4}, handler1.messages.get(0));
+		assertEquals(1, handler2.messages.size());
+		assertArrayEquals(new byte[] {9, 8}, handler2.messages.get(0));
+		assertEquals(0, reassembler.getNumPartial());
+		assertEquals(2, reassembler.getNumCompleted());
+		assertEquals(30, reassembler.getMaxLatency());
+		assertEquals(25.0, reassembler.getAverageLatency(), 0.001);
+	}
+
+	@Test
+	public void testMissingPart() {
+		MultipartReassembler reassembler = new MultipartReassembler(16, 2);
+		Handler handler = new Handler();
+		long stream = MultipartReassembler.getStreamKey(1, 1);
+
+		reassembler.onPart(stream, part(0, 1), 0, handler);
+		reassembler.onPart(stream, part(2, 3), 0, handler);
+		// The rest of the message should be ignored.
+		reassembler.onPart(stream, part(0xFF, 4), 0, handler);
+		assertEquals(0, handler.messages.size());
+		assertEquals(1, handler.dropped.size());
+		assertEquals(MultipartReassembler.DROPPED_MISSING_PART, (int) handler.dropped.get(0));
+
+		// Single part message.
+		reassembler.onPart(stream, part(0xFF, 5), 0, handler);
+		assertEquals(1, handler.messages.size());
+		assertArrayEquals(new byte[] {5}, handler.messages.get(0));
+
+		// Missed start.
+		reassembler.onPart(stream, part(1, 6), 0, handler);
+		reassembler.onPart(stream, part(0xFF, 7), 0, handler);
+		assertEquals(1, handler.messages.size());
+		assertEquals(MultipartReassembler.DROPPED_NO_START, (int) handler.dropped.get(1));
+		assertEquals(2, reassembler.getNumDropped());
+		assertEquals(1, reassembler.getNumCompleted());
+	}
+
+	@Test
+	public void testTimeout() {
+		MultipartReassembler reassembler = new MultipartReassembler(16, 2);
+		reassembler.setTimeout(100);
+		Handler handler = new Handler();
+		long stream1 = MultipartReassembler.getStreamKey(1, 1);
+		long stream2 = MultipartReassembler.getStreamKey(2, 1);
+
+		reassembler.onPart(stream1, part(0, 1), 1000, handler);
+		reassembler.onPart(stream2, part(0, 1), 1000, handler);
+		reassembler.onPart(stream1, part(1, 2), 1050, handler);
+		reassembler.onPart(stream1, part(0xFF, 3), 1200, handler);
+		assertEquals(0, handler.messages.size());
+		assertEquals(MultipartReassembler.DROPPED_TIMEOUT, (int) handler.dropped.get(0));
+		// The stale message of stream 2 is evicted as well.
+		reassembler.evictStale(1400);
+		assertEquals(0, reassembler.getNumPartial());
+		assertEquals(2, reassembler.getNumTimedOut());
+
+		// Restart, and too large.
+		reassembler.onPart(stream1, part(0, 1), 2000, handler);
+		reassembler.onPart(stream1, part(0, 1, 2, 3, 4, 5, 6, 7, 8), 2000, handler);
+		reassembler.onPart(stream1, part(1, 9, 10, 11, 12, 13, 14, 15, 16, 17), 2000, handler);
+		reassembler.onPart(stream1, part(0xFF, 1), 2000, handler);
+		assertEquals(0, handler.messages.size());
+		assertEquals(MultipartReassembler.DROPPED_RESTARTED, (int) handler.dropped.get(1));
+		assertEquals(MultipartReassembler.DROPPED_TOO_LARGE, (int) handler.dropped.get(2));
+
+		reassembler.removeDevice(1);
+		reassembler.onPart(stream1, part(0xFF, 1), 2000, handler);
+		assertEquals(1, handler.messages.size());
+	}
+
+	@Test
+	public void testTimeoutAndDrop() {
+		MultipartReassembler reassembler = new MultipartReassembler(4, 2);
+		reassembler.setTimeout(100);
+		Handler handler = new Handler();
+		long stream = MultipartReassembler.getStreamKey(1, 1);
+
+		// A part that times out the previous message, and is dropped itself: both are reported.
+		reassembler.onPart(stream, part(0, 1), 1000, handler);
+		reassembler.onPart(stream, part(0, 1, 2, 3, 4, 5), 1200, handler);
+		assertEquals(2, handler.dropped.size());
+		assertEquals(MultipartReassembler.DROPPED_TIMEOUT, (int) handler.dropped.get(0));
+		assertEquals(MultipartReassembler.DROPPED_TOO_LARGE, (int) handler.dropped.get(1));
+		assertEquals(2, reassembler.getNumDropped());
+		assertEquals(1, reassembler.getNumTimedOut());
+
+		// A timed out message followed by a new message is only one drop.
+		reassembler.onPart(stream, part(0, 1), 2000, handler);
+		reassembler.onPart(stream, part(0, 2), 2200, handler);
+		reassembler.onPart(stream, part(0xFF, 3), 2200, handler);
+		assertEquals(3, handler.dropped.size());
+		assertEquals(MultipartReassembler.DROPPED_TIMEOUT, (int) handler.dropped.get(2));
+		assertEquals(1, handler.messages.size());
+		assertArrayEquals(new byte[] {2, 3}, handler.messages.get(0));
+		assertEquals(3, reassembler.getNumDropped());
+	}
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.dobots.bluenet.ble.base.NotificationHub;
+import nl.dobots.bluenet.ble.base.callbacks.IIntegerCallback;
+import nl.dobots.bluenet.ble.base.callbacks.IMessageCallback;
+import nl.dobots.bluenet.ble.cfg.BleErrors;
+import nl.dobots.bluenet.ble.cfg.BluenetHandles;
+import nl.dobots.bluenet.ble.core.GattHandle;
+import nl.dobots.bluenet.ble.core.GattOperationQueue;
+import nl.dobots.bluenet.ble.core.callbacks.INotificationCallback;
+import nl.dobots.bluenet.ble.core.callbacks.IStatusCallback;
+import nl.dobots.bluenet.utils.BleLog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationHubTest {
+
+	private static final String ADDRESS = "01:23:45:67:89:AB";
+	private static final GattHandle HANDLE = BluenetHandles.STATE_READ;
+
+	/**
+	 * Scheduler of which the delayed unsubscribes are fired manually.
+	 */
+	private static class FakeScheduler implements GattOperationQueue.Scheduler {
+		List<Runnable> runnables = new ArrayList<>();
+
+		@Override
+		public void postDelayed(Runnable runnable, long delayMs) {
+			runnables.add(runnable);
+		}
+
+		@Override
+		public void removeCallbacks(Runnable runnable) {
+			runnables.remove(runnable);
+		}
+
+		void fire() {
+			for (Runnable runnable : new ArrayList<>(runnables)) {
+				runnables.remove(runnable);
+				runnable.run();
+			}
+		}
+	}
+
+	/**
+	 * Fake GATT: keeps track of the started (un)subscribes, which are completed manually.
+	 */
+	private static class FakeGatt implements NotificationHub.GattSubscriber {
+		int numSubscribes = 0;
+		int numUnsubscribes = 0;
+		IStatusCallback subscribeCallback;
+		IStatusCallback unsubscribeCallback;
+
+		@Override
+		public void subscribe(String address, GattHandle handle, IStatusCallback callback, INotificationCallback notificationCallback) {
+			numSubscribes++;
+			subscribeCallback = callback;
+		}
+
+		@Override
+		public void unsubscribe(String address, GattHandle handle, IStatusCallback callback) {
+			numUnsubscribes++;
+			unsubscribeCallback = callback;
+		}
+
+		void completeSubscribe(int error) {
+			IStatusCallback callback = subscribeCallback;
+			subscribeCallback = null;
+			if (error == 0) {
+				callback.onSuccess();
+			}
+			else {
+				callback.onError(error);
+			}
+		}
+
+		void completeUnsubscribe() {
+			IStatusCallback callback = unsubscribeCallback;
+			unsubscribeCallback = null;
+			callback.onSuccess();
+		}
+	}
+
+	/**
+	 * Subscriber that remembers its id and the errors it got.
+	 */
+	private static class FakeSubscriber implements IIntegerCallback, IMessageCallback<Object> {
+		int id = -1;
+		int statusError = 0;
+		int messageError = 0;
+
+		@Override
+		public void onSuccess(int result) {
+			id = result;
+		}
+
+		@Override
+		public void onMessage(Object message) {
+		}
+
+		@Override
+		public void onError(int error) {
+			if (id == -1) {
+				statusError = error;
+			}
+			else {
+				messageError = error;
+			}
+		}
+	}
+
+	private static class StatusResult implements IStatusCallback {
+		boolean success = false;
+		int error = 0;
+
+		@Override
+		public void onSuccess() {
+			success = true;
+		}
+
+		@Override
+		public void onError(int error) {
+			this.error = error;
+		}
+	}
+
+	private FakeGatt _gatt;
+	private FakeScheduler _scheduler;
+	private NotificationHub _hub;
+
+	@Before
+	public void setUp() {
+		// Don't log to logcat
+		BleLog.getInstance().setLogLevelPerTag(NotificationHub.class.getCanonicalName(), Log.ASSERT);
+		_gatt = new FakeGatt();
+		_scheduler = new FakeScheduler();
+		_hub = new NotificationHub(_gatt, _scheduler);
+	}
+
+	private FakeSubscriber subscribe() {
+		FakeSubscriber subscriber = new FakeSubscriber();
+		_hub.subscribe(ADDRESS, HANDLE, null, null, NotificationHub.DIRECT_EXECUTOR, subscriber, subscriber);
+		return subscriber;
+	}
+
+	private void unsubscribe(FakeSubscriber subscriber) {
+		StatusResult result = new StatusResult();
+		_hub.unsubscribe(ADDRESS, HANDLE, subscriber.id, result);
+		assertTrue(result.success);
+	}
+
+	@Test
+	public void testReferenceCounting() {
+		FakeSubscriber first = subscribe();
+		FakeSubscriber second = subscribe();
+		assertEquals(1, _gatt.numSubscribes);
+		_gatt.completeSubscribe(0);
+		assertTrue(first.id >= 0);
+		assertTrue(second.id >= 0);
+		assertTrue(first.id != second.id);
+
+		// Subscribing once more doesn't need another GATT subscribe.
+		FakeSubscriber third = subscribe();
+		assertTrue(third.id >= 0);
+		assertEquals(1, _gatt.numSubscribes);
+
+		unsubscribe(first);
+		unsubscribe(second);
+		assertTrue(_scheduler.runnables.isEmpty());
+		unsubscribe(third);
+		assertEquals(1, _scheduler.runnables.size());
+		_scheduler.fire();
+		assertEquals(1, _gatt.numUnsubscribes);
+
+		// Unsubscribing an unknown subscriber fails.
+		StatusResult result = new StatusResult();
+		_hub.unsubscribe(ADDRESS, HANDLE, first.id, result);
+		assertEquals(BleErrors.WRONG_CALLBACK, result.error);
+	}
+
+	@Test
+	public void testResubscribeCancelsUnsubscribe() {
+		FakeSubscriber first = subscribe();
+		_gatt.completeSubscribe(0);
+		unsubscribe(first);
+		assertEquals(1, _scheduler.runnables.size());
+
+		FakeSubscriber second = subscribe();
+		assertTrue(second.id >= 0);
+		assertTrue(_scheduler.runnables.isEmpty());
+		_scheduler.fire();
+		assertEquals(1, _gatt.numSubscribes);
+		assertEquals(0, _gatt.numUnsubscribes);
+	}
+
+	@Test
+	public void testSubscribeWhileUnsubscribing() {
+		FakeSubscriber first = subscribe();
+		_gatt.completeSubscribe(0);
+		unsubscribe(first);
+		_scheduler.fire();
+		assertEquals(1, _gatt.numUnsubscribes);
+
+		// The GATT unsubscribe is still busy, so the subscriber has to wait.
+		FakeSubscriber second = subscribe();
+		assertEquals(-1, second.id);
+		assertEquals(1, _gatt.numSubscribes);
+
+		// Once unsubscribed, the hub subscribes again.
+		_gatt.completeUnsubscribe();
+		assertEquals(2, _gatt.numSubscribes);
+		_gatt.completeSubscribe(0);
+		assertTrue(second.id >= 0);
+		assertEquals(0, second.statusError);
+	}
+
+	@Test
+	public void testFirstSubscribeFails() {
+		FakeSubscriber first = subscribe();
+		FakeSubscriber second = subscribe();
+		_gatt.completeSubscribe(BleErrors.ERROR_SUBSCRIBE_FAILED);
+		assertEquals(-1, first.id);
+		assertEquals(BleErrors.ERROR_SUBSCRIBE_FAILED, first.statusError);
+		assertEquals(BleErrors.ERROR_SUBSCRIBE_FAILED, second.statusError);
+		assertTrue(_scheduler.runnables.isEmpty());
+
+		// The next subscriber starts a new GATT subscribe.
+		FakeSubscriber third = subscribe();
+		assertEquals(2, _gatt.numSubscribes);
+		_gatt.completeSubscribe(0);
+		assertTrue(third.id >= 0);
+	}
+
+	@Test
+	public void testClear() {
+		FakeSubscriber subscribed = subscribe();
+		_gatt.completeSubscribe(0);
+
+		// Waits for the GATT subscribe of another characteristic.
+		FakeSubscriber pending = new FakeSubscriber();
+		_hub.subscribe(ADDRESS, BluenetHandles.CONFIG_READ, null, null, NotificationHub.DIRECT_EXECUTOR, pending, pending);
+		assertEquals(2, _gatt.numSubscribes);
+
+		_hub.clear(ADDRESS);
+		assertEquals(BleErrors.ERROR_NOT_CONNECTED, subscribed.messageError);
+		assertEquals(BleErrors.ERROR_NOT_CONNECTED, pending.statusError);
+
+		// A late result of the GATT subscribe is ignored.
+		_gatt.completeSubscribe(0);
+		assertEquals(-1, pending.id);
+		assertTrue(_scheduler.runnables.isEmpty());
+		assertEquals(0, _gatt.numUnsubscribes);
+	}
+}
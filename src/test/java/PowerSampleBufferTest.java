@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+import org.junit.Test;
+
+import nl.dobots.bluenet.power.PowerSampleBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class PowerSampleBufferTest {
+
+	private static final int SAMPLES_PER_PERIOD = 25;
+
+	/**
+	 * Append sines, with an offset, shifting the voltage by phase radians.
+	 */
+	private static void appendSines(PowerSampleBuffer buffer, int count, int amplitudeCurrent, int amplitudeVoltage, double phase) {
+		short[] current = new short[count];
+		short[] voltage = new short[count];
+		int[] timestamps = new int[count];
+		for (int i = 0; i < count; i++) {
+			double angle = 2 * Math.PI * i / SAMPLES_PER_PERIOD;
+			current[i] = (short) Math.round(100 + amplitudeCurrent * Math.sin(angle));
+			voltage[i] = (short) Math.round(-50 + amplitudeVoltage * Math.sin(angle + phase));
+			timestamps[i] = i * 10;
+		}
+		buffer.append(current, voltage, timestamps, count);
+	}
+
+	@Test
+	public void testResistiveLoad() {
+		PowerSampleBuffer buffer = new PowerSampleBuffer(1000, 75, 10);
+		buffer.setScale(0.01, 0.1);
+		appendSines(buffer, 150, 1000, 3000, 0);
+		assertEquals(2, buffer.getNumWindows());
+		double currentRms = 10 / Math.sqrt(2);
+		double voltageRms = 300 / Math.sqrt(2);
+		assertEquals(currentRms, buffer.getLatestMetric(PowerSampleBuffer.METRIC_CURRENT_RMS), 0.01);
+		assertEquals(voltageRms, buffer.getLatestMetric(PowerSampleBuffer.METRIC_VOLTAGE_RMS), 0.1);
+		assertEquals(currentRms * voltageRms, buffer.getLatestMetric(PowerSampleBuffer.METRIC_REAL_POWER), 2);
+		assertEquals(1, buffer.getLatestMetric(PowerSampleBuffer.METRIC_POWER_FACTOR), 0.001);
+		assertEquals(1490, buffer.getWindowTimestamp(1));
+	}
+
+	@Test
+	public void testPhaseShift() {
+		PowerSampleBuffer buffer = new PowerSampleBuffer(1000, 75, 10);
+		appendSines(buffer, 75, 1000, 1000, Math.PI / 3);
+		assertEquals(0.5, buffer.getLatestMetric(PowerSampleBuffer.METRIC_POWER_FACTOR), 0.001);
+		assertEquals(0.5, buffer.getAverageMetric(PowerSampleBuffer.METRIC_POWER_FACTOR, 5), 0.001);
+	}
+
+	@Test
+	public void testWrapAround() {
+		PowerSampleBuffer buffer = new PowerSampleBuffer(100, 75, 2);
+		appendSines(buffer, 75 * 3 + 10, 1000, 1000, 0);
+		assertEquals(100, buffer.getNumSamples());
+		assertEquals(235, buffer.getTotalSamples());
+		assertEquals(2, buffer.getNumWindows());
+		assertEquals(3, buffer.getTotalWindows());
+		assertEquals(2340, buffer.getTimestamp(99));
+		assertEquals(1350, buffer.getTimestamp(0));
+
+		float[] values = new float[5];
+		assertEquals(2, buffer.getMetrics(PowerSampleBuffer.METRIC_POWER_FACTOR, values));
+		assertEquals(1, values[0], 0.001);
+		assertEquals(1, values[1], 0.001);
+
+		buffer.clear();
+		assertEquals(0, buffer.getNumSamples());
+		assertEquals(0, buffer.getNumWindows());
+		assertEquals(0, buffer.getLatestMetric(PowerSampleBuffer.METRIC_CURRENT_RMS), 0);
+	}
+
+	@Test
+	public void testWindowsPerAppend() {
+		PowerSampleBuffer buffer = new PowerSampleBuffer(1000, 75, 10);
+		// A short notification with a large DC offset, then a full one of a resistive load
+		short[] current = new short[40];
+		short[] voltage = new short[40];
+		int[] timestamps = new int[40];
+		for (int i = 0; i < 40; i++) {
+			current[i] = 5000;
+			voltage[i] = -5000;
+		}
+		buffer.append(current, voltage, timestamps, 40);
+		assertEquals(0, buffer.getNumWindows());
+		appendSines(buffer, 75, 1000, 1000, 0);
+
+		// The window is only made of the second notification
+		assertEquals(1, buffer.getNumWindows());
+		assertEquals(115, buffer.getNumSamples());
+		assertEquals(1000 / Math.sqrt(2), buffer.getLatestMetric(PowerSampleBuffer.METRIC_CURRENT_RMS), 1);
+		assertEquals(1, buffer.getLatestMetric(PowerSampleBuffer.METRIC_POWER_FACTOR), 0.001);
+		assertEquals(740, buffer.getWindowTimestamp(0));
+
+		// The last 35 samples of a long notification don't end up in the next window either
+		appendSines(buffer, 110, 1000, 1000, Math.PI / 3);
+		appendSines(buffer, 75, 1000, 1000, 0);
+		assertEquals(3, buffer.getNumWindows());
+		assertEquals(0.5, buffer.getMetric(PowerSampleBuffer.METRIC_POWER_FACTOR, 1), 0.001);
+		assertEquals(1, buffer.getLatestMetric(PowerSampleBuffer.METRIC_POWER_FACTOR), 0.001);
+	}
+
+	@Test
+	public void testDownsample() {
+		PowerSampleBuffer buffer = new PowerSampleBuffer(1000, 75, 10);
+		short[] current = new short[10];
+		short[] voltage = new short[10];
+		int[] timestamps = new int[10];
+		for (int i = 0; i < 10; i++) {
+			current[i] = (short) i;
+			voltage[i] = (short) -i;
+		}
+		buffer.append(current, voltage, timestamps, 10);
+		float[] min = new float[4];
+		float[] max = new float[4];
+		assertEquals(4, buffer.downsample(PowerSampleBuffer.CURRENT, 8, min, max));
+		assertEquals(2, min[0], 0);
+		assertEquals(3, max[0], 0);
+		assertEquals(8, min[3], 0);
+		assertEquals(9, max[3], 0);
+
+		assertEquals(3, buffer.downsample(PowerSampleBuffer.VOLTAGE, 3, min, max));
+		assertEquals(-7, min[0], 0);
+		assertEquals(-9, max[2], 0);
+	}
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import nl.dobots.bluenet.ble.extended.structs.RssiHistory;
+
+import static org.junit.Assert.assertTrue;
+
+public class RssiHistoryTest {
+
+	// Trimmed mean as calculated on a sorted list.
+	private int sortedTrimmedMean(int[] values) {
+		int[] sorted = Arrays.copyOf(values, values.length);
+		Arrays.sort(sorted);
+		int size = sorted.length;
+		int startIndex = 0;
+		int endIndex = size - 1;
+		if (size > 2) {
+			startIndex = size / 10 + 1;
+			endIndex = size - size / 10 - 2;
+		}
+		double sum = 0;
+		for (int i = startIndex; i <= endIndex; i++) {
+			sum += sorted[i];
+		}
+		return (int)(sum / (endIndex - startIndex + 1));
+	}
+
+	@Test
+	public void testTrimmedMean() {
+		int[] values = {-60, -75, -58, -90, -61, -62, -100, -59, -64, -70, -66, -63, -55, -80};
+		for (int n = 1; n <= values.length; n++) {
+			RssiHistory history = new RssiHistory(100);
+			for (int i = 0; i < n; i++) {
+				history.add(i, values[i]);
+			}
+			assertTrue(history.getTrimmedMean() == sortedTrimmedMean(Arrays.copyOf(values, n)));
+		}
+	}
+
+	@Test
+	public void testCapacity() {
+		RssiHistory history = new RssiHistory(4);
+		for (int i = 0; i < 10; i++) {
+			history.add(i, -50 - i);
+		}
+		assertTrue(history.size() == 4);
+		assertTrue(history.getTrimmedMean() == sortedTrimmedMean(new int[]{-56, -57, -58, -59}));
+	}
+
+	@Test
+	public void testExpire() {
+		RssiHistory history = new RssiHistory(10);
+		history.add(1000, -60);
+		history.add(1500, -70);
+		history.add(2000, -80);
+		assertTrue(!history.expire(1900, 1000));
+		assertTrue(history.expire(2400, 1000));
+		assertTrue(history.size() == 2);
+		assertTrue(history.expire(3000, 1000));
+		assertTrue(history.size() == 0);
+		assertTrue(history.getTrimmedMean() == 0);
+	}
+}
@@ -0,0 +1,61 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+
+import nl.dobots.bluenet.utils.BleUtils;
+import nl.dobots.bluenet.utils.logger.SensorLogBinaryWriter;
+import nl.dobots.bluenet.utils.logger.SensorLogConverter;
+import nl.dobots.bluenet.utils.logger.SensorLogReader;
+import nl.dobots.bluenet.utils.logger.SensorLogRecord;
+import nl.dobots.bluenet.utils.logger.SensorLogger.BleLogEvent;
+
+import static org.junit.Assert.assertTrue;
+
+public class SensorLogTest {
+
+	@Test
+	public void testConvertToText() throws Exception {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		SensorLogBinaryWriter writer = new SensorLogBinaryWriter(outputStream, false);
+		writer.writeText(1500000000000L, BleLogEvent.start, "");
+		writer.writeScan(1500000000100L, BleUtils.addressToLong("C0:FF:EE:01:23:AB"), -70, -59);
+		writer.writeStepCount(1500000000050L, 12.0f);
+		writer.writeOrientation(1500000000200L, 0.5f, -1.25f, 3.0f);
+		writer.writeText(1500000000300L, BleLogEvent.setLocation, "1 2.5 3.5");
+		// appending resets the timestamp
+		new SensorLogBinaryWriter(outputStream, true).writeText(1500000000400L, BleLogEvent.stop, "");
+
+		String expected =
+				"1500000000000 start \n" +
+				"1500000000100 onScan C0:FF:EE:01:23:AB -70 -59\n" +
+				"1500000000050 stepCount 12.0\n" +
+				"1500000000200 orientation 0.5 -1.25 3.0\n" +
+				"1500000000300 setLocation 1 2.5 3.5\n" +
+				"1500000000400 stop \n";
+
+		SensorLogReader reader = new SensorLogReader(new ByteArrayInputStream(outputStream.toByteArray()));
+		StringWriter text = new StringWriter();
+		assertTrue(SensorLogConverter.toText(reader, text) == 6);
+		assertTrue(text.toString().equals(expected));
+	}
+
+	@Test
+	public void testTruncated() throws Exception {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		SensorLogBinaryWriter writer = new SensorLogBinaryWriter(outputStream, false);
+		writer.writeScan(1000, BleUtils.addressToLong("01:02:03:04:05:06"), -80, 0);
+		writer.writeScan(2000, BleUtils.addressToLong("01:02:03:04:05:06"), -81, 0);
+		byte[] bytes = outputStream.toByteArray();
+
+		SensorLogReader reader = new SensorLogReader(new ByteArrayInputStream(bytes, 0, bytes.length - 1));
+		assertTrue(reader.hasNext());
+		SensorLogRecord record = reader.next();
+		assertTrue(record.getTimestamp() == 1000);
+		assertTrue(record.getRssi() == -80);
+		assertTrue(record.getAddress().equals("01:02:03:04:05:06"));
+		assertTrue(!reader.hasNext());
+		assertTrue(reader.getError() != null);
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2018 Crownstone
+ *
+ * @author Bart van Vliet
+ */
+
+import org.junit.Test;
+
+import nl.dobots.bluenet.ble.base.ServiceDataCache;
+import nl.dobots.bluenet.ble.base.structs.CrownstoneServiceData;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+public class ServiceDataCacheTest {
+
+	/**
+	 * Unencrypted state service data (opcode 5) of the given crownstone.
+	 */
+	private static byte[] stateData(int crownstoneId, int switchState) {
+		return new byte[] {
+				0x01, (byte) 0xC0,    // service uuid
+				5,                    // opcode
+				1,                    // device type
+				0,                    // type: state
+				(byte) crownstoneId,
+				(byte) switchState,
+				0,                    // flags
+				20,                   // temperature
+				127,                  // power factor
+				16, 0,                // power usage
+				1, 0, 0, 0,           // energy used
+				0x34, 0x12,           // partial timestamp
+				0,                    // reserved
+				(byte) CrownstoneServiceData.VALIDATION
+		};
+	}
+
+	@Test
+	public void testHitAndMiss() {
+		ServiceDataCache cache = new ServiceDataCache();
+		CrownstoneServiceData first = cache.parse("A", stateData(1, 100), false, null);
+		assertNotNull(first);
+		assertEquals(1, first.getCrownstoneId());
+		assertEquals(100, first.getSwitchState());
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		CrownstoneServiceData second = cache.parse("A", stateData(1, 100), false, null);
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		// Each call gets its own copy
+		assertNotSame(first, second);
+		assertEquals(first.getCrownstoneId(), second.getCrownstoneId());
+		assertEquals(first.getSwitchState(), second.getSwitchState());
+		assertEquals(first.getChangingBytesValue(), second.getChangingBytesValue());
+
+		// Other bytes, or another device, are parsed again
+		assertEquals(0, cache.parse("A", stateData(1, 0), false, null).getSwitchState());
+		cache.parse("B", stateData(1, 100), false, null);
+		assertEquals(1, cache.getHits());
+		assertEquals(3, cache.getMisses());
+		assertEquals(2, cache.size());
+
+		// Service data that can't be parsed is cached as well
+		assertNull(cache.parse("C", new byte[] {0x01, (byte) 0xC0, 99}, false, null));
+		assertNull(cache.parse("C", new byte[] {0x01, (byte) 0xC0, 99}, false, null));
+		assertEquals(2, cache.getHits());
+		assertEquals(4, cache.getMisses());
+	}
+
+	@Test
+	public void testCachedDataNotModified() {
+		ServiceDataCache cache = new ServiceDataCache();
+		byte[] bytes = stateData(1, 100);
+		cache.parse("A", bytes, false, null);
+
+		// Modifying the bytes afterwards doesn't change the cached entry
+		bytes[6] = 0;
+		assertEquals(0, cache.parse("A", bytes, false, null).getSwitchState());
+		assertEquals(0, cache.getHits());
+		assertEquals(100, cache.parse("A", stateData(1, 100), false, null).getSwitchState());
+		assertEquals(1, cache.getHits());
+	}
+
+	@Test
+	public void testEntriesPerDevice() {
+		ServiceDataCache cache = new ServiceDataCache();
+		// Interleaved state of the device itself and of another crownstone
+		for (int i = 0; i < 3; i++) {
+			cache.parse("A", stateData(1, 100), false, null);
+			cache.parse("A", stateData(2, 100), false, null);
+		}
+		assertEquals(2, cache.getMisses());
+		assertEquals(4, cache.getHits());
+
+		// A third service data replaces the oldest entry
+		cache.parse("A", stateData(3, 100), false, null);
+		cache.parse("A", stateData(1, 100), false, null);
+		assertEquals(4, cache.getMisses());
+		cache.parse("A", stateData(3, 100), false, null);
+		assertEquals(5, cache.getHits());
+	}
+
+	@Test
+	public void testEviction() {
+		ServiceDataCache cache = new ServiceDataCache(2);
+		cache.parse("A", stateData(1, 100), false, null);
+		cache.parse("B", stateData(2, 100), false, null);
+		// Seeing A again makes B the least recently seen device
+		cache.parse("A", stateData(1, 100), false, null);
+		cache.parse("C", stateData(3, 100), false, null);
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getHits());
+
+		cache.parse("A", stateData(1, 100), false, null);
+		assertEquals(2, cache.getHits());
+		cache.parse("B", stateData(2, 100), false, null);
+		assertEquals(2, cache.getHits());
+		assertEquals(4, cache.getMisses());
+
+		cache.remove("A");
+		assertEquals(1, cache.size());
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(2.0 / 6, cache.getHitRatio(), 1e-9);
+		cache.resetStats();
+		assertEquals(0, cache.getHitRatio(), 0);
+	}
+}